@@ -0,0 +1,185 @@
+package sample.benchmark;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Random;
+
+/**
+ * Генератор синтетических XML-файлов в формате MOEX ISS для бенчмарков: список ценных бумаг (securities) и история
+ * торгов (history) с теми же столбцами, что и в ответах ISS. Данные детерминированы (фиксированное начальное значение
+ * генератора случайных чисел): история заданного размера всегда одинакова. Записи истории идут по торговым дням,
+ * внутри дня - по всем бумагам, как в постраничной выгрузке ISS; часть значений пустые, часть названий содержит
+ * кавычки, записываемые как &amp;quot;.
+ * <p>
+ * Сгенерированные файлы сохраняются в каталоге jmh.data (по умолчанию target/jmh-data) и используются повторно.
+ * Запуск из командной строки: IssDataGenerator rows [каталог].
+ */
+
+public final class IssDataGenerator {
+    private static final String[] BOARDS = {"TQBR", "TQTF", "SMAL", "EQDB"};
+    private static final String[] HISTORY_COLUMNS = {
+            "BOARDID", "TRADEDATE", "SHORTNAME", "SECID", "NUMTRADES", "VALUE", "OPEN", "LOW", "HIGH",
+            "LEGALCLOSEPRICE", "WAPRICE", "CLOSE", "VOLUME", "MARKETPRICE2", "MARKETPRICE3", "ADMITTEDQUOTE",
+            "MP2VALTRD", "MARKETPRICE3TRADESVALUE", "ADMITTEDVALUE", "WAVAL"
+    };
+    private static final LocalDate FIRST_DATE = LocalDate.of(2010, 1, 11);
+
+    private IssDataGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int rows = Integer.parseInt(args[0]);
+        File dir = args.length > 1 ? new File(args[1]) : dataDir();
+        System.out.println(securities(dir, rows));
+        System.out.println(history(dir, rows));
+    }
+
+    /**
+     * Каталог сгенерированных файлов.
+     */
+    public static File dataDir() {
+        return new File(System.getProperty("jmh.data", "target/jmh-data"));
+    }
+
+    /**
+     * Число ценных бумаг для истории из rows записей: от 10 до 2000, примерно по 20 записей на бумагу.
+     */
+    public static int securitiesFor(int rows) {
+        return Math.max(10, Math.min(2000, rows / 20));
+    }
+
+    /**
+     * Файл списка ценных бумаг, к которым относится история из rows записей.
+     */
+    public static File securities(File dir, int rows) throws IOException {
+        int count = securitiesFor(rows);
+        File file = new File(dir, "securities-" + count + ".xml");
+        if (file.length() > 0) return file;
+        try (Writer out = open(dir, file)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<document>\n<data id=\"securities\">\n"
+                    + "<metadata>\n<columns>\n"
+                    + "<column name=\"id\" type=\"int32\" />\n"
+                    + "<column name=\"secid\" type=\"string\" bytes=\"36\" max_size=\"0\" />\n"
+                    + "<column name=\"shortname\" type=\"string\" bytes=\"189\" max_size=\"0\" />\n"
+                    + "<column name=\"regnumber\" type=\"string\" bytes=\"189\" max_size=\"0\" />\n"
+                    + "<column name=\"name\" type=\"string\" bytes=\"765\" max_size=\"0\" />\n"
+                    + "<column name=\"isin\" type=\"string\" bytes=\"765\" max_size=\"0\" />\n"
+                    + "<column name=\"is_traded\" type=\"int32\" />\n"
+                    + "<column name=\"emitent_id\" type=\"int32\" />\n"
+                    + "<column name=\"emitent_title\" type=\"string\" bytes=\"765\" max_size=\"0\" />\n"
+                    + "<column name=\"emitent_inn\" type=\"string\" bytes=\"30\" max_size=\"0\" />\n"
+                    + "<column name=\"type\" type=\"string\" bytes=\"93\" max_size=\"0\" />\n"
+                    + "<column name=\"group\" type=\"string\" bytes=\"93\" max_size=\"0\" />\n"
+                    + "<column name=\"primary_boardid\" type=\"string\" bytes=\"12\" max_size=\"0\" />\n"
+                    + "</columns>\n</metadata>\n<rows>\n");
+            Random random = new Random(count);
+            for (int i = 0; i < count; i++) {
+                String secid = secid(i);
+                out.write("<row id=\"" + (1000 + i) + "\" secid=\"" + secid + "\" shortname=\"" + shortname(i)
+                        + "\" regnumber=\"" + (i % 7 == 0 ? "" : "1-01-" + (10000 + i) + "-A")
+                        + "\" name=\"" + shortname(i) + " ПАО ао\" isin=\"RU000A0" + secid + "\" is_traded=\"1\""
+                        + " emitent_id=\"" + (2000 + random.nextInt(100000)) + "\""
+                        + " emitent_title=\"Публичное акционерное общество &quot;" + secid + "&quot;\""
+                        + " emitent_inn=\"" + (7700000000L + random.nextInt(100000000)) + "\""
+                        + " type=\"common_share\" group=\"stock_shares\" primary_boardid=\"" + board(i) + "\" />\n");
+            }
+            out.write("</rows>\n</data>\n</document>\n");
+        }
+        return file;
+    }
+
+    /**
+     * Файл истории торгов из rows записей.
+     */
+    public static File history(File dir, int rows) throws IOException {
+        File file = new File(dir, "history-" + rows + ".xml");
+        if (file.length() > 0) return file;
+        int securities = securitiesFor(rows);
+        double[] prices = new double[securities];
+        Random random = new Random(rows);
+        for (int i = 0; i < securities; i++) prices[i] = 1 + random.nextInt(5000);
+        try (Writer out = open(dir, file)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<document>\n<data id=\"history\">\n"
+                    + "<metadata>\n<columns>\n");
+            for (String column : HISTORY_COLUMNS) {
+                String type = column.equals("BOARDID") || column.equals("SHORTNAME") || column.equals("SECID")
+                        ? "string\" bytes=\"36\" max_size=\"0" : column.equals("TRADEDATE") ? "date" : "double";
+                out.write("<column name=\"" + column + "\" type=\"" + type + "\" />\n");
+            }
+            out.write("</columns>\n</metadata>\n<rows>\n");
+            StringBuilder row = new StringBuilder(512);
+            for (int n = 0; n < rows; n++) {
+                int i = n % securities;
+                LocalDate date = FIRST_DATE.plusDays(n / securities);
+                double open = prices[i];
+                double close = Math.max(0.01, round(open * (1 + (random.nextDouble() - 0.5) * 0.06)));
+                double low = round(Math.min(open, close) * (1 - random.nextDouble() * 0.02));
+                double high = round(Math.max(open, close) * (1 + random.nextDouble() * 0.02));
+                double waprice = round((open + close + low + high) / 4);
+                int volume = 10 * (1 + random.nextInt(100000));
+                prices[i] = close;
+                row.setLength(0);
+                row.append("<row BOARDID=\"").append(board(i))
+                        .append("\" TRADEDATE=\"").append(date)
+                        .append("\" SHORTNAME=\"").append(shortname(i))
+                        .append("\" SECID=\"").append(secid(i))
+                        .append("\" NUMTRADES=\"").append(1 + random.nextInt(20000))
+                        .append("\" VALUE=\"").append(number(waprice * volume))
+                        .append("\" OPEN=\"").append(number(open))
+                        .append("\" LOW=\"").append(number(low))
+                        .append("\" HIGH=\"").append(number(high))
+                        .append("\" LEGALCLOSEPRICE=\"").append(number(close))
+                        .append("\" WAPRICE=\"").append(number(waprice))
+                        .append("\" CLOSE=\"").append(number(close))
+                        .append("\" VOLUME=\"").append(volume)
+                        .append("\" MARKETPRICE2=\"").append(n % 10 == 0 ? "" : number(waprice))
+                        .append("\" MARKETPRICE3=\"").append(number(waprice))
+                        .append("\" ADMITTEDQUOTE=\"").append(n % 5 == 0 ? "" : number(close))
+                        .append("\" MP2VALTRD=\"").append(number(waprice * volume))
+                        .append("\" MARKETPRICE3TRADESVALUE=\"").append(number(waprice * volume))
+                        .append("\" ADMITTEDVALUE=\"").append(n % 5 == 0 ? "" : number(close * volume))
+                        .append("\" WAVAL=\"").append(0)
+                        .append("\" />\n");
+                out.append(row);
+            }
+            out.write("</rows>\n</data>\n<data id=\"history.cursor\">\n<metadata>\n<columns>\n"
+                    + "<column name=\"INDEX\" type=\"int64\" />\n<column name=\"TOTAL\" type=\"int64\" />\n"
+                    + "<column name=\"PAGESIZE\" type=\"int64\" />\n</columns>\n</metadata>\n<rows>\n"
+                    + "<row INDEX=\"0\" TOTAL=\"" + rows + "\" PAGESIZE=\"" + rows + "\" />\n"
+                    + "</rows>\n</data>\n</document>\n");
+        }
+        return file;
+    }
+
+    private static Writer open(File dir, File file) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Невозможно создать каталог " + dir);
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8),
+                1 << 16);
+    }
+
+    // коды бумаг вида A000, A001, ... в основании 36
+    private static String secid(int i) {
+        String code = Integer.toString(i, 36).toUpperCase();
+        return "A000".substring(0, 4 - Math.min(3, code.length())) + code;
+    }
+
+    private static String shortname(int i) {
+        return i % 3 == 0 ? "ПАО &quot;Бумага " + i + "&quot;" : "Бумага " + i;
+    }
+
+    private static String board(int i) {
+        return BOARDS[i % BOARDS.length];
+    }
+
+    private static double round(double price) {
+        return Math.round(price * 100) / 100.0;
+    }
+
+    // число без экспоненциальной записи, как в ответах ISS
+    private static String number(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value)
+                : BigDecimal.valueOf(value).toPlainString();
+    }
+}
@@ -0,0 +1,117 @@
+package sample.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import sample.Aggregation;
+import sample.Projection;
+import sample.TempDB;
+import sample.XMLWriter;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение данных TempDB с историей из rows записей: getPreparedList по атрибутам таблицы главного окна,
+ * getXMLRow для всех записей и бумаг, агрегация по месяцам и выгрузка всей истории XMLWriter (в канал,
+ * отбрасывающий данные). Одна операция - обход всех записей.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int rows;
+
+    private TempDB tempDB;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException, XMLStreamException, ParseException {
+        tempDB = new TempDB();
+        tempDB.load(IssDataGenerator.securities(IssDataGenerator.dataDir(), rows),
+                IssDataGenerator.history(IssDataGenerator.dataDir(), rows));
+    }
+
+    @Benchmark
+    public LinkedList<HashMap<String, Object>> preparedList() {
+        return tempDB.getPreparedList("secid", "regnumber", "name", "emitent_title", "tradedate", "numtrades",
+                "open", "close");
+    }
+
+    @Benchmark
+    public void projectionCursor(Blackhole blackhole) {
+        Projection.Cursor cursor = tempDB.select("secid", "regnumber", "name", "emitent_title", "tradedate",
+                "numtrades", "open", "close").cursor();
+        while (cursor.next()) {
+            for (int i = 0; i < 8; i++) {
+                blackhole.consume(cursor.get(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public double projectionParallel() {
+        return tempDB.select("close").parallelStream()
+                .map(row -> row.get(0))
+                .filter(value -> value instanceof Double)
+                .mapToDouble(value -> (Double) value)
+                .sum();
+    }
+
+    @Benchmark
+    public void historyXMLRow(Blackhole blackhole) {
+        for (TempDB.HistoryEntry he : tempDB.getHistories()) {
+            blackhole.consume(he.getXMLRow());
+        }
+    }
+
+    @Benchmark
+    public void securityXMLRow(Blackhole blackhole) {
+        for (TempDB.SecurityPaper sp : tempDB.snapshot().getSecurities().values()) {
+            blackhole.consume(sp.getXMLRow());
+        }
+    }
+
+    @Benchmark
+    public List<Aggregation.Group> aggregate() {
+        return tempDB.aggregate(new Aggregation(Aggregation.GroupBy.MONTH)
+                .add("volume", Aggregation.Function.SUM)
+                .add("close", Aggregation.Function.LAST)
+                .add("waprice", Aggregation.Function.VWAP));
+    }
+
+    @Benchmark
+    public void writeHistory() throws IOException {
+        new XMLWriter(new NullChannel()).writeHistory(tempDB.getHistories());
+    }
+
+    // канал, принимающий и отбрасывающий все данные
+    private static final class NullChannel implements WritableByteChannel {
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package sample.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import sample.LoadPipeline;
+import sample.TempDB;
+import sample.XMLReader;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Загрузка истории торгов из rows записей в новую TempDB: TempDB.add уже прочитанных XMLReader (без учёта
+ * чтения файлов), потоковая загрузка файлов TempDB.load и параллельная загрузка LoadPipeline.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class TempDBBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int rows;
+
+    private File securities;
+    private File history;
+    private XMLReader securitiesReader;
+    private XMLReader historyReader;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException, XMLStreamException, ParseException {
+        securities = IssDataGenerator.securities(IssDataGenerator.dataDir(), rows);
+        history = IssDataGenerator.history(IssDataGenerator.dataDir(), rows);
+        securitiesReader = new XMLReader(securities);
+        historyReader = new XMLReader(history);
+    }
+
+    @Benchmark
+    public TempDB add() {
+        TempDB db = new TempDB();
+        db.add(securitiesReader);
+        db.add(historyReader);
+        return db;
+    }
+
+    @Benchmark
+    public TempDB load() throws XMLStreamException, FileNotFoundException, ParseException {
+        TempDB db = new TempDB();
+        db.load(securities, history);
+        return db;
+    }
+
+    @Benchmark
+    public TempDB pipeline() throws XMLStreamException, FileNotFoundException, ParseException {
+        TempDB db = new TempDB();
+        new LoadPipeline(db).load(Arrays.asList(securities, history));
+        return db;
+    }
+}
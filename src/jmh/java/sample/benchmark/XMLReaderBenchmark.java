@@ -0,0 +1,52 @@
+package sample.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import sample.XMLReader;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение файла истории торгов из rows записей: построение списка записей конструктором XMLReader(File),
+ * потоковое чтение через StAX и потоковое чтение отображённого в память файла. Одна операция - чтение всего файла.
+ * Для 10^7 записей (-p rows=10000000) имеет смысл запускать только потоковые варианты: список записей такого
+ * файла не помещается в кучу по умолчанию.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class XMLReaderBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int rows;
+
+    private File history;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        history = IssDataGenerator.history(IssDataGenerator.dataDir(), rows);
+    }
+
+    @Benchmark
+    public XMLReader construct() throws XMLStreamException, FileNotFoundException, ParseException {
+        return new XMLReader(history);
+    }
+
+    @Benchmark
+    public void stream(Blackhole blackhole) throws XMLStreamException, FileNotFoundException, ParseException {
+        new XMLReader(history, (dataId, record) -> blackhole.consume(record.getAttributeValue("close")));
+    }
+
+    @Benchmark
+    public void mapped(Blackhole blackhole) throws XMLStreamException, FileNotFoundException, ParseException {
+        XMLReader.mapped(history, (dataId, record) -> blackhole.consume(record.getAttributeValue("close")));
+    }
+}
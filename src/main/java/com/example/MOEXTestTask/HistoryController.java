@@ -0,0 +1,275 @@
+package com.example.MOEXTestTask;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import sample.Aggregation;
+import sample.CSVWriter;
+import sample.NDJSONWriter;
+import sample.TempDB;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * HTTP-запросы к TempDB:
+ * <ul>
+ * <li>GET /api/securities, GET /api/securities/{secid} - атрибуты ценных бумаг (JSON);</li>
+ * <li>GET /api/history?secid=&amp;board=&amp;from=&amp;to=&amp;columns= - записи истории торгов;</li>
+ * <li>GET /api/aggregates?groupBy=month&amp;agg=sum:volume,last:close&amp;secid=... - агрегаты записей истории
+ * торгов (см. Aggregation).</li>
+ * </ul>
+ * Записи и агрегаты записываются в ответ потоком прямо из столбцов снимка TempDB, в NDJSON (по умолчанию) или CSV:
+ * формат задаётся параметром format=ndjson|csv или заголовком Accept (application/x-ndjson, text/csv).
+ * <p>
+ * Постраничная выдача: параметр limit ограничивает число записей ответа; если записи остались, ответ содержит
+ * курсор следующей страницы в заголовках X-Next-Cursor и Link (rel="next"), а следующая страница запрашивается
+ * с теми же параметрами и cursor. Курсор ссылается на снимок TempDB, из которого выдана первая страница, поэтому
+ * страницы согласованы между собой, даже если в TempDB тем временем загружены новые записи. Последние
+ * moex.api.cursor-snapshots снимков с выданными курсорами хранятся; на курсор вытесненного снимка отвечает 410 Gone.
+ * <p>
+ * ETag ответа - версия снимка TempDB (и формат), поэтому повторный запрос с If-None-Match получает 304 Not Modified
+ * без выполнения запроса, пока в TempDB не опубликован новый снимок.
+ */
+
+@RestController
+@RequestMapping("/api")
+public class HistoryController {
+    static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+    static final MediaType CSV = MediaType.parseMediaType("text/csv");
+    static final String NEXT_CURSOR = "X-Next-Cursor";
+    static final String TOTAL_COUNT = "X-Total-Count";
+
+    private final TempDB tempDB;
+    // снимки с выданными курсорами по версии, в порядке последнего обращения
+    private final SnapshotCache snapshots;
+
+    /**
+     * @param tempDB          база данных
+     * @param cursorSnapshots число последних снимков, для которых действительны выданные курсоры
+     */
+    public HistoryController(TempDB tempDB, @Value("${moex.api.cursor-snapshots:16}") int cursorSnapshots) {
+        if (cursorSnapshots < 1) throw new IllegalArgumentException("cursorSnapshots < 1");
+        this.tempDB = tempDB;
+        this.snapshots = new SnapshotCache(cursorSnapshots);
+    }
+
+    @GetMapping("/securities")
+    public List<Map<String, Object>> securities(ServletWebRequest request) {
+        TempDB.Snapshot snapshot = tempDB.snapshot();
+        if (request.checkNotModified(etag(snapshot, null))) return null;
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (TempDB.SecurityPaper security : snapshot.getSecurities().values()) {
+            result.add(security.getInfo());
+        }
+        return result;
+    }
+
+    @GetMapping("/securities/{secid}")
+    public Map<String, Object> security(@PathVariable("secid") String secid, ServletWebRequest request) {
+        TempDB.Snapshot snapshot = tempDB.snapshot();
+        TempDB.SecurityPaper security = snapshot.getSecurities().get(secid);
+        if (security == null) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Нет ценной бумаги " + secid);
+        if (request.checkNotModified(etag(snapshot, null))) return null;
+        return security.getInfo();
+    }
+
+    @GetMapping("/history")
+    public void history(@RequestParam(name = "secid", required = false) String secid,
+                        @RequestParam(name = "board", required = false) String boardid,
+                        @RequestParam(name = "from", required = false)
+                        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                        @RequestParam(name = "to", required = false)
+                        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+                        @RequestParam(name = "columns", required = false) List<String> columns,
+                        @RequestParam(name = "limit", required = false) Integer limit,
+                        @RequestParam(name = "cursor", required = false) String cursor,
+                        @RequestParam(name = "format", required = false) String format,
+                        ServletWebRequest request) throws IOException {
+        boolean csv = csv(format, request);
+        Page page = page(cursor, limit);
+        if (request.checkNotModified(etag(page.snapshot, csv))) return;
+        List<TempDB.HistoryEntry> entries = page.snapshot.find(secid, boardid, from, to);
+        List<TempDB.HistoryEntry> rows = page.of(entries, request);
+        WritableByteChannel channel = open(request, csv);
+        if (csv) {
+            new CSVWriter(channel).writeHistory(rows, columns);
+        } else {
+            new NDJSONWriter(channel).writeHistory(rows, columns);
+        }
+    }
+
+    @GetMapping("/aggregates")
+    public void aggregates(@RequestParam(name = "groupBy") String groupBy,
+                           @RequestParam(name = "agg", required = false) List<String> aggregates,
+                           @RequestParam(name = "secid", required = false) String secid,
+                           @RequestParam(name = "board", required = false) String boardid,
+                           @RequestParam(name = "from", required = false)
+                           @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                           @RequestParam(name = "to", required = false)
+                           @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+                           @RequestParam(name = "limit", required = false) Integer limit,
+                           @RequestParam(name = "cursor", required = false) String cursor,
+                           @RequestParam(name = "format", required = false) String format,
+                           ServletWebRequest request) throws IOException {
+        Aggregation query = new Aggregation(constant(Aggregation.GroupBy.class, groupBy, "groupBy"));
+        if (aggregates != null) {
+            for (String aggregate : aggregates) {
+                int colon = aggregate.indexOf(':');
+                if (colon < 0) throw badRequest("Неверный агрегат: " + aggregate);
+                query.add(aggregate.substring(colon + 1),
+                        constant(Aggregation.Function.class, aggregate.substring(0, colon), "agg"));
+            }
+        }
+        boolean csv = csv(format, request);
+        Page page = page(cursor, limit);
+        if (request.checkNotModified(etag(page.snapshot, csv))) return;
+        List<Aggregation.Group> groups = secid == null && boardid == null && from == null && to == null
+                ? page.snapshot.aggregate(query) : query.run(page.snapshot.find(secid, boardid, from, to));
+        groups = page.of(groups, request);
+        WritableByteChannel channel = open(request, csv);
+        if (csv) {
+            new CSVWriter(channel).writeAggregates(query, groups);
+        } else {
+            new NDJSONWriter(channel).writeAggregates(groups);
+        }
+    }
+
+    // страница ответа: снимок, из которого выдаются записи, смещение и наибольшее число записей
+    private final class Page {
+        final TempDB.Snapshot snapshot;
+        final int offset;
+        final Integer limit;
+
+        Page(TempDB.Snapshot snapshot, int offset, Integer limit) {
+            this.snapshot = snapshot;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        // записи страницы из результата запроса; курсор следующей страницы записывается в заголовки ответа
+        <T> List<T> of(List<T> result, ServletWebRequest request) {
+            int size = result.size();
+            int from = Math.min(offset, size);
+            int to = limit == null ? size : (int) Math.min(size, (long) from + limit);
+            HttpServletResponse response = request.getResponse();
+            response.setHeader(TOTAL_COUNT, Integer.toString(size));
+            if (to < size) {
+                String next = cursor(snapshot, to);
+                response.setHeader(NEXT_CURSOR, next);
+                response.setHeader(HttpHeaders.LINK, "<" + ServletUriComponentsBuilder.fromRequest(request.getRequest())
+                        .replaceQueryParam("cursor", next).build().toUriString() + ">; rel=\"next\"");
+            }
+            return from == 0 && to == size ? result : result.subList(from, to);
+        }
+    }
+
+    private Page page(String cursor, Integer limit) {
+        if (limit != null && limit < 1) throw badRequest("Неверное значение limit: " + limit);
+        if (cursor == null) return new Page(tempDB.snapshot(), 0, limit);
+        long version;
+        int offset;
+        try {
+            int dot = cursor.indexOf('.');
+            version = Long.parseLong(cursor.substring(0, dot), Character.MAX_RADIX);
+            offset = Integer.parseInt(cursor.substring(dot + 1), Character.MAX_RADIX);
+        } catch (RuntimeException e) {
+            throw badRequest("Неверный курсор: " + cursor);
+        }
+        if (offset < 0) throw badRequest("Неверный курсор: " + cursor);
+        TempDB.Snapshot snapshot;
+        synchronized (snapshots) {
+            snapshot = snapshots.get(version);
+        }
+        if (snapshot == null) {
+            snapshot = tempDB.snapshot();
+            if (snapshot.getVersion() != version) {
+                throw new ResponseStatusException(HttpStatus.GONE,
+                        "Курсор устарел, повторите запрос без параметра cursor");
+            }
+        }
+        return new Page(snapshot, offset, limit);
+    }
+
+    // курсор записи offset снимка snapshot; снимок сохраняется, пока по курсору могут запросить следующую страницу
+    private String cursor(TempDB.Snapshot snapshot, int offset) {
+        synchronized (snapshots) {
+            snapshots.put(snapshot.getVersion(), snapshot);
+        }
+        return Long.toString(snapshot.getVersion(), Character.MAX_RADIX) + "."
+                + Integer.toString(offset, Character.MAX_RADIX);
+    }
+
+    private static String etag(TempDB.Snapshot snapshot, Boolean csv) {
+        return "\"" + snapshot.getVersion() + (csv == null ? "" : csv ? "-csv" : "-ndjson") + "\"";
+    }
+
+    // true - ответ в CSV, false - в NDJSON; формат из параметра format или первый подходящий тип заголовка Accept
+    private static boolean csv(String format, ServletWebRequest request) {
+        if (format != null) {
+            if (format.equalsIgnoreCase("csv")) return true;
+            if (format.equalsIgnoreCase("ndjson")) return false;
+            throw badRequest("Неизвестный формат: " + format);
+        }
+        String accept = request.getHeader(HttpHeaders.ACCEPT);
+        if (accept == null) return false;
+        List<MediaType> types;
+        try {
+            types = MediaType.parseMediaTypes(accept);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        MediaType.sortBySpecificityAndQuality(types);
+        for (MediaType type : types) {
+            if (type.includes(NDJSON)) return false;
+            if (type.includes(CSV)) return true;
+        }
+        return false;
+    }
+
+    private static WritableByteChannel open(ServletWebRequest request, boolean csv) throws IOException {
+        HttpServletResponse response = request.getResponse();
+        response.setContentType((csv ? CSV : NDJSON) + ";charset=UTF-8");
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        return Channels.newChannel(response.getOutputStream());
+    }
+
+    private static <E extends Enum<E>> E constant(Class<E> type, String value, String parameter) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw badRequest("Неверное значение " + parameter + ": " + value);
+        }
+    }
+
+    private static ResponseStatusException badRequest(String message) {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, message);
+    }
+
+    // не более capacity снимков; при переполнении вытесняется снимок, к которому дольше всего не обращались
+    private static final class SnapshotCache extends LinkedHashMap<Long, TempDB.Snapshot> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        SnapshotCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, TempDB.Snapshot> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.MOEXTestTask;
+
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import sample.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * TempDB веб-сервиса. При запуске в него загружаются XML-файлы ISS, заданные свойствами (файлы, которые не удалось
+ * прочитать, пропускаются с предупреждением в журнале):
+ * <ul>
+ * <li>moex.data.paths - каталоги, шаблоны glob и файлы через запятую, как аргументы BatchMain;</li>
+ * <li>moex.data.threads - число потоков чтения (0 - по числу процессоров);</li>
+ * <li>moex.data.duplicates - правило повторов ключа: allow, skip, replace или merge;</li>
+ * <li>moex.data.cache, moex.data.cache-size - каталог и размер (МБ) кэша разбора файлов;</li>
+ * <li>moex.watch.dir, moex.watch.debounce - каталог, файлы которого загружаются при запуске, а новые и изменённые
+ * дочитываются во время работы (DirectoryWatcher), и интервал ожидания тишины в каталоге в миллисекундах.</li>
+ * </ul>
+ */
+
+@Configuration
+public class TempDBConfiguration {
+    private static final Logger log = LoggerFactory.getLogger(TempDBConfiguration.class);
+
+    @Bean
+    public TempDB tempDB(@Value("${moex.data.paths:}") String[] inputs,
+                         @Value("${moex.data.threads:0}") int threads,
+                         @Value("${moex.data.duplicates:allow}") String duplicates,
+                         @Value("${moex.data.cache:}") String cache,
+                         @Value("${moex.data.cache-size:512}") long cacheMegabytes)
+            throws IOException {
+        TempDB tempDB = new TempDB();
+        tempDB.setDuplicatePolicy(TempDB.DuplicatePolicy.valueOf(duplicates.toUpperCase(Locale.ROOT)));
+        List<File> files = BatchMain.listFiles(Arrays.asList(inputs));
+        if (!files.isEmpty()) {
+            LoadPipeline pipeline = threads > 0 ? new LoadPipeline(tempDB, threads) : new LoadPipeline(tempDB);
+            if (!cache.isEmpty()) pipeline.setCache(new ParseCache(new File(cache), cacheMegabytes << 20));
+            long started = System.nanoTime();
+            pipeline.load(files, new LogListener());
+            log.info("Загружено файлов: {}, записей истории торгов: {} за {} мс", files.size(),
+                    tempDB.getHistories().size(), (System.nanoTime() - started) / 1_000_000);
+        }
+        return tempDB;
+    }
+
+    /**
+     * Метрики размера TempDB в общем реестре Micrometer, куда пишет и MicrometerRecorder.
+     */
+    @Bean
+    public TempDBMetrics tempDBMetrics(TempDB tempDB) {
+        TempDBMetrics metrics = new TempDBMetrics(tempDB);
+        metrics.bindTo(Metrics.globalRegistry);
+        return metrics;
+    }
+
+    @Bean
+    @ConditionalOnProperty("moex.watch.dir")
+    public DirectoryWatcher directoryWatcher(TempDB tempDB, @Value("${moex.watch.dir}") String directory,
+                                             @Value("${moex.watch.debounce:500}") long debounceMillis)
+            throws IOException {
+        DirectoryWatcher watcher = new DirectoryWatcher(tempDB, new File(directory), debounceMillis,
+                new LogListener());
+        watcher.start();
+        return watcher;
+    }
+
+    // файлы, которые не удалось прочитать, пропускаются с предупреждением в журнале
+    private static final class LogListener implements LoadPipeline.Listener {
+
+        @Override
+        public void fileFailed(File file, Exception e) {
+            log.warn("Невозможно прочитать файл {}: {}", file, e.getMessage());
+        }
+
+        @Override
+        public void published(TempDB.Snapshot snapshot) {
+            log.debug("Опубликована версия {}: записей истории торгов {}", snapshot.getVersion(),
+                    snapshot.getHistories().size());
+        }
+    }
+}
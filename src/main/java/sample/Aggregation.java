@@ -0,0 +1,584 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Запрос агрегации записей истории торгов: группировка по коду бумаги, режиму торгов или периоду даты торгов
+ * (день, неделя, месяц) и набор агрегатов вида функция(столбец), например SUM(volume), LAST(close),
+ * VWAP(waprice). Пример:
+ * <pre>
+ * List&lt;Aggregation.Group&gt; groups = tempDB.aggregate(new Aggregation(Aggregation.GroupBy.MONTH)
+ *         .add("volume", Aggregation.Function.SUM)
+ *         .add("close", Aggregation.Function.LAST));
+ * </pre>
+ * Вычисление идёт по столбцам хранилища TempDB, без создания HistoryEntry и карт атрибутов: для участка записей
+ * сначала вычисляются номера групп, затем каждый агрегат считается отдельным циклом по значениям своего столбца.
+ * Участки по CHUNK записей обрабатываются параллельно в общем пуле ForkJoinPool, их частичные результаты
+ * объединяются в порядке участков, поэтому результат не зависит от числа потоков.
+ */
+
+public class Aggregation {
+    // число записей, обрабатываемых одной подзадачей
+    static final int CHUNK = 1 << 14;
+    // столбец весов для VWAP
+    static final String VOLUME = "volume";
+
+    /**
+     * Ключ группировки. Для DAY, WEEK и MONTH ключ группы - первый день периода (для недели - понедельник),
+     * записи без даты торгов не учитываются.
+     */
+    public enum GroupBy {
+        SECID,
+        BOARDID,
+        DAY,
+        WEEK,
+        MONTH
+    }
+
+    /**
+     * Агрегатная функция. Учитываются только непустые значения столбца. FIRST и LAST - значения с самой ранней
+     * и самой поздней датой торгов в группе (при равных датах - первое и последнее в порядке обхода записей).
+     * VWAP - средняя цена, взвешенная по объёму (столбец volume): sum(x * volume) / sum(volume).
+     */
+    public enum Function {
+        SUM,
+        MIN,
+        MAX,
+        FIRST,
+        LAST,
+        AVG,
+        VWAP
+    }
+
+    private final GroupBy groupBy;
+    private final List<String> columns = new ArrayList<>();
+    private final List<Function> functions = new ArrayList<>();
+
+    public Aggregation(@NotNull GroupBy groupBy) {
+        this.groupBy = groupBy;
+    }
+
+    /**
+     * Добавляет в запрос агрегат function(column).
+     *
+     * @param column   имя числового столбца истории торгов (регистр не важен)
+     * @param function агрегатная функция
+     * @return этот запрос
+     */
+    public Aggregation add(@NotNull String column, @NotNull Function function) {
+        columns.add(column.toLowerCase(Locale.ROOT));
+        functions.add(function);
+        return this;
+    }
+
+    public GroupBy getGroupBy() {
+        return groupBy;
+    }
+
+    /**
+     * Число агрегатов в запросе.
+     */
+    public int size() {
+        return columns.size();
+    }
+
+    /**
+     * Название агрегата metric вида sum(volume).
+     */
+    public String getLabel(int metric) {
+        return functions.get(metric).name().toLowerCase(Locale.ROOT) + "(" + columns.get(metric) + ")";
+    }
+
+    /**
+     * Вычисляет агрегаты по записям entries, полученным из TempDB (getHistories, find или снимок). Группы
+     * упорядочены по ключу.
+     */
+    public List<Group> run(@NotNull List<TempDB.HistoryEntry> entries) {
+        TempDB.RowView view = entries instanceof TempDB.RowView ? (TempDB.RowView) entries : rowsOf(entries);
+        int size = entries.size();
+        if (size == 0 || view.store() == null) return new ArrayList<>();
+        Plan plan = new Plan(view);
+        if (plan.bySymbol() ? plan.symbols == null : plan.dates == null) return new ArrayList<>();
+        Partial result = new ChunkTask(plan, 0, size).invoke();
+        return plan.groups(result);
+    }
+
+    // записи из произвольного списка: все должны быть строками одного хранилища
+    private static TempDB.RowView rowsOf(List<TempDB.HistoryEntry> entries) {
+        int[] rows = new int[entries.size()];
+        HistoryStore store = null;
+        for (int i = 0; i < rows.length; i++) {
+            TempDB.HistoryEntry he = entries.get(i);
+            if (he.store() == null || (store != null && he.store() != store)) {
+                throw new IllegalArgumentException("Записи должны быть получены из одного снимка TempDB");
+            }
+            store = he.store();
+            rows[i] = he.row();
+        }
+        HistoryStore rowStore = store;
+        return new TempDB.RowView() {
+            @Override
+            public HistoryStore store() {
+                return rowStore;
+            }
+
+            @Override
+            public int rowAt(int index) {
+                return rows[index];
+            }
+        };
+    }
+
+    // начало периода даты day в виде целого ключа
+    static int periodKey(GroupBy groupBy, int day) {
+        switch (groupBy) {
+            case WEEK:
+                // 1970-01-01 - четверг
+                return day - Math.floorMod(day + 3, 7);
+            case MONTH:
+                LocalDate date = LocalDate.ofEpochDay(day);
+                return date.getYear() * 12 + date.getMonthValue() - 1;
+            default:
+                return day;
+        }
+    }
+
+    /**
+     * Результат агрегации для одной группы.
+     */
+    public static final class Group {
+        private final Aggregation query;
+        private final Object key;
+        private final long rows;
+        private final double[] values;
+
+        private Group(Aggregation query, Object key, long rows, double[] values) {
+            this.query = query;
+            this.key = key;
+            this.rows = rows;
+            this.values = values;
+        }
+
+        /**
+         * Ключ группы: String для SECID и BOARDID, LocalDate (первый день периода) для DAY, WEEK и MONTH.
+         */
+        public Object getKey() {
+            return key;
+        }
+
+        /**
+         * Число записей в группе.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * Значение агрегата metric (в порядке добавления в запрос) или NaN, если в группе нет непустых значений.
+         */
+        public double getValue(int metric) {
+            return values[metric];
+        }
+
+        /**
+         * Группа в виде карты: ключ группы (secid, boardid или tradedate), rows и значения агрегатов по их
+         * названиям (getLabel); отсутствующее значение представлено пустой строкой, как в TempDB.
+         */
+        public LinkedHashMap<String, Object> toMap() {
+            LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+            result.put(query.groupBy == GroupBy.SECID ? "secid" : query.groupBy == GroupBy.BOARDID ? "boardid"
+                    : "tradedate", key);
+            result.put("rows", rows);
+            for (int m = 0; m < values.length; m++) {
+                result.put(query.getLabel(m), Double.isNaN(values[m]) ? "" : (Object) values[m]);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return toMap().toString();
+        }
+    }
+
+    // столбцы хранилища, участвующие в запросе
+    private final class Plan {
+        final TempDB.RowView view;
+        final HistoryStore.SymbolColumn symbols;
+        final HistoryStore.DateColumn dates;
+        final HistoryStore.Column[] metrics;
+        final HistoryStore.Column volume;
+        final boolean needDays;
+        final boolean needVolume;
+
+        Plan(TempDB.RowView view) {
+            this.view = view;
+            HistoryStore store = view.store();
+            symbols = groupBy == GroupBy.SECID ? store.symbols("secid")
+                    : groupBy == GroupBy.BOARDID ? store.symbols("boardid") : null;
+            dates = store.dates("tradedate");
+            metrics = new HistoryStore.Column[columns.size()];
+            for (int m = 0; m < metrics.length; m++) metrics[m] = store.column(columns.get(m));
+            needDays = functions.contains(Function.FIRST) || functions.contains(Function.LAST);
+            needVolume = functions.contains(Function.VWAP);
+            volume = needVolume ? store.column(VOLUME) : null;
+        }
+
+        boolean bySymbol() {
+            return groupBy == GroupBy.SECID || groupBy == GroupBy.BOARDID;
+        }
+
+        // агрегация участка [from, to) списка записей
+        Partial compute(int from, int to) {
+            int n = to - from;
+            int[] rows = new int[n];
+            for (int i = 0; i < n; i++) rows[i] = view.rowAt(from + i);
+            Partial partial = new Partial(functions);
+
+            // номера групп записей участка; -1 - запись без ключа
+            int[] groups = new int[n];
+            if (bySymbol()) {
+                for (int i = 0; i < n; i++) {
+                    int code = symbols.getCode(rows[i]);
+                    // код 0 - пустое значение
+                    groups[i] = code == 0 ? -1 : partial.group(code);
+                }
+            } else {
+                int lastDay = 0;
+                int lastKey = 0;
+                boolean cached = false;
+                for (int i = 0; i < n; i++) {
+                    if (dates.isEmpty(rows[i])) {
+                        groups[i] = -1;
+                        continue;
+                    }
+                    int day = dates.getEpochDay(rows[i]);
+                    if (!cached || day != lastDay) {
+                        lastKey = periodKey(groupBy, day);
+                        lastDay = day;
+                        cached = true;
+                    }
+                    groups[i] = partial.group(lastKey);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (groups[i] >= 0) partial.rows[groups[i]]++;
+            }
+
+            double[] days = null;
+            if (needDays) {
+                days = new double[n];
+                for (int i = 0; i < n; i++) {
+                    days[i] = dates == null || dates.isEmpty(rows[i]) ? Double.NaN : dates.getEpochDay(rows[i]);
+                }
+            }
+            double[] weights = null;
+            if (needVolume) {
+                weights = new double[n];
+                gather(volume, rows, weights);
+            }
+            double[] values = new double[n];
+            for (int m = 0; m < metrics.length; m++) {
+                gather(metrics[m], rows, values);
+                accumulate(functions.get(m), groups, values, days, weights, partial.acc[m], partial.aux[m]);
+            }
+            return partial;
+        }
+
+        // итоговые группы в порядке ключа
+        List<Group> groups(Partial partial) {
+            Integer[] order = new Integer[partial.size];
+            Object[] keys = new Object[partial.size];
+            for (int g = 0; g < partial.size; g++) {
+                order[g] = g;
+                int key = partial.keys[g];
+                if (bySymbol()) {
+                    keys[g] = symbols.decode(key);
+                } else if (groupBy == GroupBy.MONTH) {
+                    keys[g] = LocalDate.of(Math.floorDiv(key, 12), Math.floorMod(key, 12) + 1, 1);
+                } else {
+                    keys[g] = LocalDate.ofEpochDay(key);
+                }
+            }
+            if (bySymbol()) {
+                Arrays.sort(order, (a, b) -> ((String) keys[a]).compareTo((String) keys[b]));
+            } else {
+                Arrays.sort(order, (a, b) -> Integer.compare(partial.keys[a], partial.keys[b]));
+            }
+            List<Group> result = new ArrayList<>(partial.size);
+            for (int g : order) {
+                double[] values = new double[functions.size()];
+                for (int m = 0; m < values.length; m++) {
+                    values[m] = finish(functions.get(m), partial.acc[m][g], partial.aux[m][g]);
+                }
+                result.add(new Group(Aggregation.this, keys[g], partial.rows[g], values));
+            }
+            return result;
+        }
+    }
+
+    // значения столбца для строк rows; пустые значения и значения не-чисел - NaN
+    static void gather(HistoryStore.Column column, int[] rows, double[] out) {
+        int n = rows.length;
+        if (column instanceof HistoryStore.DoubleColumn) {
+            HistoryStore.DoubleColumn doubles = (HistoryStore.DoubleColumn) column;
+            for (int i = 0; i < n; i++) out[i] = doubles.getDouble(rows[i]);
+        } else if (column instanceof HistoryStore.LongColumn) {
+            HistoryStore.LongColumn longs = (HistoryStore.LongColumn) column;
+            for (int i = 0; i < n; i++) {
+                out[i] = longs.isEmpty(rows[i]) ? Double.NaN : longs.getLong(rows[i]);
+            }
+        } else if (column == null || column instanceof HistoryStore.EmptyColumn) {
+            Arrays.fill(out, 0, n, Double.NaN);
+        } else {
+            for (int i = 0; i < n; i++) {
+                Object value = column.get(rows[i]);
+                out[i] = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+            }
+        }
+    }
+
+    // накопление агрегата function по значениям участка в acc и aux (значение aux зависит от функции, см. Partial)
+    private static void accumulate(Function function, int[] groups, double[] values, double[] days,
+                                   double[] weights, double[] acc, double[] aux) {
+        int n = groups.length;
+        switch (function) {
+            case SUM:
+            case AVG:
+                for (int i = 0; i < n; i++) {
+                    int g = groups[i];
+                    double x = values[i];
+                    if (g < 0 || x != x) continue;
+                    acc[g] += x;
+                    aux[g]++;
+                }
+                break;
+            case MIN:
+                for (int i = 0; i < n; i++) {
+                    int g = groups[i];
+                    double x = values[i];
+                    if (g < 0 || x != x) continue;
+                    if (x < acc[g]) acc[g] = x;
+                    aux[g]++;
+                }
+                break;
+            case MAX:
+                for (int i = 0; i < n; i++) {
+                    int g = groups[i];
+                    double x = values[i];
+                    if (g < 0 || x != x) continue;
+                    if (x > acc[g]) acc[g] = x;
+                    aux[g]++;
+                }
+                break;
+            case FIRST:
+                for (int i = 0; i < n; i++) {
+                    int g = groups[i];
+                    double x = values[i];
+                    double day = days[i];
+                    if (g < 0 || x != x || day != day) continue;
+                    if (day < aux[g]) {
+                        acc[g] = x;
+                        aux[g] = day;
+                    }
+                }
+                break;
+            case LAST:
+                for (int i = 0; i < n; i++) {
+                    int g = groups[i];
+                    double x = values[i];
+                    double day = days[i];
+                    if (g < 0 || x != x || day != day) continue;
+                    if (day >= aux[g]) {
+                        acc[g] = x;
+                        aux[g] = day;
+                    }
+                }
+                break;
+            case VWAP:
+                for (int i = 0; i < n; i++) {
+                    int g = groups[i];
+                    double x = values[i];
+                    double w = weights[i];
+                    if (g < 0 || x != x || w != w) continue;
+                    acc[g] += x * w;
+                    aux[g] += w;
+                }
+                break;
+        }
+    }
+
+    private static double finish(Function function, double acc, double aux) {
+        switch (function) {
+            case AVG:
+            case VWAP:
+                return aux == 0 ? Double.NaN : acc / aux;
+            case FIRST:
+            case LAST:
+                return Double.isInfinite(aux) ? Double.NaN : acc;
+            default:
+                return aux == 0 ? Double.NaN : acc;
+        }
+    }
+
+    /**
+     * Частичный результат агрегации участка записей: группы с ключами keys[0..size-1] (код словаря или ключ
+     * периода) и по два массива накопителей на агрегат. acc - сумма, минимум, максимум или значение FIRST/LAST;
+     * aux - число значений, сумма весов VWAP или дата торгов значения FIRST/LAST.
+     */
+    static final class Partial {
+        private final Function[] functions;
+        int size;
+        int[] keys = new int[16];
+        long[] rows = new long[16];
+        final double[][] acc;
+        final double[][] aux;
+        // открытая адресация: ключ -> номер группы + 1
+        private int[] table = new int[32];
+        private int lastKey;
+        private int lastGroup = -1;
+
+        Partial(List<Function> functions) {
+            this.functions = functions.toArray(new Function[0]);
+            acc = new double[this.functions.length][16];
+            aux = new double[this.functions.length][16];
+        }
+
+        // номер группы с ключом key, при необходимости новой
+        int group(int key) {
+            if (lastGroup >= 0 && key == lastKey) return lastGroup;
+            int mask = table.length - 1;
+            int slot = mix(key) & mask;
+            while (table[slot] != 0) {
+                int g = table[slot] - 1;
+                if (keys[g] == key) return remember(key, g);
+                slot = (slot + 1) & mask;
+            }
+            int g = add(key);
+            table[slot] = g + 1;
+            if (size * 2 > table.length) rehash();
+            return remember(key, g);
+        }
+
+        private int remember(int key, int group) {
+            lastKey = key;
+            lastGroup = group;
+            return group;
+        }
+
+        private int add(int key) {
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                rows = Arrays.copyOf(rows, capacity);
+                for (int m = 0; m < functions.length; m++) {
+                    acc[m] = Arrays.copyOf(acc[m], capacity);
+                    aux[m] = Arrays.copyOf(aux[m], capacity);
+                }
+            }
+            int g = size++;
+            keys[g] = key;
+            rows[g] = 0;
+            for (int m = 0; m < functions.length; m++) {
+                switch (functions[m]) {
+                    case MIN:
+                        acc[m][g] = Double.POSITIVE_INFINITY;
+                        break;
+                    case MAX:
+                        acc[m][g] = Double.NEGATIVE_INFINITY;
+                        break;
+                    case FIRST:
+                        aux[m][g] = Double.POSITIVE_INFINITY;
+                        break;
+                    case LAST:
+                        aux[m][g] = Double.NEGATIVE_INFINITY;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return g;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int g = 0; g < size; g++) {
+                int slot = mix(keys[g]) & mask;
+                while (table[slot] != 0) slot = (slot + 1) & mask;
+                table[slot] = g + 1;
+            }
+        }
+
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        // добавляет результат следующего за этим участка
+        Partial merge(Partial next) {
+            for (int h = 0; h < next.size; h++) {
+                int g = group(next.keys[h]);
+                rows[g] += next.rows[h];
+                for (int m = 0; m < functions.length; m++) {
+                    double a = next.acc[m][h];
+                    double b = next.aux[m][h];
+                    switch (functions[m]) {
+                        case MIN:
+                            if (a < acc[m][g]) acc[m][g] = a;
+                            aux[m][g] += b;
+                            break;
+                        case MAX:
+                            if (a > acc[m][g]) acc[m][g] = a;
+                            aux[m][g] += b;
+                            break;
+                        case FIRST:
+                            if (b < aux[m][g]) {
+                                acc[m][g] = a;
+                                aux[m][g] = b;
+                            }
+                            break;
+                        case LAST:
+                            if (b >= aux[m][g] && !Double.isInfinite(b)) {
+                                acc[m][g] = a;
+                                aux[m][g] = b;
+                            }
+                            break;
+                        default:
+                            acc[m][g] += a;
+                            aux[m][g] += b;
+                    }
+                }
+            }
+            return this;
+        }
+    }
+
+    // делит список записей пополам до участков не длиннее CHUNK; результаты объединяются в порядке участков
+    private static final class ChunkTask extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+        private final Plan plan;
+        private final int from;
+        private final int to;
+
+        ChunkTask(Plan plan, int from, int to) {
+            this.plan = plan;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (to - from <= CHUNK) return plan.compute(from, to);
+            int mid = (from + to) >>> 1;
+            ChunkTask left = new ChunkTask(plan, from, mid);
+            left.fork();
+            Partial right = new ChunkTask(plan, mid, to).compute();
+            return left.join().merge(right);
+        }
+    }
+}
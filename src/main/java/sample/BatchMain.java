@@ -0,0 +1,348 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Пакетный режим без графического интерфейса: XML-файлы ISS читаются параллельно (LoadPipeline) в TempDB,
+ * к записям истории торгов применяются условия отбора и, при необходимости, агрегация, результат записывается
+ * в XML или CSV на стандартный вывод или в файл. По окончании в стандартный поток ошибок (или в файл --timing)
+ * выводится сводка времени этапов одной строкой JSON. Пример:
+ * <pre>
+ * java -cp MOEXTestTask.jar sample.BatchMain --secid AFLT --from 2020-04-01 --format csv data/ 'data/history_*.xml'
+ * java -cp MOEXTestTask.jar sample.BatchMain --group-by month --agg sum:volume,last:close -o out.xml data/
+ * </pre>
+ * Входные данные - каталоги (все файлы *.xml каталога, без подкаталогов), шаблоны glob (например,
+ * data/**&#47;history_*.xml) и отдельные файлы. Код завершения: 0 - успешно, 1 - ошибка чтения или записи,
+ * 2 - неверные аргументы.
+ */
+
+public class BatchMain {
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = "Использование: BatchMain [параметры] каталог|шаблон|файл...\n"
+            + "  --threads N               число потоков чтения (по умолчанию - число процессоров)\n"
+            + "  --duplicates POLICY       allow, skip, replace или merge (см. TempDB.DuplicatePolicy)\n"
+            + "  --cache DIR               каталог кэша разбора файлов (см. ParseCache)\n"
+            + "  --cache-size MB           максимальный размер кэша разбора (по умолчанию 512)\n"
+            + "  --secid S, --board B      отбор записей по коду бумаги и режиму торгов\n"
+            + "  --from yyyy-MM-dd, --to yyyy-MM-dd  отбор записей по дате торгов\n"
+            + "  --select a,b,...          столбцы результата (по умолчанию - все)\n"
+            + "  --group-by G              secid, boardid, day, week или month: вывод агрегатов вместо записей\n"
+            + "  --agg f:col,...           агрегаты для --group-by, например sum:volume,last:close\n"
+            + "  --format xml|csv          формат результата (по умолчанию - по расширению -o, иначе xml)\n"
+            + "  -o, --output FILE         файл результата (по умолчанию - стандартный вывод)\n"
+            + "  --timing FILE             файл сводки времени (по умолчанию - стандартный поток ошибок)";
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Выполняет пакетную обработку с аргументами args; результат без -o пишется в out, сообщения и сводка
+     * времени - в err.
+     *
+     * @return код завершения
+     */
+    public static int run(String[] args, OutputStream out, PrintStream err) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        long started = System.nanoTime();
+        Timing timing = new Timing();
+        try {
+            List<File> files = options.files();
+            if (files.isEmpty()) {
+                err.println("Не найдено ни одного XML-файла: " + String.join(" ", options.inputs));
+                return EXIT_FAILED;
+            }
+            timing.files = files.size();
+
+            long stage = System.nanoTime();
+            TempDB tempDB = new TempDB();
+            if (options.duplicates != null) tempDB.setDuplicatePolicy(options.duplicates);
+            LoadPipeline pipeline = new LoadPipeline(tempDB, options.threads);
+            ParseCache cache = options.cache == null ? null : new ParseCache(new File(options.cache),
+                    options.cacheMegabytes << 20);
+            pipeline.setCache(cache);
+            pipeline.load(files);
+            TempDB.Snapshot snapshot = tempDB.snapshot();
+            timing.loadNanos = System.nanoTime() - stage;
+            timing.rowsLoaded = snapshot.getHistories().size();
+            if (cache != null) timing.cacheHits = cache.getHits();
+
+            stage = System.nanoTime();
+            List<TempDB.HistoryEntry> entries = snapshot.find(options.secid, options.boardid, options.from,
+                    options.to);
+            List<Aggregation.Group> groups = options.aggregation == null ? null : options.aggregation.run(entries);
+            timing.queryNanos = System.nanoTime() - stage;
+            timing.rowsWritten = groups == null ? entries.size() : groups.size();
+
+            stage = System.nanoTime();
+            write(options, entries, groups, out);
+            timing.writeNanos = System.nanoTime() - stage;
+        } catch (IOException | XMLStreamException | ParseException e) {
+            err.println("Ошибка: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+        timing.totalNanos = System.nanoTime() - started;
+        try {
+            if (options.timing == null) {
+                err.println(timing.toJson());
+            } else {
+                Files.write(Paths.get(options.timing), Collections.singletonList(timing.toJson()),
+                        StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            err.println("Невозможно записать сводку времени: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * XML-файлы входных данных: каталоги (все файлы *.xml каталога), шаблоны glob и отдельные файлы, как в
+     * аргументах командной строки. Файлы идут в порядке inputs, файлы каталога и шаблона - в порядке имён.
+     */
+    public static List<File> listFiles(@NotNull List<String> inputs) throws IOException {
+        Set<File> files = new LinkedHashSet<>();
+        for (String input : inputs) {
+            File file = new File(input);
+            if (file.isDirectory()) {
+                File[] children = file.listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".xml"));
+                if (children != null) {
+                    Arrays.sort(children);
+                    files.addAll(Arrays.asList(children));
+                }
+            } else if (Options.isGlob(input)) {
+                files.addAll(Options.glob(input));
+            } else {
+                files.add(file);
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static void write(Options options, List<TempDB.HistoryEntry> entries, List<Aggregation.Group> groups,
+                              OutputStream out) throws IOException {
+        WritableByteChannel channel = options.output == null ? Channels.newChannel(out) : null;
+        if (options.csv()) {
+            CSVWriter writer = channel == null ? new CSVWriter(options.output) : new CSVWriter(channel);
+            if (groups != null) {
+                writer.writeAggregates(options.aggregation, groups);
+            } else {
+                writer.writeHistory(entries, options.columns);
+            }
+        } else {
+            XMLWriter writer = channel == null ? new XMLWriter(options.output) : new XMLWriter(channel);
+            if (groups != null) {
+                writer.writeAggregates(options.aggregation, groups);
+            } else {
+                writer.writeHistory(entries, options.columns);
+            }
+        }
+        out.flush();
+    }
+
+    // разобранные аргументы командной строки
+    static final class Options {
+        final List<String> inputs = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        TempDB.DuplicatePolicy duplicates;
+        String cache;
+        long cacheMegabytes = 512;
+        String secid;
+        String boardid;
+        LocalDate from;
+        LocalDate to;
+        List<String> columns;
+        Aggregation aggregation;
+        String format;
+        String output;
+        String timing;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            Aggregation.GroupBy groupBy = null;
+            String aggregates = null;
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("-")) {
+                    options.inputs.add(arg);
+                    continue;
+                }
+                String value = ++i < args.length ? args[i] : null;
+                if (value == null) throw new IllegalArgumentException("Нет значения параметра " + arg);
+                switch (arg) {
+                    case "--threads":
+                        try {
+                            options.threads = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Неверное число потоков: " + value);
+                        }
+                        if (options.threads < 1) throw new IllegalArgumentException("Неверное число потоков: " + value);
+                        break;
+                    case "--duplicates":
+                        options.duplicates = constant(TempDB.DuplicatePolicy.class, value, arg);
+                        break;
+                    case "--cache":
+                        options.cache = value;
+                        break;
+                    case "--cache-size":
+                        try {
+                            options.cacheMegabytes = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Неверный размер кэша: " + value);
+                        }
+                        if (options.cacheMegabytes < 0) {
+                            throw new IllegalArgumentException("Неверный размер кэша: " + value);
+                        }
+                        break;
+                    case "--secid":
+                        options.secid = value;
+                        break;
+                    case "--board":
+                        options.boardid = value;
+                        break;
+                    case "--from":
+                        options.from = date(value, arg);
+                        break;
+                    case "--to":
+                        options.to = date(value, arg);
+                        break;
+                    case "--select":
+                        options.columns = Arrays.asList(value.split(","));
+                        break;
+                    case "--group-by":
+                        groupBy = constant(Aggregation.GroupBy.class, value, arg);
+                        break;
+                    case "--agg":
+                        aggregates = value;
+                        break;
+                    case "--format":
+                        if (!value.equalsIgnoreCase("xml") && !value.equalsIgnoreCase("csv")) {
+                            throw new IllegalArgumentException("Неизвестный формат: " + value);
+                        }
+                        options.format = value.toLowerCase(Locale.ROOT);
+                        break;
+                    case "-o":
+                    case "--output":
+                        options.output = value;
+                        break;
+                    case "--timing":
+                        options.timing = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Неизвестный параметр: " + arg);
+                }
+            }
+            if (options.inputs.isEmpty()) throw new IllegalArgumentException("Не заданы входные файлы");
+            if (aggregates != null && groupBy == null) throw new IllegalArgumentException("--agg задан без --group-by");
+            if (groupBy != null) {
+                options.aggregation = new Aggregation(groupBy);
+                if (aggregates != null) {
+                    for (String aggregate : aggregates.split(",")) {
+                        int colon = aggregate.indexOf(':');
+                        if (colon < 0) throw new IllegalArgumentException("Неверный агрегат: " + aggregate);
+                        options.aggregation.add(aggregate.substring(colon + 1),
+                                constant(Aggregation.Function.class, aggregate.substring(0, colon), "--agg"));
+                    }
+                }
+            }
+            return options;
+        }
+
+        boolean csv() {
+            if (format != null) return format.equals("csv");
+            return output != null && output.toLowerCase(Locale.ROOT).endsWith(".csv");
+        }
+
+        List<File> files() throws IOException {
+            return listFiles(inputs);
+        }
+
+        private static boolean isGlob(String input) {
+            return input.indexOf('*') >= 0 || input.indexOf('?') >= 0 || input.indexOf('[') >= 0
+                    || input.indexOf('{') >= 0;
+        }
+
+        // файлы, соответствующие шаблону glob; обход начинается с последнего каталога пути до первого символа шаблона
+        private static List<File> glob(String pattern) throws IOException {
+            String normalized = pattern.replace(File.separatorChar, '/');
+            int special = normalized.length();
+            for (char c : new char[]{'*', '?', '[', '{'}) {
+                int index = normalized.indexOf(c);
+                if (index >= 0) special = Math.min(special, index);
+            }
+            int slash = normalized.lastIndexOf('/', special);
+            Path base = Paths.get(slash < 0 ? "." : slash == 0 ? "/" : normalized.substring(0, slash));
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalized.substring(slash + 1));
+            if (!Files.isDirectory(base)) return Collections.emptyList();
+            try (Stream<Path> paths = Files.walk(base, FileVisitOption.FOLLOW_LINKS)) {
+                return paths.filter(Files::isRegularFile)
+                        .filter(path -> matcher.matches(base.relativize(path)))
+                        .sorted()
+                        .map(Path::toFile)
+                        .collect(Collectors.toList());
+            }
+        }
+
+        private static LocalDate date(String value, String option) {
+            try {
+                return LocalDate.parse(value);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Неверная дата " + option + ": " + value);
+            }
+        }
+
+        private static <E extends Enum<E>> E constant(Class<E> type, String value, String option) {
+            try {
+                return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Неверное значение " + option + ": " + value);
+            }
+        }
+    }
+
+    // время этапов обработки, выводимое одной строкой JSON
+    static final class Timing {
+        int files;
+        long rowsLoaded;
+        long rowsWritten;
+        long cacheHits;
+        long loadNanos;
+        long queryNanos;
+        long writeNanos;
+        long totalNanos;
+
+        String toJson() {
+            return "{\"files\":" + files + ",\"rowsLoaded\":" + rowsLoaded + ",\"rowsWritten\":" + rowsWritten
+                    + ",\"cacheHits\":" + cacheHits
+                    + ",\"loadMillis\":" + millis(loadNanos) + ",\"queryMillis\":" + millis(queryNanos)
+                    + ",\"writeMillis\":" + millis(writeNanos) + ",\"totalMillis\":" + millis(totalNanos) + "}";
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Запись данных TempDB в CSV (RFC 4180, UTF-8): первая строка - имена столбцов в верхнем регистре, как в файлах
+ * ISS, далее по строке на запись. Значения, содержащие запятую, кавычку или перевод строки, заключаются в кавычки;
+ * пустые значения записываются пустой строкой, числа - без экспоненты, даты - в виде yyyy-MM-dd.
+ * <p>
+ * Как и XMLWriter, записи истории торгов читаются прямо из столбцов хранилища, без сборки карт атрибутов.
+ */
+
+public class CSVWriter {
+    // путь к файлу или null, если запись идёт в канал, переданный в конструктор
+    private final String outputFilePath;
+    private WritableByteChannel channel;
+    private Writer out;
+
+    /**
+     * Запись в файл outputFilePath; файл создаётся или перезаписывается при каждом вызове writeHistory
+     * и writeAggregates.
+     */
+    public CSVWriter(String outputFilePath) {
+        this.outputFilePath = outputFilePath;
+    }
+
+    /**
+     * Запись в открытый канал (например, Channels.newChannel(System.out)). Канал не закрывается.
+     */
+    public CSVWriter(@NotNull WritableByteChannel channel) {
+        this.outputFilePath = null;
+        this.channel = channel;
+    }
+
+    /**
+     * Записывает записи истории торгов в порядке списка, по одному столбцу на столбец хранилища TempDB.
+     */
+    public void writeHistory(@NotNull List<TempDB.HistoryEntry> entries) throws IOException {
+        writeHistory(entries, null);
+    }
+
+    /**
+     * Записывает записи истории торгов в порядке списка; columnNames - столбцы в заданном порядке или null -
+     * все столбцы хранилища.
+     */
+    public void writeHistory(@NotNull List<TempDB.HistoryEntry> entries, List<String> columnNames)
+            throws IOException {
+        List<String> names = new ArrayList<>();
+        if (columnNames != null) {
+            for (String name : columnNames) {
+                names.add(name.toLowerCase(Locale.ROOT));
+            }
+        } else if (entries instanceof TempDB.RowView) {
+            names.addAll(((TempDB.RowView) entries).store().columnNames());
+        } else if (!entries.isEmpty()) {
+            names.addAll(entries.get(0).getAllAttributes().keySet());
+        }
+        open();
+        try {
+            putHeader(names);
+            if (entries instanceof TempDB.RowView) {
+                TempDB.RowView rows = (TempDB.RowView) entries;
+                HistoryStore store = rows.store();
+                HistoryStore.Column[] columns = new HistoryStore.Column[names.size()];
+                for (int c = 0; c < columns.length; c++) {
+                    columns[c] = store.column(names.get(c));
+                }
+                for (int i = 0, size = entries.size(); i < size; i++) {
+                    int row = rows.rowAt(i);
+                    for (int c = 0; c < columns.length; c++) {
+                        if (c > 0) out.write(',');
+                        if (columns[c] != null && !columns[c].isEmpty(row)) putValue(columns[c].get(row));
+                    }
+                    out.write("\r\n");
+                }
+            } else {
+                for (TempDB.HistoryEntry he : entries) {
+                    putRow(names, he.getAllAttributes());
+                }
+            }
+            out.flush();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Записывает результат агрегации: по строке на группу, столбцы - ключ группы, ROWS и агрегаты запроса query
+     * с названиями вида SUM(VOLUME) (см. Aggregation.getLabel). Заголовок записывается и при пустом groups.
+     */
+    public void writeAggregates(@NotNull Aggregation query, @NotNull List<Aggregation.Group> groups)
+            throws IOException {
+        Aggregation.GroupBy groupBy = query.getGroupBy();
+        List<String> names = new ArrayList<>();
+        names.add(groupBy == Aggregation.GroupBy.SECID ? "secid" : groupBy == Aggregation.GroupBy.BOARDID ? "boardid"
+                : "tradedate");
+        names.add("rows");
+        for (int m = 0; m < query.size(); m++) {
+            names.add(query.getLabel(m));
+        }
+        open();
+        try {
+            putHeader(names);
+            for (Aggregation.Group group : groups) {
+                putValue(group.getKey());
+                out.write(',');
+                putValue(group.getRows());
+                for (int m = 0; m < query.size(); m++) {
+                    out.write(',');
+                    putValue(group.getValue(m));
+                }
+                out.write("\r\n");
+            }
+            out.flush();
+        } finally {
+            close();
+        }
+    }
+
+    private void putHeader(List<String> names) throws IOException {
+        for (int c = 0; c < names.size(); c++) {
+            if (c > 0) out.write(',');
+            putEscaped(names.get(c).toUpperCase(Locale.ROOT));
+        }
+        out.write("\r\n");
+    }
+
+    private void putRow(List<String> names, Map<String, Object> values) throws IOException {
+        for (int c = 0; c < names.size(); c++) {
+            if (c > 0) out.write(',');
+            putValue(values.get(names.get(c)));
+        }
+        out.write("\r\n");
+    }
+
+    private void putValue(Object value) throws IOException {
+        if (value == null || "".equals(value)) return;
+        if (value instanceof Double) {
+            double d = (Double) value;
+            if (Double.isNaN(d)) return;
+            out.write(Double.isInfinite(d) ? value.toString()
+                    : BigDecimal.valueOf(d).stripTrailingZeros().toPlainString());
+        } else if (value instanceof Number || value instanceof LocalDate) {
+            out.write(value.toString());
+        } else {
+            putEscaped(value.toString());
+        }
+    }
+
+    private void putEscaped(String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    private void open() throws IOException {
+        if (outputFilePath != null) {
+            channel = FileChannel.open(Paths.get(outputFilePath), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 1 << 16), 1 << 16);
+    }
+
+    private void close() throws IOException {
+        out = null;
+        if (outputFilePath != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
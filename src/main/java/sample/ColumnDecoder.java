@@ -0,0 +1,230 @@
+package sample;
+
+import java.text.ParseException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+/**
+ * Декодер значений одного столбца XML-файла. Декодеры создаются один раз при чтении блока <metadata><columns>
+ * в соответствии с типом столбца (int32, double, date, string) и затем применяются к значениям атрибутов
+ * строк <row /> по позиции атрибута, без поиска типа по имени.
+ */
+
+abstract class ColumnDecoder {
+    // 10^0..10^22 - степени десяти, точно представимые в double
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    // 2^53 - граница, до которой целая мантисса точно представима в double
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    // имя столбца так, как оно записано в XML-файле
+    final String sourceName;
+    // имя столбца в нижнем регистре, под которым значение заносится в Record
+    final String name;
+
+    ColumnDecoder(String sourceName) {
+        this.sourceName = sourceName;
+        this.name = sourceName.trim().toLowerCase();
+    }
+
+    /**
+     * Преобразует непустое строковое значение атрибута в объект данных столбца.
+     */
+    abstract Object decode(String value) throws ParseException;
+
+    /**
+     * Преобразует значение, заданное последовательностью ASCII-символов (например, представлением байтов файла
+     * без создания строки). По умолчанию значение преобразуется в String.
+     */
+    Object decodeAscii(CharSequence value) throws ParseException {
+        return decode(value.toString());
+    }
+
+    /**
+     * true, если значения столбца хранятся строками и для них всегда нужно создавать String.
+     */
+    boolean isText() {
+        return false;
+    }
+
+    /**
+     * true, если значения столбца - строки SymbolTable, которые можно получать прямо из байтов файла.
+     */
+    boolean isSymbol() {
+        return false;
+    }
+
+    /**
+     * Создаёт декодер для столбца с именем sourceName и типом type из блока <metadata>.
+     */
+    static ColumnDecoder forType(String sourceName, String type) {
+        switch (type) {
+            case "int32":
+                return new IntDecoder(sourceName);
+            case "date":
+                return new DateDecoder(sourceName);
+            case "double":
+                return new DoubleDecoder(sourceName);
+            default:
+                return new StringDecoder(sourceName);
+        }
+    }
+
+    /**
+     * Разбор целого числа в десятичной записи без создания промежуточных объектов. Результат совпадает
+     * с Integer.parseInt, в том числе при ошибке формата.
+     */
+    static int parseInt(CharSequence s) {
+        int length = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) {
+            negative = s.charAt(0) == '-';
+            i++;
+        }
+        // более 9 цифр может не поместиться в int, такие значения разбираются стандартным методом
+        if (i == length || length - i > 9) return Integer.parseInt(s.toString());
+        int result = 0;
+        for (; i < length; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return Integer.parseInt(s.toString());
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Разбор числа с плавающей точкой вида [-]digits[.digits]. Если мантисса не превышает 2^53, а число знаков
+     * после точки - 22, результат получается одним точным делением и совпадает с Double.parseDouble; прочие
+     * значения (экспоненциальная запись, длинные мантиссы) разбираются стандартным методом.
+     */
+    static double parseDouble(CharSequence s) {
+        int length = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) {
+            negative = s.charAt(0) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int fractionDigits = -1;
+        int digits = 0;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fractionDigits >= 0) fractionDigits++;
+                if (mantissa >= MAX_EXACT_MANTISSA) return Double.parseDouble(s.toString());
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return Double.parseDouble(s.toString());
+            }
+        }
+        if (digits == 0 || fractionDigits > 22) return Double.parseDouble(s.toString());
+        double result = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -result : result;
+    }
+
+    /**
+     * Разбор даты вида yyyy-MM-dd. LocalDate неизменяем и потокобезопасен, поэтому, в отличие от SimpleDateFormat,
+     * не требует создания форматтера на каждое значение.
+     */
+    static LocalDate parseDate(CharSequence s) throws ParseException {
+        if (s.length() != 10 || s.charAt(4) != '-' || s.charAt(7) != '-') {
+            throw new ParseException("Неверный формат даты: " + s, 0);
+        }
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 7);
+        int day = digits(s, 8, 10);
+        if (year < 0 || month < 0 || day < 0) {
+            throw new ParseException("Неверный формат даты: " + s, 0);
+        }
+        try {
+            return LocalDate.of(year, month, day);
+        } catch (DateTimeException e) {
+            throw new ParseException("Неверная дата: " + s, 0);
+        }
+    }
+
+    // число из цифр s[from, to) или -1, если среди символов есть не цифры
+    private static int digits(CharSequence s, int from, int to) {
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return -1;
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    static final class IntDecoder extends ColumnDecoder {
+
+        IntDecoder(String sourceName) {
+            super(sourceName);
+        }
+
+        Object decode(String value) {
+            return parseInt(value);
+        }
+
+        Object decodeAscii(CharSequence value) {
+            return parseInt(value);
+        }
+    }
+
+    static final class DoubleDecoder extends ColumnDecoder {
+
+        DoubleDecoder(String sourceName) {
+            super(sourceName);
+        }
+
+        Object decode(String value) {
+            return parseDouble(value);
+        }
+
+        Object decodeAscii(CharSequence value) {
+            return parseDouble(value);
+        }
+    }
+
+    static final class DateDecoder extends ColumnDecoder {
+
+        DateDecoder(String sourceName) {
+            super(sourceName);
+        }
+
+        Object decode(String value) throws ParseException {
+            return parseDate(value);
+        }
+
+        Object decodeAscii(CharSequence value) throws ParseException {
+            return parseDate(value);
+        }
+    }
+
+    static final class StringDecoder extends ColumnDecoder {
+        // значения столбца заменяются каноническими строками SymbolTable
+        private final boolean symbol;
+
+        StringDecoder(String sourceName) {
+            super(sourceName);
+            symbol = SymbolTable.isSymbolColumn(name);
+        }
+
+        Object decode(String value) {
+            return symbol ? SymbolTable.intern(value) : value;
+        }
+
+        boolean isText() {
+            return true;
+        }
+
+        boolean isSymbol() {
+            return symbol;
+        }
+    }
+}
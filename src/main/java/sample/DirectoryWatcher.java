@@ -0,0 +1,232 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Наблюдение за каталогом выгрузок ISS (WatchService): новые и изменённые XML-файлы ценных бумаг и истории торгов
+ * дочитываются в TempDB пакетами через LoadPipeline.load(List, Listener), без перезагрузки остальных файлов.
+ * При запуске загружаются файлы, уже имеющиеся в каталоге.
+ * <p>
+ * События файловой системы накапливаются: пакет загружается, когда в каталоге debounceMillis не было изменений,
+ * но не позже чем через 10 * debounceMillis после первого изменения, поэтому новые строки становятся видны
+ * читателям TempDB не позже этого срока плюс время чтения пакета. Несколько событий одного файла загружают
+ * его один раз; файл, размер и время изменения которого не изменились с последней загрузки, не перечитывается.
+ * Файл, который не удалось прочитать (например, ещё не дописанный), пропускается и перечитывается при следующем
+ * его изменении.
+ * <p>
+ * Изменённый файл загружается заново целиком, поэтому если в TempDB задано правило повторов ALLOW, при запуске
+ * оно заменяется на REPLACE: записи с уже загруженным ключом (SECID, BOARDID, TRADEDATE) заменяют прежние.
+ * Записи истории торгов, файл ценных бумаг которых ещё не появился в каталоге, откладываются
+ * (TempDB.setHoldOrphans) и добавляются вместе с ценными бумагами.
+ * <p>
+ * Загрузка выполняется в отдельном потоке; методы listener вызываются из этого потока и потоков чтения
+ * (см. LoadPipeline.Listener).
+ */
+
+public class DirectoryWatcher implements Closeable {
+    // отношение наибольшей задержки загрузки пакета к интервалу ожидания тишины
+    private static final int MAX_DELAY_FACTOR = 10;
+
+    private final TempDB tempDB;
+    private final Path directory;
+    private final long debounceMillis;
+    private final LoadPipeline.Listener listener;
+    private final LoadPipeline pipeline;
+    // размер и время изменения файлов на момент их последней успешной загрузки
+    private final Map<Path, List<Long>> loaded = new HashMap<>();
+    private WatchService watchService;
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param tempDB         база данных, в которую загружаются файлы
+     * @param directory      наблюдаемый каталог
+     * @param debounceMillis интервал без изменений в каталоге, после которого загружаются изменённые файлы
+     * @param listener       получатель сведений о загрузке каждого пакета
+     */
+    public DirectoryWatcher(@NotNull TempDB tempDB, @NotNull File directory, long debounceMillis,
+                            @NotNull LoadPipeline.Listener listener) {
+        if (debounceMillis < 0) throw new IllegalArgumentException("debounceMillis < 0");
+        this.tempDB = tempDB;
+        this.directory = directory.toPath();
+        this.debounceMillis = debounceMillis;
+        this.listener = listener;
+        this.pipeline = new LoadPipeline(tempDB);
+    }
+
+    /**
+     * Задаёт кэш разбора файлов (см. LoadPipeline.setCache). null - без кэша (по умолчанию).
+     */
+    public void setCache(ParseCache cache) {
+        pipeline.setCache(cache);
+    }
+
+    /**
+     * Начинает наблюдение: регистрирует каталог в WatchService и запускает поток загрузки, который сначала
+     * загружает файлы, уже имеющиеся в каталоге.
+     *
+     * @throws IOException каталог не существует или не может наблюдаться
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) throw new IllegalStateException("Наблюдение уже запущено");
+        if (closed) throw new IllegalStateException("Наблюдение остановлено");
+        if (!Files.isDirectory(directory)) throw new NotDirectoryException(directory.toString());
+        if (tempDB.getDuplicatePolicy() == TempDB.DuplicatePolicy.ALLOW) {
+            tempDB.setDuplicatePolicy(TempDB.DuplicatePolicy.REPLACE);
+        }
+        tempDB.setHoldOrphans(true);
+        watchService = directory.getFileSystem().newWatchService();
+        // регистрация до просмотра каталога: файлы, появившиеся во время начальной загрузки, не пропускаются
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        thread = new Thread(this::watch, "directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Останавливает наблюдение; загрузка выполняющегося пакета прерывается, уже добавленные пакеты остаются
+     * в TempDB.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = this.thread;
+            if (watchService != null) watchService.close();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            Set<Path> changed = new LinkedHashSet<>(list());
+            // начальная загрузка тоже ждёт тишины: файлы каталога могут ещё дописываться
+            long first = System.nanoTime();
+            long last = first;
+            while (!closed) {
+                WatchKey key;
+                if (changed.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long deadline = Math.min(last + TimeUnit.MILLISECONDS.toNanos(debounceMillis),
+                            first + TimeUnit.MILLISECONDS.toNanos(debounceMillis * MAX_DELAY_FACTOR));
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        ingest(changed);
+                        changed.clear();
+                        continue;
+                    }
+                    key = watchService.poll(wait, TimeUnit.NANOSECONDS);
+                }
+                if (key == null) continue;
+                boolean idle = changed.isEmpty();
+                boolean added = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // часть событий потеряна: проверяются все файлы каталога
+                        added |= changed.addAll(list());
+                    } else {
+                        Path file = directory.resolve((Path) event.context());
+                        if (isXml(file)) {
+                            changed.add(file);
+                            added = true;
+                        }
+                    }
+                }
+                if (added) {
+                    long now = System.nanoTime();
+                    if (idle) first = now;
+                    last = now;
+                }
+                if (!key.reset()) break;
+            }
+        } catch (InterruptedException | ClosedWatchServiceException | CancellationException e) {
+            // наблюдение остановлено
+        } catch (IOException e) {
+            listener.fileFailed(directory.toFile(), e);
+        }
+    }
+
+    // загружает изменённые с последней загрузки файлы из changed
+    private void ingest(Set<Path> changed) {
+        List<File> files = new ArrayList<>(changed.size());
+        Map<File, List<Long>> states = new HashMap<>();
+        for (Path path : changed) {
+            List<Long> state = state(path);
+            synchronized (loaded) {
+                if (state == null || state.equals(loaded.get(path))) continue;
+            }
+            File file = path.toFile();
+            files.add(file);
+            // состояние запоминается до чтения: файл, изменённый во время чтения, будет прочитан ещё раз
+            states.put(file, state);
+        }
+        if (files.isEmpty()) return;
+        files.sort(Comparator.comparing(File::getName));
+        pipeline.load(files, new LoadPipeline.Listener() {
+            @Override
+            public void rowsRead(long rows) {
+                listener.rowsRead(rows);
+            }
+
+            @Override
+            public void fileRead(File file, int rows) {
+                synchronized (loaded) {
+                    loaded.put(file.toPath(), states.get(file));
+                }
+                listener.fileRead(file, rows);
+            }
+
+            @Override
+            public void fileFailed(File file, Exception e) {
+                listener.fileFailed(file, e);
+            }
+
+            @Override
+            public void published(TempDB.Snapshot snapshot) {
+                listener.published(snapshot);
+            }
+        });
+    }
+
+    private List<Path> list() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.xml")) {
+            for (Path file : stream) files.add(file);
+        }
+        files.sort(Comparator.naturalOrder());
+        return files;
+    }
+
+    private static boolean isXml(Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".xml");
+    }
+
+    // размер и время изменения файла или null, если файла нет
+    private static List<Long> state(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) return null;
+            return Arrays.asList(attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
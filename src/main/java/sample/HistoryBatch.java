@@ -0,0 +1,88 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import java.util.*;
+
+/**
+ * Пакет данных для TempDB.insert: ценные бумаги и записи истории торгов. Записи истории накапливаются не списком
+ * объектов, а по столбцам в собственном колоночном хранилище пакета, массивы которого можно заранее рассчитать
+ * на ожидаемое число записей; TempDB.insert переносит их в своё хранилище целыми столбцами и проверяет secid
+ * один раз на каждое различное значение, а не на каждую запись.
+ * <p>
+ * Записи, добавленные из HistoryEntry, сохраняют его id; остальным записям id назначает TempDB при добавлении.
+ */
+
+public final class HistoryBatch {
+    // id записи, назначаемый TempDB при добавлении
+    static final long NO_ID = -1;
+
+    final List<LinkedHashMap<String, Object>> securities = new ArrayList<>();
+    final HistoryStore history;
+    // HistoryEntry, из которых получены строки history, по индексу строки; null или отсутствие элемента -
+    // строка получена не из HistoryEntry
+    final List<TempDB.HistoryEntry> entries = new ArrayList<>();
+
+    public HistoryBatch() {
+        history = new HistoryStore();
+    }
+
+    /**
+     * Создание пакета с хранилищем, рассчитанным на expectedRows записей истории торгов.
+     */
+    public HistoryBatch(int expectedRows) {
+        history = new HistoryStore(expectedRows);
+    }
+
+    /**
+     * Добавление в пакет ценных бумаг.
+     */
+    public HistoryBatch add(@NotNull TempDB.SecurityPaper... securityPapers) {
+        for (TempDB.SecurityPaper sp : securityPapers) {
+            securities.add(new LinkedHashMap<>(sp.info()));
+        }
+        return this;
+    }
+
+    /**
+     * Добавление в пакет записей истории торгов с сохранением их id. Записи, принятые TempDB, становятся
+     * представлениями строк TempDB, как и при TempDB.add(HistoryEntry...).
+     */
+    public HistoryBatch add(@NotNull TempDB.HistoryEntry... historyEntries) {
+        for (TempDB.HistoryEntry he : historyEntries) {
+            int row = history.append(he.getId(), he.getAllAttributes());
+            while (entries.size() < row) entries.add(null);
+            entries.add(he);
+        }
+        return this;
+    }
+
+    /**
+     * Добавление в пакет всех записей XMLReader: ценных бумаг или истории торгов, в зависимости от типа данных файла.
+     */
+    public HistoryBatch add(@NotNull XMLReader reader) {
+        for (XMLReader.Record r : reader.getRecords()) {
+            if (reader.getDataId() == XMLReader.DATA_ID.SECURITIES) {
+                securities.add(new LinkedHashMap<>(r.getAllAttributes()));
+            } else if (reader.getDataId() == XMLReader.DATA_ID.HISTORY) {
+                addHistory(r.getAllAttributes());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Добавление в пакет одной записи истории торгов: атрибуты (key) и их значения (value). Значения копируются.
+     */
+    public HistoryBatch addHistory(@NotNull Map<String, Object> attributes) {
+        history.append(NO_ID, attributes);
+        return this;
+    }
+
+    /**
+     * Число записей истории торгов в пакете.
+     */
+    public int size() {
+        return history.size();
+    }
+}
@@ -0,0 +1,349 @@
+package sample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Вторичные индексы колоночного хранилища истории торгов:
+ * <ul>
+ * <li>SECID - для каждого кода secid список диапазонов индексов строк [from, to), в которых записи этой бумаги
+ * идут подряд (записи одной бумаги в файлах ISS обычно расположены подряд, поэтому диапазонов немного);</li>
+ * <li>TRADEDATE - индексы строк, отсортированные по дате торгов, с параллельным массивом дат для двоичного поиска;</li>
+ * <li>BOARDID - битовая карта строк для каждого кода режима торгов.</li>
+ * </ul>
+ * Индексы дополняются после каждого добавления пакета строк в хранилище методом update и никогда не строятся заново.
+ * Снимок индексов (метод snapshot) копирует только массивы верхнего уровня и видит лишь строки, проиндексированные
+ * до его создания, поэтому может читаться из других потоков одновременно с дальнейшими вызовами update.
+ */
+
+class HistoryIndex {
+    // число строк хранилища, уже учтённых в индексах
+    private int indexedRows;
+
+    // диапазоны строк по коду secid: ranges[code] = {from0, to0, from1, to1, ...}, rangeCounts[code] - число чисел
+    private int[][] secidRanges = new int[0][];
+    private int[] secidRangeLengths = new int[0];
+
+    // строки, отсортированные по (дата торгов, индекс строки), и их даты
+    private int[] dateRows = new int[0];
+    private int[] dateDays = new int[0];
+
+    private RowBitmap[] boardRows = new RowBitmap[0];
+
+    HistoryIndex() {
+    }
+
+    // снимок source: диапазоны secid и карты boardid дописываются на месте, поэтому массивы верхнего уровня
+    // копируются, а чтение ограничивается строками 0..indexedRows-1; массивы дат при update заменяются целиком
+    private HistoryIndex(HistoryIndex source) {
+        indexedRows = source.indexedRows;
+        secidRanges = source.secidRanges.clone();
+        secidRangeLengths = source.secidRangeLengths.clone();
+        dateRows = source.dateRows;
+        dateDays = source.dateDays;
+        boardRows = new RowBitmap[source.boardRows.length];
+        for (int code = 0; code < boardRows.length; code++) {
+            if (source.boardRows[code] != null) boardRows[code] = source.boardRows[code].view();
+        }
+    }
+
+    /**
+     * Возвращает снимок индексов для чтения из других потоков. Обновлять снимок методом update нельзя.
+     */
+    HistoryIndex snapshot() {
+        return new HistoryIndex(this);
+    }
+
+    /**
+     * Записывает индексы строк 0..indexedRows-1 в файл снимка.
+     */
+    void writeTo(SnapshotFile.Output out) throws IOException {
+        out.putInt(indexedRows);
+        out.putInt(secidRanges.length);
+        for (int code = 0; code < secidRanges.length; code++) {
+            int length = secidRanges[code] == null ? 0 : secidRangeLengths[code];
+            out.putInt(length);
+            for (int i = 0; i < length; i += 2) {
+                out.putInt(secidRanges[code][i]);
+                out.putInt(Math.min(secidRanges[code][i + 1], indexedRows));
+            }
+        }
+        out.putInt(dateRows.length);
+        out.putInts(dateRows, 0, dateRows.length);
+        out.putInts(dateDays, 0, dateDays.length);
+        out.putInt(boardRows.length);
+        for (RowBitmap bitmap : boardRows) {
+            if (bitmap == null) {
+                out.putInt(-1);
+                continue;
+            }
+            int words = Math.min(bitmap.words.length, (indexedRows + 63) >>> 6);
+            out.putInt(words);
+            for (int w = 0; w < words; w++) out.putLong(bitmap.masked(w, indexedRows));
+        }
+    }
+
+    /**
+     * Читает индексы, записанные методом writeTo. Прочитанные индексы можно дополнять методом update.
+     */
+    static HistoryIndex read(ByteBuffer in) {
+        HistoryIndex index = new HistoryIndex();
+        index.indexedRows = in.getInt();
+        int secids = in.getInt();
+        index.secidRanges = new int[secids][];
+        index.secidRangeLengths = new int[secids];
+        for (int code = 0; code < secids; code++) {
+            int length = in.getInt();
+            if (length == 0) continue;
+            index.secidRanges[code] = SnapshotFile.readInts(in, length);
+            index.secidRangeLengths[code] = length;
+        }
+        int dates = in.getInt();
+        index.dateRows = SnapshotFile.readInts(in, dates);
+        index.dateDays = SnapshotFile.readInts(in, dates);
+        index.boardRows = new RowBitmap[in.getInt()];
+        for (int code = 0; code < index.boardRows.length; code++) {
+            int words = in.getInt();
+            if (words >= 0) index.boardRows[code] = new RowBitmap(SnapshotFile.readLongs(in, words));
+        }
+        return index;
+    }
+
+    /**
+     * Добавляет в индексы строки хранилища, появившиеся после предыдущего вызова.
+     */
+    void update(HistoryStore store) {
+        int size = store.size();
+        if (size == indexedRows) return;
+        updateSecids(store.symbols("secid"), size);
+        updateDates(store.dates("tradedate"), size);
+        updateBoards(store.symbols("boardid"), size);
+        indexedRows = size;
+    }
+
+    private void updateSecids(HistoryStore.SymbolColumn secids, int size) {
+        if (secids == null) return;
+        ensureSecidCapacity(secids.cardinality());
+        for (int row = indexedRows; row < size; row++) {
+            int code = secids.getCode(row);
+            int[] ranges = secidRanges[code];
+            int length = secidRangeLengths[code];
+            if (length > 0 && ranges[length - 1] == row) {
+                // строка продолжает последний диапазон этой бумаги
+                ranges[length - 1] = row + 1;
+                continue;
+            }
+            if (ranges == null) {
+                ranges = new int[4];
+            } else if (length + 2 > ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[length] = row;
+            ranges[length + 1] = row + 1;
+            secidRanges[code] = ranges;
+            secidRangeLengths[code] = length + 2;
+        }
+    }
+
+    private void ensureSecidCapacity(int cardinality) {
+        if (cardinality <= secidRanges.length) return;
+        secidRanges = Arrays.copyOf(secidRanges, cardinality);
+        secidRangeLengths = Arrays.copyOf(secidRangeLengths, cardinality);
+    }
+
+    // новые строки сортируются по дате и сливаются с уже отсортированным индексом за линейное время
+    private void updateDates(HistoryStore.DateColumn dates, int size) {
+        if (dates == null) return;
+        int count = size - indexedRows;
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            int row = indexedRows + i;
+            keys[i] = ((long) dates.getEpochDay(row) << 32) | row;
+        }
+        Arrays.sort(keys);
+
+        int oldSize = dateRows.length;
+        int[] rows = new int[oldSize + count];
+        int[] days = new int[oldSize + count];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < oldSize || j < count) {
+            // при равных датах старые строки (с меньшими индексами) идут раньше новых
+            if (j == count || (i < oldSize && dateDays[i] <= (int) (keys[j] >> 32))) {
+                rows[n] = dateRows[i];
+                days[n++] = dateDays[i++];
+            } else {
+                rows[n] = (int) keys[j];
+                days[n++] = (int) (keys[j++] >> 32);
+            }
+        }
+        dateRows = rows;
+        dateDays = days;
+    }
+
+    private void updateBoards(HistoryStore.SymbolColumn boards, int size) {
+        if (boards == null) return;
+        if (boards.cardinality() > boardRows.length) {
+            boardRows = Arrays.copyOf(boardRows, boards.cardinality());
+        }
+        for (int row = indexedRows; row < size; row++) {
+            int code = boards.getCode(row);
+            if (boardRows[code] == null) boardRows[code] = new RowBitmap();
+            boardRows[code].set(row);
+        }
+    }
+
+    /**
+     * Число строк хранилища, учтённых в индексах.
+     */
+    int indexedRows() {
+        return indexedRows;
+    }
+
+    /**
+     * Число диапазонов строк в индексе SECID.
+     */
+    int secidRanges() {
+        int ranges = 0;
+        for (int code = 0; code < secidRanges.length; code++) {
+            if (secidRanges[code] != null) ranges += secidRangeLengths[code] / 2;
+        }
+        return ranges;
+    }
+
+    /**
+     * Приблизительный объём памяти массивов индексов в байтах.
+     */
+    long byteSize() {
+        long bytes = secidRangeLengths.length * 4L + dateRows.length * 4L + dateDays.length * 4L;
+        for (int[] ranges : secidRanges) {
+            if (ranges != null) bytes += ranges.length * 4L;
+        }
+        for (RowBitmap bitmap : boardRows) {
+            if (bitmap != null) bytes += bitmap.words.length * 8L;
+        }
+        return bytes;
+    }
+
+    /**
+     * Возвращает индексы строк бумаги с кодом secid в порядке возрастания.
+     */
+    int[] rowsBySecid(int code) {
+        if (code < 0 || code >= secidRanges.length || secidRanges[code] == null) return new int[0];
+        int[] ranges = secidRanges[code];
+        int length = secidRangeLengths[code];
+        int[] rows = new int[countBySecid(code)];
+        int n = 0;
+        for (int i = 0; i < length; i += 2) {
+            int to = Math.min(ranges[i + 1], indexedRows);
+            for (int row = ranges[i]; row < to; row++) rows[n++] = row;
+        }
+        return rows;
+    }
+
+    /**
+     * Возвращает индексы строк с датой торгов в диапазоне [fromDay, toDay] (номера дней от 1970-01-01)
+     * в порядке возрастания даты, при равной дате - индекса строки.
+     */
+    int[] rowsByDate(int fromDay, int toDay) {
+        if (fromDay > toDay) return new int[0];
+        int from = lowerBound(fromDay);
+        int to = toDay == Integer.MAX_VALUE ? dateDays.length : lowerBound(toDay + 1);
+        return Arrays.copyOfRange(dateRows, from, to);
+    }
+
+    // первая позиция в dateDays со значением не меньше day
+    private int lowerBound(int day) {
+        int low = 0;
+        int high = dateDays.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (dateDays[mid] < day) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Возвращает индексы строк режима торгов с кодом code в порядке возрастания.
+     */
+    int[] rowsByBoard(int code) {
+        if (code < 0 || code >= boardRows.length || boardRows[code] == null) return new int[0];
+        return boardRows[code].rows(indexedRows);
+    }
+
+    /**
+     * Число строк бумаги с кодом code без построения списка строк.
+     */
+    int countBySecid(int code) {
+        if (code < 0 || code >= secidRanges.length || secidRanges[code] == null) return 0;
+        int total = 0;
+        for (int i = 0; i < secidRangeLengths[code]; i += 2) {
+            // последний диапазон мог быть продлён после создания снимка
+            total += Math.min(secidRanges[code][i + 1], indexedRows) - secidRanges[code][i];
+        }
+        return total;
+    }
+
+    /**
+     * Число строк с датой торгов в диапазоне [fromDay, toDay].
+     */
+    int countByDate(int fromDay, int toDay) {
+        if (fromDay > toDay) return 0;
+        int to = toDay == Integer.MAX_VALUE ? dateDays.length : lowerBound(toDay + 1);
+        return to - lowerBound(fromDay);
+    }
+
+    /**
+     * Битовая карта строк, которая только дописывается. В отличие от BitSet, представление карты (view) можно
+     * читать одновременно с установкой новых битов: биты строк, не вошедших в снимок, отбрасываются маской.
+     */
+    private static final class RowBitmap {
+        private long[] words;
+
+        RowBitmap() {
+            words = new long[4];
+        }
+
+        private RowBitmap(long[] words) {
+            this.words = words;
+        }
+
+        void set(int row) {
+            int word = row >>> 6;
+            if (word >= words.length) words = Arrays.copyOf(words, Math.max(word + 1, Math.max(words.length * 2, 4)));
+            words[word] |= 1L << row;
+        }
+
+        RowBitmap view() {
+            return new RowBitmap(words);
+        }
+
+        // индексы установленных битов среди строк 0..limit-1
+        int[] rows(int limit) {
+            int lastWord = Math.min(words.length, (limit + 63) >>> 6);
+            int total = 0;
+            for (int w = 0; w < lastWord; w++) total += Long.bitCount(masked(w, limit));
+            int[] rows = new int[total];
+            int n = 0;
+            for (int w = 0; w < lastWord; w++) {
+                long word = masked(w, limit);
+                while (word != 0) {
+                    rows[n++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return rows;
+        }
+
+        private long masked(int w, int limit) {
+            int bits = limit - (w << 6);
+            return bits >= 64 ? words[w] : words[w] & ((1L << bits) - 1);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * Индекс строк колоночного хранилища истории торгов по ключу записи (SECID, BOARDID, TRADEDATE): хеш-таблица
+ * с открытой адресацией, в ячейках которой хранятся индексы строк. Ключ строки - коды secid и boardid в словарях
+ * хранилища и номер дня даты торгов, поэтому ни хеширование, ни сравнение ключей не создают объектов.
+ * <p>
+ * Строки хранилища, в котором нет словарных столбцов secid и boardid или столбца дат tradedate, ключа не имеют
+ * и в индекс не попадают. Не потокобезопасен: используется писателем TempDB под блокировкой.
+ */
+
+final class HistoryKeyIndex {
+    private static final int EMPTY = -1;
+
+    // индексы строк по ячейкам; EMPTY - свободная ячейка
+    private int[] table = new int[16];
+    private int count;
+
+    HistoryKeyIndex() {
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * Заносит в индекс строку row; строка с тем же ключом, если она есть, из индекса удаляется.
+     *
+     * @return строка с тем же ключом, бывшая в индексе, или -1
+     */
+    int put(Keys keys, int row) {
+        int secid = keys.secids.getCode(row);
+        int board = keys.boards.getCode(row);
+        int day = keys.dates.getEpochDay(row);
+        int mask = table.length - 1;
+        for (int slot = hash(secid, board, day) & mask; ; slot = (slot + 1) & mask) {
+            int existing = table[slot];
+            if (existing == EMPTY) {
+                table[slot] = row;
+                if (++count * 4 > table.length * 3) grow(keys);
+                return -1;
+            }
+            if (keys.matches(existing, secid, board, day)) {
+                table[slot] = row;
+                return existing;
+            }
+        }
+    }
+
+    /**
+     * Заносит в индекс строку row, если строки с таким же ключом в индексе ещё нет.
+     *
+     * @return строка с тем же ключом, уже имеющаяся в индексе, или -1, если строка row добавлена
+     */
+    int putIfAbsent(Keys keys, int row) {
+        int secid = keys.secids.getCode(row);
+        int board = keys.boards.getCode(row);
+        int day = keys.dates.getEpochDay(row);
+        int mask = table.length - 1;
+        for (int slot = hash(secid, board, day) & mask; ; slot = (slot + 1) & mask) {
+            int existing = table[slot];
+            if (existing == EMPTY) {
+                table[slot] = row;
+                if (++count * 4 > table.length * 3) grow(keys);
+                return -1;
+            }
+            if (keys.matches(existing, secid, board, day)) return existing;
+        }
+    }
+
+    /**
+     * Возвращает строку с ключом (коды secid и boardid словарей хранилища keys, номер дня) или -1.
+     */
+    int find(Keys keys, int secid, int board, int day) {
+        int mask = table.length - 1;
+        for (int slot = hash(secid, board, day) & mask; ; slot = (slot + 1) & mask) {
+            int existing = table[slot];
+            if (existing == EMPTY) return -1;
+            if (keys.matches(existing, secid, board, day)) return existing;
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    private void grow(Keys keys) {
+        int[] old = table;
+        table = new int[old.length * 2];
+        Arrays.fill(table, EMPTY);
+        int mask = table.length - 1;
+        for (int row : old) {
+            if (row == EMPTY) continue;
+            int slot = hash(keys.secids.getCode(row), keys.boards.getCode(row), keys.dates.getEpochDay(row)) & mask;
+            while (table[slot] != EMPTY) slot = (slot + 1) & mask;
+            table[slot] = row;
+        }
+    }
+
+    private static int hash(int secid, int board, int day) {
+        int h = (secid * 31 + board) * 0x9E3779B9 + day;
+        h *= 0x85EBCA6B;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Столбцы ключа одного хранилища. Объекты столбцов хранилища могут заменяться (например, при замене столбца
+     * более общим), поэтому сохранённый объект Keys перед использованием проверяется методом isCurrent.
+     */
+    static final class Keys {
+        final HistoryStore.SymbolColumn secids;
+        final HistoryStore.SymbolColumn boards;
+        final HistoryStore.DateColumn dates;
+
+        private Keys(HistoryStore.SymbolColumn secids, HistoryStore.SymbolColumn boards,
+                     HistoryStore.DateColumn dates) {
+            this.secids = secids;
+            this.boards = boards;
+            this.dates = dates;
+        }
+
+        /**
+         * Столбцы ключа хранилища store или null, если у его строк нет ключа.
+         */
+        static Keys of(HistoryStore store) {
+            HistoryStore.SymbolColumn secids = store.symbols("secid");
+            HistoryStore.SymbolColumn boards = store.symbols("boardid");
+            HistoryStore.DateColumn dates = store.dates("tradedate");
+            return secids == null || boards == null || dates == null ? null : new Keys(secids, boards, dates);
+        }
+
+        /**
+         * true, если столбцы ключа хранилища store не заменялись после создания объекта.
+         */
+        boolean isCurrent(HistoryStore store) {
+            return store.symbols("secid") == secids && store.symbols("boardid") == boards
+                    && store.dates("tradedate") == dates;
+        }
+
+        boolean matches(int row, int secid, int board, int day) {
+            return secids.getCode(row) == secid && boards.getCode(row) == board && dates.getEpochDay(row) == day;
+        }
+    }
+}
@@ -0,0 +1,1003 @@
+package sample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Колоночное хранилище записей истории торгов. Вместо отдельной карты атрибутов на каждую запись данные хранятся
+ * по столбцам в примитивных массивах: числовые столбцы (OPEN, CLOSE, VOLUME, VALUE, WAPRICE...) - в double[] или
+ * long[], дата торгов (TRADEDATE) - в int[] как номер дня от начала эпохи, строковые столбцы (SECID, BOARDID,
+ * SHORTNAME) - в int[] кодов словаря. Строка хранилища адресуется целым индексом row; объекты HistoryEntry
+ * являются лишь представлениями этих индексов.
+ * <p>
+ * Хранилище только дописывается: значения уже добавленных строк не изменяются, а при расширении массивов или
+ * замене столбца создаются новые массивы. Поэтому снимок, полученный методом snapshot, может читаться из других
+ * потоков без блокировок одновременно с дальнейшим добавлением строк в исходное хранилище.
+ */
+
+class HistoryStore {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // типы столбцов в файле снимка
+    private static final byte EMPTY_COLUMN = 0;
+    private static final byte DOUBLE_COLUMN = 1;
+    private static final byte LONG_COLUMN = 2;
+    private static final byte DATE_COLUMN = 3;
+    private static final byte SYMBOL_COLUMN = 4;
+    private static final byte OBJECT_COLUMN = 5;
+
+    private int size;
+    private int capacity;
+    private long[] ids;
+    // столбцы в порядке их первого появления во входных данных
+    private final LinkedHashMap<String, Column> columns;
+    // true для снимка: добавлять строки в снимок нельзя
+    private final boolean readOnly;
+    // среди столбцов есть ещё не заменённые MappedColumn
+    private boolean mapped;
+
+    HistoryStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    // хранилище с массивами, заранее рассчитанными на capacity строк
+    HistoryStore(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        ids = new long[this.capacity];
+        columns = new LinkedHashMap<>();
+        readOnly = false;
+    }
+
+    // снимок source: те же массивы, но собственные объекты столбцов и фиксированное число строк
+    private HistoryStore(HistoryStore source) {
+        size = source.size;
+        capacity = source.capacity;
+        ids = source.ids;
+        columns = new LinkedHashMap<>();
+        for (Map.Entry<String, Column> e : source.columns.entrySet()) {
+            columns.put(e.getKey(), e.getValue().view());
+        }
+        readOnly = true;
+    }
+
+    // хранилище, прочитанное из файла снимка; массивы имеют длину size, поэтому первое же добавление строки
+    // расширит их копированием и не изменит данные снимков, созданных до него
+    private HistoryStore(long[] ids, LinkedHashMap<String, Column> columns) {
+        size = ids.length;
+        capacity = ids.length;
+        this.ids = ids;
+        this.columns = columns;
+        readOnly = false;
+        mapped = true;
+    }
+
+    /**
+     * Записывает строки хранилища в файл снимка: число строк, id и столбцы в порядке их появления. Каждый столбец
+     * записывается с длиной в байтах, чтобы при чтении его можно было пропустить без разбора.
+     */
+    void writeTo(SnapshotFile.Output out) throws IOException {
+        out.putInt(size);
+        out.putLongs(ids, 0, size);
+        out.putInt(columns.size());
+        for (Map.Entry<String, Column> e : columns.entrySet()) {
+            Column column = e.getValue().resolve();
+            out.putString(e.getKey());
+            out.putByte(kindOf(column));
+            long lengthPosition = out.position();
+            out.putInt(0);
+            long start = out.position();
+            writeColumn(column, out);
+            out.patchInt(lengthPosition, (int) (out.position() - start));
+        }
+    }
+
+    /**
+     * Читает хранилище, записанное методом writeTo. Столбцы не разбираются: каждый из них ссылается на свой участок
+     * буфера и разбирается при первом обращении (MappedColumn).
+     */
+    static HistoryStore read(ByteBuffer in) {
+        int size = in.getInt();
+        long[] ids = SnapshotFile.readLongs(in, size);
+        int count = in.getInt();
+        LinkedHashMap<String, Column> columns = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = SnapshotFile.readString(in);
+            byte kind = in.get();
+            int length = in.getInt();
+            columns.put(name, new MappedColumn(kind, SnapshotFile.slice(in, length), size,
+                    SymbolTable.isSymbolColumn(name)));
+        }
+        return new HistoryStore(ids, columns);
+    }
+
+    private static byte kindOf(Column column) {
+        if (column instanceof EmptyColumn) return EMPTY_COLUMN;
+        if (column instanceof DoubleColumn) return DOUBLE_COLUMN;
+        if (column instanceof LongColumn) return LONG_COLUMN;
+        if (column instanceof DateColumn) return DATE_COLUMN;
+        if (column instanceof SymbolColumn) return SYMBOL_COLUMN;
+        return OBJECT_COLUMN;
+    }
+
+    private void writeColumn(Column column, SnapshotFile.Output out) throws IOException {
+        if (column instanceof DoubleColumn) {
+            out.putDoubles(((DoubleColumn) column).values, 0, size);
+        } else if (column instanceof LongColumn) {
+            out.putByte((byte) (((LongColumn) column).intValues ? 1 : 0));
+            out.putLongs(((LongColumn) column).values, 0, size);
+        } else if (column instanceof DateColumn) {
+            out.putInts(((DateColumn) column).days, 0, size);
+        } else if (column instanceof SymbolColumn) {
+            SymbolColumn symbols = (SymbolColumn) column;
+            out.putInt(symbols.count);
+            for (int code = 0; code < symbols.count; code++) out.putString(symbols.symbols[code]);
+            out.putInts(symbols.codes, 0, size);
+        } else if (column instanceof ObjectColumn) {
+            Object[] values = ((ObjectColumn) column).values;
+            for (int row = 0; row < size; row++) out.putValue(values[row]);
+        }
+    }
+
+    // symbols - строки словаря заменяются каноническими строками SymbolTable
+    private static Column readColumn(byte kind, ByteBuffer in, int size, boolean symbols) throws IOException {
+        switch (kind) {
+            case EMPTY_COLUMN:
+                return new EmptyColumn();
+            case DOUBLE_COLUMN:
+                return new DoubleColumn(SnapshotFile.readDoubles(in, size));
+            case LONG_COLUMN:
+                boolean intValues = in.get() != 0;
+                return new LongColumn(SnapshotFile.readLongs(in, size), intValues);
+            case DATE_COLUMN:
+                return new DateColumn(SnapshotFile.readInts(in, size));
+            case SYMBOL_COLUMN:
+                String[] dictionary = new String[in.getInt()];
+                for (int code = 0; code < dictionary.length; code++) {
+                    String symbol = SnapshotFile.readString(in);
+                    dictionary[code] = symbols ? SymbolTable.intern(symbol) : symbol;
+                }
+                return new SymbolColumn(SnapshotFile.readInts(in, size), dictionary);
+            case OBJECT_COLUMN:
+                Object[] values = new Object[size];
+                for (int row = 0; row < size; row++) values[row] = SnapshotFile.readValue(in);
+                return new ObjectColumn(values);
+            default:
+                throw new IOException("Неизвестный тип столбца в файле снимка: " + kind);
+        }
+    }
+
+    /**
+     * Возвращает снимок хранилища только для чтения, содержащий строки, добавленные до вызова. Данные не копируются:
+     * снимок ссылается на те же массивы, что и хранилище, и видит только строки 0..size()-1, которые после
+     * добавления не изменяются. Снимок можно передавать в другие потоки через volatile-поле или другую
+     * синхронизацию, обеспечивающую отношение happens-before.
+     */
+    HistoryStore snapshot() {
+        return readOnly ? this : new HistoryStore(this);
+    }
+
+    /**
+     * Добавляет в хранилище новую строку и возвращает её индекс.
+     *
+     * @param id         уникальный id записи истории торгов
+     * @param attributes атрибуты (key) и их значения (value), полученные из XML-строки
+     * @return индекс добавленной строки
+     */
+    int append(long id, Map<String, Object> attributes) {
+        checkWritable();
+        resolveMapped();
+        ensureCapacity(size + 1);
+        int row = size++;
+        ids[row] = id;
+        for (Map.Entry<String, Object> e : attributes.entrySet()) {
+            String name = e.getKey();
+            Object value = e.getValue() == null ? "" : e.getValue();
+            Column column = columns.get(name);
+            if (column == null) {
+                column = new EmptyColumn();
+                columns.put(name, column);
+            }
+            // если столбец не может хранить значение такого типа, он заменяется более общим столбцом
+            if (!column.accepts(value)) {
+                column = column.promote(value, size - 1, capacity);
+                columns.put(name, column);
+            }
+            column.set(row, value);
+        }
+        return row;
+    }
+
+    /**
+     * Копирует строки rows[0..count-1] другого хранилища в конец этого хранилища в указанном порядке, назначая им
+     * последовательные id начиная с firstId. Значения переносятся по столбцам в примитивном виде, коды словарей
+     * перекодируются в словари этого хранилища.
+     *
+     * @return индекс первой добавленной строки
+     */
+    int appendRows(HistoryStore source, int[] rows, int count, long firstId) {
+        int start = appendColumns(source, rows, count);
+        for (int i = 0; i < count; i++) {
+            ids[start + i] = firstId + i;
+        }
+        return start;
+    }
+
+    /**
+     * То же, что appendRows(HistoryStore, int[], int, long), но строке rows[i] назначается id rowIds[i].
+     *
+     * @return индекс первой добавленной строки
+     */
+    int appendRows(HistoryStore source, int[] rows, int count, long[] rowIds) {
+        int start = appendColumns(source, rows, count);
+        System.arraycopy(rowIds, 0, ids, start, count);
+        return start;
+    }
+
+    private int appendColumns(HistoryStore source, int[] rows, int count) {
+        checkWritable();
+        resolveMapped();
+        int start = size;
+        ensureCapacity(size + count);
+        size += count;
+        for (Map.Entry<String, Column> e : source.columns.entrySet()) {
+            String name = e.getKey();
+            Column from = e.getValue().resolve();
+            Column column = columns.get(name);
+            if (column == null) {
+                column = new EmptyColumn();
+                columns.put(name, column);
+            }
+            if (from instanceof EmptyColumn) continue;
+            if (column instanceof EmptyColumn) {
+                column = Column.like(from, capacity);
+                columns.put(name, column);
+            }
+            if (column.copyRows(from, rows, count, start)) continue;
+            // типы столбцов не совпадают: значения переносятся по одному с заменой столбца более общим
+            for (int i = 0; i < count; i++) {
+                Object value = from.get(rows[i]);
+                if (!column.accepts(value)) {
+                    column = column.promote(value, start + i, capacity);
+                    columns.put(name, column);
+                }
+                column.set(start + i, value);
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Заполняет пустые ячейки строки row значениями строки fromRow хранилища from (from может быть этим же
+     * хранилищем); непустые ячейки строки row не изменяются. Строка row должна быть ещё не опубликованной
+     * в снимках: после публикации значения строки не меняются.
+     */
+    void mergeEmpty(int row, HistoryStore from, int fromRow) {
+        checkWritable();
+        resolveMapped();
+        for (Map.Entry<String, Column> e : new ArrayList<>(from.columns.entrySet())) {
+            Column source = e.getValue().resolve();
+            if (source.isEmpty(fromRow)) continue;
+            String name = e.getKey();
+            Column column = columns.get(name);
+            if (column == null) {
+                column = new EmptyColumn();
+                columns.put(name, column);
+            }
+            if (!column.isEmpty(row)) continue;
+            Object value = source.get(fromRow);
+            if (!column.accepts(value)) {
+                column = column.promote(value, size, capacity);
+                columns.put(name, column);
+            }
+            column.set(row, value);
+        }
+    }
+
+    /**
+     * Возвращает порядок строк хранилища: по secid в алфавитном порядке, затем по дате торгов, затем по boardid
+     * в алфавитном порядке, затем по id. Ранги строк словарей вычисляются один раз при создании объекта, поэтому
+     * после добавления в хранилище новых строк порядок нужно получить заново.
+     */
+    RowOrder rowOrder() {
+        return new RowOrder();
+    }
+
+    /**
+     * Устойчиво сортирует индексы строк rows[from..to-1] в порядке order (сортировка слиянием по примитивному
+     * массиву, без упаковки индексов в объекты).
+     */
+    static void sort(int[] rows, int from, int to, RowOrder order) {
+        if (to - from < 2) return;
+        int[] buffer = Arrays.copyOfRange(rows, from, to);
+        mergeSort(buffer, 0, to - from, rows, from, order);
+    }
+
+    // сортирует source[low..high) в target[offset..offset+high-low); source используется как рабочий буфер
+    private static void mergeSort(int[] source, int low, int high, int[] target, int offset, RowOrder order) {
+        int length = high - low;
+        if (length < 16) {
+            // короткие участки сортируются вставками
+            for (int i = 0; i < length; i++) {
+                int row = source[low + i];
+                int j = offset + i;
+                while (j > offset && order.compare(target[j - 1], row) > 0) {
+                    target[j] = target[j - 1];
+                    j--;
+                }
+                target[j] = row;
+            }
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        // половины сортируются в target, затем сливаются обратно в source и копируются в target
+        mergeSort(target, offset, offset + (mid - low), source, low, order);
+        mergeSort(target, offset + (mid - low), offset + length, source, mid, order);
+        int i = low;
+        int j = mid;
+        for (int k = offset; k < offset + length; k++) {
+            if (j >= high || (i < mid && order.compare(source[i], source[j]) <= 0)) {
+                target[k] = source[i++];
+            } else {
+                target[k] = source[j++];
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Приблизительный объём памяти массивов хранилища в байтах (см. Column.byteSize).
+     */
+    long byteSize() {
+        long bytes = ids.length * 8L;
+        for (Column column : columns.values()) bytes += column.byteSize();
+        return bytes;
+    }
+
+    long getId(int row) {
+        return ids[row];
+    }
+
+    /**
+     * Возвращает значение атрибута для строки row или null, если такого столбца в хранилище нет.
+     * Пустые значения, как и в XMLReader, возвращаются пустой строкой.
+     */
+    Object get(int row, String name) {
+        Column column = columns.get(name);
+        return column == null ? null : column.get(row);
+    }
+
+    boolean hasColumn(String name) {
+        return columns.containsKey(name);
+    }
+
+    /**
+     * Собирает все атрибуты строки row в новую карту. Изменение возвращаемой карты не влияет на хранилище.
+     */
+    LinkedHashMap<String, Object> getAll(int row) {
+        LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Column> e : columns.entrySet()) {
+            result.put(e.getKey(), e.getValue().get(row));
+        }
+        return result;
+    }
+
+    Set<String> columnNames() {
+        return Collections.unmodifiableSet(columns.keySet());
+    }
+
+    /**
+     * Возвращает столбец с указанным именем или null, если такого столбца нет.
+     */
+    Column column(String name) {
+        Column column = columns.get(name);
+        return column == null ? null : column.resolve();
+    }
+
+    /**
+     * Возвращает словарный столбец с указанным именем или null, если столбец отсутствует или не является словарным.
+     */
+    SymbolColumn symbols(String name) {
+        Column column = columns.get(name);
+        if (column != null) column = column.resolve();
+        return column instanceof SymbolColumn ? (SymbolColumn) column : null;
+    }
+
+    /**
+     * Возвращает столбец дат с указанным именем или null, если столбец отсутствует или не является столбцом дат.
+     */
+    DateColumn dates(String name) {
+        Column column = columns.get(name);
+        if (column != null) column = column.resolve();
+        return column instanceof DateColumn ? (DateColumn) column : null;
+    }
+
+    private void checkWritable() {
+        if (readOnly) throw new IllegalStateException("Снимок хранилища доступен только для чтения");
+    }
+
+    // перед первой записью в хранилище, прочитанное из файла, столбцы файла заменяются обычными столбцами
+    private void resolveMapped() {
+        if (!mapped) return;
+        for (Map.Entry<String, Column> e : columns.entrySet()) {
+            e.setValue(e.getValue().resolve().view());
+        }
+        mapped = false;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= capacity) return;
+        int newCapacity = Math.max(required, capacity + (capacity >> 1));
+        ids = Arrays.copyOf(ids, newCapacity);
+        for (Column column : columns.values()) {
+            column.grow(newCapacity);
+        }
+        capacity = newCapacity;
+    }
+
+    /**
+     * Сравнение строк хранилища по ключу (secid, tradedate, boardid, id). Отсутствующие столбцы не учитываются.
+     */
+    final class RowOrder {
+        private final SymbolColumn secids = symbols("secid");
+        private final int[] secidRanks = secids == null ? null : secids.ranks();
+        private final DateColumn dates = dates("tradedate");
+        private final SymbolColumn boards = symbols("boardid");
+        private final int[] boardRanks = boards == null ? null : boards.ranks();
+
+        int compare(int a, int b) {
+            if (secids != null) {
+                int c = Integer.compare(secidRanks[secids.getCode(a)], secidRanks[secids.getCode(b)]);
+                if (c != 0) return c;
+            }
+            if (dates != null) {
+                int c = Integer.compare(dates.getEpochDay(a), dates.getEpochDay(b));
+                if (c != 0) return c;
+            }
+            if (boards != null) {
+                int c = Integer.compare(boardRanks[boards.getCode(a)], boardRanks[boards.getCode(b)]);
+                if (c != 0) return c;
+            }
+            return Long.compare(ids[a], ids[b]);
+        }
+    }
+
+    /**
+     * Столбец хранилища. Каждая реализация хранит значения одного типа в примитивном массиве и использует
+     * собственное служебное значение для пустых ячеек.
+     */
+    abstract static class Column {
+
+        abstract boolean accepts(Object value);
+
+        abstract void set(int row, Object value);
+
+        abstract Object get(int row);
+
+        abstract boolean isEmpty(int row);
+
+        abstract void grow(int capacity);
+
+        /**
+         * Представление столбца для снимка хранилища: новый объект, ссылающийся на текущие массивы этого столбца.
+         * Последующие расширение массивов и замена столбца в хранилище на представление не влияют.
+         */
+        abstract Column view();
+
+        /**
+         * Столбец, хранящий данные: для MappedColumn - разобранный столбец файла, для остальных - сам столбец.
+         */
+        Column resolve() {
+            return this;
+        }
+
+        /**
+         * Приблизительный объём памяти массивов столбца в байтах, без объектов значений и заголовков массивов.
+         */
+        long byteSize() {
+            return 0;
+        }
+
+        /**
+         * Копирует значения строк from[rows[i]] в строки dstStart + i. Возвращает false, если тип столбца from
+         * не совпадает с типом этого столбца и копирование в примитивном виде невозможно.
+         */
+        boolean copyRows(Column from, int[] rows, int count, int dstStart) {
+            return false;
+        }
+
+        // пустой столбец того же типа, что и column
+        static Column like(Column column, int capacity) {
+            if (column instanceof DoubleColumn) return new DoubleColumn(capacity);
+            if (column instanceof LongColumn) return new LongColumn(capacity);
+            if (column instanceof DateColumn) return new DateColumn(capacity);
+            if (column instanceof SymbolColumn) return new SymbolColumn(capacity);
+            return new ObjectColumn(capacity);
+        }
+
+        /**
+         * Создаёт столбец, способный хранить как уже записанные значения (строки 0..rows-1), так и новое значение.
+         */
+        Column promote(Object value, int rows, int capacity) {
+            Column column = forValue(value, capacity);
+            if (!(this instanceof EmptyColumn) || !column.accepts(value)) {
+                column = new ObjectColumn(capacity);
+            }
+            for (int row = 0; row < rows; row++) {
+                if (!isEmpty(row)) column.set(row, get(row));
+            }
+            return column;
+        }
+
+        static Column forValue(Object value, int capacity) {
+            if (value instanceof Double) return new DoubleColumn(capacity);
+            if (value instanceof Integer || value instanceof Long) return new LongColumn(capacity);
+            if (value instanceof LocalDate || value instanceof Date) return new DateColumn(capacity);
+            if (value instanceof String) return new SymbolColumn(capacity);
+            return new ObjectColumn(capacity);
+        }
+    }
+
+    // столбец, в который пока не было записано ни одного непустого значения; памяти под данные не занимает
+    static final class EmptyColumn extends Column {
+
+        boolean accepts(Object value) {
+            return "".equals(value);
+        }
+
+        void set(int row, Object value) {
+        }
+
+        Object get(int row) {
+            return "";
+        }
+
+        boolean isEmpty(int row) {
+            return true;
+        }
+
+        void grow(int capacity) {
+        }
+
+        Column view() {
+            return this;
+        }
+    }
+
+    static final class DoubleColumn extends Column {
+        private double[] values;
+
+        DoubleColumn(int capacity) {
+            values = new double[capacity];
+            Arrays.fill(values, Double.NaN);
+        }
+
+        private DoubleColumn(double[] values) {
+            this.values = values;
+        }
+
+        boolean accepts(Object value) {
+            return value instanceof Double || "".equals(value);
+        }
+
+        void set(int row, Object value) {
+            values[row] = "".equals(value) ? Double.NaN : (Double) value;
+        }
+
+        Object get(int row) {
+            return isEmpty(row) ? "" : (Object) values[row];
+        }
+
+        double getDouble(int row) {
+            return values[row];
+        }
+
+        boolean copyRows(Column from, int[] rows, int count, int dstStart) {
+            if (!(from instanceof DoubleColumn)) return false;
+            double[] source = ((DoubleColumn) from).values;
+            for (int i = 0; i < count; i++) {
+                values[dstStart + i] = source[rows[i]];
+            }
+            return true;
+        }
+
+        boolean isEmpty(int row) {
+            return Double.isNaN(values[row]);
+        }
+
+        void grow(int capacity) {
+            int old = values.length;
+            values = Arrays.copyOf(values, capacity);
+            Arrays.fill(values, old, capacity, Double.NaN);
+        }
+
+        Column view() {
+            return new DoubleColumn(values);
+        }
+
+        long byteSize() {
+            return values.length * 8L;
+        }
+    }
+
+    static final class LongColumn extends Column {
+        private static final long EMPTY = Long.MIN_VALUE;
+        private long[] values;
+        // XMLReader создаёт Integer для столбцов типа int32, поэтому такие значения возвращаются тем же типом
+        private boolean intValues = true;
+
+        LongColumn(int capacity) {
+            values = new long[capacity];
+            Arrays.fill(values, EMPTY);
+        }
+
+        private LongColumn(long[] values, boolean intValues) {
+            this.values = values;
+            this.intValues = intValues;
+        }
+
+        boolean accepts(Object value) {
+            return value instanceof Integer || value instanceof Long || "".equals(value);
+        }
+
+        void set(int row, Object value) {
+            if ("".equals(value)) {
+                values[row] = EMPTY;
+                return;
+            }
+            if (value instanceof Long) intValues = false;
+            values[row] = ((Number) value).longValue();
+        }
+
+        Object get(int row) {
+            if (isEmpty(row)) return "";
+            return intValues ? (Object) (int) values[row] : (Object) values[row];
+        }
+
+        long getLong(int row) {
+            return values[row];
+        }
+
+        // true, если все значения столбца получены как Integer (тип int32 в XML)
+        boolean isInt() {
+            return intValues;
+        }
+
+        boolean copyRows(Column from, int[] rows, int count, int dstStart) {
+            if (!(from instanceof LongColumn)) return false;
+            LongColumn column = (LongColumn) from;
+            if (!column.intValues) intValues = false;
+            for (int i = 0; i < count; i++) {
+                values[dstStart + i] = column.values[rows[i]];
+            }
+            return true;
+        }
+
+        boolean isEmpty(int row) {
+            return values[row] == EMPTY;
+        }
+
+        void grow(int capacity) {
+            int old = values.length;
+            values = Arrays.copyOf(values, capacity);
+            Arrays.fill(values, old, capacity, EMPTY);
+        }
+
+        Column view() {
+            return new LongColumn(values, intValues);
+        }
+
+        long byteSize() {
+            return values.length * 8L;
+        }
+    }
+
+    // дата хранится как номер дня от 1970-01-01 и возвращается объектом LocalDate, как её разбирает XMLReader;
+    // java.util.Date приводится к дате в часовом поясе по умолчанию
+    static final class DateColumn extends Column {
+        private static final int EMPTY = Integer.MIN_VALUE;
+        private int[] days;
+
+        DateColumn(int capacity) {
+            days = new int[capacity];
+            Arrays.fill(days, EMPTY);
+        }
+
+        private DateColumn(int[] days) {
+            this.days = days;
+        }
+
+        boolean accepts(Object value) {
+            return value instanceof LocalDate || value instanceof Date || "".equals(value);
+        }
+
+        void set(int row, Object value) {
+            days[row] = "".equals(value) ? EMPTY : epochDay(value);
+        }
+
+        // номер дня непустого значения, допустимого для столбца (LocalDate или Date)
+        static int epochDay(Object value) {
+            if (value instanceof Date) {
+                Date date = (Date) value;
+                return (int) date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+            }
+            return (int) ((LocalDate) value).toEpochDay();
+        }
+
+        Object get(int row) {
+            if (isEmpty(row)) return "";
+            return LocalDate.ofEpochDay(days[row]);
+        }
+
+        int getEpochDay(int row) {
+            return days[row];
+        }
+
+        boolean copyRows(Column from, int[] rows, int count, int dstStart) {
+            if (!(from instanceof DateColumn)) return false;
+            int[] source = ((DateColumn) from).days;
+            for (int i = 0; i < count; i++) {
+                days[dstStart + i] = source[rows[i]];
+            }
+            return true;
+        }
+
+        boolean isEmpty(int row) {
+            return days[row] == EMPTY;
+        }
+
+        void grow(int capacity) {
+            int old = days.length;
+            days = Arrays.copyOf(days, capacity);
+            Arrays.fill(days, old, capacity, EMPTY);
+        }
+
+        Column view() {
+            return new DateColumn(days);
+        }
+
+        long byteSize() {
+            return days.length * 4L;
+        }
+    }
+
+    /**
+     * Словарный столбец для строк с небольшим числом различных значений (SECID, BOARDID, SHORTNAME).
+     * В строке хранится только int-код, сами строки хранятся в словаре в единственном экземпляре.
+     * Словарь только дописывается, поэтому представление столбца видит первые count строк словаря неизменными;
+     * карта строка -> код общая для столбца и его представлений и допускает одновременное чтение.
+     */
+    static final class SymbolColumn extends Column {
+        private int[] codes;
+        private String[] symbols;
+        private int count;
+        private final ConcurrentHashMap<String, Integer> dictionary;
+
+        SymbolColumn(int capacity) {
+            codes = new int[capacity];
+            symbols = new String[16];
+            dictionary = new ConcurrentHashMap<>();
+            // код 0 зарезервирован за пустым значением, поэтому новый массив кодов не нужно заполнять
+            encode("");
+        }
+
+        private SymbolColumn(int[] codes, String[] symbols) {
+            this.codes = codes;
+            this.symbols = symbols;
+            this.count = symbols.length;
+            this.dictionary = new ConcurrentHashMap<>();
+            for (int code = 0; code < symbols.length; code++) dictionary.put(symbols[code], code);
+        }
+
+        private SymbolColumn(SymbolColumn source) {
+            codes = source.codes;
+            symbols = source.symbols;
+            count = source.count;
+            dictionary = source.dictionary;
+        }
+
+        boolean accepts(Object value) {
+            return value instanceof String;
+        }
+
+        void set(int row, Object value) {
+            codes[row] = encode((String) value);
+        }
+
+        Object get(int row) {
+            return symbols[codes[row]];
+        }
+
+        int getCode(int row) {
+            return codes[row];
+        }
+
+        boolean copyRows(Column from, int[] rows, int count, int dstStart) {
+            if (!(from instanceof SymbolColumn)) return false;
+            SymbolColumn column = (SymbolColumn) from;
+            // таблица перекодировки кодов словаря from в коды этого словаря, заполняется по мере необходимости
+            int[] recode = new int[column.cardinality()];
+            Arrays.fill(recode, -1);
+            for (int i = 0; i < count; i++) {
+                int code = column.codes[rows[i]];
+                if (recode[code] < 0) recode[code] = encode(column.decode(code));
+                codes[dstStart + i] = recode[code];
+            }
+            return true;
+        }
+
+        /**
+         * Возвращает код строки value, при необходимости добавляя её в словарь.
+         */
+        int encode(String value) {
+            Integer code = dictionary.get(value);
+            if (code == null) {
+                if (count == symbols.length) symbols = Arrays.copyOf(symbols, Math.max(count * 2, 16));
+                code = count;
+                symbols[count++] = value;
+                dictionary.put(value, code);
+            }
+            return code;
+        }
+
+        /**
+         * Возвращает код строки value или -1, если такой строки в словаре нет.
+         */
+        int codeOf(String value) {
+            Integer code = dictionary.get(value);
+            // строка могла быть добавлена в словарь хранилища после создания представления
+            return code == null || code >= count ? -1 : code;
+        }
+
+        String decode(int code) {
+            return symbols[code];
+        }
+
+        int cardinality() {
+            return count;
+        }
+
+        /**
+         * Возвращает для каждого кода его порядковый номер при сортировке строк словаря в алфавитном порядке.
+         */
+        int[] ranks() {
+            Integer[] sorted = new Integer[count];
+            for (int i = 0; i < sorted.length; i++) sorted[i] = i;
+            Arrays.sort(sorted, Comparator.comparing(code -> symbols[code]));
+            int[] ranks = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) ranks[sorted[i]] = i;
+            return ranks;
+        }
+
+        boolean isEmpty(int row) {
+            return codes[row] == 0;
+        }
+
+        void grow(int capacity) {
+            codes = Arrays.copyOf(codes, capacity);
+        }
+
+        Column view() {
+            return new SymbolColumn(this);
+        }
+
+        long byteSize() {
+            return codes.length * 4L + symbols.length * 8L;
+        }
+    }
+
+    // запасной столбец для значений, тип которых не совпадает с типом уже созданного столбца
+    static final class ObjectColumn extends Column {
+        private Object[] values;
+
+        ObjectColumn(int capacity) {
+            values = new Object[capacity];
+        }
+
+        private ObjectColumn(Object[] values) {
+            this.values = values;
+        }
+
+        boolean accepts(Object value) {
+            return true;
+        }
+
+        void set(int row, Object value) {
+            values[row] = "".equals(value) ? null : value;
+        }
+
+        Object get(int row) {
+            return values[row] == null ? "" : values[row];
+        }
+
+        boolean isEmpty(int row) {
+            return values[row] == null;
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        Column view() {
+            return new ObjectColumn(values);
+        }
+
+        long byteSize() {
+            return values.length * 8L;
+        }
+    }
+
+    /**
+     * Столбец хранилища, прочитанного из файла снимка. Данные разбираются из отображённого в память участка файла
+     * при первом обращении, поэтому страницы файла со столбцами, к которым не обращались, не читаются с диска.
+     * Разобранный столбец не изменяется: перед записью хранилище заменяет MappedColumn его представлением.
+     */
+    static final class MappedColumn extends Column {
+        private final byte kind;
+        private final int size;
+        private final boolean symbols;
+        private ByteBuffer data;
+        private volatile Column loaded;
+
+        MappedColumn(byte kind, ByteBuffer data, int size, boolean symbols) {
+            this.kind = kind;
+            this.data = data;
+            this.size = size;
+            this.symbols = symbols;
+        }
+
+        Column resolve() {
+            Column column = loaded;
+            if (column != null) return column;
+            synchronized (this) {
+                if (loaded == null) {
+                    try {
+                        loaded = readColumn(kind, data, size, symbols);
+                    } catch (IOException | RuntimeException e) {
+                        throw new IllegalStateException("Файл снимка повреждён", e);
+                    }
+                    // отображение файла больше не нужно этому столбцу
+                    data = null;
+                }
+                return loaded;
+            }
+        }
+
+        boolean accepts(Object value) {
+            return false;
+        }
+
+        void set(int row, Object value) {
+            throw new UnsupportedOperationException("Столбец файла снимка доступен только для чтения");
+        }
+
+        Object get(int row) {
+            return resolve().get(row);
+        }
+
+        boolean isEmpty(int row) {
+            return resolve().isEmpty(row);
+        }
+
+        void grow(int capacity) {
+            throw new UnsupportedOperationException("Столбец файла снимка доступен только для чтения");
+        }
+
+        Column view() {
+            return this;
+        }
+
+        long byteSize() {
+            Column column = loaded;
+            if (column != null) return column.byteSize();
+            ByteBuffer data = this.data;
+            return data == null ? 0 : data.capacity();
+        }
+    }
+}
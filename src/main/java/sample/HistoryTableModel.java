@@ -0,0 +1,99 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+import javafx.collections.ObservableListBase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Модель строк таблицы истории торгов: ObservableList только для чтения поверх снимка TempDB. Элементы списка
+ * (HistoryEntry) создаются при обращении к ним, поэтому TableView, запрашивающий только видимые строки, не
+ * материализует всю историю; значения ячеек читаются из хранилища по одному атрибуту (HistoryEntry.get).
+ * <p>
+ * Модель показывает один снимок TempDB. refresh переключает её на последний опубликованный снимок и сообщает
+ * слушателям только о добавленных строках, а не о замене всего списка.
+ */
+
+public class HistoryTableModel extends ObservableListBase<TempDB.HistoryEntry> {
+    private final TempDB tempDB;
+    private TempDB.Snapshot snapshot;
+    private List<TempDB.HistoryEntry> histories;
+
+    public HistoryTableModel(@NotNull TempDB tempDB) {
+        this.tempDB = tempDB;
+        this.snapshot = tempDB.snapshot();
+        this.histories = snapshot.getHistories();
+    }
+
+    /**
+     * Снимок TempDB, который показывает модель.
+     */
+    public TempDB.Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public TempDB.HistoryEntry get(int index) {
+        return histories.get(index);
+    }
+
+    @Override
+    public int size() {
+        return histories.size();
+    }
+
+    /**
+     * Переключает модель на последний снимок TempDB. Строки снимка только дописываются в хранилище, а порядок
+     * сортировки лишь дополняется новыми строками, поэтому прежний список - подпоследовательность нового, и
+     * изменение сообщается интервалами добавленных строк. Если это не так, сообщается замена всего списка.
+     *
+     * @return false, если новых снимков не было
+     */
+    public boolean refresh() {
+        TempDB.Snapshot latest = tempDB.snapshot();
+        if (latest.getVersion() == snapshot.getVersion()) return false;
+        Instrumentation.Timing timing = Instrumentation.start("table");
+        List<TempDB.HistoryEntry> previous = histories;
+        int[] added = addedRanges((TempDB.RowView) previous, previous.size(),
+                (TempDB.RowView) latest.getHistories(), latest.getHistories().size());
+        snapshot = latest;
+        histories = latest.getHistories();
+        beginChange();
+        try {
+            if (added == null) {
+                nextReplace(0, histories.size(), previous);
+            } else {
+                for (int i = 0; i < added.length; i += 2) {
+                    nextAdd(added[i], added[i + 1]);
+                }
+            }
+        } finally {
+            endChange();
+        }
+        timing.stop(histories.size());
+        return true;
+    }
+
+    // интервалы [from, to) элементов next, отсутствующих в previous, парами в одном массиве;
+    // null, если previous не является подпоследовательностью next
+    static int[] addedRanges(TempDB.RowView previous, int previousSize, TempDB.RowView next, int nextSize) {
+        int[] ranges = new int[8];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (j < nextSize) {
+            if (i < previousSize && previous.rowAt(i) == next.rowAt(j)) {
+                i++;
+                j++;
+                continue;
+            }
+            int from = j;
+            while (j < nextSize && (i >= previousSize || next.rowAt(j) != previous.rowAt(i))) j++;
+            if (count == ranges.length) ranges = Arrays.copyOf(ranges, count * 2);
+            ranges[count++] = from;
+            ranges[count++] = j;
+        }
+        return i == previousSize ? Arrays.copyOf(ranges, count) : null;
+    }
+}
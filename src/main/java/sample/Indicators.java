@@ -0,0 +1,431 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Технические индикаторы временных рядов цен: для каждой пары (SECID, BOARDID) TempDB хранится ряд дней торгов,
+ * упорядоченный по дате, в примитивных массивах, и для каждого дня - доходность к предыдущему дню, скользящее
+ * среднее (SMA) и экспоненциальное среднее (EMA) цены, волатильность (стандартное отклонение доходностей в окне)
+ * и средний истинный диапазон ATR по HIGH/LOW/CLOSE. Пример:
+ * <pre>
+ * Indicators indicators = new Indicators(tempDB, "close", 20);
+ * indicators.update();
+ * Indicators.Series series = indicators.get("AFLT", "TQBR");
+ * </pre>
+ * update() обрабатывает только строки, добавленные в TempDB после предыдущего вызова: новые дни дописываются
+ * в конец ряда, и индикаторы вычисляются только для них. Если добавлен день раньше последнего дня ряда или
+ * заменена запись уже учтённого дня (правила повторов TempDB), ряд пересчитывается начиная с этого дня.
+ * Ряды, затронутые обновлением, обрабатываются параллельно в общем пуле ForkJoinPool.
+ * <p>
+ * В ряд попадают дни с непустым значением цены; при нескольких записях одного дня (правило повторов ALLOW)
+ * учитывается запись, добавленная последней. Ряды, возвращаемые get и getSeries, не изменяются последующими
+ * вызовами update, поэтому их можно читать из любого потока.
+ */
+
+public class Indicators {
+    private final TempDB tempDB;
+    private final String column;
+    private final int window;
+    // множитель EMA: 2 / (window + 1)
+    private final double alpha;
+    // ряды по паре secid, boardid; заменяется целиком при каждом обновлении
+    private volatile Map<List<String>, Series> series = Collections.emptyMap();
+    // число строк хранилища TempDB, уже учтённых в рядах, и версия последнего обработанного снимка
+    private int processedRows;
+    private long version = -1;
+
+    /**
+     * @param tempDB база данных, записи истории торгов которой составляют ряды
+     * @param column столбец цены ряда, например close или waprice (регистр не важен)
+     * @param window длина окна SMA, волатильности и ATR и период EMA (в днях торгов)
+     */
+    public Indicators(@NotNull TempDB tempDB, @NotNull String column, int window) {
+        if (window < 2) throw new IllegalArgumentException("window < 2");
+        this.tempDB = tempDB;
+        this.column = column.toLowerCase(Locale.ROOT);
+        this.window = window;
+        this.alpha = 2.0 / (window + 1);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Добавляет в ряды записи истории торгов, опубликованные в TempDB после предыдущего обновления, и вычисляет
+     * для них индикаторы.
+     *
+     * @return число изменённых рядов
+     */
+    public synchronized int update() {
+        TempDB.Snapshot snapshot = tempDB.snapshot();
+        if (snapshot.getVersion() == version) return 0;
+        version = snapshot.getVersion();
+        HistoryStore store = ((TempDB.RowView) snapshot.getHistories()).store();
+        int size = store.size();
+        HistoryStore.SymbolColumn secids = store.symbols("secid");
+        HistoryStore.SymbolColumn boards = store.symbols("boardid");
+        HistoryStore.DateColumn dates = store.dates("tradedate");
+        if (size <= processedRows || secids == null || boards == null || dates == null) return 0;
+
+        // новые живые строки с датой и ценой, сгруппированные по паре кодов secid, boardid в порядке добавления
+        int[] rows = new int[size - processedRows];
+        int count = 0;
+        for (int row = processedRows; row < size; row++) {
+            if (snapshot.isLive(row) && !dates.isEmpty(row)) rows[count++] = row;
+        }
+        processedRows = size;
+        rows = Arrays.copyOf(rows, count);
+        double[] prices = new double[count];
+        Aggregation.gather(store.column(column), rows, prices);
+        Map<Long, int[]> groups = new LinkedHashMap<>();
+        Map<Long, Integer> counts = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            if (prices[i] != prices[i]) continue;
+            long key = ((long) secids.getCode(rows[i]) << 32) | boards.getCode(rows[i]);
+            int n = counts.merge(key, 1, Integer::sum);
+            int[] group = groups.get(key);
+            if (group == null || group.length < n) {
+                group = group == null ? new int[4] : Arrays.copyOf(group, group.length * 2);
+                groups.put(key, group);
+            }
+            group[n - 1] = rows[i];
+        }
+        if (groups.isEmpty()) return 0;
+
+        Map<List<String>, Series> current = series;
+        Update[] updates = new Update[groups.size()];
+        int u = 0;
+        for (Map.Entry<Long, int[]> group : groups.entrySet()) {
+            long key = group.getKey();
+            String secid = secids.decode((int) (key >>> 32));
+            String board = boards.decode((int) key);
+            Series previous = current.get(Arrays.asList(secid, board));
+            updates[u++] = new Update(previous == null ? new Series(secid, board) : previous,
+                    Arrays.copyOf(group.getValue(), counts.get(key)));
+        }
+        new UpdateTask(store, updates, 0, updates.length).invoke();
+
+        Map<List<String>, Series> next = new HashMap<>(current);
+        for (Update update : updates) {
+            next.put(Arrays.asList(update.result.secid, update.result.boardid), update.result);
+        }
+        series = next;
+        return updates.length;
+    }
+
+    /**
+     * Ряд бумаги secid в режиме торгов boardid на момент последнего обновления или null.
+     */
+    public Series get(@NotNull String secid, @NotNull String boardid) {
+        return series.get(Arrays.asList(secid, boardid));
+    }
+
+    /**
+     * Все ряды на момент последнего обновления, упорядоченные по secid и boardid.
+     */
+    public List<Series> getSeries() {
+        List<Series> result = new ArrayList<>(series.values());
+        result.sort(Comparator.comparing((Series s) -> s.secid).thenComparing(s -> s.boardid));
+        return result;
+    }
+
+    // новые строки одного ряда и результат их добавления
+    private static final class Update {
+        final Series previous;
+        final int[] rows;
+        Series result;
+
+        Update(Series previous, int[] rows) {
+            this.previous = previous;
+            this.rows = rows;
+        }
+    }
+
+    // делит обновляемые ряды пополам до одного ряда; ряды независимы и обрабатываются параллельно
+    private static final class UpdateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final HistoryStore store;
+        private final Update[] updates;
+        private final int from;
+        private final int to;
+
+        UpdateTask(HistoryStore store, Update[] updates, int from, int to) {
+            this.store = store;
+            this.updates = updates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                Update update = updates[from];
+                update.result = update.previous.with(store, update.rows);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new UpdateTask(store, updates, from, mid), new UpdateTask(store, updates, mid, to));
+        }
+    }
+
+    /**
+     * Ряд дней торгов одной бумаги в одном режиме торгов, упорядоченный по дате, с индикаторами каждого дня.
+     * Значение индикатора, для которого в ряду ещё недостаточно дней, - NaN: доходности нет у первого дня,
+     * SMA и ATR - у первых window - 1 дней, волатильности - у первых window дней.
+     */
+    public final class Series {
+        private final String secid;
+        private final String boardid;
+        private final int size;
+        private final int[] days;
+        private final double[] price;
+        private final double[] high;
+        private final double[] low;
+        private final double[] close;
+        private final double[] returns;
+        private final double[] sma;
+        private final double[] ema;
+        private final double[] volatility;
+        private final double[] atr;
+
+        private Series(String secid, String boardid) {
+            this(secid, boardid, 0, new int[0], new double[9][0]);
+        }
+
+        private Series(String secid, String boardid, int size, int[] days, double[][] values) {
+            this.secid = secid;
+            this.boardid = boardid;
+            this.size = size;
+            this.days = days;
+            price = values[0];
+            high = values[1];
+            low = values[2];
+            close = values[3];
+            returns = values[4];
+            sma = values[5];
+            ema = values[6];
+            volatility = values[7];
+            atr = values[8];
+        }
+
+        public String getSecid() {
+            return secid;
+        }
+
+        public String getBoardid() {
+            return boardid;
+        }
+
+        /**
+         * Число дней торгов в ряду.
+         */
+        public int size() {
+            return size;
+        }
+
+        public LocalDate getDate(int i) {
+            return LocalDate.ofEpochDay(days[check(i)]);
+        }
+
+        /**
+         * Цена дня i (значение столбца ряда).
+         */
+        public double getPrice(int i) {
+            return price[check(i)];
+        }
+
+        /**
+         * Доходность дня i к предыдущему дню ряда: price[i] / price[i - 1] - 1.
+         */
+        public double getReturn(int i) {
+            return returns[check(i)];
+        }
+
+        /**
+         * Среднее цены за window дней по день i включительно.
+         */
+        public double getSma(int i) {
+            return sma[check(i)];
+        }
+
+        /**
+         * Экспоненциальное среднее цены с множителем 2 / (window + 1); начальное значение - цена первого дня.
+         */
+        public double getEma(int i) {
+            return ema[check(i)];
+        }
+
+        /**
+         * Выборочное стандартное отклонение доходностей за window дней по день i включительно.
+         */
+        public double getVolatility(int i) {
+            return volatility[check(i)];
+        }
+
+        /**
+         * Средний истинный диапазон по Уайлдеру: среднее истинных диапазонов первых window дней, далее
+         * (atr[i - 1] * (window - 1) + tr[i]) / window. Истинный диапазон дня -
+         * max(high - low, |high - close[i - 1]|, |low - close[i - 1]|); пустые HIGH и LOW заменяются CLOSE,
+         * а пустой CLOSE - ценой ряда.
+         */
+        public double getAtr(int i) {
+            return atr[check(i)];
+        }
+
+        /**
+         * Номер дня date в ряду или -1.
+         */
+        public int indexOf(@NotNull LocalDate date) {
+            int i = Arrays.binarySearch(days, 0, size, (int) date.toEpochDay());
+            return i < 0 ? -1 : i;
+        }
+
+        @Override
+        public String toString() {
+            return secid + "/" + boardid + ": " + size + " дней";
+        }
+
+        private int check(int i) {
+            if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+            return i;
+        }
+
+        // ряд с добавленными строками rows хранилища store (в порядке добавления в TempDB). Если все новые дни
+        // позже последнего дня ряда, массивы этого ряда дописываются на месте (значения с номерами меньше size
+        // не изменяются, поэтому этот ряд остаётся прежним для читателей); иначе ряд собирается в новые массивы
+        Series with(HistoryStore store, int[] rows) {
+            int n = rows.length;
+            HistoryStore.DateColumn dates = store.dates("tradedate");
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i++) keys[i] = ((long) dates.getEpochDay(rows[i]) << 32) | i;
+            // по дате, при равных датах - в порядке добавления
+            Arrays.sort(keys);
+            int[] sorted = new int[n];
+            int[] newDays = new int[n];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                int day = (int) (keys[i] >> 32);
+                // из записей одного дня остаётся добавленная последней
+                if (k > 0 && newDays[k - 1] == day) k--;
+                newDays[k] = day;
+                sorted[k++] = rows[(int) keys[i]];
+            }
+            double[][] values = new double[4][k];
+            int[] gathered = Arrays.copyOf(sorted, k);
+            Aggregation.gather(store.column(column), gathered, values[0]);
+            Aggregation.gather(store.column("high"), gathered, values[1]);
+            Aggregation.gather(store.column("low"), gathered, values[2]);
+            Aggregation.gather(store.column("close"), gathered, values[3]);
+
+            int[] outDays;
+            double[][] out;
+            int from;
+            if (size == 0 || newDays[0] > days[size - 1]) {
+                from = size;
+                int capacity = size + k <= days.length ? days.length : Math.max(16, Math.max(size + k, size * 2));
+                outDays = capacity == days.length ? days : Arrays.copyOf(days, capacity);
+                out = arrays(capacity);
+                System.arraycopy(newDays, 0, outDays, size, k);
+                for (int c = 0; c < 4; c++) System.arraycopy(values[c], 0, out[c], size, k);
+            } else {
+                // слияние с прежним рядом; день, уже бывший в ряду, заменяется новой записью
+                from = Arrays.binarySearch(days, 0, size, newDays[0]);
+                if (from < 0) from = -from - 1;
+                int capacity = Math.max(16, size + k);
+                outDays = new int[capacity];
+                out = new double[9][capacity];
+                double[][] old = {price, high, low, close, returns, sma, ema, volatility, atr};
+                System.arraycopy(days, 0, outDays, 0, from);
+                for (int c = 0; c < old.length; c++) System.arraycopy(old[c], 0, out[c], 0, from);
+                int i = from;
+                int j = 0;
+                int m = from;
+                while (i < size || j < k) {
+                    if (j == k || (i < size && days[i] < newDays[j])) {
+                        outDays[m] = days[i];
+                        for (int c = 0; c < 4; c++) out[c][m] = old[c][i];
+                        i++;
+                    } else {
+                        if (i < size && days[i] == newDays[j]) i++;
+                        outDays[m] = newDays[j];
+                        for (int c = 0; c < 4; c++) out[c][m] = values[c][j];
+                        j++;
+                    }
+                    m++;
+                }
+                k = m - size;
+            }
+            Series result = new Series(secid, boardid, size + k, outDays, out);
+            result.compute(from);
+            return result;
+        }
+
+        // массивы индикаторов ёмкостью capacity: прежние, если ёмкость не изменилась, иначе их копии
+        private double[][] arrays(int capacity) {
+            double[][] old = {price, high, low, close, returns, sma, ema, volatility, atr};
+            double[][] result = new double[old.length][];
+            for (int c = 0; c < old.length; c++) {
+                result[c] = old[c].length == capacity ? old[c] : Arrays.copyOf(old[c], capacity);
+            }
+            return result;
+        }
+
+        // вычисляет индикаторы дней from..size-1 по значениям предыдущих дней
+        private void compute(int from) {
+            for (int i = from; i < size; i++) {
+                double c = close[i] == close[i] ? close[i] : price[i];
+                double h = high[i] == high[i] ? high[i] : c;
+                double l = low[i] == low[i] ? low[i] : c;
+                close[i] = c;
+                high[i] = h;
+                low[i] = l;
+                returns[i] = i == 0 ? Double.NaN : price[i] / price[i - 1] - 1;
+                ema[i] = i == 0 ? price[i] : ema[i - 1] + alpha * (price[i] - ema[i - 1]);
+
+                if (i + 1 < window) {
+                    sma[i] = Double.NaN;
+                } else {
+                    double sum = 0;
+                    for (int j = i - window + 1; j <= i; j++) sum += price[j];
+                    sma[i] = sum / window;
+                }
+
+                if (i < window) {
+                    volatility[i] = Double.NaN;
+                } else {
+                    double mean = 0;
+                    for (int j = i - window + 1; j <= i; j++) mean += returns[j];
+                    mean /= window;
+                    double squares = 0;
+                    for (int j = i - window + 1; j <= i; j++) {
+                        double d = returns[j] - mean;
+                        squares += d * d;
+                    }
+                    volatility[i] = Math.sqrt(squares / (window - 1));
+                }
+
+                if (i + 1 < window) {
+                    atr[i] = Double.NaN;
+                } else if (i + 1 == window) {
+                    double sum = 0;
+                    for (int j = 0; j <= i; j++) sum += trueRange(j);
+                    atr[i] = sum / window;
+                } else {
+                    atr[i] = (atr[i - 1] * (window - 1) + trueRange(i)) / window;
+                }
+            }
+        }
+
+        private double trueRange(int i) {
+            double range = high[i] - low[i];
+            if (i == 0) return range;
+            double previous = close[i - 1];
+            return Math.max(range, Math.max(Math.abs(high[i] - previous), Math.abs(low[i] - previous)));
+        }
+    }
+}
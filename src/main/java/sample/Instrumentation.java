@@ -0,0 +1,191 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Замеры загрузки и запросов TempDB: длительность этапов загрузки (Phase) с числом строк и байтов, для этапа
+ * разбора - по каждому файлу, и длительность запросов к снимкам TempDB с числом найденных записей. Замеры
+ * передаются получателям (Recorder); по умолчанию, если их классы доступны во время выполнения, регистрируются
+ * MicrometerRecorder (метрики в Metrics.globalRegistry) и JfrRecorder (события Java Flight Recorder), поэтому
+ * загрузку можно наблюдать через Micrometer или записью JFR без подключения профилировщика. Свойство
+ * -Dmoex.instrumentation=false отключает получателей по умолчанию. Сборка требует JDK с jdk.jfr (см. JfrRecorder).
+ * <p>
+ * Замеряются целые этапы (файл, пакет записей, запрос), а не отдельные записи; без получателей замер сводится
+ * к чтению одного volatile-поля.
+ */
+
+public final class Instrumentation {
+    /**
+     * Этап загрузки данных в TempDB.
+     */
+    public enum Phase {
+        // разбор XML-файла с преобразованием значений атрибутов в значения столбцов
+        PARSE,
+        // чтение столбцов из двоичного файла: записи кэша разбора и файла снимка TempDB
+        DECODE,
+        // проверка наличия ценных бумаг для записей истории торгов
+        VALIDATE,
+        // добавление записей в хранилище с проверкой повторов ключа
+        INSERT,
+        // сортировка записей файла и слияние новых записей с порядком histories
+        SORT,
+        // дополнение вторичных индексов новыми строками
+        INDEX
+    }
+
+    private static final Recorder[] NONE = new Recorder[0];
+    private static volatile Recorder[] recorders = NONE;
+
+    static {
+        if (!"false".equals(System.getProperty("moex.instrumentation"))) {
+            addDefault("jdk.jfr.Event", "sample.JfrRecorder");
+            addDefault("io.micrometer.core.instrument.Metrics", "sample.MicrometerRecorder");
+        }
+    }
+
+    private Instrumentation() {
+    }
+
+    /**
+     * Добавляет получателя замеров.
+     */
+    public static synchronized void addRecorder(@NotNull Recorder recorder) {
+        Recorder[] next = Arrays.copyOf(recorders, recorders.length + 1);
+        next[recorders.length] = recorder;
+        recorders = next;
+    }
+
+    /**
+     * Удаляет получателя замеров, в том числе получателя по умолчанию (см. getRecorders).
+     */
+    public static synchronized void removeRecorder(@NotNull Recorder recorder) {
+        Recorder[] next = new Recorder[recorders.length];
+        int n = 0;
+        for (Recorder r : recorders) {
+            if (r != recorder) next[n++] = r;
+        }
+        recorders = n == 0 ? NONE : Arrays.copyOf(next, n);
+    }
+
+    /**
+     * Зарегистрированные получатели замеров.
+     */
+    public static Recorder[] getRecorders() {
+        return recorders.clone();
+    }
+
+    // получатель по умолчанию создаётся через отражение: классы JFR и Micrometer могут отсутствовать
+    private static void addDefault(String requiredClass, String recorderClass) {
+        try {
+            Class.forName(requiredClass, false, Instrumentation.class.getClassLoader());
+            addRecorder((Recorder) Class.forName(recorderClass).getConstructor().newInstance());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // библиотека недоступна: замеры ей не передаются
+        }
+    }
+
+    /**
+     * Начинает замер этапа phase.
+     */
+    static Timing start(Phase phase) {
+        Recorder[] recorders = Instrumentation.recorders;
+        if (recorders.length == 0) return Timing.DISABLED;
+        Object[] contexts = new Object[recorders.length];
+        for (int i = 0; i < recorders.length; i++) contexts[i] = recorders[i].beginPhase(phase);
+        return new Timing(recorders, contexts, phase, null);
+    }
+
+    /**
+     * Начинает замер запроса type (например, find или aggregate).
+     */
+    static Timing start(String type) {
+        Recorder[] recorders = Instrumentation.recorders;
+        if (recorders.length == 0) return Timing.DISABLED;
+        Object[] contexts = new Object[recorders.length];
+        for (int i = 0; i < recorders.length; i++) contexts[i] = recorders[i].beginQuery(type);
+        return new Timing(recorders, contexts, null, type);
+    }
+
+    /**
+     * Выполняющийся замер этапа или запроса; завершается одним вызовом stop.
+     */
+    static final class Timing {
+        static final Timing DISABLED = new Timing(NONE, null, null, null);
+
+        private final Recorder[] recorders;
+        private final Object[] contexts;
+        private final Phase phase;
+        private final String query;
+        private final long start;
+
+        private Timing(Recorder[] recorders, Object[] contexts, Phase phase, String query) {
+            this.recorders = recorders;
+            this.contexts = contexts;
+            this.phase = phase;
+            this.query = query;
+            this.start = recorders.length == 0 ? 0 : System.nanoTime();
+        }
+
+        /**
+         * Завершает замер этапа или запроса, обработавшего rows записей.
+         */
+        void stop(long rows) {
+            stop(null, rows, 0);
+        }
+
+        /**
+         * Завершает замер этапа, обработавшего файл file: rows записей и bytes байтов.
+         */
+        void stop(File file, long rows, long bytes) {
+            if (recorders.length == 0) return;
+            long nanos = System.nanoTime() - start;
+            String path = file == null ? null : file.getPath();
+            for (int i = 0; i < recorders.length; i++) {
+                if (phase != null) {
+                    recorders[i].phase(phase, path, rows, bytes, nanos, contexts[i]);
+                } else {
+                    recorders[i].query(query, rows, nanos, contexts[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Получатель замеров. Методы вызываются из потоков загрузки и запросов, в том числе под блокировкой писателей
+     * TempDB, поэтому должны быть быстрыми и потокобезопасными.
+     */
+    public interface Recorder {
+
+        /**
+         * Начало замера этапа phase. Возвращённое значение (например, начатое событие JFR) передаётся в phase.
+         */
+        default Object beginPhase(Phase phase) {
+            return null;
+        }
+
+        /**
+         * Начало замера запроса type. Возвращённое значение передаётся в query.
+         */
+        default Object beginQuery(String type) {
+            return null;
+        }
+
+        /**
+         * Этап phase выполнен за nanos наносекунд.
+         *
+         * @param file    путь к файлу, если этап выполнялся для одного файла, иначе null
+         * @param rows    число обработанных записей
+         * @param bytes   размер файла в байтах или 0
+         * @param context значение, возвращённое beginPhase
+         */
+        void phase(Phase phase, String file, long rows, long bytes, long nanos, Object context);
+
+        /**
+         * Запрос type выполнен за nanos наносекунд и вернул rows записей.
+         */
+        void query(String type, long rows, long nanos, Object context);
+    }
+}
@@ -0,0 +1,230 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.*;
+
+/**
+ * Постраничная загрузка ответа MOEX ISS в TempDB. Первая страница запрашивается с параметром start=0, по её блоку
+ * курсора (XMLReader.getCursor: INDEX, TOTAL, PAGESIZE) определяются начала остальных страниц. Страницы проходят
+ * три этапа, которые выполняются одновременно для разных страниц: загрузка через Transport во временный файл
+ * (поток "iss-fetch", не более prefetch страниц вперёд), разбор файла во фрагмент (поток "iss-parse",
+ * см. LoadPipeline) и добавление фрагмента в TempDB в потоке, вызвавшем fetch, в порядке страниц. Поэтому
+ * загрузка страницы N+1 идёт, пока страница N разбирается и добавляется, и скорость загрузки ограничена скоростью
+ * сети, а не суммой времени этапов.
+ * <p>
+ * Записи истории торгов принимаются TempDB только для ценных бумаг, уже имеющихся в ней, поэтому ценные бумаги
+ * загружаются раньше истории (из файлов или отдельным IssFetcher). Ответ без блока курсора считается одной страницей.
+ * Пример:
+ * <pre>
+ * new IssFetcher(tempDB, IssFetcher.http(
+ *         "https://iss.moex.com/iss/history/engines/stock/markets/shares/boards/TQBR/securities.xml?date=2020-04-15"))
+ *         .fetch();
+ * </pre>
+ */
+
+public class IssFetcher {
+    // число страниц, загружаемых вперёд относительно добавляемой в TempDB
+    private static final int DEFAULT_PREFETCH = 2;
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private final TempDB tempDB;
+    private final Transport transport;
+    private final int prefetch;
+
+    /**
+     * Создание загрузчика с загрузкой двух страниц вперёд.
+     *
+     * @param tempDB    база данных, в которую добавляются страницы
+     * @param transport источник страниц
+     */
+    public IssFetcher(@NotNull TempDB tempDB, @NotNull Transport transport) {
+        this(tempDB, transport, DEFAULT_PREFETCH);
+    }
+
+    /**
+     * Создание загрузчика с заданным числом страниц, загружаемых вперёд.
+     *
+     * @param tempDB    база данных, в которую добавляются страницы
+     * @param transport источник страниц
+     * @param prefetch  максимальное число страниц, загруженных или загружаемых, но ещё не добавленных в TempDB
+     */
+    public IssFetcher(@NotNull TempDB tempDB, @NotNull Transport transport, int prefetch) {
+        if (prefetch < 1) throw new IllegalArgumentException("prefetch < 1");
+        this.tempDB = tempDB;
+        this.transport = transport;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Загружает все страницы ответа и добавляет их в TempDB; каждая страница публикуется в TempDB отдельным
+     * снимком сразу после добавления. При ошибке загрузки или разбора страницы загрузка прекращается, страницы,
+     * добавленные до неё, остаются в TempDB. Прерывание вызывающего потока прекращает загрузку
+     * (CancellationException).
+     *
+     * @return число записей во всех загруженных страницах
+     * @throws IOException        страницу не удалось получить
+     * @throws XMLStreamException страницу не удалось разобрать
+     * @throws ParseException     значение на странице не соответствует типу столбца
+     */
+    public long fetch() throws IOException, XMLStreamException, ParseException {
+        ExecutorService fetchExecutor = Executors.newSingleThreadExecutor(daemon("iss-fetch"));
+        ExecutorService parseExecutor = Executors.newSingleThreadExecutor(daemon("iss-parse"));
+        ArrayDeque<Page> pages = new ArrayDeque<>();
+        try {
+            Page first = new Page(0, fetchExecutor, parseExecutor);
+            LoadPipeline.Shard shard = first.await();
+            long rows = shard.size();
+            XMLReader.PageCursor cursor = shard.cursor;
+            long next = cursor == null || cursor.getPageSize() <= 0 ? Long.MAX_VALUE
+                    : cursor.getIndex() + cursor.getPageSize();
+            long total = cursor == null ? 0 : cursor.getTotal();
+            while (pages.size() < prefetch && next < total) {
+                pages.add(new Page(next, fetchExecutor, parseExecutor));
+                next += cursor.getPageSize();
+            }
+            add(shard);
+            while (!pages.isEmpty()) {
+                shard = pages.poll().await();
+                if (next < total) {
+                    pages.add(new Page(next, fetchExecutor, parseExecutor));
+                    next += cursor.getPageSize();
+                }
+                rows += shard.size();
+                add(shard);
+            }
+            return rows;
+        } finally {
+            for (Page page : pages) {
+                page.cancel();
+            }
+            fetchExecutor.shutdownNow();
+            parseExecutor.shutdownNow();
+        }
+    }
+
+    private void add(LoadPipeline.Shard shard) {
+        if (Thread.currentThread().isInterrupted()) throw new CancellationException("Загрузка прервана");
+        tempDB.addShards(Collections.singletonList(shard));
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Транспорт HTTP(S): страница запрашивается по адресу url с добавленным параметром start.
+     *
+     * @param url адрес запроса ISS без параметра start, например .../securities.xml?date=2020-04-15
+     */
+    public static Transport http(@NotNull String url) {
+        return start -> {
+            URL page = new URL(url + (url.indexOf('?') < 0 ? "?" : "&") + "start=" + start);
+            HttpURLConnection connection = (HttpURLConnection) page.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                throw new IOException("Ответ " + code + " на запрос " + page);
+            }
+            return connection.getInputStream();
+        };
+    }
+
+    /**
+     * Транспорт из каталога файлов страниц: страница с началом start - файл String.format(pattern, start)
+     * в каталоге directory, например pattern "history_%d.xml".
+     */
+    public static Transport directory(@NotNull File directory, @NotNull String pattern) {
+        return start -> new FileInputStream(new File(directory, String.format(pattern, start)));
+    }
+
+    /**
+     * Источник страниц ответа ISS.
+     */
+    public interface Transport {
+
+        /**
+         * Открывает страницу, начинающуюся с записи start; поток закрывается вызывающим.
+         *
+         * @throws IOException страницу не удалось получить
+         */
+        InputStream open(long start) throws IOException;
+    }
+
+    // одна страница: загрузка во временный файл и разбор этого файла во фрагмент
+    private final class Page {
+        private final Future<File> download;
+        private final Future<LoadPipeline.Shard> shard;
+
+        Page(long start, ExecutorService fetchExecutor, ExecutorService parseExecutor) {
+            download = fetchExecutor.submit(() -> download(start));
+            shard = parseExecutor.submit(() -> {
+                File file = download.get();
+                try {
+                    return LoadPipeline.read(file);
+                } finally {
+                    Files.deleteIfExists(file.toPath());
+                }
+            });
+        }
+
+        private File download(long start) throws IOException {
+            File file = File.createTempFile("iss-page-", ".xml");
+            try (InputStream in = transport.open(start)) {
+                Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file.toPath());
+                throw e;
+            }
+            return file;
+        }
+
+        // ожидание фрагмента с пробросом исходного исключения загрузки или разбора
+        LoadPipeline.Shard await() throws IOException, XMLStreamException, ParseException {
+            try {
+                return shard.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Загрузка прервана");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                // ошибка загрузки передаётся в этап разбора, обёрнутой в ExecutionException
+                if (cause instanceof ExecutionException) cause = cause.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof XMLStreamException) throw (XMLStreamException) cause;
+                if (cause instanceof ParseException) throw (ParseException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        // отмена незавершённой страницы; уже загруженный и не разобранный файл удаляется
+        void cancel() {
+            shard.cancel(true);
+            if (!download.cancel(true) && shard.isCancelled()) {
+                try {
+                    File file = download.get();
+                    Files.deleteIfExists(file.toPath());
+                } catch (Exception ignored) {
+                    // загрузка завершилась ошибкой, файла нет
+                }
+            }
+        }
+    }
+}
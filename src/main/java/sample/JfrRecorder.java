@@ -0,0 +1,81 @@
+package sample;
+
+import jdk.jfr.*;
+
+/**
+ * Получатель замеров Instrumentation, создающий события Java Flight Recorder: sample.Phase для этапов загрузки
+ * и sample.Query для запросов. Длительность события - длительность этапа или запроса; события видны в записи JFR
+ * (например, -XX:StartFlightRecording или jcmd JFR.start) в категории MOEX. Если запись не ведётся, события
+ * не сохраняются, и замер стоит лишь создания объекта события.
+ * <p>
+ * Класс компилируется с API jdk.jfr, поэтому сборка проекта требует JDK 8u262+ или JDK 11+. Необязательна только
+ * среда выполнения: в JRE без JFR Instrumentation этот класс не загружает.
+ */
+
+public class JfrRecorder implements Instrumentation.Recorder {
+
+    @Override
+    public Object beginPhase(Instrumentation.Phase phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public Object beginQuery(String type) {
+        QueryEvent event = new QueryEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void phase(Instrumentation.Phase phase, String file, long rows, long bytes, long nanos, Object context) {
+        PhaseEvent event = (PhaseEvent) context;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.phase = phase.name();
+        event.file = file;
+        event.rows = rows;
+        event.bytes = bytes;
+        event.commit();
+    }
+
+    @Override
+    public void query(String type, long rows, long nanos, Object context) {
+        QueryEvent event = (QueryEvent) context;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.type = type;
+        event.rows = rows;
+        event.commit();
+    }
+
+    @Name("sample.Phase")
+    @Label("Load Phase")
+    @Category({"MOEX", "TempDB"})
+    @Description("Этап загрузки данных в TempDB")
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("File")
+        String file;
+        @Label("Rows")
+        long rows;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("sample.Query")
+    @Label("Query")
+    @Category({"MOEX", "TempDB"})
+    @Description("Запрос к снимку TempDB")
+    @StackTrace(false)
+    static final class QueryEvent extends Event {
+        @Label("Type")
+        String type;
+        @Label("Rows")
+        long rows;
+    }
+}
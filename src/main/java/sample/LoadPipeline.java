@@ -0,0 +1,283 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Параллельная загрузка нескольких XML-файлов в TempDB. Каждый файл читается (через отображение в память,
+ * см. XMLReader.mapped) в отдельной задаче ограниченного пула потоков в собственный фрагмент (Shard): список ценных
+ * бумаг или локальное колоночное хранилище записей истории, уже отсортированное по secid. После чтения всех файлов
+ * фрагменты объединяются в TempDB в одном потоке: сначала все файлы ценных бумаг, затем все файлы истории торгов
+ * в порядке их передачи, с одним итоговым k-путевым слиянием отсортированных фрагментов. Порядок записей и их id
+ * совпадают с последовательной загрузкой тех же файлов (сначала ценные бумаги, затем история) через TempDB.load.
+ * load(List, Listener) вместо одного итогового слияния добавляет файлы в TempDB пакетами по мере их чтения.
+ */
+
+public class LoadPipeline {
+    // интервал (в записях) между сообщениями о числе прочитанных записей и проверками прерывания
+    private static final int PROGRESS_ROWS = 4096;
+
+    private final TempDB tempDB;
+    private final int threads;
+    // кэш разбора файлов или null
+    private volatile ParseCache cache;
+
+    /**
+     * Создание конвейера загрузки с числом потоков по числу доступных процессоров.
+     *
+     * @param tempDB база данных, в которую загружаются файлы
+     */
+    public LoadPipeline(@NotNull TempDB tempDB) {
+        this(tempDB, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Создание конвейера загрузки с заданным максимальным числом потоков чтения.
+     *
+     * @param tempDB  база данных, в которую загружаются файлы
+     * @param threads максимальное число одновременно читаемых файлов
+     */
+    public LoadPipeline(@NotNull TempDB tempDB, int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads < 1");
+        this.tempDB = tempDB;
+        this.threads = threads;
+    }
+
+    /**
+     * Задаёт кэш разбора: файлы, содержимое которых уже разбиралось, читаются из кэша без разбора XML,
+     * новые и изменённые файлы разбираются и сохраняются в кэш. null - без кэша (по умолчанию).
+     */
+    public void setCache(ParseCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Читает файлы параллельно и добавляет их данные в TempDB. При ошибке чтения любого файла TempDB не изменяется,
+     * а исключение, возникшее при чтении, пробрасывается вызывающему.
+     *
+     * @param files XML-файлы ценных бумаг и истории торгов в любом порядке
+     * @throws FileNotFoundException файл не найден
+     * @throws XMLStreamException    прочитать файл не удаётся
+     * @throws ParseException        значение в файле не соответствует типу столбца
+     */
+    public void load(@NotNull List<File> files) throws FileNotFoundException, XMLStreamException, ParseException {
+        if (files.isEmpty()) return;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        try {
+            List<Future<Shard>> futures = new ArrayList<>(files.size());
+            for (File file : files) {
+                futures.add(executor.submit(() -> read(file, null, null)));
+            }
+            List<Shard> shards = new ArrayList<>(files.size());
+            for (Future<Shard> future : futures) {
+                shards.add(await(future));
+            }
+            tempDB.addShards(shards);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Читает файлы параллельно и добавляет их в TempDB пакетами по мере чтения, сообщая о ходе загрузки в listener.
+     * Тип данных каждого файла определяется заранее (XMLReader.peekDataId): сначала добавляются все файлы ценных
+     * бумаг, затем файлы истории торгов в порядке их передачи, поэтому порядок записей и их id те же, что и при
+     * загрузке load(List). Каждый пакет - файлы, прочитанные к моменту его добавления, - публикуется в TempDB
+     * отдельным снимком, и прочитанные данные доступны читателям до окончания загрузки.
+     * <p>
+     * В отличие от load(List), ошибка чтения файла не прерывает загрузку: файл пропускается, а ошибка передаётся
+     * в listener.fileFailed. Загрузка прерывается прерыванием вызывающего потока (CancellationException); пакеты,
+     * добавленные до прерывания, остаются в TempDB.
+     *
+     * @param files    XML-файлы ценных бумаг и истории торгов в любом порядке
+     * @param listener получатель сведений о ходе загрузки
+     */
+    public void load(@NotNull List<File> files, @NotNull Listener listener) {
+        // ценные бумаги добавляются раньше истории торгов: записи без ценной бумаги в TempDB не принимаются
+        List<File> ordered = new ArrayList<>(files.size());
+        List<File> history = new ArrayList<>(files.size());
+        for (File file : files) {
+            try {
+                if (XMLReader.peekDataId(file) == XMLReader.DATA_ID.SECURITIES) {
+                    ordered.add(file);
+                } else {
+                    history.add(file);
+                }
+            } catch (IOException | XMLStreamException e) {
+                listener.fileFailed(file, e);
+            }
+        }
+        int securities = ordered.size();
+        ordered.addAll(history);
+        if (ordered.isEmpty()) return;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, ordered.size()));
+        try {
+            AtomicLong rows = new AtomicLong();
+            List<Future<Shard>> futures = new ArrayList<>(ordered.size());
+            for (File file : ordered) {
+                futures.add(executor.submit(() -> {
+                    Shard shard = read(file, listener, rows);
+                    listener.fileRead(file, shard.size());
+                    return shard;
+                }));
+            }
+            int next = 0;
+            while (next < futures.size()) {
+                // пакет: следующий файл и все уже прочитанные за ним; файлы ценных бумаг добавляются одним пакетом
+                List<Shard> batch = new ArrayList<>();
+                do {
+                    File file = ordered.get(next);
+                    try {
+                        batch.add(await(futures.get(next)));
+                    } catch (CancellationException e) {
+                        throw e;
+                    } catch (FileNotFoundException | XMLStreamException | ParseException | RuntimeException e) {
+                        listener.fileFailed(file, e);
+                    }
+                    next++;
+                } while (next < futures.size() && (next < securities || futures.get(next).isDone()));
+                if (Thread.currentThread().isInterrupted()) throw new CancellationException("Загрузка прервана");
+                if (!batch.isEmpty()) {
+                    tempDB.addShards(batch);
+                    listener.published(tempDB.snapshot());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // разбор одного файла в фрагмент без кэша; выполняется в потоке пула
+    static Shard read(File file) throws FileNotFoundException, XMLStreamException, ParseException {
+        return parse(file, null, null);
+    }
+
+    // чтение через кэш разбора, если он задан, с передачей числа прочитанных записей всех файлов (rows) в listener
+    private Shard read(File file, Listener listener, AtomicLong rows)
+            throws FileNotFoundException, XMLStreamException, ParseException {
+        ParseCache cache = this.cache;
+        if (cache == null) return parse(file, listener, rows);
+        Shard shard = cache.read(file);
+        if (listener != null) listener.rowsRead(rows.addAndGet(shard.size()));
+        return shard;
+    }
+
+    // разбор с передачей числа прочитанных записей всех файлов (rows) в listener; прерывание потока останавливает
+    // чтение файла
+    private static Shard parse(File file, Listener listener, AtomicLong rows)
+            throws FileNotFoundException, XMLStreamException, ParseException {
+        Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.PARSE);
+        Shard shard = new Shard();
+        final long[] localId = {0};
+        final int[] count = {0};
+        XMLReader reader = XMLReader.mapped(file, (dataId, record) -> {
+            shard.dataId = dataId;
+            if (dataId == XMLReader.DATA_ID.SECURITIES) {
+                shard.securities.add(new LinkedHashMap<>(record.getAllAttributes()));
+            } else if (dataId == XMLReader.DATA_ID.HISTORY) {
+                shard.history.append(localId[0]++, record.getAllAttributes());
+            }
+            if ((++count[0] & (PROGRESS_ROWS - 1)) == 0 && listener != null) {
+                if (Thread.currentThread().isInterrupted()) throw new CancellationException("Загрузка прервана");
+                listener.rowsRead(rows.addAndGet(PROGRESS_ROWS));
+            }
+        });
+        if (listener != null) listener.rowsRead(rows.addAndGet(count[0] & (PROGRESS_ROWS - 1)));
+        shard.cursor = reader.getCursor();
+        timing.stop(file, count[0], file.length());
+        // сортировка фрагмента выполняется параллельно для всех файлов, в TempDB остаётся только слияние
+        int size = shard.history.size();
+        shard.rows = new int[size];
+        for (int i = 0; i < size; i++) shard.rows[i] = i;
+        if (size > 0) {
+            timing = Instrumentation.start(Instrumentation.Phase.SORT);
+            HistoryStore.sort(shard.rows, 0, size, shard.history.rowOrder());
+            timing.stop(size);
+        }
+        return shard;
+    }
+
+    // ожидание результата задачи с пробросом исходного исключения чтения файла
+    private static Shard await(Future<Shard> future) throws FileNotFoundException, XMLStreamException, ParseException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Загрузка прервана");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FileNotFoundException) throw (FileNotFoundException) cause;
+            if (cause instanceof XMLStreamException) throw (XMLStreamException) cause;
+            if (cause instanceof ParseException) throw (ParseException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Получатель сведений о ходе загрузки load(List, Listener). Методы чтения (rowsRead, fileRead) вызываются
+     * из потоков пула, остальные - из потока, вызвавшего load.
+     */
+    public interface Listener {
+
+        /**
+         * Общее число записей, прочитанных из всех файлов к этому моменту.
+         */
+        default void rowsRead(long rows) {
+        }
+
+        /**
+         * Файл прочитан: rows записей.
+         */
+        default void fileRead(File file, int rows) {
+        }
+
+        /**
+         * Файл не прочитан и пропущен.
+         */
+        default void fileFailed(File file, Exception e) {
+        }
+
+        /**
+         * В TempDB добавлен пакет прочитанных файлов; snapshot - опубликованный после этого снимок.
+         */
+        default void published(TempDB.Snapshot snapshot) {
+        }
+    }
+
+    /**
+     * Результат чтения одного файла: данные ценных бумаг либо записи истории торгов в локальном хранилище
+     * с индексами строк, отсортированными в порядке histories.
+     */
+    static final class Shard {
+        XMLReader.DATA_ID dataId;
+        final List<LinkedHashMap<String, Object>> securities = new ArrayList<>();
+        final HistoryStore history;
+        int[] rows;
+        // курсор страницы ISS, если файл - страница ответа ISS
+        XMLReader.PageCursor cursor;
+
+        Shard() {
+            this(new HistoryStore());
+        }
+
+        // фрагмент с уже заполненным хранилищем истории торгов (например, прочитанным из кэша разбора)
+        Shard(HistoryStore history) {
+            this.history = history;
+        }
+
+        int size() {
+            return dataId == XMLReader.DATA_ID.SECURITIES ? securities.size() : history.size();
+        }
+    }
+}
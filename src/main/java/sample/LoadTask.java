@@ -0,0 +1,107 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+import javafx.concurrent.Task;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Фоновая загрузка XML-файлов в TempDB (LoadPipeline.load(List, Listener)) для главного окна. Прогресс задачи -
+ * доля обработанных файлов, сообщение - число обработанных файлов и прочитанных записей. Значение задачи (value)
+ * обновляется снимком TempDB после добавления каждого пакета файлов, поэтому окно может показывать данные до
+ * окончания загрузки. Файлы, которые не удалось прочитать, пропускаются и перечисляются в getFailures.
+ * <p>
+ * Если загрузка завершилась без ошибок и не была отменена, TempDB сохраняется в файл снимка (см. TempDB.save).
+ */
+
+public class LoadTask extends Task<TempDB.Snapshot> {
+    private final TempDB tempDB;
+    private final List<File> files;
+    private final File snapshotFile;
+    private final ParseCache cache;
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private int filesDone;
+    private long rowsRead;
+
+    /**
+     * @param tempDB       база данных, в которую загружаются файлы
+     * @param files        XML-файлы ценных бумаг и истории торгов
+     * @param snapshotFile файл снимка, сохраняемого после загрузки, или null
+     */
+    public LoadTask(@NotNull TempDB tempDB, @NotNull List<File> files, File snapshotFile) {
+        this(tempDB, files, snapshotFile, null);
+    }
+
+    /**
+     * @param tempDB       база данных, в которую загружаются файлы
+     * @param files        XML-файлы ценных бумаг и истории торгов
+     * @param snapshotFile файл снимка, сохраняемого после загрузки, или null
+     * @param cache        кэш разбора файлов (см. LoadPipeline.setCache) или null
+     */
+    public LoadTask(@NotNull TempDB tempDB, @NotNull List<File> files, File snapshotFile, ParseCache cache) {
+        this.tempDB = tempDB;
+        this.files = new ArrayList<>(files);
+        this.snapshotFile = snapshotFile;
+        this.cache = cache;
+        updateMessage("Загрузка файлов...");
+        updateProgress(0, files.size());
+    }
+
+    /**
+     * Описания ошибок чтения файлов, пропущенных при загрузке.
+     */
+    public List<String> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+    @Override
+    protected TempDB.Snapshot call() {
+        LoadPipeline pipeline = new LoadPipeline(tempDB);
+        pipeline.setCache(cache);
+        pipeline.load(files, new LoadPipeline.Listener() {
+            @Override
+            public void rowsRead(long rows) {
+                progress(0, rows);
+            }
+
+            @Override
+            public void fileRead(File file, int rows) {
+                progress(1, -1);
+            }
+
+            @Override
+            public void fileFailed(File file, Exception e) {
+                failures.add(file.getName() + ": " + e);
+                progress(1, -1);
+            }
+
+            @Override
+            public void published(TempDB.Snapshot snapshot) {
+                updateValue(snapshot);
+            }
+        });
+        if (snapshotFile != null && failures.isEmpty() && !isCancelled()) {
+            try {
+                tempDB.save(snapshotFile, files);
+            } catch (IOException e) {
+                System.err.println("Невозможно сохранить снимок базы данных: " + e.getMessage());
+            }
+        }
+        return tempDB.snapshot();
+    }
+
+    // вызывается из потоков чтения файлов; rows < 0 - число записей не изменилось
+    private synchronized void progress(int files, long rows) {
+        filesDone += files;
+        if (rows >= 0) rowsRead = Math.max(rowsRead, rows);
+        updateProgress(filesDone, this.files.size());
+        updateMessage("Обработано файлов: " + filesDone + " из " + this.files.size() + ", прочитано записей: "
+                + rowsRead);
+    }
+}
@@ -9,17 +9,31 @@ import javafx.scene.control.*;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
-import javax.xml.stream.XMLStreamException;
-
 import javafx.event.*;
 
 import java.io.*;
-import java.text.ParseException;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Main extends Application {
+    // снимок TempDB, сохраняемый после чтения XML-файлов для быстрого запуска с теми же файлами
+    private static final File SNAPSHOT_FILE = new File(System.getProperty("user.home"), ".moex-tempdb.bin");
+    // кэш разбора XML-файлов: файлы, уже открывавшиеся в другом наборе, повторно не разбираются
+    private static final File CACHE_DIR = new File(System.getProperty("user.home"), ".moex-cache");
+    private static final long CACHE_BYTES = 512L << 20;
+    // фоновый поток загрузки файлов
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tempdb-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // интервал без изменений в наблюдаемом каталоге, после которого загружаются новые файлы
+    private static final long WATCH_DEBOUNCE_MILLIS = 500;
     private static TempDB tempDB;
+    // наблюдение за каталогом выгрузок или null, если файлы выбраны в диалоге
+    private static DirectoryWatcher watcher;
     Alert alert;
 
     public static void main(String[] args) {
@@ -29,17 +43,25 @@ public class Main extends Application {
 
     @Override
     public void start(Stage primaryStage) {
+        // если задано свойство moex.watch.dir, загружаются и дочитываются по мере появления файлы этого каталога
+        String watchDir = System.getProperty("moex.watch.dir");
+        if (watchDir != null) {
+            watch(primaryStage, new File(watchDir));
+            return;
+        }
         FileChooser fc = new FileChooser();
-        fc.setInitialDirectory(new File("E:\\Java\\JavaProjects\\untitled\\MOEXTestTask\\test\\data"));
+        // начальный каталог выбора файлов задаётся свойством moex.data.dir, по умолчанию - рабочий каталог
+        File dataDir = new File(System.getProperty("moex.data.dir", System.getProperty("user.dir")));
+        if (dataDir.isDirectory()) fc.setInitialDirectory(dataDir);
         fc.getExtensionFilters().add(new FileChooser.ExtensionFilter("XML file", "*.xml"));
-        tempDB = new TempDB();
         List<File> files;
         try {
             files = fc.showOpenMultipleDialog(primaryStage);
-            for (File f : files) {
-                XMLReader r = new XMLReader(f);
-                tempDB.add(r);
-            }
+            if (files == null) throw new NullPointerException("Файл XML не выбран");
+            // окно показывается сразу, а файлы читаются в фоне; таблица заполняется по мере загрузки
+            tempDB = openSnapshot(files);
+            boolean loaded = tempDB != null;
+            if (!loaded) tempDB = new TempDB();
             FXMLLoader loader = new FXMLLoader(getClass().getResource("mainWindow.fxml"));
             MainWindowController controller = new MainWindowController(tempDB);
             loader.setController(controller);
@@ -50,13 +72,74 @@ public class Main extends Application {
                 primaryStage.show();
             } catch (IOException e) {
                 alert = showAlert(e, "Невозможно загрузить контроллер");
+                return;
+            }
+            if (!loaded) {
+                LoadTask task = new LoadTask(tempDB, files, SNAPSHOT_FILE, openCache());
+                controller.load(task);
+                LOADER.execute(task);
             }
         } catch (NullPointerException e) {
             alert = showAlert(e, "Файл XML не выбран");
-        } catch (FileNotFoundException e) {
-            alert = showAlert(e, "Файл не найден");
-        } catch (XMLStreamException | ParseException e) {
-            alert = showAlert(e, "Невозможно прочитать файл");
+        }
+    }
+
+    // при закрытии окна незавершённая загрузка прерывается
+    @Override
+    public void stop() {
+        LOADER.shutdownNow();
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                System.err.println("Невозможно остановить наблюдение за каталогом: " + e.getMessage());
+            }
+        }
+    }
+
+    // показывает окно и загружает XML-файлы каталога directory, дочитывая новые и изменённые файлы
+    private void watch(Stage primaryStage, File directory) {
+        tempDB = new TempDB();
+        FXMLLoader loader = new FXMLLoader(getClass().getResource("mainWindow.fxml"));
+        MainWindowController controller = new MainWindowController(tempDB);
+        loader.setController(controller);
+        try {
+            Parent root = loader.load();
+            primaryStage.setTitle("MOEX security data: " + directory);
+            primaryStage.setScene(new Scene(root));
+            primaryStage.show();
+        } catch (IOException e) {
+            alert = showAlert(e, "Невозможно загрузить контроллер");
+            return;
+        }
+        watcher = new DirectoryWatcher(tempDB, directory, WATCH_DEBOUNCE_MILLIS, controller.watchListener());
+        watcher.setCache(openCache());
+        try {
+            watcher.start();
+        } catch (IOException e) {
+            alert = showAlert(e, "Невозможно наблюдать за каталогом " + directory);
+        }
+    }
+
+    // если для выбранных файлов уже сохранён снимок и файлы с тех пор не изменились, TempDB открывается из снимка;
+    // иначе возвращается null, и файлы читаются заново (снимок сохраняется по окончании загрузки, см. LoadTask)
+    private static TempDB openSnapshot(List<File> files) {
+        if (TempDB.isSnapshotOf(SNAPSHOT_FILE, files)) {
+            try {
+                return TempDB.open(SNAPSHOT_FILE);
+            } catch (IOException e) {
+                System.err.println("Невозможно открыть снимок базы данных: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private static ParseCache openCache() {
+        try {
+            return new ParseCache(CACHE_DIR, CACHE_BYTES);
+        } catch (IOException e) {
+            System.err.println("Кэш разбора файлов недоступен: " + e.getMessage());
+            return null;
         }
     }
 
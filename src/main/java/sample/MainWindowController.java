@@ -1,31 +1,35 @@
 package sample;
 
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
-import javafx.scene.control.Button;
-import javafx.scene.control.TableCell;
-import javafx.scene.control.TableColumn;
-import javafx.scene.control.TableView;
-import javafx.scene.control.cell.MapValueFactory;
-import javafx.scene.control.cell.TextFieldTableCell;
+import javafx.scene.control.*;
 import javafx.scene.layout.AnchorPane;
-import javafx.util.Callback;
-import javafx.util.StringConverter;
 
+import java.io.File;
 import java.net.URL;
 import java.util.*;
 
 public class MainWindowController implements Initializable {
     TempDB tempDB;
     private String[] attributes;
+    // строки таблицы: записи истории торгов снимка TempDB, создаваемые только для видимых строк
+    private HistoryTableModel model;
     @FXML
     private AnchorPane mainPane;
     @FXML
-    private TableView table;
+    private TableView<TempDB.HistoryEntry> table;
     @FXML
     private Button refreshButton;
+    @FXML
+    private ProgressBar progressBar;
+    @FXML
+    private Label statusLabel;
+    @FXML
+    private Button cancelButton;
+    // выполняющаяся загрузка файлов или null
+    private LoadTask loadTask;
 
 
     public MainWindowController(TempDB tempDB) {
@@ -45,63 +49,99 @@ public class MainWindowController implements Initializable {
     @FXML
     @Override
     public void initialize(URL location, ResourceBundle resources) {
-/*        for (int i = 0; i < attributes.length; i++) {
-            TableColumn<Map, String> column = new TableColumn<>(attributes[i].toUpperCase());
-            column.setCellValueFactory(new MapValueFactory(attributes[i].toLowerCase()));
-            Callback<TableColumn<Map, String>, TableCell<Map, String>> cellFactoryForMap = new Callback<TableColumn<Map, String>,
-                    TableCell<Map, String>>() {
-                @Override
-                public TableCell call(TableColumn p) {
-                    return new TextFieldTableCell(new StringConverter() {
-                        @Override
-                        public String toString(Object t) {
-                            return t.toString();
-                        }
-
-                        @Override
-                        public Object fromString(String string) {
-                            return string;
-                        }
-                    });
-                }
-            };
+        for (String attribute : attributes) {
+            TableColumn<TempDB.HistoryEntry, Object> column = new TableColumn<>(attribute.toUpperCase());
+            // значение ячейки читается из TempDB при отображении строки
+            column.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(cell.getValue().get(attribute)));
+            // история уже упорядочена TempDB; сортировка таблицей потребовала бы материализовать все строки
+            column.setSortable(false);
             table.getColumns().add(column);
-        }*/
+        }
 
-        for (int i = 0; i < attributes.length; i++) {
-            TableColumn<Map, String> column = new TableColumn<>(attributes[i].toUpperCase());
-            column.setCellValueFactory(new MapValueFactory(attributes[i].toLowerCase()));
-            Callback<TableColumn<Map, String>, TableCell<Map, String>> cellFactoryForMap = new Callback<TableColumn<Map, String>,
-                    TableCell<Map, String>>() {
-                @Override
-                public TableCell call(TableColumn p) {
-                    return new TextFieldTableCell(new StringConverter() {
-                        @Override
-                        public String toString(Object t) {
-                            return t.toString();
-                        }
+        model = new HistoryTableModel(tempDB);
+        table.setItems(model);
+    }
 
-                        @Override
-                        public Object fromString(String string) {
-                            return string;
-                        }
-                    });
-                }
-            };
-            table.getColumns().add(column);
-        }
+    /**
+     * Показывает ход фоновой загрузки task в строке состояния окна. Данные каждого загруженного пакета файлов
+     * сразу появляются в таблице; по окончании загрузки сообщается о пропущенных файлах. Сама задача выполняется
+     * вызывающим (например, в фоновом Executor).
+     */
+    public void load(LoadTask task) {
+        loadTask = task;
+        progressBar.progressProperty().bind(task.progressProperty());
+        statusLabel.textProperty().bind(task.messageProperty());
+        cancelButton.disableProperty().bind(task.runningProperty().not());
+        task.valueProperty().addListener((observable, oldValue, snapshot) -> refresh());
+        task.setOnSucceeded(event -> {
+            finishLoad("Загружено записей: " + model.size());
+            if (!task.getFailures().isEmpty()) {
+                Alert alert = new Alert(Alert.AlertType.WARNING);
+                alert.setHeaderText("Некоторые файлы не удалось прочитать");
+                alert.setContentText(String.join("\n", task.getFailures()));
+                alert.show();
+            }
+        });
+        task.setOnCancelled(event -> finishLoad("Загрузка отменена, загружено записей: " + model.size()));
+        task.setOnFailed(event -> {
+            finishLoad("Ошибка загрузки");
+            Alert alert = new Alert(Alert.AlertType.ERROR);
+            alert.setHeaderText("Невозможно загрузить файлы");
+            alert.setContentText(String.valueOf(task.getException()));
+            alert.show();
+        });
+    }
 
-        ObservableList<Map> items = FXCollections.observableArrayList();
-        for(TempDB.HistoryEntry he : tempDB.getHistories()){
-            Map<String, Object> m = he.getAllAttributes();
-            m.putAll(he.getSecurity().getInfo());
-            m.put("HistoryEntry", he);
-            items.add(m);
-        }
-        table.setItems(items);
+    /**
+     * Получатель сведений о загрузке файлов наблюдаемого каталога (DirectoryWatcher): строки каждого добавленного
+     * пакета сразу появляются в таблице, в строке состояния показывается число записей или файл, который не удалось
+     * прочитать. Методы получателя вызываются из потоков загрузки и передают обновления в поток JavaFX.
+     */
+    public LoadPipeline.Listener watchListener() {
+        return new LoadPipeline.Listener() {
+            @Override
+            public void fileFailed(File file, Exception e) {
+                Platform.runLater(() -> statusLabel.setText("Не удалось прочитать " + file.getName() + ": " + e));
+            }
+
+            @Override
+            public void published(TempDB.Snapshot snapshot) {
+                Platform.runLater(() -> {
+                    refresh();
+                    statusLabel.setText("Загружено записей: " + model.size());
+                });
+            }
+        };
     }
 
+    /**
+     * Отменяет выполняющуюся загрузку; уже загруженные данные остаются в таблице.
+     */
+    @FXML
+    public void cancel() {
+        if (loadTask != null) loadTask.cancel();
+    }
+
+    private void finishLoad(String status) {
+        progressBar.progressProperty().unbind();
+        statusLabel.textProperty().unbind();
+        cancelButton.disableProperty().unbind();
+        cancelButton.setDisable(true);
+        progressBar.setProgress(1);
+        statusLabel.setText(status);
+        loadTask = null;
+        refresh();
+    }
+
+    /**
+     * Показывает данные, добавленные в TempDB после последнего обновления: в таблицу вставляются только новые
+     * строки. Если изменились данные ценных бумаг, перерисовываются видимые ячейки.
+     */
     @FXML
     public void refresh() {
+        Map<String, TempDB.SecurityPaper> securities = model.getSnapshot().getSecurities();
+        if (model.refresh() && model.getSnapshot().getSecurities() != securities) {
+            table.refresh();
+        }
     }
 }
@@ -0,0 +1,463 @@
+package sample;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Разбор XML-файла MOEX ISS напрямую по байтам файла, отображённого в память через FileChannel.map. Поддерживается
+ * только структура файлов ISS (<document><data><metadata><columns><column /></columns></metadata><rows><row />
+ * </rows></data></document>) в кодировке UTF-8: разбираются открывающие теги и их атрибуты, текстовое содержимое
+ * игнорируется так же, как в XMLReader. Числа и даты декодируются прямо из байтов, значения столбцов SymbolTable
+ * берутся из кэша канонических строк по байтам, String создаётся только для прочих строковых столбцов и атрибутов,
+ * содержащих ссылки на сущности. Записи и DATA_ID передаются в XMLReader и совпадают с результатом чтения через StAX.
+ */
+
+final class MappedXMLScanner {
+    private final XMLReader reader;
+    private final AsciiView view;
+    // канонические строки столбцов SymbolTable по байтам значения
+    private final SymbolTable.Decoder symbols = new SymbolTable.Decoder();
+    private MappedByteBuffer buffer;
+    private int limit;
+    private int pos;
+    // была ли уже передана хотя бы одна строка <row />; после этого переход на StAX невозможен
+    private boolean rowsEmitted;
+
+    // декодеры столбцов текущего блока <columns> и имена столбцов в байтах UTF-8 для сравнения без создания String
+    private ArrayList<ColumnDecoder> columns;
+    private ColumnDecoder[] decoders;
+    private byte[][] decoderNames;
+    private final HashMap<String, ColumnDecoder> types;
+
+    // границы имён и значений атрибутов текущего тега
+    private int attributeCount;
+    private int[] nameFrom = new int[32];
+    private int[] nameTo = new int[32];
+    private int[] valueFrom = new int[32];
+    private int[] valueTo = new int[32];
+    // значение содержит ссылку на сущность или пробельный символ, требующий нормализации
+    private boolean[] valueEscaped = new boolean[32];
+    private byte[] scratch = new byte[256];
+
+    MappedXMLScanner(XMLReader reader) {
+        this.reader = reader;
+        this.view = new AsciiView();
+        this.types = new HashMap<>();
+    }
+
+    /**
+     * Разбирает файл и передаёт его данные в XMLReader.
+     *
+     * @throws UnsupportedLayoutException файл нельзя разобрать напрямую; выбрасывается до передачи первой записи
+     */
+    void scan(File file) throws FileNotFoundException, XMLStreamException, ParseException, UnsupportedLayoutException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new UnsupportedLayoutException();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+        limit = buffer.limit();
+        pos = 0;
+        if (limit == 0) throw new XMLStreamException("Пустой файл " + file);
+        checkEncoding();
+        boolean dataIdParsed = false;
+
+        while (true) {
+            int lt = indexOf((byte) '<', pos);
+            if (lt < 0) break;
+            pos = lt + 1;
+            byte b = byteAt(pos);
+            if (b == '?') {
+                pos = require("?>", pos) + 2;
+            } else if (b == '!') {
+                skipDeclaration();
+            } else if (b == '/') {
+                pos = require(">", pos) + 1;
+            } else {
+                int nameStart = pos;
+                int nameEnd = scanName(pos);
+                pos = nameEnd;
+                parseAttributes();
+                if (!dataIdParsed && equalsAscii(nameStart, nameEnd, "data")) {
+                    if (attributeCount == 0) throw error("Тег <data> без атрибута id");
+                    reader.setDataId(XMLReader.dataIdOf(value(0)));
+                    dataIdParsed = true;
+                } else if (equalsAscii(nameStart, nameEnd, "columns")) {
+                    columns = new ArrayList<>();
+                    decoders = null;
+                } else if (equalsAscii(nameStart, nameEnd, "column")) {
+                    parseColumn();
+                } else if (equalsAscii(nameStart, nameEnd, "row")) {
+                    parseRow();
+                }
+            }
+        }
+    }
+
+    // файлы с меткой порядка байтов UTF-16 или с кодировкой, отличной от UTF-8, читаются через StAX
+    private void checkEncoding() throws UnsupportedLayoutException, XMLStreamException {
+        int b0 = byteAt(0) & 0xFF;
+        int b1 = limit > 1 ? byteAt(1) & 0xFF : 0;
+        if ((b0 == 0xFE && b1 == 0xFF) || (b0 == 0xFF && b1 == 0xFE) || b1 == 0) {
+            throw new UnsupportedLayoutException();
+        }
+        if (limit >= 3 && b0 == 0xEF && b1 == 0xBB && (byteAt(2) & 0xFF) == 0xBF) pos = 3;
+        if (startsWith(pos, "<?xml")) {
+            int end = require("?>", pos);
+            pos += 5;
+            int saved = limit;
+            // псевдоатрибуты объявления разбираются тем же кодом, что и атрибуты тегов
+            limit = end;
+            parseAttributes();
+            limit = saved;
+            for (int i = 0; i < attributeCount; i++) {
+                if (equalsAscii(nameFrom[i], nameTo[i], "encoding")) {
+                    String encoding = value(i);
+                    if (!"UTF-8".equalsIgnoreCase(encoding) && !"UTF8".equalsIgnoreCase(encoding)) {
+                        throw new UnsupportedLayoutException();
+                    }
+                }
+            }
+            pos = end + 2;
+        }
+    }
+
+    // комментарии и CDATA пропускаются; DOCTYPE до начала данных приводит к чтению файла через StAX
+    private void skipDeclaration() throws XMLStreamException, UnsupportedLayoutException {
+        if (startsWith(pos, "!--")) {
+            pos = require("-->", pos + 3) + 3;
+        } else if (startsWith(pos, "![CDATA[")) {
+            pos = require("]]>", pos + 8) + 3;
+        } else if (!rowsEmitted) {
+            throw new UnsupportedLayoutException();
+        } else {
+            throw error("Неподдерживаемая конструкция XML");
+        }
+    }
+
+    private void parseColumn() throws XMLStreamException {
+        String name = "";
+        String type = "";
+        for (int i = 0; i < attributeCount; i++) {
+            if (equalsAsciiIgnoreCase(nameFrom[i], nameTo[i], "name")) {
+                name = value(i);
+            } else if (equalsAsciiIgnoreCase(nameFrom[i], nameTo[i], "type")) {
+                type = value(i);
+            }
+        }
+        ColumnDecoder decoder = ColumnDecoder.forType(name, type);
+        if (columns == null) columns = new ArrayList<>();
+        columns.add(decoder);
+        types.put(decoder.name, decoder);
+    }
+
+    // строки с техническими данными (INDEX, TOTAL, PAGESIZE) не передаются как записи, а сохраняются в курсор,
+    // как и в XMLReader.parseRows
+    private void parseRow() throws ParseException, XMLStreamException {
+        if (attributeCount == 0) return;
+        if (isCursorName(0)) {
+            for (int i = 0; i < attributeCount; i++) {
+                reader.putCursor(string(nameFrom[i], nameTo[i]), value(i));
+            }
+            return;
+        }
+        if (decoders == null) {
+            decoders = columns == null ? new ColumnDecoder[0] : columns.toArray(new ColumnDecoder[0]);
+            decoderNames = new byte[decoders.length][];
+            for (int i = 0; i < decoders.length; i++) {
+                decoderNames[i] = decoders[i].sourceName.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        XMLReader.Record record = reader.nextRecord();
+        for (int i = 0; i < attributeCount; i++) {
+            ColumnDecoder decoder = decoderAt(i);
+            Object attValue;
+            if (valueFrom[i] == valueTo[i]) {
+                attValue = "";
+            } else if (decoder.isSymbol() && !valueEscaped[i]) {
+                attValue = symbols.decode(buffer, valueFrom[i], valueTo[i]);
+            } else if (decoder.isText() || valueEscaped[i]) {
+                String inputValue = value(i);
+                attValue = inputValue.isEmpty() ? inputValue : decoder.decode(inputValue);
+            } else {
+                attValue = decoder.decodeAscii(view.set(valueFrom[i], valueTo[i]));
+            }
+            record.putDecoded(decoder.name, attValue);
+        }
+        if (isCursorName(attributeCount - 1)) return;
+        rowsEmitted = true;
+        reader.emit(record);
+    }
+
+    private boolean isCursorName(int i) {
+        return equalsAsciiIgnoreCase(nameFrom[i], nameTo[i], "index")
+                || equalsAsciiIgnoreCase(nameFrom[i], nameTo[i], "pagesize")
+                || equalsAsciiIgnoreCase(nameFrom[i], nameTo[i], "total");
+    }
+
+    // декодер i-го атрибута: по позиции, если имя совпадает со столбцом <columns>, иначе по имени
+    private ColumnDecoder decoderAt(int i) {
+        if (i < decoders.length && equalsBytes(nameFrom[i], nameTo[i], decoderNames[i])) {
+            return decoders[i];
+        }
+        String localName = string(nameFrom[i], nameTo[i]);
+        ColumnDecoder decoder = types.get(localName.toLowerCase());
+        if (decoder == null) {
+            decoder = ColumnDecoder.forType(localName, "string");
+            types.put(decoder.name, decoder);
+        }
+        return decoder;
+    }
+
+    // разбор атрибутов тега начиная с pos до '>' или '/>'; запоминаются только границы имён и значений
+    private void parseAttributes() throws XMLStreamException {
+        attributeCount = 0;
+        while (true) {
+            pos = skipWhitespace(pos);
+            if (pos >= limit) return;
+            byte b = byteAt(pos);
+            if (b == '>') {
+                pos++;
+                return;
+            }
+            if (b == '/' || b == '?') {
+                pos++;
+                continue;
+            }
+            int nameStart = pos;
+            int nameEnd = scanName(pos);
+            if (nameEnd == nameStart) throw error("Ожидалось имя атрибута");
+            pos = skipWhitespace(nameEnd);
+            if (pos >= limit || byteAt(pos) != '=') throw error("Ожидался символ '='");
+            pos = skipWhitespace(pos + 1);
+            if (pos >= limit) throw error("Ожидалось значение атрибута");
+            byte quote = byteAt(pos);
+            if (quote != '"' && quote != '\'') throw error("Ожидалась кавычка");
+            int start = ++pos;
+            boolean escaped = false;
+            while (pos < limit) {
+                byte c = byteAt(pos);
+                if (c == quote) break;
+                if (c == '&' || c == '\t' || c == '\n' || c == '\r') escaped = true;
+                pos++;
+            }
+            if (pos >= limit) throw error("Незакрытое значение атрибута");
+            addAttribute(nameStart, nameEnd, start, pos, escaped);
+            pos++;
+        }
+    }
+
+    private void addAttribute(int nameStart, int nameEnd, int start, int end, boolean escaped) {
+        if (attributeCount == nameFrom.length) {
+            int length = attributeCount * 2;
+            nameFrom = Arrays.copyOf(nameFrom, length);
+            nameTo = Arrays.copyOf(nameTo, length);
+            valueFrom = Arrays.copyOf(valueFrom, length);
+            valueTo = Arrays.copyOf(valueTo, length);
+            valueEscaped = Arrays.copyOf(valueEscaped, length);
+        }
+        nameFrom[attributeCount] = nameStart;
+        nameTo[attributeCount] = nameEnd;
+        valueFrom[attributeCount] = start;
+        valueTo[attributeCount] = end;
+        valueEscaped[attributeCount] = escaped;
+        attributeCount++;
+    }
+
+    // значение i-го атрибута с раскрытием ссылок на сущности и нормализацией пробельных символов
+    private String value(int i) throws XMLStreamException {
+        String raw = string(valueFrom[i], valueTo[i]);
+        return valueEscaped[i] ? unescape(raw) : raw;
+    }
+
+    private String unescape(String raw) throws XMLStreamException {
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '\r') {
+                // перевод строки \r\n нормализуется в один пробел
+                if (i + 1 < raw.length() && raw.charAt(i + 1) == '\n') i++;
+                sb.append(' ');
+            } else if (c == '\n' || c == '\t') {
+                sb.append(' ');
+            } else if (c == '&') {
+                int end = raw.indexOf(';', i);
+                if (end < 0) throw error("Незакрытая ссылка на сущность");
+                String entity = raw.substring(i + 1, end);
+                switch (entity) {
+                    case "quot":
+                        sb.append('"');
+                        break;
+                    case "amp":
+                        sb.append('&');
+                        break;
+                    case "lt":
+                        sb.append('<');
+                        break;
+                    case "gt":
+                        sb.append('>');
+                        break;
+                    case "apos":
+                        sb.append('\'');
+                        break;
+                    default:
+                        if (!entity.startsWith("#")) throw error("Неизвестная сущность &" + entity + ";");
+                        try {
+                            int codePoint = entity.startsWith("#x")
+                                    ? Integer.parseInt(entity.substring(2), 16)
+                                    : Integer.parseInt(entity.substring(1));
+                            sb.appendCodePoint(codePoint);
+                        } catch (IllegalArgumentException e) {
+                            throw error("Неверная ссылка на символ &" + entity + ";");
+                        }
+                }
+                i = end;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private String string(int from, int to) {
+        int length = to - from;
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(from + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private byte byteAt(int index) {
+        return buffer.get(index);
+    }
+
+    private int indexOf(byte b, int from) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    // позиция подстроки text начиная с from; если её нет, файл считается повреждённым
+    private int require(String text, int from) throws XMLStreamException {
+        for (int i = from; i <= limit - text.length(); i++) {
+            if (startsWith(i, text)) return i;
+        }
+        throw error("Не найдено '" + text + "'");
+    }
+
+    private boolean startsWith(int from, String text) {
+        if (from + text.length() > limit) return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer.get(from + i) != text.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private int scanName(int from) {
+        int i = from;
+        while (i < limit) {
+            byte b = buffer.get(i);
+            if (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '=' || b == '/' || b == '>' || b == '?') break;
+            i++;
+        }
+        return i;
+    }
+
+    private int skipWhitespace(int from) {
+        int i = from;
+        while (i < limit) {
+            byte b = buffer.get(i);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') break;
+            i++;
+        }
+        return i;
+    }
+
+    private boolean equalsAscii(int from, int to, String text) {
+        if (to - from != text.length()) return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer.get(from + i) != text.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean equalsAsciiIgnoreCase(int from, int to, String text) {
+        if (to - from != text.length()) return false;
+        for (int i = 0; i < text.length(); i++) {
+            int b = buffer.get(from + i);
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != Character.toLowerCase(text.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private boolean equalsBytes(int from, int to, byte[] bytes) {
+        if (to - from != bytes.length) return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(from + i) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    private XMLStreamException error(String message) {
+        return new XMLStreamException(message + " (позиция " + pos + ")");
+    }
+
+    /**
+     * Представление участка отображённого файла как последовательности символов без копирования байтов.
+     * Используется для разбора чисел и дат; один объект переиспользуется для всех значений.
+     */
+    private final class AsciiView implements CharSequence {
+        private int from;
+        private int to;
+
+        AsciiView set(int from, int to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(from + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return string(from + start, from + end);
+        }
+
+        @Override
+        public String toString() {
+            return string(from, to);
+        }
+    }
+
+    /**
+     * Файл не соответствует ожидаемой структуре и должен быть прочитан через StAX.
+     */
+    static final class UnsupportedLayoutException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+}
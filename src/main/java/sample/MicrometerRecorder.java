@@ -0,0 +1,105 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+import io.micrometer.core.instrument.*;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Получатель замеров Instrumentation, записывающий их в метрики Micrometer:
+ * <ul>
+ * <li>moex.ingest.phase (Timer, тег phase) - длительность этапов загрузки;</li>
+ * <li>moex.ingest.rows и moex.ingest.bytes (Counter, тег phase) - обработанные записи и байты файлов;</li>
+ * <li>moex.ingest.file.rows.rate и moex.ingest.file.bytes.rate (DistributionSummary, тег phase) - скорость
+ * разбора и чтения отдельных файлов в записях и байтах в секунду;</li>
+ * <li>moex.query (Timer с гистограммой, тег type) и moex.query.rows (DistributionSummary, тег type) - время
+ * выполнения запросов к TempDB и число найденных записей.</li>
+ * </ul>
+ * Размеры TempDB и его индексов публикует TempDBMetrics.
+ */
+
+public class MicrometerRecorder implements Instrumentation.Recorder {
+    private final MeterRegistry registry;
+    private final Map<Instrumentation.Phase, Meters> phases = new EnumMap<>(Instrumentation.Phase.class);
+    private final ConcurrentHashMap<String, Timer> queries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DistributionSummary> queryRows = new ConcurrentHashMap<>();
+
+    /**
+     * Запись в общий реестр Metrics.globalRegistry (в приложении Spring Boot в него входят реестры приложения).
+     */
+    public MicrometerRecorder() {
+        this(Metrics.globalRegistry);
+    }
+
+    public MicrometerRecorder(@NotNull MeterRegistry registry) {
+        this.registry = registry;
+        for (Instrumentation.Phase phase : Instrumentation.Phase.values()) {
+            phases.put(phase, new Meters(registry, phase.name().toLowerCase(Locale.ROOT)));
+        }
+    }
+
+    @Override
+    public void phase(Instrumentation.Phase phase, String file, long rows, long bytes, long nanos, Object context) {
+        Meters meters = phases.get(phase);
+        meters.time.record(nanos, TimeUnit.NANOSECONDS);
+        if (rows > 0) meters.rows.increment(rows);
+        if (bytes > 0) meters.bytes.increment(bytes);
+        if (file != null && nanos > 0) {
+            double seconds = nanos / 1e9;
+            meters.rowRate.record(rows / seconds);
+            if (bytes > 0) meters.byteRate.record(bytes / seconds);
+        }
+    }
+
+    @Override
+    public void query(String type, long rows, long nanos, Object context) {
+        queries.computeIfAbsent(type, t -> Timer.builder("moex.query")
+                .description("Время выполнения запроса к TempDB")
+                .tag("type", t)
+                .publishPercentileHistogram()
+                .register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+        queryRows.computeIfAbsent(type, t -> DistributionSummary.builder("moex.query.rows")
+                .description("Число записей, найденных запросом")
+                .tag("type", t)
+                .register(registry)).record(rows);
+    }
+
+    // метрики одного этапа загрузки
+    private static final class Meters {
+        final Timer time;
+        final Counter rows;
+        final Counter bytes;
+        final DistributionSummary rowRate;
+        final DistributionSummary byteRate;
+
+        Meters(MeterRegistry registry, String phase) {
+            time = Timer.builder("moex.ingest.phase")
+                    .description("Длительность этапа загрузки")
+                    .tag("phase", phase)
+                    .register(registry);
+            rows = Counter.builder("moex.ingest.rows")
+                    .description("Записи, обработанные этапом загрузки")
+                    .tag("phase", phase)
+                    .register(registry);
+            bytes = Counter.builder("moex.ingest.bytes")
+                    .baseUnit("bytes")
+                    .description("Байты файлов, обработанные этапом загрузки")
+                    .tag("phase", phase)
+                    .register(registry);
+            rowRate = DistributionSummary.builder("moex.ingest.file.rows.rate")
+                    .baseUnit("rows/s")
+                    .description("Скорость обработки файла в записях в секунду")
+                    .tag("phase", phase)
+                    .register(registry);
+            byteRate = DistributionSummary.builder("moex.ingest.file.bytes.rate")
+                    .baseUnit("bytes/s")
+                    .description("Скорость обработки файла в байтах в секунду")
+                    .tag("phase", phase)
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Запись данных TempDB в NDJSON (UTF-8): по объекту JSON на строку, одна строка - одна запись. Имена полей -
+ * имена столбцов в верхнем регистре, как в заголовке CSVWriter; пустые значения записываются как null, числа -
+ * без экспоненты, даты - строками вида yyyy-MM-dd.
+ * <p>
+ * Как и CSVWriter, записи истории торгов читаются прямо из столбцов хранилища, без сборки карт атрибутов, поэтому
+ * подходит для потоковой выдачи больших результатов.
+ */
+
+public class NDJSONWriter {
+    private final WritableByteChannel channel;
+    private Writer out;
+
+    /**
+     * Запись в открытый канал (например, Channels.newChannel(response.getOutputStream())). Канал не закрывается.
+     */
+    public NDJSONWriter(@NotNull WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Записывает записи истории торгов в порядке списка; columnNames - столбцы в заданном порядке или null -
+     * все столбцы хранилища.
+     */
+    public void writeHistory(@NotNull List<TempDB.HistoryEntry> entries, List<String> columnNames)
+            throws IOException {
+        List<String> names = new ArrayList<>();
+        if (columnNames != null) {
+            for (String name : columnNames) {
+                names.add(name.toLowerCase(Locale.ROOT));
+            }
+        } else if (entries instanceof TempDB.RowView) {
+            names.addAll(((TempDB.RowView) entries).store().columnNames());
+        } else if (!entries.isEmpty()) {
+            names.addAll(entries.get(0).getAllAttributes().keySet());
+        }
+        String[] fields = fields(names);
+        open();
+        if (entries instanceof TempDB.RowView) {
+            TempDB.RowView rows = (TempDB.RowView) entries;
+            HistoryStore store = rows.store();
+            HistoryStore.Column[] columns = new HistoryStore.Column[names.size()];
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = store == null ? null : store.column(names.get(c));
+            }
+            for (int i = 0, size = entries.size(); i < size; i++) {
+                int row = rows.rowAt(i);
+                for (int c = 0; c < columns.length; c++) {
+                    out.write(fields[c]);
+                    putValue(columns[c] == null || columns[c].isEmpty(row) ? null : columns[c].get(row));
+                }
+                out.write(fields.length == 0 ? "{}\n" : "}\n");
+            }
+        } else {
+            for (TempDB.HistoryEntry he : entries) {
+                putRow(fields, names, he.getAllAttributes());
+            }
+        }
+        out.flush();
+        out = null;
+    }
+
+    /**
+     * Записывает результат агрегации: по объекту на группу с ключом группы, ROWS и агрегатами запроса
+     * (см. Aggregation.Group.toMap).
+     */
+    public void writeAggregates(@NotNull List<Aggregation.Group> groups) throws IOException {
+        open();
+        List<String> names = null;
+        String[] fields = null;
+        for (Aggregation.Group group : groups) {
+            LinkedHashMap<String, Object> values = group.toMap();
+            if (names == null) {
+                names = new ArrayList<>(values.keySet());
+                fields = fields(names);
+            }
+            putRow(fields, names, values);
+        }
+        out.flush();
+        out = null;
+    }
+
+    // начала полей вида ,"NAME": строятся один раз для всех записей
+    private static String[] fields(List<String> names) {
+        String[] fields = new String[names.size()];
+        for (int c = 0; c < fields.length; c++) {
+            fields[c] = (c == 0 ? "{" : ",") + quote(names.get(c).toUpperCase(Locale.ROOT)) + ":";
+        }
+        return fields;
+    }
+
+    private void putRow(String[] fields, List<String> names, Map<String, Object> values) throws IOException {
+        for (int c = 0; c < fields.length; c++) {
+            out.write(fields[c]);
+            putValue(values.get(names.get(c)));
+        }
+        out.write(fields.length == 0 ? "{}\n" : "}\n");
+    }
+
+    private void putValue(Object value) throws IOException {
+        if (value == null || "".equals(value)) {
+            out.write("null");
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            out.write(Double.isNaN(d) || Double.isInfinite(d) ? "null"
+                    : BigDecimal.valueOf(d).stripTrailingZeros().toPlainString());
+        } else if (value instanceof Number) {
+            out.write(value.toString());
+        } else if (value instanceof LocalDate) {
+            out.write('"');
+            out.write(value.toString());
+            out.write('"');
+        } else {
+            out.write(quote(value.toString()));
+        }
+    }
+
+    /**
+     * Строка value в виде строкового литерала JSON в кавычках.
+     */
+    static String quote(String value) {
+        StringBuilder result = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    result.append("\\\"");
+                    break;
+                case '\\':
+                    result.append("\\\\");
+                    break;
+                case '\n':
+                    result.append("\\n");
+                    break;
+                case '\r':
+                    result.append("\\r");
+                    break;
+                case '\t':
+                    result.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        result.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        result.append(c);
+                    }
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    private void open() {
+        out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 1 << 16), 1 << 16);
+    }
+}
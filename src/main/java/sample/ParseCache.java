@@ -0,0 +1,238 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Кэш разбора XML-файлов: результат разбора файла (фрагмент LoadPipeline - ценные бумаги или колоночное хранилище
+ * истории торгов, уже отсортированное) хранится в каталоге кэша в двоичном формате файла снимка (SnapshotFile).
+ * Ключ записи кэша - SHA-256 содержимого XML-файла, поэтому файл, переименованный или скопированный без изменений,
+ * повторно не разбирается, а изменённый файл разбирается заново. Хеширование читает файл последовательно и намного
+ * быстрее разбора; запись кэша отображается в память, и её столбцы разбираются лишь при первом обращении.
+ * <p>
+ * Размер каталога ограничен maxBytes: после добавления записи удаляются записи, к которым дольше всего не
+ * обращались. Ошибки записи и чтения кэша не прерывают загрузку: повреждённая запись удаляется, файл разбирается
+ * заново. Кэш можно использовать из нескольких потоков одновременно (LoadPipeline.setCache).
+ */
+
+public class ParseCache {
+    private static final String SUFFIX = ".shard";
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int LOCK_STRIPES = 64;
+
+    // теги типа данных фрагмента
+    private static final byte SECURITIES = 1;
+    private static final byte HISTORY = 2;
+
+    private final File directory;
+    private final long maxBytes;
+    // блокировки записей по хешу ключа: один и тот же файл не разбирается одновременно несколькими потоками;
+    // число блокировок постоянно и не растёт с числом файлов, прошедших через кэш
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private long hits;
+    private long misses;
+
+    /**
+     * @param directory каталог кэша; создаётся при необходимости
+     * @param maxBytes  максимальный суммарный размер записей кэша в байтах
+     * @throws IOException каталог не удаётся создать
+     */
+    public ParseCache(@NotNull File directory, long maxBytes) throws IOException {
+        if (maxBytes < 0) throw new IllegalArgumentException("maxBytes < 0");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Невозможно создать каталог кэша: " + directory);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+    }
+
+    /**
+     * Число файлов, прочитанных из кэша без разбора.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Число файлов, разобранных заново (записи в кэше не было или она повреждена).
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Суммарный размер записей кэша в байтах.
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (File entry : entries()) size += entry.length();
+        return size;
+    }
+
+    /**
+     * Фрагмент файла file: из кэша, если файл с таким содержимым уже разбирался, иначе результат
+     * LoadPipeline.read, который сохраняется в кэш.
+     */
+    LoadPipeline.Shard read(File file) throws FileNotFoundException, XMLStreamException, ParseException {
+        String key = hash(file);
+        Object lock = locks[Math.floorMod(key.hashCode(), locks.length)];
+        synchronized (lock) {
+            File entry = new File(directory, key + SUFFIX);
+            if (entry.isFile()) {
+                try {
+                    Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.DECODE);
+                    LoadPipeline.Shard shard = readEntry(entry);
+                    timing.stop(file, shard.size(), entry.length());
+                    // время изменения записи - время последнего обращения для вытеснения
+                    entry.setLastModified(System.currentTimeMillis());
+                    count(true);
+                    return shard;
+                } catch (IOException | RuntimeException e) {
+                    entry.delete();
+                }
+            }
+            LoadPipeline.Shard shard = LoadPipeline.read(file);
+            count(false);
+            try {
+                writeEntry(entry, file, shard);
+                evict(entry);
+            } catch (IOException e) {
+                // кэш недоступен для записи: фрагмент возвращается без сохранения
+            }
+            return shard;
+        }
+    }
+
+    private synchronized void count(boolean hit) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    // удаляет записи, к которым дольше всего не обращались, пока размер кэша больше maxBytes; запись keep,
+    // только что добавленная, удаляется последней
+    private synchronized void evict(File keep) {
+        List<File> entries = new ArrayList<>(Arrays.asList(entries()));
+        long size = 0;
+        Map<File, Long> used = new HashMap<>();
+        for (File entry : entries) {
+            size += entry.length();
+            used.put(entry, entry.equals(keep) ? Long.MAX_VALUE : entry.lastModified());
+        }
+        if (size <= maxBytes) return;
+        entries.sort(Comparator.comparing(used::get));
+        for (File entry : entries) {
+            if (size <= maxBytes) break;
+            long length = entry.length();
+            // на Windows запись, ещё отображённая в память, не удаляется и остаётся до следующего вытеснения
+            if (entry.delete()) size -= length;
+        }
+    }
+
+    private File[] entries() {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        return entries == null ? new File[0] : entries;
+    }
+
+    private static void writeEntry(File entry, File source, LoadPipeline.Shard shard) throws IOException {
+        try (SnapshotFile.Output out = SnapshotFile.create(entry, Collections.singletonList(source))) {
+            if (shard.dataId == XMLReader.DATA_ID.SECURITIES) {
+                out.putByte(SECURITIES);
+                out.putInt(shard.securities.size());
+                for (LinkedHashMap<String, Object> info : shard.securities) {
+                    out.putInt(info.size());
+                    for (Map.Entry<String, Object> e : info.entrySet()) {
+                        out.putString(e.getKey());
+                        out.putValue(e.getValue());
+                    }
+                }
+            } else {
+                out.putByte(shard.dataId == XMLReader.DATA_ID.HISTORY ? HISTORY : 0);
+                shard.history.writeTo(out);
+                out.putInts(shard.rows, 0, shard.rows.length);
+            }
+            XMLReader.PageCursor cursor = shard.cursor;
+            out.putByte((byte) (cursor == null ? 0 : 1));
+            if (cursor != null) {
+                out.putLong(cursor.getIndex());
+                out.putLong(cursor.getTotal());
+                out.putLong(cursor.getPageSize());
+            }
+            out.commit();
+        }
+    }
+
+    private static LoadPipeline.Shard readEntry(File entry) throws IOException {
+        ByteBuffer in = SnapshotFile.map(entry);
+        LoadPipeline.Shard shard;
+        byte dataId = in.get();
+        if (dataId == SECURITIES) {
+            shard = new LoadPipeline.Shard();
+            shard.dataId = XMLReader.DATA_ID.SECURITIES;
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                int size = in.getInt();
+                LinkedHashMap<String, Object> info = new LinkedHashMap<>();
+                for (int j = 0; j < size; j++) {
+                    String key = SnapshotFile.readString(in);
+                    Object value = SnapshotFile.readValue(in);
+                    if (value instanceof String && SymbolTable.isSymbolColumn(key)) {
+                        value = SymbolTable.intern((String) value);
+                    }
+                    info.put(key, value);
+                }
+                shard.securities.add(info);
+            }
+            shard.rows = new int[0];
+        } else {
+            shard = new LoadPipeline.Shard(HistoryStore.read(in));
+            shard.dataId = dataId == HISTORY ? XMLReader.DATA_ID.HISTORY : null;
+            shard.rows = SnapshotFile.readInts(in, shard.history.size());
+        }
+        if (in.get() != 0) shard.cursor = XMLReader.PageCursor.of(in.getLong(), in.getLong(), in.getLong());
+        return shard;
+    }
+
+    // SHA-256 содержимого файла в шестнадцатеричном виде
+    private static String hash(File file) throws FileNotFoundException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(file.getPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        StringBuilder key = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+}
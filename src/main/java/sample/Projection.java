@@ -0,0 +1,360 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Проекция записей истории торгов снимка TempDB на набор атрибутов - ленивая замена getPreparedList. Имена атрибутов
+ * один раз сопоставляются столбцам хранилища (и атрибутам ценных бумаг, которые, как и в
+ * HistoryEntry.getAttributes, имеют приоритет), после чего значения читаются по индексу строки, без создания
+ * HistoryEntry и карт атрибутов. Записи обходятся потоком (stream, parallelStream) или курсором (cursor).
+ * <p>
+ * Условия whereSecid, whereBoard и whereDate выполняются по индексам TempDB (см. TempDB.find), условия filter
+ * проверяются для каждой записи при обходе. Без условия по дате записи идут в порядке histories, с ним - в порядке
+ * даты торгов. Пример:
+ * <pre>
+ * tempDB.select("secid", "tradedate", "close").whereSecid("AFLT").stream()
+ *         .forEach(row -&gt; System.out.println(row.get(1) + " " + row.get(2)));
+ * </pre>
+ */
+
+public class Projection {
+    private final TempDB.Snapshot snapshot;
+    private final String[] attributes;
+    private String secid;
+    private String boardid;
+    private LocalDate from;
+    private LocalDate to;
+    private final List<String> filterAttributes = new ArrayList<>();
+    private final List<Predicate<Object>> filterPredicates = new ArrayList<>();
+
+    Projection(@NotNull TempDB.Snapshot snapshot, @NotNull String... attributes) {
+        this.snapshot = snapshot;
+        this.attributes = attributes.clone();
+    }
+
+    /**
+     * Только записи ценной бумаги secid.
+     */
+    public Projection whereSecid(String secid) {
+        this.secid = secid;
+        return this;
+    }
+
+    /**
+     * Только записи режима торгов boardid.
+     */
+    public Projection whereBoard(String boardid) {
+        this.boardid = boardid;
+        return this;
+    }
+
+    /**
+     * Только записи с датой торгов в диапазоне [from, to]; null - диапазон не ограничен с этой стороны.
+     */
+    public Projection whereDate(LocalDate from, LocalDate to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Только записи, значение атрибута attribute которых удовлетворяет predicate (null, если атрибута нет).
+     */
+    public Projection filter(@NotNull String attribute, @NotNull Predicate<Object> predicate) {
+        filterAttributes.add(attribute);
+        filterPredicates.add(predicate);
+        return this;
+    }
+
+    /**
+     * Атрибуты проекции; get(int) строк и курсора обращается к ним по индексу в этом списке.
+     */
+    public List<String> getAttributes() {
+        return Collections.unmodifiableList(Arrays.asList(attributes));
+    }
+
+    /**
+     * Последовательный поток строк проекции. Записи отбираются при создании потока, значения читаются при обращении.
+     */
+    public Stream<Row> stream() {
+        Plan plan = plan();
+        return StreamSupport.stream(new RowSpliterator(plan, 0, plan.size), false);
+    }
+
+    /**
+     * Параллельный поток строк проекции; участки записей делятся пополам.
+     */
+    public Stream<Row> parallelStream() {
+        Plan plan = plan();
+        return StreamSupport.stream(new RowSpliterator(plan, 0, plan.size), true);
+    }
+
+    /**
+     * Курсор по строкам проекции: один объект на весь обход.
+     */
+    public Cursor cursor() {
+        return new Cursor(plan());
+    }
+
+    private Plan plan() {
+        boolean indexed = secid != null || boardid != null || from != null || to != null;
+        List<TempDB.HistoryEntry> source = indexed ? snapshot.find(secid, boardid, from, to)
+                : snapshot.getHistories();
+        HistoryStore store = ((TempDB.RowView) source).store();
+        Accessor[] accessors = new Accessor[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            accessors[i] = Accessor.of(attributes[i], store, snapshot.getSecurities());
+        }
+        Accessor[] filters = new Accessor[filterAttributes.size()];
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = Accessor.of(filterAttributes.get(i), store, snapshot.getSecurities());
+        }
+        return new Plan(attributes, (TempDB.RowView) source, source.size(), store, accessors, filters,
+                new ArrayList<>(filterPredicates));
+    }
+
+    // разрешённая проекция: источник строк и способы чтения атрибутов
+    private static final class Plan {
+        final String[] attributes;
+        final TempDB.RowView rows;
+        final int size;
+        final HistoryStore store;
+        final Accessor[] accessors;
+        final Accessor[] filters;
+        final List<Predicate<Object>> predicates;
+
+        Plan(String[] attributes, TempDB.RowView rows, int size, HistoryStore store, Accessor[] accessors,
+             Accessor[] filters, List<Predicate<Object>> predicates) {
+            this.attributes = attributes;
+            this.rows = rows;
+            this.size = size;
+            this.store = store;
+            this.accessors = accessors;
+            this.filters = filters;
+            this.predicates = predicates;
+        }
+
+        boolean accepts(int row) {
+            for (int i = 0; i < filters.length; i++) {
+                if (!predicates.get(i).test(filters[i].get(row))) return false;
+            }
+            return true;
+        }
+
+        int indexOf(String attribute) {
+            for (int i = 0; i < attributes.length; i++) {
+                if (attributes[i].equals(attribute)) return i;
+            }
+            throw new IllegalArgumentException("Атрибута нет в проекции: " + attribute);
+        }
+
+        LinkedHashMap<String, Object> toMap(int row) {
+            LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+            for (int i = 0; i < accessors.length; i++) {
+                if (accessors[i].isPresent(row)) result.put(attributes[i], accessors[i].get(row));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Чтение одного атрибута по индексу строки хранилища. Атрибут ценной бумаги берётся из таблицы значений
+     * по коду secid строки, построенной при создании; иначе значение читается из столбца хранилища.
+     */
+    private static final class Accessor {
+        private static final Object MISSING = new Object();
+
+        private final HistoryStore.Column column;
+        private final HistoryStore.SymbolColumn secids;
+        // значения атрибута ценных бумаг по коду secid; MISSING - у бумаги нет такого атрибута
+        private final Object[] info;
+
+        private Accessor(HistoryStore.Column column, HistoryStore.SymbolColumn secids, Object[] info) {
+            this.column = column;
+            this.secids = secids;
+            this.info = info;
+        }
+
+        static Accessor of(String attribute, HistoryStore store, Map<String, TempDB.SecurityPaper> securities) {
+            HistoryStore.SymbolColumn secids = store.symbols("secid");
+            Object[] info = null;
+            if (secids != null) {
+                for (int code = 0; code < secids.cardinality(); code++) {
+                    TempDB.SecurityPaper paper = securities.get(secids.decode(code));
+                    if (paper == null || !paper.info().containsKey(attribute)) continue;
+                    if (info == null) {
+                        info = new Object[secids.cardinality()];
+                        Arrays.fill(info, MISSING);
+                    }
+                    info[code] = paper.info().get(attribute);
+                }
+            }
+            return new Accessor(store.column(attribute), info == null ? null : secids, info);
+        }
+
+        boolean isPresent(int row) {
+            return (info != null && info[secids.getCode(row)] != MISSING) || column != null;
+        }
+
+        Object get(int row) {
+            if (info != null) {
+                Object value = info[secids.getCode(row)];
+                if (value != MISSING) return value;
+            }
+            return column == null ? null : column.get(row);
+        }
+    }
+
+    /**
+     * Строка проекции: представление одной записи, значения которого читаются из хранилища при обращении.
+     */
+    public static final class Row {
+        private final Plan plan;
+        private final int row;
+
+        private Row(Plan plan, int row) {
+            this.plan = plan;
+            this.row = row;
+        }
+
+        /**
+         * Значение атрибута index проекции или null, если у записи нет такого атрибута.
+         */
+        public Object get(int index) {
+            return plan.accessors[index].get(row);
+        }
+
+        public Object get(String attribute) {
+            return get(plan.indexOf(attribute));
+        }
+
+        public long getId() {
+            return plan.store.getId(row);
+        }
+
+        /**
+         * Атрибуты записи в виде карты, как в HistoryEntry.getAttributes.
+         */
+        public LinkedHashMap<String, Object> toMap() {
+            return plan.toMap(row);
+        }
+
+        @Override
+        public String toString() {
+            return toMap().toString();
+        }
+    }
+
+    /**
+     * Курсор по строкам проекции. next переходит к следующей записи, методы чтения относятся к текущей.
+     */
+    public static final class Cursor {
+        private final Plan plan;
+        private int position = -1;
+        private int row = -1;
+
+        private Cursor(Plan plan) {
+            this.plan = plan;
+        }
+
+        /**
+         * Переходит к следующей записи; false, если записей больше нет.
+         */
+        public boolean next() {
+            while (++position < plan.size) {
+                int candidate = plan.rows.rowAt(position);
+                if (plan.accepts(candidate)) {
+                    row = candidate;
+                    return true;
+                }
+            }
+            position = plan.size;
+            row = -1;
+            return false;
+        }
+
+        public Object get(int index) {
+            checkRow();
+            return plan.accessors[index].get(row);
+        }
+
+        public Object get(String attribute) {
+            return get(plan.indexOf(attribute));
+        }
+
+        public long getId() {
+            checkRow();
+            return plan.store.getId(row);
+        }
+
+        public LinkedHashMap<String, Object> toMap() {
+            checkRow();
+            return plan.toMap(row);
+        }
+
+        private void checkRow() {
+            if (row < 0) throw new NoSuchElementException("Курсор не установлен на запись");
+        }
+    }
+
+    // обход участка [from, to) источника строк; делится пополам для параллельного потока
+    private static final class RowSpliterator implements Spliterator<Row> {
+        private final Plan plan;
+        private int position;
+        private final int end;
+
+        RowSpliterator(Plan plan, int position, int end) {
+            this.plan = plan;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Row> action) {
+            while (position < end) {
+                int row = plan.rows.rowAt(position++);
+                if (plan.accepts(row)) {
+                    action.accept(new Row(plan, row));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Row> action) {
+            for (; position < end; position++) {
+                int row = plan.rows.rowAt(position);
+                if (plan.accepts(row)) action.accept(new Row(plan, row));
+            }
+        }
+
+        @Override
+        public Spliterator<Row> trySplit() {
+            int mid = (position + end) >>> 1;
+            if (mid - position < 1024) return null;
+            RowSpliterator prefix = new RowSpliterator(plan, position, mid);
+            position = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - position;
+        }
+
+        @Override
+        public int characteristics() {
+            int characteristics = ORDERED | NONNULL | IMMUTABLE;
+            // без построчных условий число строк участка точно известно
+            return plan.filters.length == 0 ? characteristics | SIZED | SUBSIZED : characteristics;
+        }
+    }
+}
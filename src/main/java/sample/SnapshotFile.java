@@ -0,0 +1,343 @@
+package sample;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Двоичный файл снимка TempDB (см. TempDB.save и TempDB.open). Все числа записываются в порядке байтов
+ * little-endian. Файл начинается с заголовка:
+ * <ul>
+ * <li>MAGIC и версия формата FORMAT_VERSION; файл другой версии не читается;</li>
+ * <li>список исходных XML-файлов, из которых получены данные: путь, размер и время изменения каждого файла.
+ * По нему определяется, соответствует ли снимок выбранным файлам (isSnapshotOf).</li>
+ * </ul>
+ * За заголовком следуют данные TempDB. Файл читается отображением в память, а массивы столбцов хранилища - лишь при
+ * первом обращении к столбцу, поэтому открытие снимка не требует чтения всего файла с диска.
+ */
+
+final class SnapshotFile {
+    // "MXDB"
+    static final int MAGIC = 0x4244584D;
+    static final int FORMAT_VERSION = 1;
+
+    // теги значений атрибутов (putValue/readValue)
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte DATE = 5;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Создаёт файл снимка и записывает его заголовок. Данные пишутся во временный файл рядом с file, который
+     * заменяет file только при вызове Output.commit, поэтому прерванная запись не портит предыдущий снимок.
+     */
+    static Output create(File file, List<File> sources) throws IOException {
+        Output out = new Output(file);
+        try {
+            out.putInt(MAGIC);
+            out.putInt(FORMAT_VERSION);
+            out.putInt(sources.size());
+            for (File source : sources) {
+                out.putString(source.getAbsolutePath());
+                out.putLong(source.length());
+                out.putLong(source.lastModified());
+            }
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+        return out;
+    }
+
+    /**
+     * Отображает файл снимка в память, проверяет заголовок и возвращает буфер, установленный на начало данных TempDB.
+     */
+    static ByteBuffer map(File file) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Файл снимка больше 2 ГБ: " + file);
+            }
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        try {
+            checkHeader(in, file);
+            int sources = in.getInt();
+            for (int i = 0; i < sources; i++) {
+                readString(in);
+                in.getLong();
+                in.getLong();
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Файл снимка повреждён: " + file, e);
+        }
+        return in;
+    }
+
+    /**
+     * true, если file - снимок этой версии формата, созданный из тех же исходных файлов в том же порядке,
+     * и с тех пор ни один из них не изменился (по размеру и времени изменения).
+     */
+    static boolean isSnapshotOf(File file, List<File> sources) {
+        if (!file.isFile()) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            // DataInputStream читает big-endian, поэтому байты чисел переставляются
+            if (Integer.reverseBytes(in.readInt()) != MAGIC) return false;
+            if (Integer.reverseBytes(in.readInt()) != FORMAT_VERSION) return false;
+            if (Integer.reverseBytes(in.readInt()) != sources.size()) return false;
+            for (File source : sources) {
+                byte[] path = new byte[Integer.reverseBytes(in.readInt())];
+                in.readFully(path);
+                if (!new String(path, StandardCharsets.UTF_8).equals(source.getAbsolutePath())) return false;
+                if (Long.reverseBytes(in.readLong()) != source.length()) return false;
+                if (Long.reverseBytes(in.readLong()) != source.lastModified()) return false;
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static void checkHeader(ByteBuffer in, File file) throws IOException {
+        if (in.remaining() < 8 || in.getInt() != MAGIC) {
+            throw new IOException("Файл не является снимком TempDB: " + file);
+        }
+        int version = in.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Неподдерживаемая версия файла снимка " + version + ": " + file);
+        }
+    }
+
+    /**
+     * Возвращает буфер из следующих length байт in (с тем же порядком байтов) и перемещает in за них.
+     */
+    static ByteBuffer slice(ByteBuffer in, int length) {
+        ByteBuffer slice = in.duplicate();
+        slice.limit(in.position() + length);
+        in.position(in.position() + length);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static Object readValue(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INT:
+                return in.getInt();
+            case LONG:
+                return in.getLong();
+            case DOUBLE:
+                return in.getDouble();
+            case DATE:
+                return LocalDate.ofEpochDay(in.getInt());
+            default:
+                throw new IOException("Неизвестный тип значения в файле снимка: " + tag);
+        }
+    }
+
+    static int[] readInts(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + count * 4);
+        return values;
+    }
+
+    static long[] readLongs(ByteBuffer in, int count) {
+        long[] values = new long[count];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + count * 8);
+        return values;
+    }
+
+    static double[] readDoubles(ByteBuffer in, int count) {
+        double[] values = new double[count];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + count * 8);
+        return values;
+    }
+
+    /**
+     * Буферизованная запись файла снимка. Примитивные массивы переносятся в буфер целыми участками.
+     */
+    static final class Output implements Closeable {
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        private final File file;
+        private final File temp;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private boolean committed;
+
+        private Output(File file) throws IOException {
+            this.file = file;
+            this.temp = new File(file.getPath() + ".tmp");
+            this.channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void putByte(byte value) throws IOException {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(8);
+            buffer.putDouble(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            for (int from = 0; from < bytes.length; ) {
+                ensure(1);
+                int n = Math.min(bytes.length - from, buffer.remaining());
+                buffer.put(bytes, from, n);
+                from += n;
+            }
+        }
+
+        /**
+         * Записывает значение атрибута с тегом типа. Поддерживаются типы, которые создаёт XMLReader
+         * (String, Integer, Double, LocalDate), а также Long и null.
+         */
+        void putValue(Object value) throws IOException {
+            if (value == null) {
+                putByte(NULL);
+            } else if (value instanceof String) {
+                putByte(STRING);
+                putString((String) value);
+            } else if (value instanceof Integer) {
+                putByte(INT);
+                putInt((Integer) value);
+            } else if (value instanceof Long) {
+                putByte(LONG);
+                putLong((Long) value);
+            } else if (value instanceof Double) {
+                putByte(DOUBLE);
+                putDouble((Double) value);
+            } else if (value instanceof LocalDate) {
+                putByte(DATE);
+                putInt((int) ((LocalDate) value).toEpochDay());
+            } else {
+                throw new IOException("Тип значения не поддерживается файлом снимка: " + value.getClass().getName());
+            }
+        }
+
+        void putInts(int[] values, int from, int to) throws IOException {
+            while (from < to) {
+                ensure(4);
+                int n = Math.min(to - from, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(values, from, n);
+                buffer.position(buffer.position() + n * 4);
+                from += n;
+            }
+        }
+
+        void putLongs(long[] values, int from, int to) throws IOException {
+            while (from < to) {
+                ensure(8);
+                int n = Math.min(to - from, buffer.remaining() / 8);
+                buffer.asLongBuffer().put(values, from, n);
+                buffer.position(buffer.position() + n * 8);
+                from += n;
+            }
+        }
+
+        void putDoubles(double[] values, int from, int to) throws IOException {
+            while (from < to) {
+                ensure(8);
+                int n = Math.min(to - from, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().put(values, from, n);
+                buffer.position(buffer.position() + n * 8);
+                from += n;
+            }
+        }
+
+        /**
+         * Текущая позиция записи от начала файла.
+         */
+        long position() throws IOException {
+            return channel.position() + buffer.position();
+        }
+
+        /**
+         * Записывает value на уже записанную позицию position (например, длину секции, известную после её записи).
+         */
+        void patchInt(long position, int value) throws IOException {
+            flush();
+            ByteBuffer patch = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            patch.putInt(value).flip();
+            while (patch.hasRemaining()) {
+                channel.write(patch, position + patch.position());
+            }
+        }
+
+        /**
+         * Завершает запись и заменяет файл снимка записанным временным файлом.
+         */
+        void commit() throws IOException {
+            flush();
+            channel.force(false);
+            channel.close();
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            committed = true;
+        }
+
+        // незавершённая запись удаляет временный файл
+        @Override
+        public void close() throws IOException {
+            if (committed) return;
+            channel.close();
+            Files.deleteIfExists(temp.toPath());
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
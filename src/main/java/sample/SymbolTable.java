@@ -0,0 +1,102 @@
+package sample;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Общая таблица канонических строк для столбцов с небольшим числом различных значений: коды бумаг, режимы торгов,
+ * краткие названия и данные эмитентов. Значения таких столбцов повторяются в каждой записи истории торгов; XMLReader
+ * и TempDB заменяют их каноническим экземпляром из таблицы, поэтому в памяти остаётся по одной строке на значение,
+ * а не на запись. Коды строк в пределах хранилища назначает словарь HistoryStore.SymbolColumn.
+ * <p>
+ * Строки из таблицы не удаляются, поэтому в неё попадают только значения столбцов isSymbolColumn.
+ */
+
+final class SymbolTable {
+    // столбцы (имена в нижнем регистре, как в Record), значения которых заносятся в таблицу
+    private static final Set<String> SYMBOL_COLUMNS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "secid", "boardid", "shortname", "primary_boardid", "type", "group", "emitent_title", "emitent_inn")));
+    private static final ConcurrentHashMap<String, String> SYMBOLS = new ConcurrentHashMap<>();
+
+    private SymbolTable() {
+    }
+
+    /**
+     * true, если значения столбца name заносятся в таблицу.
+     */
+    static boolean isSymbolColumn(String name) {
+        return SYMBOL_COLUMNS.contains(name);
+    }
+
+    /**
+     * Возвращает канонический экземпляр строки value, при необходимости добавляя value в таблицу.
+     */
+    static String intern(String value) {
+        String symbol = SYMBOLS.putIfAbsent(value, value);
+        return symbol == null ? value : symbol;
+    }
+
+    /**
+     * Число строк в таблице.
+     */
+    static int size() {
+        return SYMBOLS.size();
+    }
+
+    /**
+     * Кэш одного потока разбора: канонические строки по их байтам UTF-8. При попадании строка возвращается без
+     * создания промежуточной String; при промахе строка создаётся, заносится в таблицу и замещает прежнее
+     * содержимое ячейки кэша. Не потокобезопасен.
+     */
+    static final class Decoder {
+        private static final int CAPACITY = 1024;
+        // более длинные значения не кэшируются
+        private static final int MAX_LENGTH = 96;
+
+        private final int[] hashes = new int[CAPACITY];
+        private final byte[][] keys = new byte[CAPACITY][];
+        private final String[] values = new String[CAPACITY];
+
+        /**
+         * Каноническая строка из байтов UTF-8 buffer[from, to).
+         */
+        String decode(ByteBuffer buffer, int from, int to) {
+            int length = to - from;
+            if (length > MAX_LENGTH) return intern(new String(bytes(buffer, from, to), StandardCharsets.UTF_8));
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + buffer.get(i);
+            }
+            int slot = (hash ^ (hash >>> 16)) & (CAPACITY - 1);
+            byte[] key = keys[slot];
+            if (key != null && hashes[slot] == hash && equals(key, buffer, from, to)) return values[slot];
+            key = bytes(buffer, from, to);
+            String value = intern(new String(key, StandardCharsets.UTF_8));
+            hashes[slot] = hash;
+            keys[slot] = key;
+            values[slot] = value;
+            return value;
+        }
+
+        private static byte[] bytes(ByteBuffer buffer, int from, int to) {
+            byte[] bytes = new byte[to - from];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(from + i);
+            }
+            return bytes;
+        }
+
+        private static boolean equals(byte[] key, ByteBuffer buffer, int from, int to) {
+            if (key.length != to - from) return false;
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buffer.get(from + i)) return false;
+            }
+            return true;
+        }
+    }
+}
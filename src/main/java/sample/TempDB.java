@@ -2,13 +2,52 @@ package sample;
 
 import com.sun.istack.internal.NotNull;
 
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TempDB {
-    private List<HistoryEntry> histories;
+    // состояние писателя: изменяется только под writeLock
+
+    // колоночное хранилище записей истории торгов
+    private HistoryStore store;
+    // вторичные индексы хранилища по secid, tradedate и boardid
+    private HistoryIndex index;
+    // индексы строк store в порядке сортировки histories
+    private int[] order;
+    private int orderSize;
     private Map<String, SecurityPaper> securities;
-    private Comparator<HistoryEntry> comparator;
+    // securities изменён после последней публикации снимка
+    private boolean securitiesChanged;
     private long idCounter;
+    // индекс живых строк store по ключу (SECID, BOARDID, TRADEDATE); строится при первом вызове insert
+    // или setDuplicatePolicy и затем дополняется при каждом добавлении строк
+    private HistoryKeyIndex keys;
+    // столбцы ключа store, по которым построен keys
+    private HistoryKeyIndex.Keys storeKeys;
+    // обработка записей, ключ которых уже есть в TempDB
+    private DuplicatePolicy duplicatePolicy = DuplicatePolicy.ALLOW;
+    // битовая карта строк store, заменённых записями с тем же ключом; null, если таких строк нет.
+    // Массив, вошедший в снимок, не изменяется: при следующей замене писатель его копирует
+    private long[] dead;
+    private boolean deadShared;
+    // в текущем пакете записи заменены строки, которые нужно убрать из order
+    private boolean rowsReplaced;
+    // отложенные записи истории торгов без ценной бумаги в securities; null, если такие записи отбрасываются
+    private HistoryStore pending;
+    // число ценных бумаг в securities при последней проверке pending
+    private int pendingCheckedSecurities;
+
+    // пакеты записи применяются по одному; читатели блокировку не берут
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // последнее опубликованное состояние, с которым работают все методы чтения
+    private volatile Snapshot snapshot;
 
     /**
      * Класс содержит, обрабатывает и предоставляет данные о ценных бумагах (securities) и записях истории торгов
@@ -16,13 +55,133 @@ public class TempDB {
      * торгов представлены объектом внутреннего класса HistoryEntry, который в качестве аргумента конструктора принмиает
      * объект SecurityPaper представляющий торгуемую бумагу. Таким образом, создание HistoryEntry возможно только
      * при наличии соответствующей SecurityPaper. Ключевым уникальным полем обоих объектов является SECID.
+     * <p>
+     * TempDB потокобезопасна. Методы добавления (писатели) могут вызываться из нескольких потоков: каждый вызов
+     * добавляет свой пакет записей под общей блокировкой и по завершении публикует новый неизменяемый снимок
+     * состояния (Snapshot). Методы чтения не блокируются и работают с последним опубликованным снимком: снимок
+     * разделяет массивы колоночного хранилища и индексов с TempDB (хранилище только дописывается), поэтому его
+     * создание не копирует записи. Чтобы несколько запросов видели одно и то же состояние, следует получить снимок
+     * методом snapshot() и обращаться к нему.
      */
 
     public TempDB() {
-        histories = new LinkedList<>();
+        store = new HistoryStore();
+        index = new HistoryIndex();
+        order = new int[16];
+        orderSize = 0;
         securities = new HashMap<>();
-        comparator = Comparator.comparing(obj -> obj.getSecid());
         idCounter = 0;
+        snapshot = new Snapshot(0, 0, store.snapshot(), index.snapshot(), order, 0, null,
+                Collections.<String, SecurityPaper>emptyMap());
+    }
+
+    /**
+     * Сохраняет последний опубликованный снимок TempDB (ценные бумаги, столбцы истории торгов, порядок записей,
+     * счётчик id и индексы) в двоичный файл, который можно открыть методом open без повторного чтения XML.
+     * Запись не блокирует ни читателей, ни писателей. Файл заменяется только после успешной записи.
+     *
+     * @param file    файл снимка
+     * @param sources XML-файлы, из которых получены данные; записываются в заголовок для isSnapshotOf
+     * @throws IOException записать файл не удаётся
+     */
+
+    public void save(@NotNull File file, @NotNull List<File> sources) throws IOException {
+        Snapshot s = snapshot;
+        try (SnapshotFile.Output out = SnapshotFile.create(file, sources)) {
+            out.putLong(s.version);
+            out.putLong(s.nextId);
+            out.putInt(s.securities.size());
+            for (SecurityPaper sp : s.securities.values()) {
+                HashMap<String, Object> info = sp.info;
+                out.putString(sp.getSecid());
+                out.putInt(info.size());
+                for (Map.Entry<String, Object> e : info.entrySet()) {
+                    out.putString(e.getKey());
+                    out.putValue(e.getValue());
+                }
+            }
+            s.store.writeTo(out);
+            out.putInt(s.orderSize);
+            out.putInts(s.order, 0, s.orderSize);
+            s.index.writeTo(out);
+            out.commit();
+        }
+    }
+
+    /**
+     * Открывает TempDB, сохранённую методом save. Файл отображается в память; ценные бумаги, порядок записей
+     * и индексы читаются сразу, а столбцы истории торгов - при первом обращении к каждому из них. В открытую
+     * TempDB можно добавлять новые записи.
+     *
+     * @param file файл снимка
+     * @throws IOException файл не найден, повреждён или записан другой версией формата
+     */
+
+    public static TempDB open(@NotNull File file) throws IOException {
+        Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.DECODE);
+        ByteBuffer in = SnapshotFile.map(file);
+        TempDB db = new TempDB();
+        try {
+            long version = in.getLong();
+            db.idCounter = in.getLong();
+            int securities = in.getInt();
+            for (int i = 0; i < securities; i++) {
+                String secid = SnapshotFile.readString(in);
+                int count = in.getInt();
+                LinkedHashMap<String, Object> info = new LinkedHashMap<>();
+                for (int j = 0; j < count; j++) {
+                    String key = SnapshotFile.readString(in);
+                    Object value = SnapshotFile.readValue(in);
+                    if (value instanceof String && SymbolTable.isSymbolColumn(key)) {
+                        value = SymbolTable.intern((String) value);
+                    }
+                    info.put(key, value);
+                }
+                db.securities.put(secid, db.new SecurityPaper(secid, info));
+            }
+            db.store = HistoryStore.read(in);
+            db.orderSize = in.getInt();
+            db.order = Arrays.copyOf(SnapshotFile.readInts(in, db.orderSize), Math.max(db.orderSize, 16));
+            db.index = HistoryIndex.read(in);
+            // строки хранилища, не вошедшие в порядок записей, были заменены до сохранения
+            if (db.orderSize < db.store.size()) {
+                db.dead = new long[(db.store.size() + 63) >>> 6];
+                for (int row = 0; row < db.store.size(); row++) db.dead[row >>> 6] |= 1L << row;
+                for (int i = 0; i < db.orderSize; i++) db.dead[db.order[i] >>> 6] &= ~(1L << db.order[i]);
+                db.deadShared = true;
+            }
+            db.snapshot = db.new Snapshot(version, db.idCounter, db.store.snapshot(), db.index.snapshot(),
+                    db.order, db.orderSize, db.dead, Collections.unmodifiableMap(new HashMap<>(db.securities)));
+        } catch (RuntimeException e) {
+            throw new IOException("Файл снимка повреждён: " + file, e);
+        }
+        timing.stop(file, db.orderSize, file.length());
+        return db;
+    }
+
+    /**
+     * Проверяет, что file - снимок, сохранённый методом save из тех же XML-файлов sources, и что эти файлы
+     * с тех пор не изменились (сравниваются путь, размер и время изменения каждого файла).
+     */
+
+    public static boolean isSnapshotOf(@NotNull File file, @NotNull List<File> sources) {
+        return SnapshotFile.isSnapshotOf(file, sources);
+    }
+
+    /**
+     * Возвращает последний опубликованный снимок TempDB. Снимок неизменяем и не блокирует писателей.
+     */
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Номер версии данных: увеличивается при публикации каждого пакета записи.
+     */
+
+    public long getVersion() {
+        return snapshot.getVersion();
     }
 
     /**
@@ -30,31 +189,210 @@ public class TempDB {
      */
 
     public void add(XMLReader... readers) {
-        // обход циклом всех аргументов метода
-        for (XMLReader reader : readers) {
-            // если объект reader представляет список ценных бумаг, каждая бумага добавляется в переменную securities
-            if (reader.getDataId() == XMLReader.DATA_ID.SECURITIES) {
+        writeLock.lock();
+        try {
+            int sortedSize = orderSize;
+            Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.INSERT);
+            long records = 0;
+            // обход циклом всех аргументов метода
+            for (XMLReader reader : readers) {
                 for (XMLReader.Record r : reader.getRecords()) {
-                    String secid = (String) r.getAttributeValue("secid");
-                    SecurityPaper sp = new SecurityPaper(secid, r.getAllAttributes());
-                    securities.put(secid, sp);
+                    ingest(reader.getDataId(), r);
                 }
+                records += reader.getRecords().size();
             }
-            // если объект reader представляет историю торгов, то для каждой записи проверяется наличие ценной
-            // бумаги в securities; создаётся объект HistoryEntry, за которой объект этой бумаги закрепляется
-            // и добавляется в переменную securities
-            if (reader.getDataId() == XMLReader.DATA_ID.HISTORY) {
-                for (XMLReader.Record r : reader.getRecords()) {
-                    String secid = (String) r.getAttributeValue("secid");
-                    if (securities.containsKey(secid)) {
-                        HistoryEntry he = new HistoryEntry(securities.get(secid), r.getAllAttributes(), idCounter++);
-                        histories.add(he);
-                    }
+            timing.stop(records);
+            commit(sortedSize);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Потоковая загрузка одного или нескольких XML-файлов в локальную базу данных. Записи добавляются прямо
+     * из цикла чтения XMLReader, без промежуточного списка записей, поэтому память, занимаемая чтением файла,
+     * не зависит от его размера. Файлы читаются под блокировкой писателей; для параллельного чтения файлов
+     * несколькими потоками используется LoadPipeline. При ошибке чтения записи, добавленные до ошибки, остаются
+     * в TempDB.
+     */
+
+    public void load(File... files) throws FileNotFoundException, XMLStreamException, ParseException {
+        writeLock.lock();
+        try {
+            int sortedSize = orderSize;
+            try {
+                for (File file : files) {
+                    // чтение и добавление записей идут одним циклом и замеряются вместе как разбор файла
+                    Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.PARSE);
+                    int rows = store.size();
+                    new XMLReader(file, this::ingest);
+                    timing.stop(file, store.size() - rows, file.length());
                 }
+            } finally {
+                commit(sortedSize);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Добавление фрагментов, прочитанных LoadPipeline. Сначала добавляются ценные бумаги из всех фрагментов,
+     * затем записи истории торгов в порядке фрагментов: id назначаются так же, как при последовательной загрузке,
+     * а итоговый порядок histories получается одним k-путевым слиянием уже отсортированных фрагментов
+     * с текущим порядком вместо повторной сортировки всех записей.
+     */
+
+    void addShards(List<LoadPipeline.Shard> shards) {
+        writeLock.lock();
+        try {
+            mergeShards(shards);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void mergeShards(List<LoadPipeline.Shard> shards) {
+        for (LoadPipeline.Shard shard : shards) {
+            if (shard.dataId != XMLReader.DATA_ID.SECURITIES) continue;
+            for (LinkedHashMap<String, Object> info : shard.securities) {
+                String secid = (String) info.get("secid");
+                securities.put(secid, new SecurityPaper(secid, info));
+                securitiesChanged = true;
+            }
+        }
+
+        // отсортированные серии индексов строк: текущий порядок histories и по одной серии на каждый фрагмент
+        List<int[]> runs = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        runs.add(order);
+        lengths.add(orderSize);
+        for (LoadPipeline.Shard shard : shards) {
+            if (shard.dataId != XMLReader.DATA_ID.HISTORY) continue;
+            HistoryStore.SymbolColumn secids = shard.history.symbols("secid");
+            if (secids == null) continue;
+            Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.VALIDATE);
+            // записи принимаются только для бумаг, имеющихся в securities; проверка выполняется один раз на код
+            boolean[] known = new boolean[secids.cardinality()];
+            for (int code = 0; code < known.length; code++) {
+                known[code] = securities.containsKey(secids.decode(code));
+            }
+            int size = shard.history.size();
+            int[] accepted = new int[size];
+            int[] target = new int[size];
+            int count = 0;
+            for (int row = 0; row < size; row++) {
+                if (known[secids.getCode(row)]) {
+                    target[row] = count;
+                    accepted[count++] = row;
+                } else {
+                    target[row] = -1;
+                }
+            }
+            if (pending != null && count < size) {
+                int[] orphans = new int[size - count];
+                int n = 0;
+                for (int row = 0; row < size; row++) {
+                    if (target[row] < 0) orphans[n++] = row;
+                }
+                // id строк фрагмента локальны: отложенные строки получат новые id при переносе в store
+                holdOrphans(shard.history, orphans, n, false);
+            }
+            timing.stop(size);
+            if (count == 0) continue;
+            // id строк фрагмента локальны, поэтому строкам назначаются новые id
+            timing = Instrumentation.start(Instrumentation.Phase.INSERT);
+            int[] stored = new int[count];
+            int appended = appendKeyed(shard.history, accepted, count, duplicatePolicy, false, stored, null);
+            timing.stop(count);
+            if (appended == 0) continue;
+            for (int i = 0; i < count; i++) target[accepted[i]] = stored[i];
+            int[] run = new int[appended];
+            int n = 0;
+            for (int row : shard.rows) {
+                if (target[row] >= 0) run[n++] = target[row];
+            }
+            runs.add(run);
+            lengths.add(appended);
+        }
+        if (runs.size() > 1) {
+            Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.SORT);
+            mergeRuns(runs, lengths);
+            timing.stop(orderSize);
+        }
+        commit(orderSize);
+    }
+
+    // k-путевое слияние отсортированных серий в order; при равных ключах раньше идёт серия с меньшим номером,
+    // поэтому результат совпадает с устойчивой сортировкой всех серий, записанных подряд
+    private void mergeRuns(List<int[]> runs, List<Integer> lengths) {
+        int total = 0;
+        for (int length : lengths) total += length;
+        if (runs.size() < 2) return;
+        HistoryStore.RowOrder rowOrder = store.rowOrder();
+
+        int k = runs.size();
+        int[] positions = new int[k];
+        // двоичная куча номеров серий, упорядоченная по текущей строке серии, а при равенстве - по номеру серии
+        int[] heap = new int[k];
+        int heapSize = 0;
+        for (int run = 0; run < k; run++) {
+            if (lengths.get(run) > 0) heap[heapSize++] = run;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) siftDown(heap, i, heapSize, runs, positions, rowOrder);
+
+        int[] merged = new int[Math.max(total, 16)];
+        int n = 0;
+        while (heapSize > 0) {
+            int run = heap[0];
+            merged[n++] = runs.get(run)[positions[run]++];
+            if (positions[run] == lengths.get(run)) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, 0, heapSize, runs, positions, rowOrder);
+        }
+        order = merged;
+        orderSize = n;
+    }
+
+    private static void siftDown(int[] heap, int i, int size, List<int[]> runs, int[] positions,
+                                 HistoryStore.RowOrder rowOrder) {
+        int run = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && headLess(heap[child + 1], heap[child], runs, positions, rowOrder)) child++;
+            if (!headLess(heap[child], run, runs, positions, rowOrder)) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = run;
+    }
+
+    // текущая строка серии a идёт раньше текущей строки серии b
+    private static boolean headLess(int a, int b, List<int[]> runs, int[] positions, HistoryStore.RowOrder rowOrder) {
+        int c = rowOrder.compare(runs.get(a)[positions[a]], runs.get(b)[positions[b]]);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    // добавление одной записи, полученной из XMLReader; атрибуты записи копируются, поэтому запись может
+    // переиспользоваться читателем
+    private void ingest(XMLReader.DATA_ID dataId, XMLReader.Record r) {
+        String secid = (String) r.getAttributeValue("secid");
+        // если запись относится к списку ценных бумаг, бумага добавляется в переменную securities
+        if (dataId == XMLReader.DATA_ID.SECURITIES) {
+            securities.put(secid, new SecurityPaper(secid, r.getAllAttributes()));
+            securitiesChanged = true;
+        }
+        // если запись относится к истории торгов, то проверяется наличие ценной бумаги в securities,
+        // и запись добавляется в хранилище (значения копируются в столбцы хранилища)
+        if (dataId == XMLReader.DATA_ID.HISTORY) {
+            if (securities.containsKey(secid)) {
+                appendRow(HistoryBatch.NO_ID, r.getAllAttributes());
+            } else if (pending != null) {
+                pending.append(HistoryBatch.NO_ID, r.getAllAttributes());
             }
         }
-        // сортировка по secid в алфавитном порядке
-        histories.sort(comparator);
     }
 
     /**
@@ -63,63 +401,913 @@ public class TempDB {
      */
 
     public void add(SecurityPaper... securityPapers) {
-        for (SecurityPaper sp : securityPapers) {
-            String secid = sp.getSecid();
-            // ключом для ценной бумаги является её уникальный secid, значением  - объект SecurityPaper
-            securities.put(secid, sp);
+        writeLock.lock();
+        try {
+            for (SecurityPaper sp : securityPapers) {
+                String secid = sp.getSecid();
+                // ключом для ценной бумаги является её уникальный secid, значением  - объект SecurityPaper
+                securities.put(secid, sp);
+                securitiesChanged = true;
+            }
+            commit(orderSize);
+        } finally {
+            writeLock.unlock();
         }
     }
 
     /**
      * Добавление записей о истории торгов в локальную базу данных. Принимает в качестве аргумента один
-     * или несколько объектов HistoryEntry.
+     * или несколько объектов HistoryEntry. После добавления запись становится представлением строки
+     * опубликованного снимка.
      */
 
     public void add(HistoryEntry... historyEntries) {
-        for (HistoryEntry he : historyEntries) {
-            // новая запись истории торгов добавляется в histories только в том случае, если есть данные о торгующейся
-            // ценной бумаге в securities (проверяется secid, являющийся уникальным для каждой бумаги)
-            if (securities.containsKey(he.getSecid())) {
-                histories.add(he);
+        writeLock.lock();
+        try {
+            int sortedSize = orderSize;
+            Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.INSERT);
+            int[] rows = new int[historyEntries.length];
+            for (int i = 0; i < historyEntries.length; i++) {
+                HistoryEntry he = historyEntries[i];
+                // новая запись истории торгов добавляется в histories только в том случае, если есть данные
+                // о торгующейся ценной бумаге в securities (проверяется secid, являющийся уникальным для каждой бумаги)
+                if (securities.containsKey(he.getSecid())) {
+                    rows[i] = appendRow(he.getId(), he.getAllAttributes());
+                } else {
+                    rows[i] = -1;
+                    if (pending != null) pending.append(he.getId(), he.getAllAttributes());
+                }
             }
+            timing.stop(historyEntries.length);
+            commit(sortedSize);
+            for (int i = 0; i < historyEntries.length; i++) {
+                if (rows[i] >= 0) historyEntries[i].attach(snapshot, rows[i]);
+            }
+        } finally {
+            writeLock.unlock();
         }
     }
 
+    /**
+     * Пакетное добавление ценных бумаг и записей истории торгов (см. HistoryBatch) с отчётом о результате.
+     * Сначала добавляются ценные бумаги пакета, затем отложенные записи, для которых они появились, затем записи
+     * истории пакета. Записи переносятся в хранилище целыми столбцами, наличие ценной бумаги проверяется один раз
+     * на каждый различный secid пакета. Записи, ключ которых (SECID, BOARDID, TRADEDATE) уже есть в TempDB
+     * или встречается раньше в том же пакете, обрабатываются по правилу setDuplicatePolicy; в отличие от add,
+     * правило ALLOW здесь действует как SKIP, то есть повторы не добавляются. Записи без ценной бумаги в securities
+     * откладываются до её появления, если это включено методом setHoldOrphans, иначе отбрасываются.
+     * Весь пакет публикуется одним снимком.
+     *
+     * @param batch пакет данных
+     * @return число принятых, отложенных, отброшенных, повторяющихся и заменённых записей
+     */
+
+    public InsertResult insert(@NotNull HistoryBatch batch) {
+        writeLock.lock();
+        try {
+            int sortedSize = orderSize;
+            InsertResult result = new InsertResult();
+            for (LinkedHashMap<String, Object> info : batch.securities) {
+                String secid = (String) info.get("secid");
+                securities.put(secid, new SecurityPaper(secid, info));
+                securitiesChanged = true;
+            }
+            ensureKeys();
+            releasePending(result);
+
+            HistoryStore history = batch.history;
+            int size = history.size();
+            Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.VALIDATE);
+            int[] candidates = new int[size];
+            int[] orphans = new int[size];
+            int count = 0;
+            int orphaned = 0;
+            HistoryStore.SymbolColumn secids = history.symbols("secid");
+            if (secids != null) {
+                // записи принимаются только для бумаг, имеющихся в securities; проверка выполняется один раз на код
+                boolean[] known = new boolean[secids.cardinality()];
+                for (int code = 0; code < known.length; code++) {
+                    known[code] = securities.containsKey(secids.decode(code));
+                }
+                for (int row = 0; row < size; row++) {
+                    if (known[secids.getCode(row)]) {
+                        candidates[count++] = row;
+                    } else {
+                        orphans[orphaned++] = row;
+                    }
+                }
+            } else {
+                for (int row = 0; row < size; row++) orphans[orphaned++] = row;
+            }
+            timing.stop(size);
+            timing = Instrumentation.start(Instrumentation.Phase.INSERT);
+            int[] stored = new int[count];
+            DuplicatePolicy policy = duplicatePolicy == DuplicatePolicy.ALLOW ? DuplicatePolicy.SKIP : duplicatePolicy;
+            int appended = appendKeyed(history, candidates, count, policy, true, stored, result);
+            appendOrder(stored, count);
+            timing.stop(count);
+            result.accepted = appended;
+            result.duplicates = count - appended;
+            result.orphaned = orphaned;
+            if (pending != null) {
+                holdOrphans(history, orphans, orphaned, true);
+                result.held = orphaned;
+            }
+            commit(sortedSize);
+            for (int i = 0; i < count; i++) {
+                int row = candidates[i];
+                if (stored[i] >= 0 && row < batch.entries.size() && batch.entries.get(row) != null) {
+                    batch.entries.get(row).attach(snapshot, stored[i]);
+                }
+            }
+            return result;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Пакетное добавление ценных бумаг и записей истории торгов: то же, что insert(new HistoryBatch(...)
+     * .add(securityPapers).add(historyEntries)).
+     */
+
+    public InsertResult insert(@NotNull SecurityPaper[] securityPapers, @NotNull HistoryEntry[] historyEntries) {
+        return insert(new HistoryBatch(historyEntries.length).add(securityPapers).add(historyEntries));
+    }
+
+    /**
+     * Включает или выключает откладывание записей истории торгов, для которых в TempDB нет ценной бумаги. Отложенные
+     * записи (из любых методов добавления) хранятся вне histories и добавляются в TempDB, как только добавлена
+     * их ценная бумага; id им назначаются при этом добавлении. При выключении отложенные записи отбрасываются.
+     * Отложенные записи не сохраняются в файл снимка.
+     */
+
+    public void setHoldOrphans(boolean hold) {
+        writeLock.lock();
+        try {
+            if (hold && pending == null) {
+                pending = new HistoryStore();
+                pendingCheckedSecurities = securities.size();
+            } else if (!hold) {
+                pending = null;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает число отложенных записей истории торгов (см. setHoldOrphans).
+     */
+
+    public int getPendingCount() {
+        writeLock.lock();
+        try {
+            return pending == null ? 0 : pending.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Задаёт обработку записей истории торгов, ключ которых (SECID, BOARDID, TRADEDATE) уже есть в TempDB или
+     * встречается раньше в том же пакете (см. DuplicatePolicy), для всех методов добавления. Правило действует
+     * на записи, добавленные после вызова; уже имеющиеся повторы не удаляются. По умолчанию ALLOW.
+     */
+
+    public void setDuplicatePolicy(@NotNull DuplicatePolicy policy) {
+        writeLock.lock();
+        try {
+            duplicatePolicy = policy;
+            if (policy != DuplicatePolicy.ALLOW) ensureKeys();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public DuplicatePolicy getDuplicatePolicy() {
+        return duplicatePolicy;
+    }
+
     /**
      * Возвращает список HashMap-объектов, каждый из которых представляющих данные из одного HistoryEntry
      * с одним или несколькими атрибутами, переданными в качестве аргумента.
      */
 
     public LinkedList<HashMap<String, Object>> getPreparedList(String... attributes) {
-        LinkedList<HashMap<String, Object>> result = new LinkedList<>();
-        for (HistoryEntry he : histories) {
-            result.add(he.getAttributes(attributes));
-        }
-        return result;
+        return snapshot.getPreparedList(attributes);
     }
 
     /**
-     * Возвращает список всех объектов HistoryEntry находящиеся в TempDB.
+     * Возвращает проекцию записей истории торгов на атрибуты attributes (см. Projection): в отличие
+     * от getPreparedList, записи не копируются в карты, а читаются из хранилища при обходе потока или курсора.
+     * Проекция относится к снимку, опубликованному до вызова.
+     */
+
+    public Projection select(@NotNull String... attributes) {
+        return snapshot.select(attributes);
+    }
+
+    /**
+     * Возвращает список всех объектов HistoryEntry находящиеся в TempDB. Список доступен только для чтения
+     * и не меняется при последующих добавлениях: он относится к снимку, опубликованному до вызова;
+     * его элементы - представления строк колоночного хранилища, создаваемые при обращении.
      *
      * @return
      */
 
     public List<HistoryEntry> getHistories() {
-        return histories;
+        return snapshot.getHistories();
+    }
+
+    /**
+     * Возвращает записи истории торгов, удовлетворяющие всем заданным условиям; условие со значением null
+     * не проверяется. Записи отбираются по вторичным индексам (secid, tradedate, boardid) без обхода всей истории.
+     * Если задан диапазон дат, записи упорядочены по дате торгов, иначе - в порядке добавления в TempDB.
+     *
+     * @param secid   код ценной бумаги
+     * @param boardid режим торгов
+     * @param from    первая дата торгов диапазона (включительно)
+     * @param to      последняя дата торгов диапазона (включительно)
+     * @return список записей, доступный только для чтения
+     */
+
+    public List<HistoryEntry> find(String secid, String boardid, LocalDate from, LocalDate to) {
+        return snapshot.find(secid, boardid, from, to);
+    }
+
+    /**
+     * Возвращает все записи истории торгов ценной бумаги secid в порядке добавления в TempDB.
+     */
+
+    public List<HistoryEntry> findBySecid(String secid) {
+        return find(secid, null, null, null);
     }
 
     /**
-     * Класс содержит, обрабатывает и предоставляет данные о конкретной ценной бумаге.
+     * Возвращает все записи истории торгов с датой торгов в диапазоне [from, to] в порядке даты торгов.
+     */
+
+    public List<HistoryEntry> findByDate(LocalDate from, LocalDate to) {
+        return find(null, null, from, to);
+    }
+
+    /**
+     * Возвращает все записи истории торгов в режиме торгов boardid в порядке добавления в TempDB.
+     */
+
+    public List<HistoryEntry> findByBoard(String boardid) {
+        return find(null, boardid, null, null);
+    }
+
+    /**
+     * Вычисляет агрегаты запроса query по всем записям истории торгов (см. Aggregation). Для агрегации части
+     * записей запрос применяется к результату find: query.run(find(...)).
+     *
+     * @return группы в порядке ключа группировки
+     */
+
+    public List<Aggregation.Group> aggregate(@NotNull Aggregation query) {
+        return snapshot.aggregate(query);
+    }
+
+    // завершение пакета записи: новые строки сортируются и вливаются в уже отсортированные, индексы дополняются,
+    // и новое состояние публикуется для читателей
+    private void commit(int sortedSize) {
+        releasePending(null);
+        if (rowsReplaced) sortedSize = removeReplaced(sortedSize);
+        if (sortedSize < orderSize) {
+            Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.SORT);
+            insertSorted(sortedSize);
+            timing.stop(orderSize - sortedSize);
+        }
+        int indexed = index.indexedRows();
+        if (indexed < store.size()) {
+            Instrumentation.Timing timing = Instrumentation.start(Instrumentation.Phase.INDEX);
+            index.update(store);
+            timing.stop(store.size() - indexed);
+        }
+        publish();
+    }
+
+    // публикация снимка текущего состояния; строки и элементы order, вошедшие в снимок, писатель больше
+    // не изменяет (order при слиянии заменяется новым массивом), поэтому данные снимка не копируются
+    private void publish() {
+        Snapshot current = snapshot;
+        Map<String, SecurityPaper> published = current.securities;
+        if (securitiesChanged) {
+            published = Collections.unmodifiableMap(new HashMap<>(securities));
+            securitiesChanged = false;
+        }
+        snapshot = new Snapshot(current.version + 1, idCounter, store.snapshot(), index.snapshot(), order, orderSize,
+                dead, published);
+        deadShared = true;
+    }
+
+    // убирает из order заменённые строки; order снимка не изменяется, создаётся новый массив.
+    // Возвращает длину отсортированной части order после удаления
+    private int removeReplaced(int sortedSize) {
+        rowsReplaced = false;
+        int[] live = new int[order.length];
+        int n = 0;
+        int sorted = 0;
+        for (int i = 0; i < orderSize; i++) {
+            if (isDead(dead, order[i])) continue;
+            live[n++] = order[i];
+            if (i < sortedSize) sorted = n;
+        }
+        order = live;
+        orderSize = n;
+        return sorted;
+    }
+
+    // отмечает строку store как заменённую
+    private void kill(int row) {
+        if (dead == null || deadShared || dead.length <= row >>> 6) {
+            long[] copy = new long[(store.size() + 63) >>> 6];
+            if (dead != null) System.arraycopy(dead, 0, copy, 0, dead.length);
+            dead = copy;
+            deadShared = false;
+        }
+        dead[row >>> 6] |= 1L << row;
+        rowsReplaced = true;
+    }
+
+    static boolean isDead(long[] dead, int row) {
+        return dead != null && (row >>> 6) < dead.length && (dead[row >>> 6] & (1L << row)) != 0;
+    }
+
+    // строит индекс ключей по строкам order, если он ещё не построен
+    private void ensureKeys() {
+        if (keys != null) return;
+        keys = new HistoryKeyIndex();
+        HistoryKeyIndex.Keys current = storeKeys();
+        if (current == null) return;
+        for (int i = 0; i < orderSize; i++) keys.put(current, order[i]);
+    }
+
+    // столбцы ключа store или null, если у строк store нет ключа
+    private HistoryKeyIndex.Keys storeKeys() {
+        if (storeKeys == null || !storeKeys.isCurrent(store)) storeKeys = HistoryKeyIndex.Keys.of(store);
+        return storeKeys;
+    }
+
+    // переносит строки rows[0..count-1] хранилища source в конец store по правилу policy; stored[i] - индекс
+    // строки rows[i] в store или -1, если строка не добавлена (SKIP: ключ уже есть в store или раньше в rows;
+    // REPLACE и MERGE: в rows позже есть строка с тем же ключом). Строка, заменяющая строку store, получает её id,
+    // а заменённая строка отмечается в dead. Остальным строкам назначаются id source (если keepIds и id задан)
+    // или новые id. order не изменяется. Возвращает число добавленных строк; result, если задан, получает
+    // число заменённых строк
+    private int appendKeyed(HistoryStore source, int[] rows, int count, DuplicatePolicy policy, boolean keepIds,
+                            int[] stored, InsertResult result) {
+        if (policy != DuplicatePolicy.ALLOW) ensureKeys();
+        HistoryKeyIndex.Keys sourceKeys = policy == DuplicatePolicy.ALLOW ? null : HistoryKeyIndex.Keys.of(source);
+        HistoryKeyIndex.Keys currentKeys = storeKeys();
+        // строка store с тем же ключом и позиция в rows предыдущей строки с тем же ключом, или -1
+        int[] base = new int[count];
+        int[] previous = new int[count];
+        boolean[] dropped = new boolean[count];
+        Arrays.fill(base, -1);
+        Arrays.fill(previous, -1);
+        if (sourceKeys != null) {
+            HistoryKeyIndex batchKeys = new HistoryKeyIndex();
+            int[] positions = new int[source.size()];
+            // коды словарей source в кодах словарей store; -1 - значения в store нет, совпадений быть не может
+            int[] secidCodes = recode(sourceKeys.secids, store.symbols("secid"));
+            int[] boardCodes = recode(sourceKeys.boards, store.symbols("boardid"));
+            for (int i = 0; i < count; i++) {
+                int row = rows[i];
+                positions[row] = i;
+                int secid = secidCodes[sourceKeys.secids.getCode(row)];
+                int board = boardCodes[sourceKeys.boards.getCode(row)];
+                if (currentKeys != null && secid >= 0 && board >= 0) {
+                    base[i] = keys.find(currentKeys, secid, board, sourceKeys.dates.getEpochDay(row));
+                }
+                if (policy == DuplicatePolicy.SKIP) {
+                    dropped[i] = base[i] >= 0 || batchKeys.putIfAbsent(sourceKeys, row) >= 0;
+                } else {
+                    int earlier = batchKeys.put(sourceKeys, row);
+                    if (earlier >= 0) {
+                        previous[i] = positions[earlier];
+                        dropped[previous[i]] = true;
+                    }
+                }
+            }
+        }
+        int[] accepted = new int[count];
+        long[] ids = new long[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (dropped[i]) {
+                stored[i] = -1;
+                continue;
+            }
+            long id = keepIds ? source.getId(rows[i]) : HistoryBatch.NO_ID;
+            if (base[i] >= 0) id = store.getId(base[i]);
+            ids[n] = id == HistoryBatch.NO_ID ? idCounter++ : id;
+            accepted[n] = rows[i];
+            stored[i] = n++;
+        }
+        if (n == 0) return 0;
+        int start = store.appendRows(source, accepted, n, ids);
+        int replaced = 0;
+        for (int i = 0; i < count; i++) {
+            if (stored[i] < 0) continue;
+            int row = stored[i] += start;
+            if (policy == DuplicatePolicy.MERGE) {
+                // пустые значения берутся из более ранних строк пакета с тем же ключом, затем из строки store
+                for (int p = previous[i]; p >= 0; p = previous[p]) store.mergeEmpty(row, source, rows[p]);
+                if (base[i] >= 0) store.mergeEmpty(row, store, base[i]);
+            }
+            if (base[i] >= 0) {
+                kill(base[i]);
+                replaced++;
+            }
+        }
+        if (keys != null && (currentKeys = storeKeys()) != null) {
+            for (int i = 0; i < n; i++) keys.put(currentKeys, start + i);
+        }
+        if (result != null) result.replaced += replaced;
+        return n;
+    }
+
+    // дописывает в конец порядка сортировки строки stored[0..count-1], кроме -1
+    private void appendOrder(int[] stored, int count) {
+        if (orderSize + count > order.length) {
+            order = Arrays.copyOf(order, Math.max(orderSize + count, order.length + (order.length >> 1)));
+        }
+        for (int i = 0; i < count; i++) {
+            if (stored[i] >= 0) order[orderSize++] = stored[i];
+        }
+    }
+
+    private static int[] recode(HistoryStore.SymbolColumn from, HistoryStore.SymbolColumn to) {
+        int[] codes = new int[from.cardinality()];
+        for (int code = 0; code < codes.length; code++) {
+            codes[code] = to == null ? -1 : to.codeOf(from.decode(code));
+        }
+        return codes;
+    }
+
+    // откладывает строки rows[0..count-1] хранилища source в pending с их id (keepIds) или без id
+    // (HistoryBatch.NO_ID), если id строк source не являются id TempDB
+    private void holdOrphans(HistoryStore source, int[] rows, int count, boolean keepIds) {
+        if (count == 0) return;
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) ids[i] = keepIds ? source.getId(rows[i]) : HistoryBatch.NO_ID;
+        pending.appendRows(source, rows, count, ids);
+    }
+
+    // переносит в store отложенные записи, ценные бумаги которых появились после предыдущей проверки;
+    // result, если задан, получает число перенесённых записей
+    private void releasePending(InsertResult result) {
+        if (pending == null || pending.size() == 0 || securities.size() == pendingCheckedSecurities) return;
+        pendingCheckedSecurities = securities.size();
+        int size = pending.size();
+        int[] released = new int[size];
+        int[] remaining = new int[size];
+        int n = 0;
+        int m = 0;
+        HistoryStore.SymbolColumn secids = pending.symbols("secid");
+        boolean[] known = new boolean[secids == null ? 0 : secids.cardinality()];
+        for (int code = 0; code < known.length; code++) {
+            known[code] = securities.containsKey(secids.decode(code));
+        }
+        for (int row = 0; row < size; row++) {
+            if (secids != null && known[secids.getCode(row)]) {
+                released[n++] = row;
+            } else {
+                remaining[m++] = row;
+            }
+        }
+        if (n == 0) return;
+        int[] stored = new int[n];
+        int appended = appendKeyed(pending, released, n, duplicatePolicy, true, stored, result);
+        appendOrder(stored, n);
+        HistoryStore rest = new HistoryStore(m);
+        long[] ids = new long[m];
+        for (int i = 0; i < m; i++) ids[i] = pending.getId(remaining[i]);
+        rest.appendRows(pending, remaining, m, ids);
+        pending = rest;
+        if (result != null) result.released = appended;
+    }
+
+    // добавляет строку в хранилище и в конец порядка сортировки по правилу duplicatePolicy, возвращает индекс
+    // строки в хранилище или -1, если строка не добавлена (SKIP). Строка, заменяющая строку с тем же ключом,
+    // получает её id, строке без id (HistoryBatch.NO_ID) назначается новый
+    private int appendRow(long id, Map<String, Object> attributes) {
+        int existing = duplicatePolicy == DuplicatePolicy.ALLOW ? -1 : findKey(attributes);
+        if (existing >= 0 && duplicatePolicy == DuplicatePolicy.SKIP) return -1;
+        if (existing >= 0) {
+            id = store.getId(existing);
+        } else if (id == HistoryBatch.NO_ID) {
+            id = idCounter++;
+        }
+        int row = store.append(id, attributes);
+        if (orderSize == order.length) {
+            order = Arrays.copyOf(order, order.length + (order.length >> 1));
+        }
+        order[orderSize++] = row;
+        if (existing >= 0) {
+            if (duplicatePolicy == DuplicatePolicy.MERGE) store.mergeEmpty(row, store, existing);
+            kill(existing);
+        }
+        HistoryKeyIndex.Keys currentKeys = keys == null ? null : storeKeys();
+        if (currentKeys != null) keys.put(currentKeys, row);
+        return row;
+    }
+
+    // строка store с ключом записи attributes или -1
+    private int findKey(Map<String, Object> attributes) {
+        HistoryKeyIndex.Keys currentKeys = storeKeys();
+        if (currentKeys == null) return -1;
+        Object secid = attributes.get("secid");
+        Object boardid = attributes.get("boardid");
+        Object tradedate = attributes.get("tradedate");
+        if (!(secid instanceof String) || !(boardid instanceof String) || tradedate == null || "".equals(tradedate)
+                || !currentKeys.dates.accepts(tradedate)) {
+            return -1;
+        }
+        int secidCode = currentKeys.secids.codeOf((String) secid);
+        int boardCode = currentKeys.boards.codeOf((String) boardid);
+        if (secidCode < 0 || boardCode < 0) return -1;
+        return keys.find(currentKeys, secidCode, boardCode, HistoryStore.DateColumn.epochDay(tradedate));
+    }
+
+    // order[0..sortedSize-1] уже отсортирован, order[sortedSize..orderSize-1] - новые строки: новые строки
+    // сортируются и сливаются с отсортированной частью за линейное время, без повторной сортировки всей истории
+    private void insertSorted(int sortedSize) {
+        if (sortedSize == orderSize) return;
+        HistoryStore.RowOrder rowOrder = store.rowOrder();
+        HistoryStore.sort(order, sortedSize, orderSize, rowOrder);
+        if (sortedSize == 0 || rowOrder.compare(order[sortedSize - 1], order[sortedSize]) <= 0) return;
+        int[] merged = new int[order.length];
+        int i = 0;
+        int j = sortedSize;
+        for (int k = 0; k < orderSize; k++) {
+            if (j >= orderSize || (i < sortedSize && rowOrder.compare(order[i], order[j]) <= 0)) {
+                merged[k] = order[i++];
+            } else {
+                merged[k] = order[j++];
+            }
+        }
+        order = merged;
+    }
+
+    /**
+     * Список записей истории торгов, элементы которого - строки одного хранилища. Позволяет обходить строки
+     * хранилища напрямую, без создания объектов HistoryEntry.
+     */
+    interface RowView {
+        HistoryStore store();
+
+        // индекс строки хранилища для элемента списка index
+        int rowAt(int index);
+    }
+
+    /**
+     * Неизменяемый снимок TempDB: записи истории торгов и ценные бумаги, опубликованные одним пакетом записи.
+     * Методы снимка не блокируются и всегда возвращают одни и те же данные, сколько бы записей ни было добавлено
+     * в TempDB после его создания.
+     */
+    public final class Snapshot {
+        private final long version;
+        // значение idCounter на момент публикации
+        private final long nextId;
+        private final HistoryStore store;
+        private final HistoryIndex index;
+        private final int[] order;
+        private final int orderSize;
+        // заменённые строки хранилища (см. TempDB.isDead); они остаются в индексах, но не в order
+        private final long[] dead;
+        private final Map<String, SecurityPaper> securities;
+        private final List<HistoryEntry> histories;
+
+        private Snapshot(long version, long nextId, HistoryStore store, HistoryIndex index, int[] order,
+                         int orderSize, long[] dead, Map<String, SecurityPaper> securities) {
+            this.version = version;
+            this.nextId = nextId;
+            this.store = store;
+            this.index = index;
+            this.order = order;
+            this.orderSize = orderSize;
+            this.dead = dead;
+            this.securities = securities;
+            this.histories = new HistoryView();
+        }
+
+        /**
+         * Номер версии снимка; снимки, опубликованные позже, имеют больший номер.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        HistoryIndex index() {
+            return index;
+        }
+
+        // false, если строка хранилища row заменена и в записи снимка не входит
+        boolean isLive(int row) {
+            return !isDead(dead, row);
+        }
+
+        /**
+         * Возвращает записи истории торгов снимка в порядке сортировки; список доступен только для чтения.
+         */
+        public List<HistoryEntry> getHistories() {
+            return histories;
+        }
+
+        /**
+         * Возвращает ценные бумаги снимка по secid; карта доступна только для чтения.
+         */
+        public Map<String, SecurityPaper> getSecurities() {
+            return securities;
+        }
+
+        /**
+         * См. TempDB.getPreparedList.
+         */
+        public LinkedList<HashMap<String, Object>> getPreparedList(String... attributes) {
+            LinkedList<HashMap<String, Object>> result = new LinkedList<>();
+            Projection.Cursor cursor = select(attributes).cursor();
+            while (cursor.next()) {
+                result.add(cursor.toMap());
+            }
+            return result;
+        }
+
+        /**
+         * См. TempDB.select.
+         */
+        public Projection select(String... attributes) {
+            return new Projection(this, attributes);
+        }
+
+        /**
+         * См. TempDB.aggregate.
+         */
+        public List<Aggregation.Group> aggregate(Aggregation query) {
+            Instrumentation.Timing timing = Instrumentation.start("aggregate");
+            List<Aggregation.Group> groups = query.run(histories);
+            timing.stop(groups.size());
+            return groups;
+        }
+
+        /**
+         * См. TempDB.find.
+         */
+        public List<HistoryEntry> find(String secid, String boardid, LocalDate from, LocalDate to) {
+            if (secid == null && boardid == null && from == null && to == null) return getHistories();
+            Instrumentation.Timing timing = Instrumentation.start("find");
+            List<HistoryEntry> result = findRows(secid, boardid, from, to);
+            timing.stop(result.size());
+            return result;
+        }
+
+        private List<HistoryEntry> findRows(String secid, String boardid, LocalDate from, LocalDate to) {
+            HistoryStore.SymbolColumn secids = store.symbols("secid");
+            HistoryStore.SymbolColumn boards = store.symbols("boardid");
+            HistoryStore.DateColumn dates = store.dates("tradedate");
+            int secidCode = secid == null || secids == null ? -1 : secids.codeOf(secid);
+            int boardCode = boardid == null || boards == null ? -1 : boards.codeOf(boardid);
+            boolean byDate = from != null || to != null;
+            int fromDay = from == null ? Integer.MIN_VALUE + 1 : (int) from.toEpochDay();
+            int toDay = to == null ? Integer.MAX_VALUE : (int) to.toEpochDay();
+            if ((secid != null && secidCode < 0) || (boardid != null && boardCode < 0) || (byDate && dates == null)) {
+                return new RowList(new int[0]);
+            }
+
+            // кандидаты берутся из самого избирательного индекса, остальные условия проверяются по столбцам
+            int[] candidates;
+            boolean sortedByDate = false;
+            if (secid != null && (!byDate || index.countBySecid(secidCode) <= index.countByDate(fromDay, toDay))) {
+                candidates = index.rowsBySecid(secidCode);
+            } else if (byDate) {
+                candidates = index.rowsByDate(fromDay, toDay);
+                sortedByDate = true;
+            } else {
+                candidates = index.rowsByBoard(boardCode);
+            }
+            int n = 0;
+            for (int row : candidates) {
+                if (isDead(dead, row)) continue;
+                if (secid != null && secids.getCode(row) != secidCode) continue;
+                if (boardid != null && boards.getCode(row) != boardCode) continue;
+                if (byDate) {
+                    int day = dates.getEpochDay(row);
+                    if (dates.isEmpty(row) || day < fromDay || day > toDay) continue;
+                }
+                candidates[n++] = row;
+            }
+            int[] rows = Arrays.copyOf(candidates, n);
+            if (byDate && !sortedByDate) {
+                long[] keys = new long[n];
+                for (int i = 0; i < n; i++) keys[i] = ((long) dates.getEpochDay(rows[i]) << 32) | rows[i];
+                Arrays.sort(keys);
+                for (int i = 0; i < n; i++) rows[i] = (int) keys[i];
+            }
+            return new RowList(rows);
+        }
+
+        // результат поиска: список только для чтения поверх массива индексов строк хранилища
+        private class RowList extends AbstractList<HistoryEntry> implements RandomAccess, RowView {
+            private final int[] rows;
+
+            RowList(int[] rows) {
+                this.rows = rows;
+            }
+
+            @Override
+            public HistoryStore store() {
+                return store;
+            }
+
+            @Override
+            public int rowAt(int index) {
+                return rows[index];
+            }
+
+            @Override
+            public HistoryEntry get(int index) {
+                return new HistoryEntry(Snapshot.this, rows[index]);
+            }
+
+            @Override
+            public int size() {
+                return rows.length;
+            }
+
+            @Override
+            public List<HistoryEntry> subList(int fromIndex, int toIndex) {
+                return new RowRange(this, fromIndex, toIndex);
+            }
+        }
+
+        // список histories только для чтения поверх order снимка; HistoryEntry создаются при обращении к элементу
+        private class HistoryView extends AbstractList<HistoryEntry> implements RandomAccess, RowView {
+
+            @Override
+            public HistoryStore store() {
+                return store;
+            }
+
+            @Override
+            public int rowAt(int index) {
+                return order[index];
+            }
+
+            @Override
+            public HistoryEntry get(int index) {
+                if (index < 0 || index >= orderSize) throw new IndexOutOfBoundsException("Index: " + index);
+                return new HistoryEntry(Snapshot.this, order[index]);
+            }
+
+            @Override
+            public int size() {
+                return orderSize;
+            }
+
+            @Override
+            public List<HistoryEntry> subList(int fromIndex, int toIndex) {
+                return new RowRange(this, fromIndex, toIndex);
+            }
+        }
+
+        // подсписок списка строк хранилища (страница результата): строки по-прежнему доступны через rowAt
+        private class RowRange extends AbstractList<HistoryEntry> implements RandomAccess, RowView {
+            private final RowView rows;
+            private final int offset;
+            private final int size;
+
+            RowRange(List<HistoryEntry> rows, int fromIndex, int toIndex) {
+                if (fromIndex < 0 || toIndex > rows.size() || fromIndex > toIndex) {
+                    throw new IndexOutOfBoundsException("fromIndex: " + fromIndex + ", toIndex: " + toIndex
+                            + ", size: " + rows.size());
+                }
+                this.rows = (RowView) rows;
+                this.offset = fromIndex;
+                this.size = toIndex - fromIndex;
+            }
+
+            @Override
+            public HistoryStore store() {
+                return store;
+            }
+
+            @Override
+            public int rowAt(int index) {
+                return rows.rowAt(offset + index);
+            }
+
+            @Override
+            public HistoryEntry get(int index) {
+                if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index);
+                return new HistoryEntry(Snapshot.this, rowAt(index));
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public List<HistoryEntry> subList(int fromIndex, int toIndex) {
+                return new RowRange(this, fromIndex, toIndex);
+            }
+        }
+    }
+
+    /**
+     * Обработка записи истории торгов, ключ которой (SECID, BOARDID, TRADEDATE) уже есть в TempDB.
+     */
+    public enum DuplicatePolicy {
+        // запись добавляется как отдельная запись (поведение add по умолчанию)
+        ALLOW,
+        // запись не добавляется, остаётся имеющаяся
+        SKIP,
+        // запись заменяет имеющуюся и получает её id
+        REPLACE,
+        // запись заменяет имеющуюся и получает её id; пустые значения записи берутся из имеющейся
+        MERGE
+    }
+
+    /**
+     * Результат пакетного добавления insert: число записей истории торгов пакета, принятых, не принятых из-за
+     * отсутствия ценной бумаги (из них отложенных) и не принятых как повторяющиеся, число заменённых записей TempDB,
+     * а также число ранее отложенных записей, добавленных вместе с пакетом.
+     */
+    public static final class InsertResult {
+        private int accepted;
+        private int orphaned;
+        private int held;
+        private int duplicates;
+        private int replaced;
+        private int released;
+
+        public int getAccepted() {
+            return accepted;
+        }
+
+        /**
+         * Записи пакета, для которых нет ценной бумаги в TempDB.
+         */
+        public int getOrphaned() {
+            return orphaned;
+        }
+
+        /**
+         * Записи из getOrphaned, отложенные до появления ценной бумаги (см. setHoldOrphans).
+         */
+        public int getHeld() {
+            return held;
+        }
+
+        /**
+         * Записи, не принятые как повторяющиеся: при правиле SKIP (и ALLOW) - записи с ключом (SECID, BOARDID,
+         * TRADEDATE), который уже есть в TempDB или встречается раньше в пакете, при REPLACE и MERGE - записи,
+         * ключ которых встречается позже в пакете.
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Записи TempDB, заменённые записями пакета или отложенными записями (правила REPLACE и MERGE).
+         */
+        public int getReplaced() {
+            return replaced;
+        }
+
+        /**
+         * Ранее отложенные записи, добавленные в TempDB, так как их ценные бумаги есть в пакете.
+         */
+        public int getReleased() {
+            return released;
+        }
+
+        @Override
+        public String toString() {
+            return "accepted=" + accepted + ", orphaned=" + orphaned + " (held " + held + "), duplicates=" + duplicates
+                    + ", replaced=" + replaced + ", released=" + released;
+        }
+    }
+
+    /**
+     * Класс содержит, обрабатывает и предоставляет данные о конкретной ценной бумаге. Карта атрибутов бумаги
+     * не изменяется после публикации: setInfo заменяет её изменённой копией, поэтому читатели из других потоков
+     * всегда видят согласованный набор атрибутов.
      */
     public class SecurityPaper {
         // уникальный id ценной бумаги состоящий из букв
         private final String secid;
         // карта аттрибутов (key) и их значений (value) для данной ценной бумаги
-        private HashMap<String, Object> info;
+        private volatile HashMap<String, Object> info;
 
         public SecurityPaper(@NotNull String secid, HashMap<String, Object> secInfo) {
-            this.secid = secid;
-            info = secInfo;
+            this.secid = SymbolTable.intern(secid);
+            info = new LinkedHashMap<>(secInfo);
         }
 
         public String getSecid() {
@@ -127,10 +1315,16 @@ public class TempDB {
         }
 
         /**
-         * Возвращает HashMap всех аттрибутов (key) и их значений (value) для конкретной ценной бумаги
+         * Возвращает HashMap всех аттрибутов (key) и их значений (value) для конкретной ценной бумаги.
+         * Возвращается копия: её изменение не влияет на данные TempDB.
          * @return
          */
         public HashMap<String, Object> getInfo() {
+            return new LinkedHashMap<>(info);
+        }
+
+        // текущая карта атрибутов; не изменяется, поэтому её можно читать без копирования
+        Map<String, Object> info() {
             return info;
         }
 
@@ -139,8 +1333,10 @@ public class TempDB {
          *
          * @param info данные вида аттрибут (key) - значение аттрибута (value) коотрые необходимо внести или заменить
          */
-        public void setInfo(HashMap<String, Object> info) {
-            this.info.putAll(info);
+        public synchronized void setInfo(HashMap<String, Object> info) {
+            HashMap<String, Object> updated = new LinkedHashMap<>(this.info);
+            updated.putAll(info);
+            this.info = updated;
         }
 
         /**
@@ -149,12 +1345,13 @@ public class TempDB {
          * @return
          */
         public String getXMLRow() {
+            HashMap<String, Object> info = this.info;
             StringBuilder row = new StringBuilder();
             row.append("<row");
             row.append(" ");
             for (String key : info.keySet()) {
-                // заменяются ковычки-лапки на используемую в XML запись &quot
-                String value = info.get(key).toString().replace("\"", "&quot");
+                // специальные символы XML заменяются ссылками на сущности
+                String value = XMLWriter.escape(String.valueOf(info.get(key)));
                 row.append(key + "=" + "\"" + value + "\"");
                 row.append(" ");
             }
@@ -166,13 +1363,19 @@ public class TempDB {
     /**
      * Класс содержит, обрабатывает и предоставляет данные об одной конкретной записи в истории торгов.
      * Невозможно создать HistoryEntry, если бумаги, упоминающейся в ней (проверяется поле secid), нет в списке ценных бумаг
-     * (переменная securities).
+     * (переменная securities). HistoryEntry, полученный из TempDB, не хранит данных сам, а является представлением
+     * строки колоночного хранилища в том снимке TempDB, из которого он получен.
      */
 
     public class HistoryEntry {
         private final long id;
         private final String secid;
+        // снимок, к хранилищу которого относится row; null, пока запись не добавлена в TempDB
+        private Snapshot source;
+        // индекс строки в хранилище; -1, пока запись не добавлена в TempDB
+        private int row;
         private SecurityPaper security;
+        // атрибуты записи, ещё не добавленной в TempDB
         private LinkedHashMap<String, Object> attributes;
 
         /**
@@ -189,15 +1392,34 @@ public class TempDB {
             this.attributes = attributes;
             this.secid = this.security.getSecid();
             this.id = id;
+            this.row = -1;
+        }
+
+        // представление строки row колоночного хранилища снимка source
+        private HistoryEntry(Snapshot source, int row) {
+            this.source = source;
+            this.row = row;
+            this.id = source.store.getId(row);
+            this.secid = (String) source.store.get(row, "secid");
+        }
+
+        // после добавления в TempDB данные записи хранятся только в хранилище
+        private void attach(Snapshot source, int row) {
+            this.source = source;
+            this.row = row;
+            this.attributes = null;
         }
 
         public LinkedHashMap<String, Object> getAttributes(String... attribute) {
             LinkedHashMap<String, Object> result = new LinkedHashMap<>();
+            HashMap<String, Object> info = getSecurity().info;
             for (String att : attribute) {
-                if (security.getInfo().containsKey(att)) {
-                    Object value = security.getInfo().get(att);
+                if (info.containsKey(att)) {
+                    Object value = info.get(att);
                     result.put(att, value);
-                } else if (attributes.containsKey(att)) {
+                } else if (row >= 0 && source.store.hasColumn(att)) {
+                    result.put(att, source.store.get(row, att));
+                } else if (row < 0 && attributes.containsKey(att)) {
                     Object value = attributes.get(att);
                     result.put(att, value);
                 }
@@ -205,17 +1427,29 @@ public class TempDB {
             return result;
         }
 
+        /**
+         * Возвращает значение одного атрибута записи или null, если такого атрибута нет. Как и в getAttributes,
+         * атрибуты ценной бумаги имеют приоритет над атрибутами записи. Значение читается из хранилища напрямую,
+         * без сборки карты атрибутов.
+         */
+        public Object get(String attribute) {
+            SecurityPaper security = getSecurity();
+            if (security != null && security.info.containsKey(attribute)) return security.info.get(attribute);
+            return row >= 0 ? source.store.get(row, attribute) : attributes.get(attribute);
+        }
+
         /**
          * Формирует все данные о записи истории торгов в объект String предстваляющий XML-строку вида
          * <row attribute="value" />.
          */
 
         public String getXMLRow() {
+            Map<String, Object> attributes = getAllAttributes();
             StringBuilder row = new StringBuilder();
             row.append("<row");
             row.append(" ");
             for (String key : attributes.keySet()) {
-                String value = attributes.get(key).toString().replace("\"", "&quot");
+                String value = XMLWriter.escape(String.valueOf(attributes.get(key)));
                 row.append(key + "=" + "\"" + value + "\"");
                 row.append(" ");
             }
@@ -223,11 +1457,25 @@ public class TempDB {
             return row.toString();
         }
 
+        /**
+         * Возвращает все атрибуты записи. Для записи из TempDB карта собирается из хранилища заново при каждом
+         * вызове, и её изменение не влияет на данные TempDB.
+         */
         public Map<String, Object> getAllAttributes() {
-            return attributes;
+            return row >= 0 ? source.store.getAll(row) : attributes;
+        }
+
+        // хранилище, строкой которого является запись, или null, если запись ещё не добавлена в TempDB
+        HistoryStore store() {
+            return row >= 0 ? source.store : null;
+        }
+
+        int row() {
+            return row;
         }
 
         public SecurityPaper getSecurity() {
+            if (security == null) security = source.securities.get(secid);
             return security;
         }
 
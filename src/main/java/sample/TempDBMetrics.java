@@ -0,0 +1,66 @@
+package sample;
+
+import com.sun.istack.internal.NotNull;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Метрики размера TempDB для Micrometer; значения читаются из последнего снимка TempDB при каждом опросе реестра:
+ * <ul>
+ * <li>moex.tempdb.rows, moex.tempdb.securities - число записей истории торгов и ценных бумаг;</li>
+ * <li>moex.tempdb.version - номер версии снимка (растёт с каждым опубликованным пакетом);</li>
+ * <li>moex.tempdb.store.bytes - приблизительный объём массивов колоночного хранилища;</li>
+ * <li>moex.tempdb.index.rows, moex.tempdb.index.secid.ranges, moex.tempdb.index.bytes - число проиндексированных
+ * строк, диапазонов строк индекса SECID и объём массивов вторичных индексов.</li>
+ * </ul>
+ * Тег db различает несколько баз данных в одном реестре. Метрики этапов загрузки и запросов - см. MicrometerRecorder.
+ */
+
+public class TempDBMetrics implements MeterBinder {
+    private final TempDB tempDB;
+    private final String name;
+
+    public TempDBMetrics(@NotNull TempDB tempDB) {
+        this(tempDB, "tempdb");
+    }
+
+    /**
+     * @param tempDB база данных
+     * @param name   значение тега db
+     */
+    public TempDBMetrics(@NotNull TempDB tempDB, @NotNull String name) {
+        this.tempDB = tempDB;
+        this.name = name;
+    }
+
+    @Override
+    public void bindTo(@NotNull MeterRegistry registry) {
+        gauge(registry, "moex.tempdb.rows", "Записи истории торгов", null,
+                s -> s.getHistories().size());
+        gauge(registry, "moex.tempdb.securities", "Ценные бумаги", null,
+                s -> s.getSecurities().size());
+        gauge(registry, "moex.tempdb.version", "Версия опубликованного снимка", null,
+                TempDB.Snapshot::getVersion);
+        gauge(registry, "moex.tempdb.store.bytes", "Объём массивов колоночного хранилища", "bytes",
+                s -> ((TempDB.RowView) s.getHistories()).store().byteSize());
+        gauge(registry, "moex.tempdb.index.rows", "Строки, учтённые во вторичных индексах", null,
+                s -> s.index().indexedRows());
+        gauge(registry, "moex.tempdb.index.secid.ranges", "Диапазоны строк индекса SECID", null,
+                s -> s.index().secidRanges());
+        gauge(registry, "moex.tempdb.index.bytes", "Объём массивов вторичных индексов", "bytes",
+                s -> s.index().byteSize());
+    }
+
+    // датчик хранит слабую ссылку на TempDB и не мешает его сборке мусора
+    private void gauge(MeterRegistry registry, String meter, String description, String unit,
+                       ToDoubleFunction<TempDB.Snapshot> value) {
+        Gauge.builder(meter, tempDB, db -> value.applyAsDouble(db.snapshot()))
+                .description(description)
+                .baseUnit(unit)
+                .tag("db", name)
+                .register(registry);
+    }
+}
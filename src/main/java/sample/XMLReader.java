@@ -5,8 +5,6 @@ import com.sun.istack.internal.NotNull;
 import javax.xml.stream.*;
 import javax.xml.stream.events.XMLEvent;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.io.*;
 
@@ -17,11 +15,21 @@ import java.io.*;
  */
 
 public class XMLReader {
-    private static String filePath;
+    private String filePath;
     private DATA_ID dataId;
-    private HashMap<String, String> types;
+    // декодеры столбцов по имени в нижнем регистре - для атрибутов, порядок которых не совпадает с <columns>
+    private HashMap<String, ColumnDecoder> types;
+    // декодеры столбцов в порядке их объявления в блоке <columns>
+    private ArrayList<ColumnDecoder> columns;
+    private ColumnDecoder[] decoders;
     private LinkedList<Record> records;
     private XMLStreamReader stream;
+    // получатель строк в потоковом режиме; null, если строки накапливаются в records
+    private RowListener listener;
+    // единственный переиспользуемый объект Record потокового режима
+    private Record reusableRecord;
+    // значения блока курсора (INDEX, TOTAL, PAGESIZE) или null, если в файле его нет
+    private PageCursor cursor;
 
     /**
      * Создание объекта XMLReader по ссылке на файл
@@ -31,7 +39,7 @@ public class XMLReader {
      * @throws XMLStreamException    прочитать файл не удаётся
      */
     public XMLReader(@NotNull String filePath) throws FileNotFoundException, XMLStreamException, ParseException {
-        XMLReader.filePath = filePath;
+        this.filePath = filePath;
         records = new LinkedList<>();
         stream = getStream();
         types = new HashMap<>();
@@ -55,7 +63,7 @@ public class XMLReader {
      */
     public XMLReader(@NotNull File file) throws XMLStreamException, FileNotFoundException, ParseException {
         dataId = null;
-        XMLReader.filePath = file.getAbsolutePath();
+        this.filePath = file.getAbsolutePath();
         records = new LinkedList();
         types = new HashMap<>();
         stream = getStream();
@@ -70,32 +78,138 @@ public class XMLReader {
         stream.close();
     }
 
-    private static XMLStreamReader getStream() throws FileNotFoundException, XMLStreamException {
+    /**
+     * Создание объекта XMLReader в потоковом режиме: записи не накапливаются в памяти, а передаются в listener
+     * по одной сразу после чтения строки <row /> из файла. Для всех строк используется один и тот же объект Record,
+     * поэтому listener должен скопировать нужные данные до возврата из onRow. Метод getRecords() в этом режиме
+     * возвращает пустой список.
+     *
+     * @param file     объект java.io.File
+     * @param listener получатель записей
+     * @throws XMLStreamException    прочитать файл не удаётся
+     * @throws FileNotFoundException файл не найден
+     */
+    public XMLReader(@NotNull File file, @NotNull RowListener listener) throws XMLStreamException, FileNotFoundException, ParseException {
+        dataId = null;
+        this.filePath = file.getAbsolutePath();
+        records = new LinkedList<>();
+        types = new HashMap<>();
+        this.listener = listener;
+        reusableRecord = new Record();
+        readStream();
+    }
+
+    // объект без чтения файла; файл читается вызывающим методом через readStream или MappedXMLScanner
+    private XMLReader(String filePath, RowListener listener) {
+        this.filePath = filePath;
+        records = new LinkedList<>();
+        types = new HashMap<>();
+        this.listener = listener;
+        if (listener != null) reusableRecord = new Record();
+    }
+
+    /**
+     * Создание объекта XMLReader с чтением файла через отображение в память (FileChannel.map) вместо StAX.
+     * Байты файла разбираются напрямую по фиксированной структуре файлов MOEX ISS, строки создаются только
+     * для строковых столбцов. Результат (DATA_ID и записи) совпадает с чтением через конструктор XMLReader(File).
+     * Файлы, которые нельзя разобрать напрямую (кодировка, отличная от UTF-8, DOCTYPE, размер более 2 ГБ),
+     * читаются через StAX.
+     *
+     * @param file объект java.io.File
+     * @throws XMLStreamException    прочитать файл не удаётся
+     * @throws FileNotFoundException файл не найден
+     */
+    public static XMLReader mapped(@NotNull File file) throws XMLStreamException, FileNotFoundException, ParseException {
+        return mapped(file, null);
+    }
+
+    /**
+     * То же, что mapped(File), в потоковом режиме: каждая запись передаётся в listener (см. XMLReader(File, RowListener)).
+     *
+     * @param file     объект java.io.File
+     * @param listener получатель записей или null для накопления записей в getRecords()
+     * @throws XMLStreamException    прочитать файл не удаётся
+     * @throws FileNotFoundException файл не найден
+     */
+    public static XMLReader mapped(@NotNull File file, RowListener listener) throws XMLStreamException, FileNotFoundException, ParseException {
+        XMLReader reader = new XMLReader(file.getAbsolutePath(), listener);
+        try {
+            new MappedXMLScanner(reader).scan(file);
+        } catch (MappedXMLScanner.UnsupportedLayoutException e) {
+            // неподдерживаемые конструкции обнаруживаются до первой строки <row />, поэтому файл читается заново
+            reader.readStream();
+        }
+        return reader;
+    }
+
+    private void readStream() throws FileNotFoundException, XMLStreamException, ParseException {
+        stream = getStream();
+        try {
+            while (stream.hasNext()) {
+                if (stream.next() == XMLEvent.START_ELEMENT) {
+                    if (dataId == null) parseDataId();
+                    parseTypes();
+                    parseRows();
+                }
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private XMLStreamReader getStream() throws FileNotFoundException, XMLStreamException {
         return XMLInputFactory.newInstance().createXMLStreamReader(filePath, new FileInputStream(filePath));
     }
 
+    // для каждого столбца из блока <metadata><columns> создаётся декодер значений; начало нового блока <columns>
+    // сбрасывает позиционный массив декодеров
     private void parseTypes() {
-        if ("column".equals(stream.getLocalName())) {
+        if ("columns".equals(stream.getLocalName())) {
+            columns = new ArrayList<>();
+            decoders = null;
+        } else if ("column".equals(stream.getLocalName())) {
             String name = "";
             String type = "";
             for (int i = 0; i < stream.getAttributeCount(); i++) {
                 if ("name".equalsIgnoreCase(stream.getAttributeName(i).toString())) {
-                    name = stream.getAttributeValue(i).trim().toLowerCase();
+                    name = stream.getAttributeValue(i);
                 } else if ("type".equalsIgnoreCase(stream.getAttributeName(i).toString())) {
                     type = stream.getAttributeValue(i);
                 }
             }
-            switch (name) {
+            ColumnDecoder decoder = ColumnDecoder.forType(name, type);
+            if (columns == null) columns = new ArrayList<>();
+            columns.add(decoder);
+            switch (decoder.name) {
                 case "INDEX":
                 case "TOTAL":
                 case "PAGESIZE":
                     break;
                 default:
-                    types.put(name, type);
+                    types.put(decoder.name, decoder);
             }
         }
     }
 
+    // возвращает декодер для i-го атрибута текущей строки: если имя атрибута совпадает со столбцом на той же
+    // позиции в <columns> (обычный случай для файлов MOEX), декодер берётся из массива без поиска по имени
+    private ColumnDecoder decoderAt(int i) {
+        if (decoders == null) {
+            decoders = columns == null ? new ColumnDecoder[0] : columns.toArray(new ColumnDecoder[0]);
+        }
+        String localName = stream.getAttributeLocalName(i);
+        if (i < decoders.length && decoders[i].sourceName.equals(localName)) {
+            return decoders[i];
+        }
+        ColumnDecoder decoder = types.get(localName.toLowerCase());
+        if (decoder == null) {
+            // атрибут не описан в <columns>: значение сохраняется как строка
+            decoder = ColumnDecoder.forType(localName, "string");
+            types.put(decoder.name, decoder);
+        }
+        return decoder;
+    }
+
     /**
      * Возвращает все записи Record полученные из файла
      *
@@ -115,63 +229,129 @@ public class XMLReader {
         return dataId;
     }
 
+    /**
+     * Определяет тип данных файла по первому элементу <data>, не читая записей.
+     *
+     * @param file объект java.io.File
+     * @return тип данных файла
+     * @throws IOException        файл не найден или не читается
+     * @throws XMLStreamException элемент <data> не найден или тип данных неизвестен
+     */
+    public static DATA_ID peekDataId(@NotNull File file) throws IOException, XMLStreamException {
+        try (InputStream in = new FileInputStream(file)) {
+            XMLStreamReader stream = XMLInputFactory.newInstance().createXMLStreamReader(file.getAbsolutePath(), in);
+            try {
+                while (stream.hasNext()) {
+                    if (stream.next() == XMLEvent.START_ELEMENT && "data".equals(stream.getLocalName())) {
+                        return dataIdOf(stream.getAttributeValue(0));
+                    }
+                }
+            } finally {
+                stream.close();
+            }
+        }
+        throw new XMLStreamException("Элемент <data> не найден: " + file);
+    }
+
     // определяет, какого типа данные содержит файл - информация о ценных бумагах или записи о ходе торгов
     private void parseDataId() throws XMLStreamException {
         if ("data".equals(stream.getLocalName())) {
-            String id = stream.getAttributeValue(0);
-            switch (id) {
-                case "history":
-                    dataId = DATA_ID.HISTORY;
-                    break;
-                case "securities":
-                    dataId = DATA_ID.SECURITIES;
-                    break;
-                default:
-                    throw new XMLStreamException();
-            }
+            dataId = dataIdOf(stream.getAttributeValue(0));
+        }
+    }
+
+    static DATA_ID dataIdOf(String id) throws XMLStreamException {
+        switch (id) {
+            case "history":
+                return DATA_ID.HISTORY;
+            case "securities":
+                return DATA_ID.SECURITIES;
+            default:
+                throw new XMLStreamException();
+        }
+    }
+
+    void setDataId(DATA_ID dataId) {
+        this.dataId = dataId;
+    }
+
+    /**
+     * Возвращает значения блока курсора (<data id="history.cursor">) ответа MOEX ISS: номер первой записи страницы,
+     * общее число записей и размер страницы.
+     *
+     * @return курсор или null, если в файле нет блока курсора
+     */
+    public PageCursor getCursor() {
+        return cursor;
+    }
+
+    // значение одного столбца строки курсора; пустые и нечисловые значения не меняют курсор
+    void putCursor(String name, String value) {
+        long number;
+        try {
+            number = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (cursor == null) cursor = new PageCursor();
+        switch (name.toLowerCase()) {
+            case "index":
+                cursor.index = number;
+                break;
+            case "total":
+                cursor.total = number;
+                break;
+            case "pagesize":
+                cursor.pageSize = number;
+                break;
+        }
+    }
+
+    // объект Record для очередной строки: в потоковом режиме - очищенный переиспользуемый, иначе новый
+    Record nextRecord() {
+        if (listener != null) {
+            reusableRecord.attributes.clear();
+            return reusableRecord;
+        }
+        return new Record();
+    }
+
+    // передача заполненной записи получателю или в список records
+    void emit(Record record) {
+        if (listener != null) {
+            listener.onRow(dataId, record);
+        } else {
+            records.add(record);
         }
     }
 
     // извлекает из файла и обрабатывает только строки обозначеные тегом <row />, представляющие полезную информацию.
-    // Технические данные файла, также записаные в этих тегах, игнорируются
+    // Технические данные файла, также записаные в этих тегах, в записи не попадают и сохраняются в cursor
     private void parseRows() throws ParseException {
         if ("row".equals(stream.getLocalName())) {
             if (stream.getAttributeName(0).toString().equalsIgnoreCase("index")
                     || stream.getAttributeName(0).toString().equalsIgnoreCase("pagesize")
-                    || stream.getAttributeName(0).toString().equalsIgnoreCase("total")) return;
+                    || stream.getAttributeName(0).toString().equalsIgnoreCase("total")) {
+                for (int i = 0; i < stream.getAttributeCount(); i++) {
+                    putCursor(stream.getAttributeLocalName(i), stream.getAttributeValue(i));
+                }
+                return;
+            }
 
             // для каждой строки <row />, содержащей полезную информацию, создаётся объект внутреннего класса Record,
-            // в который заносятся все атрибуты и их значения, содержащиеся в XML-строке
-            Record record = new Record();
+            // в который заносятся все атрибуты и их значения, содержащиеся в XML-строке; в потоковом режиме
+            // вместо создания нового объекта очищается переиспользуемый
+            Record record = nextRecord();
             String attName = "";
             Object attValue;
             for (int i = 0; i < stream.getAttributeCount(); i++) {
-                // имя атрибута сверяется с types, и создаётся нужный объект для данных
-                // (Date для даты, Integer или Double для цифр и т.д.)
-                attName = stream.getAttributeName(i).toString().toLowerCase();
-                if (!stream.getAttributeValue(i).equals("")) {
-                        // переменной для исходных данных для последующей обработки
-                        String inputValue = stream.getAttributeValue(i);
-                        // в соответствии с types для атрибута задаётся свой объект для данных
-                        switch (types.get(attName)) {
-                            case "int32":
-                                attValue = Integer.parseInt(inputValue);
-                                break;
-                            case "date":
-                                //TODO  неправильно форматирует дату
-                                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-                                attValue = sdf.parse(inputValue);
-                                break;
-                            case "double":
-                                attValue = Double.parseDouble(inputValue);
-                                break;
-                            default:
-                                attValue = inputValue;
-                        }
-                } else {
-                    attValue = stream.getAttributeValue(i);
-                }
-                record.putAttribute(attName, attValue);
+                // значение атрибута преобразуется декодером его столбца в нужный объект для данных
+                // (LocalDate для даты, Integer или Double для цифр и т.д.)
+                ColumnDecoder decoder = decoderAt(i);
+                attName = decoder.name;
+                String inputValue = stream.getAttributeValue(i);
+                attValue = inputValue.isEmpty() ? inputValue : decoder.decode(inputValue);
+                record.putDecoded(attName, attValue);
             }
 
             switch (attName) {
@@ -180,11 +360,70 @@ public class XMLReader {
                 case "total":
                     break;
                 default:
-                    records.add(record);
+                    emit(record);
             }
         }
     }
 
+    /**
+     * Получатель записей для потокового режима чтения файла.
+     */
+    public interface RowListener {
+
+        /**
+         * Вызывается один раз для каждой строки <row /> с полезной информацией.
+         *
+         * @param dataId тип данных файла
+         * @param record запись, действительная только до возврата из метода
+         */
+        void onRow(DATA_ID dataId, Record record);
+    }
+
+    /**
+     * Курсор страницы ответа MOEX ISS. Следующая страница запрашивается с параметром start = index + pageSize,
+     * пока start меньше total.
+     */
+    public static final class PageCursor {
+        private long index;
+        private long total;
+        private long pageSize;
+
+        // курсор с заданными значениями (например, прочитанный из кэша разбора)
+        static PageCursor of(long index, long total, long pageSize) {
+            PageCursor cursor = new PageCursor();
+            cursor.index = index;
+            cursor.total = total;
+            cursor.pageSize = pageSize;
+            return cursor;
+        }
+
+        /**
+         * Номер (от 0) первой записи страницы.
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        /**
+         * Общее число записей по запросу.
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Число записей на странице.
+         */
+        public long getPageSize() {
+            return pageSize;
+        }
+
+        @Override
+        public String toString() {
+            return "INDEX=" + index + " TOTAL=" + total + " PAGESIZE=" + pageSize;
+        }
+    }
+
     public enum DATA_ID {
         SECURITIES,
         HISTORY
@@ -207,6 +446,11 @@ public class XMLReader {
 
         }
 
+        // добавление значения под уже приведённым к нижнему регистру именем
+        void putDecoded(String attName, Object attValue) {
+            attributes.put(attName, attValue);
+        }
+
         public Object getAttributeValue(String attName) {
             if (attributes.containsKey(attName.toLowerCase())) {
                 return attributes.get(attName.toLowerCase());
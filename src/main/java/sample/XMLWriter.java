@@ -1,40 +1,574 @@
 package sample;
 
-import javax.xml.stream.*;
-import javax.xml.stream.events.XMLEvent;
-import java.io.*;
+import com.sun.istack.internal.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Запись данных TempDB в XML-файл в формате MOEX ISS:
+ * <pre>
+ * &lt;document&gt;
+ * &lt;data id="history"&gt;
+ * &lt;metadata&gt;&lt;columns&gt;&lt;column name="SECID" type="string" /&gt;...&lt;/columns&gt;&lt;/metadata&gt;
+ * &lt;rows&gt;&lt;row SECID="..." ... /&gt;...&lt;/rows&gt;
+ * &lt;/data&gt;
+ * &lt;/document&gt;
+ * </pre>
+ * Один вызов writeHistory или writeSecurities записывает один документ. Данные пишутся потоково: значения
+ * столбцов хранилища переводятся в байты UTF-8 прямо в переиспользуемый буфер, без создания строк для записей
+ * и значений, а заполненный буфер передаётся в канал. Записанный файл читается XMLReader с теми же значениями.
+ */
 
 public class XMLWriter {
-    private String outputFilePath;
-    private XMLStreamReader reader;
-    private XMLEventFactory eventFactory;
-    private XMLStreamWriter writer;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // 10^0..10^22 - степени десяти, точно представимые в double (как в ColumnDecoder.parseDouble)
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final double MAX_EXACT_MANTISSA = 1L << 53;
+
+    // способ записи значений столбца
+    private static final int EMPTY = 0;
+    private static final int DOUBLE = 1;
+    private static final int LONG = 2;
+    private static final int DATE = 3;
+    private static final int SYMBOL = 4;
+    private static final int OBJECT = 5;
 
+    // путь к файлу или null, если запись идёт в канал, переданный в конструктор
+    private final String outputFilePath;
+    private WritableByteChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    private int position;
+    // цифры числа записываются с конца
+    private final byte[] digits = new byte[20];
 
+    /**
+     * Запись в файл outputFilePath; файл создаётся или перезаписывается при каждом вызове writeHistory
+     * и writeSecurities.
+     */
     public XMLWriter(String outputFilePath) {
         this.outputFilePath = outputFilePath;
+    }
+
+    /**
+     * Запись в открытый канал (например, Channels.newChannel(System.out)). Канал не закрывается.
+     */
+    public XMLWriter(@NotNull WritableByteChannel channel) {
+        this.outputFilePath = null;
+        this.channel = channel;
+    }
 
+    /**
+     * Записывает документ с записями истории торгов (data id="history"). Записи - список TempDB.getHistories(),
+     * результат TempDB.find или любой другой список HistoryEntry; записи пишутся в порядке списка.
+     * Столбцы документа - столбцы хранилища TempDB с именами в верхнем регистре, как в файлах ISS.
+     */
+    public void writeHistory(@NotNull List<TempDB.HistoryEntry> entries) throws IOException {
+        writeHistory(entries, null);
     }
 
-    public void writeFile() {
+    /**
+     * То же, что writeHistory(List), но в документ записываются только столбцы columnNames (в заданном порядке);
+     * null - все столбцы.
+     */
+    public void writeHistory(@NotNull List<TempDB.HistoryEntry> entries, List<String> columnNames)
+            throws IOException {
+        HistoryStore store = storeOf(entries);
+        List<String> names = new ArrayList<>();
+        if (columnNames != null) {
+            for (String name : columnNames) {
+                names.add(name.toLowerCase(Locale.ROOT));
+            }
+        } else if (store != null) {
+            names.addAll(store.columnNames());
+        } else if (!entries.isEmpty()) {
+            names.addAll(entries.get(0).getAllAttributes().keySet());
+        }
+        HistoryColumns columns = new HistoryColumns(store, names);
+        open();
+        try {
+            putDocumentStart("history");
+            for (int c = 0; c < names.size(); c++) {
+                putColumn(names.get(c), columns.type(c));
+            }
+            putMetadataEnd();
+            if (entries instanceof TempDB.RowView && ((TempDB.RowView) entries).store() == store) {
+                TempDB.RowView rows = (TempDB.RowView) entries;
+                for (int i = 0, size = entries.size(); i < size; i++) {
+                    putHistoryRow(columns, rows.rowAt(i));
+                }
+            } else {
+                for (TempDB.HistoryEntry he : entries) {
+                    if (he.store() == store && store != null) {
+                        putHistoryRow(columns, he.row());
+                    } else {
+                        putRow(names, he.getAllAttributes());
+                    }
+                }
+            }
+            putDocumentEnd();
+            flush();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Записывает документ со списком ценных бумаг (data id="securities"). Столбцы документа - все атрибуты бумаг
+     * в порядке их первого появления; тип столбца определяется по первому непустому значению.
+     */
+    public void writeSecurities(@NotNull Collection<TempDB.SecurityPaper> papers) throws IOException {
+        LinkedHashMap<String, String> types = new LinkedHashMap<>();
+        for (TempDB.SecurityPaper sp : papers) {
+            for (Map.Entry<String, Object> e : sp.info().entrySet()) {
+                String type = types.get(e.getKey());
+                if (type == null || (type.equals("string") && !"".equals(e.getValue()))) {
+                    types.put(e.getKey(), typeOf(e.getValue()));
+                }
+            }
+        }
+        List<String> names = new ArrayList<>(types.keySet());
+        open();
+        try {
+            putDocumentStart("securities");
+            for (Map.Entry<String, String> e : types.entrySet()) {
+                putColumn(e.getKey(), e.getValue());
+            }
+            putMetadataEnd();
+            for (TempDB.SecurityPaper sp : papers) {
+                putRow(names, sp.info());
+            }
+            putDocumentEnd();
+            flush();
+        } finally {
+            close();
+        }
     }
 
-/*    public void writeFile(XMLStreamReader reader) throws XMLStreamException, IOException {
-        this.reader = reader;
-        this.eventFactory = XMLEventFactory.newInstance();
+    /**
+     * Записывает документ с результатом агрегации (data id="aggregates"): по строке на группу, столбцы - ключ
+     * группы, ROWS и агрегаты запроса query. Скобки в имени XML-атрибута недопустимы, поэтому агрегат sum(volume)
+     * записывается столбцом SUM_VOLUME.
+     */
+    public void writeAggregates(@NotNull Aggregation query, @NotNull List<Aggregation.Group> groups)
+            throws IOException {
+        Aggregation.GroupBy groupBy = query.getGroupBy();
+        List<String> names = new ArrayList<>();
+        names.add(groupBy == Aggregation.GroupBy.SECID ? "secid" : groupBy == Aggregation.GroupBy.BOARDID ? "boardid"
+                : "tradedate");
+        names.add("rows");
+        for (int m = 0; m < query.size(); m++) {
+            names.add(query.getLabel(m).replace('(', '_').replace(")", ""));
+        }
+        open();
         try {
-        this.writer = XMLOutputFactory.newInstance().createXMLStreamWriter(new FileWriter(outputFilePath));
-        while (reader.hasNext()) {
-            XMLEvent event = reader.get;
-            writer.;
+            putDocumentStart("aggregates");
+            putColumn(names.get(0), groupBy == Aggregation.GroupBy.SECID || groupBy == Aggregation.GroupBy.BOARDID
+                    ? "string" : "date");
+            putColumn(names.get(1), "int64");
+            for (int c = 2; c < names.size(); c++) {
+                putColumn(names.get(c), "double");
+            }
+            putMetadataEnd();
+            LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+            for (Aggregation.Group group : groups) {
+                values.put(names.get(0), group.getKey());
+                values.put(names.get(1), group.getRows());
+                for (int m = 0; m < query.size(); m++) {
+                    double value = group.getValue(m);
+                    values.put(names.get(m + 2), Double.isNaN(value) ? "" : (Object) value);
+                }
+                putRow(names, values);
+            }
+            putDocumentEnd();
+            flush();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Заменяет специальные символы XML (&amp;, &lt;, &gt;, &quot;, а также перевод строки и табуляцию, которые
+     * иначе заменились бы пробелами при чтении атрибута) ссылками на сущности. Прочие управляющие символы,
+     * недопустимые в XML 1.0, удаляются.
+     */
+    static String escape(String value) {
+        StringBuilder result = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String entity = entityOf(c);
+            if (entity == null && c >= 0x20) {
+                if (result != null) result.append(c);
+                continue;
+            }
+            if (result == null) result = new StringBuilder(value.length() + 16).append(value, 0, i);
+            if (entity != null) result.append(entity);
+        }
+        return result == null ? value : result.toString();
+    }
+
+    private static String entityOf(char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return "&quot;";
+            case '\t':
+                return "&#9;";
+            case '\n':
+                return "&#10;";
+            case '\r':
+                return "&#13;";
+            default:
+                return null;
+        }
+    }
+
+    // хранилище, строками которого являются записи списка, или null, если таких записей нет
+    private static HistoryStore storeOf(List<TempDB.HistoryEntry> entries) {
+        if (entries instanceof TempDB.RowView) return ((TempDB.RowView) entries).store();
+        for (TempDB.HistoryEntry he : entries) {
+            if (he.store() != null) return he.store();
+        }
+        return null;
+    }
+
+    private static String typeOf(Object value) {
+        if (value instanceof Integer) return "int32";
+        if (value instanceof Long) return "int64";
+        if (value instanceof Double) return "double";
+        if (value instanceof LocalDate || value instanceof Date) return "date";
+        return "string";
+    }
+
+    private void putDocumentStart(String dataId) throws IOException {
+        putAscii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<document>\n<data id=\"");
+        putAscii(dataId);
+        putAscii("\">\n<metadata>\n<columns>\n");
+    }
+
+    private void putColumn(String name, String type) throws IOException {
+        putAscii("<column name=\"");
+        putEscaped(name.toUpperCase(Locale.ROOT));
+        putAscii("\" type=\"");
+        putAscii(type);
+        putAscii("\" />\n");
+    }
+
+    private void putMetadataEnd() throws IOException {
+        putAscii("</columns>\n</metadata>\n<rows>\n");
+    }
+
+    private void putDocumentEnd() throws IOException {
+        putAscii("</rows>\n</data>\n</document>\n");
+    }
+
+    // строка хранилища: значения пишутся из примитивных массивов столбцов
+    private void putHistoryRow(HistoryColumns columns, int row) throws IOException {
+        putAscii("<row");
+        for (int c = 0; c < columns.count(); c++) {
+            putBytes(columns.prefixes[c]);
+            columns.putValue(this, c, row);
+            putByte('"');
+        }
+        putAscii(" />\n");
+    }
+
+    // строка из карты атрибутов: для бумаг и записей, не добавленных в TempDB
+    private void putRow(List<String> names, Map<String, Object> attributes) throws IOException {
+        putAscii("<row");
+        for (String name : names) {
+            putByte(' ');
+            putEscaped(name.toUpperCase(Locale.ROOT));
+            putAscii("=\"");
+            putValue(attributes.get(name));
+            putByte('"');
+        }
+        putAscii(" />\n");
+    }
+
+    private void putValue(Object value) throws IOException {
+        if (value == null || "".equals(value)) return;
+        if (value instanceof Double) {
+            putDouble((Double) value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            putLong(((Number) value).longValue());
+        } else if (value instanceof LocalDate) {
+            putDate((int) ((LocalDate) value).toEpochDay());
+        } else {
+            putEscaped(value.toString());
+        }
+    }
+
+    /**
+     * Записывает число кратчайшей десятичной записью вида [-]digits[.digits], которую ColumnDecoder.parseDouble
+     * разбирает точно (одним делением мантиссы на степень десяти) в то же значение. Если такой записи нет
+     * (очень большие и очень малые числа), используется Double.toString.
+     */
+    private void putDouble(double value) throws IOException {
+        double abs = Math.abs(value);
+        for (int scale = 0; scale < POWERS_OF_TEN.length; scale++) {
+            double scaled = abs * POWERS_OF_TEN[scale];
+            if (scaled >= MAX_EXACT_MANTISSA) break;
+            double mantissa = Math.rint(scaled);
+            if (mantissa / POWERS_OF_TEN[scale] != abs) continue;
+            if (value < 0) putByte('-');
+            putDecimal((long) mantissa, scale);
+            return;
+        }
+        putAscii(Double.toString(value));
+    }
+
+    // mantissa / 10^scale; для scale > 0 дробная часть дополняется нулями слева до scale знаков
+    private void putDecimal(long mantissa, int scale) throws IOException {
+        int n = 0;
+        do {
+            digits[digits.length - ++n] = (byte) ('0' + mantissa % 10);
+            mantissa /= 10;
+        } while (mantissa != 0 || n <= scale);
+        int integerDigits = n - scale;
+        ensure(n + 1);
+        System.arraycopy(digits, digits.length - n, buffer, position, integerDigits);
+        position += integerDigits;
+        if (scale > 0) {
+            buffer[position++] = '.';
+            System.arraycopy(digits, digits.length - scale, buffer, position, scale);
+            position += scale;
+        }
+    }
+
+    private void putLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            putAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            putByte('-');
+            value = -value;
+        }
+        putDecimal(value, 0);
+    }
+
+    /**
+     * Записывает дату yyyy-MM-dd по номеру дня от 1970-01-01 без создания LocalDate (перевод номера дня
+     * в дату григорианского календаря по эрам из 400 лет).
+     */
+    private void putDate(int epochDay) throws IOException {
+        long z = epochDay + 719468L;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            putAscii(LocalDate.ofEpochDay(epochDay).toString());
+            return;
+        }
+        ensure(10);
+        putDigits((int) year, 4);
+        buffer[position++] = '-';
+        putDigits(month, 2);
+        buffer[position++] = '-';
+        putDigits(day, 2);
+    }
+
+    private void putDigits(int value, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            buffer[position + i] = (byte) ('0' + value % 10);
+            value /= 10;
         }
-        writer.flush();
-        writer.close();
-        } catch (XMLStreamException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+        position += width;
+    }
+
+    /**
+     * Записывает строку в UTF-8, заменяя специальные символы XML ссылками на сущности, как escape. Непарные
+     * суррогаты, как и в String.getBytes, заменяются знаком '?'.
+     */
+    private void putEscaped(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String entity = entityOf(c);
+            if (entity != null) {
+                putAscii(entity);
+            } else if (c < 0x20) {
+                continue;
+            } else if (c < 0x80) {
+                putByte(c);
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4);
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                putByte('?');
+            } else {
+                ensure(3);
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void putAscii(String value) throws IOException {
+        int length = value.length();
+        for (int from = 0; from < length; ) {
+            ensure(1);
+            int n = Math.min(length - from, buffer.length - position);
+            for (int i = 0; i < n; i++) buffer[position++] = (byte) value.charAt(from + i);
+            from += n;
+        }
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+        for (int from = 0; from < bytes.length; ) {
+            ensure(1);
+            int n = Math.min(bytes.length - from, buffer.length - position);
+            System.arraycopy(bytes, from, buffer, position, n);
+            position += n;
+            from += n;
+        }
+    }
+
+    private void putByte(int b) throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) b;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.length - position < bytes) flush();
+    }
+
+    private void flush() throws IOException {
+        wrapped.clear();
+        wrapped.limit(position);
+        while (wrapped.hasRemaining()) {
+            channel.write(wrapped);
+        }
+        position = 0;
+    }
+
+    private void open() throws IOException {
+        position = 0;
+        if (outputFilePath != null) {
+            channel = FileChannel.open(Paths.get(outputFilePath), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    private void close() throws IOException {
+        if (outputFilePath != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Столбцы хранилища, подготовленные к записи: для каждого столбца - байты " NAME=\"", способ записи значений
+     * и закодированные значения словаря (строка словаря экранируется один раз, а не для каждой записи).
+     */
+    private static final class HistoryColumns {
+        private final HistoryStore.Column[] columns;
+        private final int[] kinds;
+        private final byte[][] prefixes;
+        private final byte[][][] symbols;
+
+        HistoryColumns(HistoryStore store, List<String> names) {
+            int count = names.size();
+            columns = new HistoryStore.Column[count];
+            kinds = new int[count];
+            prefixes = new byte[count][];
+            symbols = new byte[count][][];
+            for (int c = 0; c < count; c++) {
+                String name = names.get(c);
+                columns[c] = store == null ? null : store.column(name);
+                kinds[c] = kindOf(columns[c]);
+                prefixes[c] = (" " + escape(name.toUpperCase(Locale.ROOT)) + "=\"").getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        private static int kindOf(HistoryStore.Column column) {
+            if (column == null || column instanceof HistoryStore.EmptyColumn) return EMPTY;
+            if (column instanceof HistoryStore.DoubleColumn) return DOUBLE;
+            if (column instanceof HistoryStore.LongColumn) return LONG;
+            if (column instanceof HistoryStore.DateColumn) return DATE;
+            if (column instanceof HistoryStore.SymbolColumn) return SYMBOL;
+            return OBJECT;
+        }
+
+        int count() {
+            return columns.length;
+        }
+
+        String type(int c) {
+            switch (kinds[c]) {
+                case DOUBLE:
+                    return "double";
+                case LONG:
+                    return ((HistoryStore.LongColumn) columns[c]).isInt() ? "int32" : "int64";
+                case DATE:
+                    return "date";
+                default:
+                    return "string";
+            }
+        }
+
+        void putValue(XMLWriter out, int c, int row) throws IOException {
+            HistoryStore.Column column = columns[c];
+            if (kinds[c] == EMPTY || column.isEmpty(row)) return;
+            switch (kinds[c]) {
+                case DOUBLE:
+                    out.putDouble(((HistoryStore.DoubleColumn) column).getDouble(row));
+                    break;
+                case LONG:
+                    out.putLong(((HistoryStore.LongColumn) column).getLong(row));
+                    break;
+                case DATE:
+                    out.putDate(((HistoryStore.DateColumn) column).getEpochDay(row));
+                    break;
+                case SYMBOL:
+                    out.putBytes(symbol(c, ((HistoryStore.SymbolColumn) column).getCode(row)));
+                    break;
+                default:
+                    out.putValue(column.get(row));
+            }
+        }
+
+        // экранированная строка словаря в UTF-8; кодируется при первом обращении к коду
+        private byte[] symbol(int c, int code) {
+            HistoryStore.SymbolColumn column = (HistoryStore.SymbolColumn) columns[c];
+            if (symbols[c] == null) symbols[c] = new byte[column.cardinality()][];
+            byte[] bytes = symbols[c][code];
+            if (bytes == null) {
+                bytes = escape(column.decode(code)).getBytes(StandardCharsets.UTF_8);
+                symbols[c][code] = bytes;
+            }
+            return bytes;
         }
     }
-}*/
 }
@@ -0,0 +1,196 @@
+package com.example.MOEXTestTask;
+
+import java.io.*;
+import java.text.ParseException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import sample.Aggregation;
+import sample.TempDB;
+import sample.XMLReader;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+public class AggregationTest {
+    static final String[] COLUMNS = {"volume", "value", "open", "close", "high", "low", "waprice", "numtrades"};
+
+    TempDB tempDB;
+
+    @Before
+    public void init() throws XMLStreamException, FileNotFoundException, ParseException {
+        tempDB = new TempDB();
+        for (String name : new String[]{"securities_1", "securities_2", "history_1", "history_2", "history_3",
+                "history_4"}) {
+            tempDB.add(new XMLReader(new File("src/test/data/" + name + ".xml")));
+        }
+    }
+
+    @Test
+    public void testMatchesScan() {
+        for (Aggregation.GroupBy groupBy : Aggregation.GroupBy.values()) {
+            Aggregation query = query(groupBy);
+            assertGroups(query, tempDB.getHistories(), query.run(tempDB.getHistories()));
+        }
+    }
+
+    @Test
+    public void testFilteredEntries() {
+        List<TempDB.HistoryEntry> entries = tempDB.find(null, "TQBR", null, null);
+        assertFalse(entries.isEmpty());
+        Aggregation query = query(Aggregation.GroupBy.DAY);
+        assertGroups(query, entries, query.run(entries));
+        // произвольный список записей из TempDB
+        List<TempDB.HistoryEntry> copy = new ArrayList<>(entries);
+        Collections.reverse(copy);
+        assertGroups(query, copy, query.run(copy));
+    }
+
+    @Test
+    public void testParallelChunks() {
+        // достаточно записей для нескольких параллельных участков
+        TempDB db = new TempDB();
+        String[] secids = {"AAA", "BBB", "CCC", "DDD", "EEE"};
+        for (String secid : secids) {
+            HashMap<String, Object> info = new HashMap<>();
+            info.put("secid", secid);
+            db.add(db.new SecurityPaper(secid, info));
+        }
+        Random random = new Random(7);
+        List<TempDB.HistoryEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            String secid = secids[random.nextInt(secids.length)];
+            LinkedHashMap<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("secid", secid);
+            attributes.put("boardid", i % 3 == 0 ? "TQBR" : "SMAL");
+            attributes.put("tradedate", LocalDate.of(2015, 1, 1).plusDays(random.nextInt(2000)));
+            attributes.put("volume", i % 11 == 0 ? "" : (Object) (double) random.nextInt(10000));
+            attributes.put("close", random.nextInt(100000) / 100.0);
+            attributes.put("numtrades", random.nextInt(1000));
+            entries.add(db.new HistoryEntry(db.snapshot().getSecurities().get(secid), attributes, i));
+        }
+        db.add(entries.toArray(new TempDB.HistoryEntry[0]));
+        for (Aggregation.GroupBy groupBy : Aggregation.GroupBy.values()) {
+            Aggregation query = new Aggregation(groupBy);
+            for (Aggregation.Function f : Aggregation.Function.values()) {
+                query.add("close", f).add("volume", f).add("numtrades", f);
+            }
+            List<Aggregation.Group> groups = db.aggregate(query);
+            assertGroups(query, db.getHistories(), groups);
+            assertEquals(groups.toString(), query.run(db.getHistories()).toString());
+        }
+    }
+
+    private static Aggregation query(Aggregation.GroupBy groupBy) {
+        Aggregation query = new Aggregation(groupBy);
+        for (String column : COLUMNS) {
+            for (Aggregation.Function f : Aggregation.Function.values()) query.add(column, f);
+        }
+        return query;
+    }
+
+    // сравнение с прямым вычислением по картам атрибутов записей
+    private static void assertGroups(Aggregation query, List<TempDB.HistoryEntry> entries,
+                                     List<Aggregation.Group> groups) {
+        Map<Object, List<Map<String, Object>>> expected = new TreeMap<>();
+        for (TempDB.HistoryEntry he : entries) {
+            Map<String, Object> a = he.getAllAttributes();
+            Object key = key(query.getGroupBy(), a);
+            if (key == null) continue;
+            expected.computeIfAbsent(key, k -> new ArrayList<>()).add(a);
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), keys(groups));
+        int g = 0;
+        for (List<Map<String, Object>> rows : expected.values()) {
+            Aggregation.Group group = groups.get(g++);
+            assertEquals(rows.size(), group.getRows());
+            for (int m = 0; m < query.size(); m++) {
+                String label = query.getLabel(m);
+                String column = label.substring(label.indexOf('(') + 1, label.length() - 1);
+                Aggregation.Function f = Aggregation.Function.valueOf(label.substring(0, label.indexOf('('))
+                        .toUpperCase());
+                double value = expected(f, column, rows);
+                assertEquals(label + " " + group.getKey(), value, group.getValue(m),
+                        Math.abs(value) * 1e-12 + 1e-9);
+            }
+        }
+    }
+
+    private static Object key(Aggregation.GroupBy groupBy, Map<String, Object> a) {
+        switch (groupBy) {
+            case SECID:
+            case BOARDID:
+                Object symbol = a.get(groupBy.name().toLowerCase());
+                return symbol == null || "".equals(symbol) ? null : symbol;
+            default:
+                if (!(a.get("tradedate") instanceof LocalDate)) return null;
+                LocalDate date = (LocalDate) a.get("tradedate");
+                if (groupBy == Aggregation.GroupBy.WEEK) return date.with(DayOfWeek.MONDAY);
+                if (groupBy == Aggregation.GroupBy.MONTH) return date.withDayOfMonth(1);
+                return date;
+        }
+    }
+
+    private static double expected(Aggregation.Function f, String column, List<Map<String, Object>> rows) {
+        double sum = 0;
+        double weighted = 0;
+        double weights = 0;
+        int count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double first = Double.NaN;
+        double last = Double.NaN;
+        LocalDate firstDate = null;
+        LocalDate lastDate = null;
+        for (Map<String, Object> a : rows) {
+            if (!(a.get(column) instanceof Number)) continue;
+            double x = ((Number) a.get(column)).doubleValue();
+            count++;
+            sum += x;
+            min = Math.min(min, x);
+            max = Math.max(max, x);
+            if (a.get("volume") instanceof Number) {
+                double w = ((Number) a.get("volume")).doubleValue();
+                weighted += x * w;
+                weights += w;
+            }
+            if (a.get("tradedate") instanceof LocalDate) {
+                LocalDate date = (LocalDate) a.get("tradedate");
+                if (firstDate == null || date.isBefore(firstDate)) {
+                    firstDate = date;
+                    first = x;
+                }
+                if (lastDate == null || !date.isBefore(lastDate)) {
+                    lastDate = date;
+                    last = x;
+                }
+            }
+        }
+        switch (f) {
+            case SUM:
+                return count == 0 ? Double.NaN : sum;
+            case MIN:
+                return count == 0 ? Double.NaN : min;
+            case MAX:
+                return count == 0 ? Double.NaN : max;
+            case FIRST:
+                return first;
+            case LAST:
+                return last;
+            case AVG:
+                return count == 0 ? Double.NaN : sum / count;
+            default:
+                return weights == 0 ? Double.NaN : weighted / weights;
+        }
+    }
+
+    private static List<Object> keys(List<Aggregation.Group> groups) {
+        List<Object> keys = new ArrayList<>();
+        for (Aggregation.Group group : groups) keys.add(group.getKey());
+        return keys;
+    }
+}
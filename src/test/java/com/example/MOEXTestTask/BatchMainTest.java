@@ -0,0 +1,126 @@
+package com.example.MOEXTestTask;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sample.Aggregation;
+import sample.BatchMain;
+import sample.TempDB;
+import sample.XMLReader;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+public class BatchMainTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    TempDB tempDB;
+    File data;
+
+    @Before
+    public void init() throws IOException, XMLStreamException, ParseException {
+        tempDB = new TempDB();
+        data = folder.newFolder("data");
+        for (String name : new String[]{"securities_1", "securities_2", "history_1", "history_2"}) {
+            File file = new File("src/test/data/" + name + ".xml");
+            tempDB.add(new XMLReader(file));
+            Files.copy(file.toPath(), new File(data, file.getName()).toPath());
+        }
+    }
+
+    @Test
+    public void testDirectoryToXml() throws IOException, XMLStreamException, ParseException {
+        File output = new File(folder.getRoot(), "out.xml");
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int code = BatchMain.run(new String[]{"--threads", "2", "-o", output.getPath(), data.getPath()},
+                new ByteArrayOutputStream(), new PrintStream(err, true, "UTF-8"));
+        assertEquals(BatchMain.EXIT_OK, code);
+
+        XMLReader reader = new XMLReader(output);
+        assertEquals(tempDB.getHistories().size(), reader.getRecords().size());
+        for (int i = 0; i < reader.getRecords().size(); i++) {
+            assertEquals(tempDB.getHistories().get(i).getAllAttributes(),
+                    reader.getRecords().get(i).getAllAttributes());
+        }
+        String timing = err.toString("UTF-8").trim();
+        assertTrue(timing, timing.startsWith("{\"files\":4,\"rowsLoaded\":" + tempDB.getHistories().size()));
+        assertTrue(timing, timing.contains("\"totalMillis\":"));
+    }
+
+    @Test
+    public void testGlobQueryToCsv() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        File timing = new File(folder.getRoot(), "timing.json");
+        int code = BatchMain.run(new String[]{"--secid", "AFLT", "--from", "2020-04-01", "--format", "csv",
+                        "--select", "secid,tradedate,close", "--timing", timing.getPath(),
+                        "src/test/data/{securities,history}_[12].xml"},
+                out, new PrintStream(new ByteArrayOutputStream()));
+        assertEquals(BatchMain.EXIT_OK, code);
+
+        List<TempDB.HistoryEntry> expected = tempDB.find("AFLT", null, LocalDate.of(2020, 4, 1), null);
+        String[] lines = out.toString("UTF-8").split("\r\n");
+        assertEquals("SECID,TRADEDATE,CLOSE", lines[0]);
+        assertEquals(expected.size() + 1, lines.length);
+        for (int i = 0; i < expected.size(); i++) {
+            String[] values = lines[i + 1].split(",", -1);
+            assertEquals(expected.get(i).get("secid"), values[0]);
+            assertEquals(expected.get(i).get("tradedate").toString(), values[1]);
+            Object close = expected.get(i).get("close");
+            if ("".equals(close)) {
+                assertEquals("", values[2]);
+            } else {
+                assertEquals((Double) close, Double.parseDouble(values[2]), 0);
+            }
+        }
+        String summary = new String(Files.readAllBytes(timing.toPath()), StandardCharsets.UTF_8);
+        assertTrue(summary, summary.contains("\"rowsWritten\":" + expected.size()));
+    }
+
+    @Test
+    public void testAggregateToCsv() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int code = BatchMain.run(new String[]{"--group-by", "secid", "--agg", "sum:volume,last:close",
+                        "--format", "csv", data.getPath()}, out, new PrintStream(new ByteArrayOutputStream()));
+        assertEquals(BatchMain.EXIT_OK, code);
+
+        List<Aggregation.Group> groups = tempDB.aggregate(new Aggregation(Aggregation.GroupBy.SECID)
+                .add("volume", Aggregation.Function.SUM)
+                .add("close", Aggregation.Function.LAST));
+        String[] lines = out.toString("UTF-8").split("\r\n");
+        assertEquals("SECID,ROWS,SUM(VOLUME),LAST(CLOSE)", lines[0]);
+        assertEquals(groups.size() + 1, lines.length);
+        String[] first = lines[1].split(",", -1);
+        assertEquals(groups.get(0).getKey(), first[0]);
+        assertEquals(groups.get(0).getRows(), Long.parseLong(first[1]));
+        assertEquals(groups.get(0).getValue(0), Double.parseDouble(first[2]), 1e-9);
+
+        // пустой результат - только строка заголовка
+        out.reset();
+        code = BatchMain.run(new String[]{"--secid", "NONE", "--group-by", "month", "--agg", "avg:close",
+                "--format", "csv", data.getPath()}, out, new PrintStream(new ByteArrayOutputStream()));
+        assertEquals(BatchMain.EXIT_OK, code);
+        assertEquals("TRADEDATE,ROWS,AVG(CLOSE)\r\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testUsageErrors() throws IOException {
+        PrintStream err = new PrintStream(new ByteArrayOutputStream());
+        assertEquals(BatchMain.EXIT_USAGE, BatchMain.run(new String[0], new ByteArrayOutputStream(), err));
+        assertEquals(BatchMain.EXIT_USAGE, BatchMain.run(new String[]{"--from", "15.04.2020", data.getPath()},
+                new ByteArrayOutputStream(), err));
+        assertEquals(BatchMain.EXIT_USAGE, BatchMain.run(new String[]{"--agg", "sum:volume", data.getPath()},
+                new ByteArrayOutputStream(), err));
+        assertEquals(BatchMain.EXIT_FAILED, BatchMain.run(new String[]{"src/test/data/missing_*.xml"},
+                new ByteArrayOutputStream(), err));
+    }
+}
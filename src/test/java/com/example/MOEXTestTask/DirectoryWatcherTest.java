@@ -0,0 +1,155 @@
+package com.example.MOEXTestTask;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sample.DirectoryWatcher;
+import sample.LoadPipeline;
+import sample.TempDB;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+public class DirectoryWatcherTest {
+    private static final long TIMEOUT_SECONDS = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File data;
+    TempDB tempDB;
+    DirectoryWatcher watcher;
+    List<File> read = Collections.synchronizedList(new ArrayList<>());
+    List<File> failed = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void init() throws IOException {
+        data = folder.newFolder("data");
+        tempDB = new TempDB();
+        watcher = new DirectoryWatcher(tempDB, data, 100, new LoadPipeline.Listener() {
+            @Override
+            public void fileFailed(File file, Exception e) {
+                failed.add(file);
+            }
+
+            @Override
+            public void fileRead(File file, int rows) {
+                read.add(file);
+            }
+        });
+    }
+
+    @After
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    @Test
+    public void testExistingAndNewFiles() throws IOException, InterruptedException, XMLStreamException,
+            ParseException {
+        copy("securities_1");
+        copy("history_1");
+        watcher.start();
+        awaitLoaded(expected("securities_1", "history_1"));
+
+        // файлы, появившиеся после запуска; история торгов - раньше своих ценных бумаг
+        int pending = tempDB.getPendingCount();
+        copy("history_3");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (tempDB.getPendingCount() == pending) {
+            assertTrue("Записи без ценных бумаг не отложены", System.nanoTime() < deadline);
+            Thread.sleep(20);
+        }
+        copy("securities_2");
+        awaitLoaded(expected("securities_1", "securities_2", "history_1", "history_3"));
+        assertTrue(failed.toString(), failed.isEmpty());
+    }
+
+    @Test
+    public void testModifiedFileReplacesRows() throws IOException, InterruptedException, XMLStreamException,
+            ParseException {
+        copy("securities_1");
+        File history = copy("history_1");
+        watcher.start();
+        TempDB expected = expected("securities_1", "history_1");
+        awaitLoaded(expected);
+        assertEquals(TempDB.DuplicatePolicy.REPLACE, tempDB.getDuplicatePolicy());
+
+        // тот же файл с изменённой ценой закрытия записи принятой бумаги: строка заменяется, новых строк не добавляется
+        String content = new String(Files.readAllBytes(history.toPath()), StandardCharsets.UTF_8);
+        int row = content.indexOf(" SECID=\"" + expected.getHistories().get(0).getSecid() + "\"");
+        int close = content.indexOf(" CLOSE=\"", row) + " CLOSE=\"".length();
+        String changed = content.substring(0, close) + "12345.5" + content.substring(content.indexOf('"', close));
+        Files.write(history.toPath(), changed.getBytes(StandardCharsets.UTF_8));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (tempDB.getHistories().stream().noneMatch(he -> Objects.equals(he.get("close"), 12345.5))) {
+            assertTrue("Изменённый файл не загружен", System.nanoTime() < deadline);
+            Thread.sleep(20);
+        }
+        assertEquals(expected.getHistories().size(), tempDB.getHistories().size());
+    }
+
+    @Test
+    public void testBurstCoalesced() throws IOException, InterruptedException, XMLStreamException,
+            ParseException {
+        watcher.start();
+        copy("securities_1");
+        copy("securities_2");
+        copy("history_1");
+        copy("history_4");
+        awaitLoaded(expected("securities_1", "securities_2", "history_1", "history_4"));
+        // несколько событий создания и записи одного файла загружают его один раз
+        Thread.sleep(500);
+        assertEquals(4, read.size());
+        assertEquals(new HashSet<>(read).toString(), 4, new HashSet<>(read).size());
+    }
+
+    private File copy(String name) throws IOException {
+        File target = new File(data, name + ".xml");
+        Files.copy(new File("src/test/data/" + name + ".xml").toPath(), target.toPath());
+        return target;
+    }
+
+    // TempDB с файлами names, загруженными в том же порядке и с тем же правилом повторов, что и при наблюдении
+    private static TempDB expected(String... names) throws IOException, XMLStreamException, ParseException {
+        TempDB expected = new TempDB();
+        expected.setDuplicatePolicy(TempDB.DuplicatePolicy.REPLACE);
+        File[] files = new File[names.length];
+        for (int i = 0; i < names.length; i++) files[i] = new File("src/test/data/" + names[i] + ".xml");
+        expected.load(files);
+        return expected;
+    }
+
+    private void awaitLoaded(TempDB expected) throws InterruptedException {
+        int rows = expected.getHistories().size();
+        int securities = expected.snapshot().getSecurities().size();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (tempDB.snapshot().getHistories().size() < rows
+                || tempDB.snapshot().getSecurities().size() < securities) {
+            assertTrue("Загружено " + tempDB.snapshot().getHistories().size() + " из " + rows,
+                    System.nanoTime() < deadline);
+            Thread.sleep(20);
+        }
+        TempDB.Snapshot snapshot = tempDB.snapshot();
+        assertEquals(expected.snapshot().getSecurities().keySet(), snapshot.getSecurities().keySet());
+        assertEquals(rows, snapshot.getHistories().size());
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < rows; i++) {
+            TempDB.HistoryEntry he = snapshot.getHistories().get(i);
+            assertEquals(expected.getHistories().get(i).getAllAttributes(), he.getAllAttributes());
+            assertEquals(expected.getHistories().get(i).getId(), he.getId());
+            assertTrue("Повторный id " + he.getId(), ids.add(he.getId()));
+        }
+    }
+}
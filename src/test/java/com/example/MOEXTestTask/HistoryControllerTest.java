@@ -0,0 +1,170 @@
+package com.example.MOEXTestTask;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import sample.*;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+public class HistoryControllerTest {
+    TempDB tempDB;
+    MockMvc mvc;
+
+    @Before
+    public void init() throws XMLStreamException, FileNotFoundException, ParseException {
+        tempDB = new TempDB();
+        load("securities_1", "securities_2", "history_1", "history_2");
+        mvc = MockMvcBuilders.standaloneSetup(new HistoryController(tempDB, 1)).build();
+    }
+
+    private void load(String... names) throws XMLStreamException, FileNotFoundException, ParseException {
+        List<File> files = new ArrayList<>();
+        for (String name : names) files.add(new File("src/test/data/" + name + ".xml"));
+        new LoadPipeline(tempDB, 2).load(files);
+    }
+
+    private MockHttpServletResponse perform(String url, String... headers) throws Exception {
+        MockHttpServletRequestBuilder request = get(url);
+        for (int i = 0; i < headers.length; i += 2) request.header(headers[i], headers[i + 1]);
+        return mvc.perform(request).andReturn().getResponse();
+    }
+
+    private static String csv(List<TempDB.HistoryEntry> entries) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CSVWriter(Channels.newChannel(out)).writeHistory(entries);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> lines(MockHttpServletResponse response) throws UnsupportedEncodingException {
+        String body = response.getContentAsString();
+        return body.isEmpty() ? Collections.emptyList() : Arrays.asList(body.split("\n"));
+    }
+
+    @Test
+    public void testHistoryNdjson() throws Exception {
+        MockHttpServletResponse response = perform("/api/history?secid=AFLT&from=2020-04-15&columns=secid,tradedate,close");
+        assertEquals(200, response.getStatus());
+        assertTrue(response.getContentType().startsWith("application/x-ndjson"));
+        List<TempDB.HistoryEntry> expected = tempDB.find("AFLT", null, LocalDate.of(2020, 4, 15), null);
+        List<String> lines = lines(response);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected.size(), lines.size());
+        assertEquals(Integer.toString(expected.size()), response.getHeader(HistoryController.TOTAL_COUNT));
+        for (int i = 0; i < lines.size(); i++) {
+            Object close = expected.get(i).get("close");
+            assertEquals("{\"SECID\":\"AFLT\",\"TRADEDATE\":\"" + expected.get(i).get("tradedate") + "\",\"CLOSE\":"
+                    + ("".equals(close) ? "null" : new java.math.BigDecimal(close.toString()).stripTrailingZeros()
+                    .toPlainString()) + "}", lines.get(i));
+        }
+    }
+
+    @Test
+    public void testHistoryCsv() throws Exception {
+        String expected = csv(tempDB.findByBoard("TQBR"));
+        MockHttpServletResponse response = perform("/api/history?board=TQBR", "Accept", "text/csv");
+        assertTrue(response.getContentType().startsWith("text/csv"));
+        assertEquals(expected, response.getContentAsString());
+        assertEquals(expected, perform("/api/history?board=TQBR&format=csv").getContentAsString());
+        assertEquals(400, perform("/api/history?format=xls").getStatus());
+        assertEquals(400, perform("/api/history?from=15.04.2020").getStatus());
+    }
+
+    @Test
+    public void testCursorPages() throws Exception {
+        List<TempDB.HistoryEntry> expected = tempDB.getHistories();
+        String all = csv(expected);
+        String header = all.substring(0, all.indexOf('\n') + 1);
+        String url = "/api/history?format=csv&limit=25";
+        MockHttpServletResponse response = perform(url);
+        String first = response.getHeader(HistoryController.NEXT_CURSOR);
+        assertEquals(csv(expected.subList(0, 25)), response.getContentAsString());
+        assertTrue(response.getHeader("Link").contains("cursor=" + first));
+
+        // страницы выдаются из первого снимка, даже если в TempDB загружены новые записи
+        load("history_4");
+        assertTrue(tempDB.getHistories().size() > expected.size());
+        StringBuilder pages = new StringBuilder(response.getContentAsString());
+        String cursor = first;
+        while (cursor != null) {
+            response = perform(url + "&cursor=" + cursor);
+            assertEquals(200, response.getStatus());
+            assertEquals(Integer.toString(expected.size()), response.getHeader(HistoryController.TOTAL_COUNT));
+            assertTrue(response.getContentAsString().startsWith(header));
+            pages.append(response.getContentAsString().substring(header.length()));
+            cursor = response.getHeader(HistoryController.NEXT_CURSOR);
+        }
+        assertEquals(all, pages.toString());
+
+        // курсор нового снимка вытесняет прежний (хранится один снимок)
+        assertNotNull(perform(url).getHeader(HistoryController.NEXT_CURSOR));
+        assertEquals(410, perform(url + "&cursor=" + first).getStatus());
+        assertEquals(400, perform(url + "&cursor=zzz").getStatus());
+        assertEquals(400, perform("/api/history?limit=0").getStatus());
+    }
+
+    @Test
+    public void testETag() throws Exception {
+        MockHttpServletResponse response = perform("/api/history?secid=AFLT");
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+        assertNotEquals(etag, perform("/api/history?secid=AFLT&format=csv").getHeader("ETag"));
+        response = perform("/api/history?secid=AFLT", "If-None-Match", etag);
+        assertEquals(304, response.getStatus());
+        assertEquals("", response.getContentAsString());
+
+        load("history_4");
+        response = perform("/api/history?secid=AFLT", "If-None-Match", etag);
+        assertEquals(200, response.getStatus());
+        assertNotEquals(etag, response.getHeader("ETag"));
+        assertEquals(tempDB.findBySecid("AFLT").size(), lines(response).size());
+    }
+
+    @Test
+    public void testAggregates() throws Exception {
+        Aggregation query = new Aggregation(Aggregation.GroupBy.SECID)
+                .add("volume", Aggregation.Function.SUM)
+                .add("close", Aggregation.Function.LAST);
+        List<Aggregation.Group> groups = tempDB.aggregate(query);
+        MockHttpServletResponse response = perform("/api/aggregates?groupBy=secid&agg=sum:volume,last:close");
+        List<String> lines = lines(response);
+        assertEquals(groups.size(), lines.size());
+        assertTrue(lines.get(0), lines.get(0).startsWith("{\"SECID\":\"" + groups.get(0).getKey() + "\",\"ROWS\":"
+                + groups.get(0).getRows() + ",\"SUM(VOLUME)\":"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Aggregation monthly = new Aggregation(Aggregation.GroupBy.MONTH).add("close", Aggregation.Function.AVG);
+        new CSVWriter(Channels.newChannel(out)).writeAggregates(monthly, monthly.run(tempDB.findBySecid("AFLT")));
+        assertEquals(new String(out.toByteArray(), StandardCharsets.UTF_8),
+                perform("/api/aggregates?groupBy=month&agg=avg:close&secid=AFLT&format=csv").getContentAsString());
+
+        assertEquals(400, perform("/api/aggregates?groupBy=year").getStatus());
+        assertEquals(400, perform("/api/aggregates?groupBy=secid&agg=median:close").getStatus());
+        assertEquals(400, perform("/api/aggregates?groupBy=secid&agg=close").getStatus());
+    }
+
+    @Test
+    public void testSecurities() throws Exception {
+        MockHttpServletResponse response = perform("/api/securities/AFLT");
+        assertEquals(200, response.getStatus());
+        assertTrue(response.getContentAsString(), response.getContentAsString().contains("\"secid\":\"AFLT\""));
+        assertEquals(304, perform("/api/securities/AFLT", "If-None-Match", response.getHeader("ETag")).getStatus());
+        assertEquals(404, perform("/api/securities/NONE").getStatus());
+        response = perform("/api/securities");
+        assertEquals(tempDB.snapshot().getSecurities().size(),
+                response.getContentAsString().split("\"secid\":").length - 1);
+    }
+}
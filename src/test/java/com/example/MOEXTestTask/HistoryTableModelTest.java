@@ -0,0 +1,72 @@
+package com.example.MOEXTestTask;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+import javafx.collections.ListChangeListener;
+import org.junit.Before;
+import org.junit.Test;
+import sample.HistoryTableModel;
+import sample.TempDB;
+import sample.XMLReader;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+public class HistoryTableModelTest {
+    TempDB tempDB;
+    HistoryTableModel model;
+
+    @Before
+    public void init() throws XMLStreamException, FileNotFoundException, ParseException {
+        tempDB = new TempDB();
+        tempDB.add(new XMLReader(new File("src/test/data/securities_1.xml")));
+        tempDB.add(new XMLReader(new File("src/test/data/securities_2.xml")));
+        tempDB.add(new XMLReader(new File("src/test/data/history_1.xml")));
+        model = new HistoryTableModel(tempDB);
+    }
+
+    @Test
+    public void testCellValues() {
+        assertEquals(tempDB.getHistories().size(), model.size());
+        for (TempDB.HistoryEntry he : model) {
+            Map<String, Object> expected = he.getAttributes("secid", "name", "tradedate", "open", "close");
+            for (Map.Entry<String, Object> e : expected.entrySet()) {
+                assertEquals(e.getValue(), he.get(e.getKey()));
+            }
+            assertNull(he.get("no_such_attribute"));
+        }
+    }
+
+    @Test
+    public void testRefreshAddsOnlyNewRows() throws XMLStreamException, FileNotFoundException, ParseException {
+        assertFalse(model.refresh());
+        List<Long> shown = ids(model);
+        List<ListChangeListener.Change<? extends TempDB.HistoryEntry>> changes = new ArrayList<>();
+        model.addListener((ListChangeListener<TempDB.HistoryEntry>) change -> {
+            while (change.next()) {
+                assertTrue(change.wasAdded());
+                assertFalse(change.wasRemoved());
+                for (int i = change.getFrom(); i < change.getTo(); i++) {
+                    shown.add(i, change.getList().get(i).getId());
+                }
+            }
+            changes.add(change);
+        });
+
+        tempDB.add(new XMLReader(new File("src/test/data/history_4.xml")));
+        assertTrue(model.refresh());
+        assertEquals(1, changes.size());
+        assertEquals(ids(tempDB.getHistories()), shown);
+        assertEquals(shown, ids(model));
+        assertFalse(model.refresh());
+    }
+
+    private static List<Long> ids(List<TempDB.HistoryEntry> entries) {
+        List<Long> ids = new ArrayList<>();
+        for (TempDB.HistoryEntry he : entries) ids.add(he.getId());
+        return ids;
+    }
+}
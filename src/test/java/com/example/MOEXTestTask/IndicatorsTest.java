@@ -0,0 +1,209 @@
+package com.example.MOEXTestTask;
+
+import java.io.*;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import sample.Indicators;
+import sample.TempDB;
+import sample.XMLReader;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+public class IndicatorsTest {
+    static final int WINDOW = 5;
+    static final LocalDate START = LocalDate.of(2020, 1, 1);
+    static final String[] SECIDS = {"AAA", "BBB", "CCC"};
+
+    TempDB tempDB;
+    Random random = new Random(11);
+    long id;
+
+    @Before
+    public void init() {
+        tempDB = new TempDB();
+        for (String secid : SECIDS) {
+            HashMap<String, Object> info = new HashMap<>();
+            info.put("secid", secid);
+            tempDB.add(tempDB.new SecurityPaper(secid, info));
+        }
+    }
+
+    @Test
+    public void testIncrementalMatchesScan() {
+        Indicators indicators = new Indicators(tempDB, "close", WINDOW);
+        // дни добавляются пакетами по мере торгов; после каждого пакета ряды сверяются с прямым вычислением
+        for (int from = 0; from < 63; from += 7) {
+            addDays(from, from + 7);
+            assertEquals(SECIDS.length * 2, indicators.update());
+            assertSeries(indicators);
+        }
+        assertEquals(0, indicators.update());
+        // день без цены закрытия в ряд не входит
+        assertEquals(63, indicators.get("AAA", "SMAL").size());
+        assertEquals(62, indicators.get("AAA", "TQBR").size());
+
+        // ряд, построенный сразу по всем дням, совпадает с обновлявшимся по частям
+        Indicators full = new Indicators(tempDB, "close", WINDOW);
+        full.update();
+        for (Indicators.Series series : indicators.getSeries()) {
+            Indicators.Series expected = full.get(series.getSecid(), series.getBoardid());
+            for (int i = 0; i < series.size(); i++) {
+                assertEquals(expected.getDate(i), series.getDate(i));
+                assertEquals(expected.getAtr(i), series.getAtr(i), 1e-9);
+                assertEquals(expected.getVolatility(i), series.getVolatility(i), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testEarlierDayAndReplacedRow() {
+        tempDB.setDuplicatePolicy(TempDB.DuplicatePolicy.REPLACE);
+        Indicators indicators = new Indicators(tempDB, "close", WINDOW);
+        addDays(10, 30);
+        indicators.update();
+        Indicators.Series before = indicators.get("BBB", "SMAL");
+        double last = before.getEma(before.size() - 1);
+
+        // пропущенные ранее дни и исправленная запись уже учтённого дня
+        addDays(0, 10);
+        LinkedHashMap<String, Object> attributes = attributes("BBB", "SMAL", START.plusDays(20));
+        attributes.put("close", 1000.0);
+        tempDB.add(tempDB.new HistoryEntry(tempDB.snapshot().getSecurities().get("BBB"), attributes, id++));
+        indicators.update();
+        assertSeries(indicators);
+        Indicators.Series after = indicators.get("BBB", "SMAL");
+        assertEquals(1000.0, after.getPrice(after.indexOf(START.plusDays(20))), 0);
+        assertNotEquals(last, after.getEma(after.size() - 1), 1e-9);
+        // ряд, полученный раньше, не изменился
+        assertEquals(20, before.size());
+        assertEquals(last, before.getEma(before.size() - 1), 0);
+    }
+
+    @Test
+    public void testLoadedFiles() throws XMLStreamException, FileNotFoundException, ParseException {
+        TempDB db = new TempDB();
+        for (String name : new String[]{"securities_1", "securities_2", "history_1", "history_4"}) {
+            db.add(new XMLReader(new File("src/test/data/" + name + ".xml")));
+        }
+        Indicators indicators = new Indicators(db, "close", 2);
+        indicators.update();
+        int days = 0;
+        for (Indicators.Series series : indicators.getSeries()) {
+            for (int i = 0; i < series.size(); i++) {
+                List<TempDB.HistoryEntry> entries = db.find(series.getSecid(), series.getBoardid(),
+                        series.getDate(i), series.getDate(i));
+                assertEquals(1, entries.size());
+                assertEquals((Double) entries.get(0).get("close"), series.getPrice(i), 0);
+                if (i > 0) {
+                    assertEquals(series.getPrice(i) / series.getPrice(i - 1) - 1, series.getReturn(i), 1e-12);
+                    assertEquals((series.getPrice(i) + series.getPrice(i - 1)) / 2, series.getSma(i), 1e-9);
+                }
+                days++;
+            }
+        }
+        assertTrue(days > 0);
+    }
+
+    // добавляет дни [from, to) для всех бумаг в режимах TQBR и SMAL; в каждой третьей строке нет HIGH и LOW,
+    // у бумаги AAA в режиме TQBR есть день без цены закрытия
+    private void addDays(int from, int to) {
+        List<TempDB.HistoryEntry> entries = new ArrayList<>();
+        for (int day = from; day < to; day++) {
+            for (String secid : SECIDS) {
+                for (String board : new String[]{"TQBR", "SMAL"}) {
+                    LinkedHashMap<String, Object> attributes = attributes(secid, board, START.plusDays(day));
+                    if (day % 3 == 0) {
+                        attributes.remove("high");
+                        attributes.remove("low");
+                    }
+                    if (day == 4 && secid.equals("AAA") && board.equals("TQBR")) attributes.put("close", "");
+                    entries.add(tempDB.new HistoryEntry(tempDB.snapshot().getSecurities().get(secid), attributes,
+                            id++));
+                }
+            }
+        }
+        // добавление в произвольном порядке
+        Collections.shuffle(entries, random);
+        tempDB.add(entries.toArray(new TempDB.HistoryEntry[0]));
+    }
+
+    private LinkedHashMap<String, Object> attributes(String secid, String board, LocalDate date) {
+        double close = 100 + random.nextInt(1000) / 10.0;
+        LinkedHashMap<String, Object> attributes = new LinkedHashMap<>();
+        attributes.put("secid", secid);
+        attributes.put("boardid", board);
+        attributes.put("tradedate", date);
+        attributes.put("close", close);
+        attributes.put("high", close + random.nextInt(50) / 10.0);
+        attributes.put("low", close - random.nextInt(50) / 10.0);
+        return attributes;
+    }
+
+    // сравнение рядов с прямым вычислением по записям TempDB
+    private void assertSeries(Indicators indicators) {
+        for (Indicators.Series series : indicators.getSeries()) {
+            List<TempDB.HistoryEntry> entries = new ArrayList<>();
+            for (TempDB.HistoryEntry he : tempDB.find(series.getSecid(), series.getBoardid(), null, null)) {
+                if (!"".equals(he.get("close"))) entries.add(he);
+            }
+            entries.sort(Comparator.comparing(he -> (LocalDate) he.get("tradedate")));
+            assertEquals(entries.size(), series.size());
+            int n = entries.size();
+            double[] close = new double[n];
+            double[] high = new double[n];
+            double[] low = new double[n];
+            for (int i = 0; i < n; i++) {
+                TempDB.HistoryEntry he = entries.get(i);
+                assertEquals(he.get("tradedate"), series.getDate(i));
+                close[i] = (Double) he.get("close");
+                high[i] = he.get("high") instanceof Double ? (Double) he.get("high") : close[i];
+                low[i] = he.get("low") instanceof Double ? (Double) he.get("low") : close[i];
+                assertEquals(close[i], series.getPrice(i), 0);
+            }
+            double alpha = 2.0 / (WINDOW + 1);
+            double ema = close[0];
+            double atr = Double.NaN;
+            for (int i = 0; i < n; i++) {
+                if (i > 0) ema = alpha * close[i] + (1 - alpha) * ema;
+                assertEquals(ema, series.getEma(i), 1e-9);
+                if (i == 0) {
+                    assertTrue(Double.isNaN(series.getReturn(i)));
+                } else {
+                    assertEquals(close[i] / close[i - 1] - 1, series.getReturn(i), 1e-12);
+                }
+                double tr = i == 0 ? high[i] - low[i] : Math.max(high[i] - low[i],
+                        Math.max(Math.abs(high[i] - close[i - 1]), Math.abs(low[i] - close[i - 1])));
+                if (i + 1 < WINDOW) {
+                    assertTrue(Double.isNaN(series.getSma(i)));
+                    assertTrue(Double.isNaN(series.getAtr(i)));
+                    atr = i == 0 ? tr : atr + tr;
+                    continue;
+                }
+                double sum = 0;
+                for (int j = i - WINDOW + 1; j <= i; j++) sum += close[j];
+                assertEquals(sum / WINDOW, series.getSma(i), 1e-9);
+                atr = i + 1 == WINDOW ? (atr + tr) / WINDOW : (atr * (WINDOW - 1) + tr) / WINDOW;
+                assertEquals(atr, series.getAtr(i), 1e-9);
+                if (i < WINDOW) {
+                    assertTrue(Double.isNaN(series.getVolatility(i)));
+                    continue;
+                }
+                double[] returns = new double[WINDOW];
+                double mean = 0;
+                for (int j = 0; j < WINDOW; j++) {
+                    returns[j] = close[i - WINDOW + 1 + j] / close[i - WINDOW + j] - 1;
+                    mean += returns[j] / WINDOW;
+                }
+                double squares = 0;
+                for (double r : returns) squares += (r - mean) * (r - mean);
+                assertEquals(Math.sqrt(squares / (WINDOW - 1)), series.getVolatility(i), 1e-12);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.MOEXTestTask;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.*;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sample.*;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+public class InstrumentationTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    List<File> files;
+    List<String> phases = Collections.synchronizedList(new ArrayList<>());
+    List<String> queries = Collections.synchronizedList(new ArrayList<>());
+    Instrumentation.Recorder recorder = new Instrumentation.Recorder() {
+        @Override
+        public void phase(Instrumentation.Phase phase, String file, long rows, long bytes, long nanos,
+                          Object context) {
+            assertTrue(nanos >= 0);
+            phases.add(phase + " " + (file == null ? "-" : new File(file).getName()) + " " + rows + " " + bytes);
+        }
+
+        @Override
+        public void query(String type, long rows, long nanos, Object context) {
+            queries.add(type + " " + rows);
+        }
+    };
+
+    @Before
+    public void init() {
+        files = new ArrayList<>();
+        for (String name : new String[]{"securities_1", "securities_2", "history_1", "history_2"}) {
+            files.add(new File("src/test/data/" + name + ".xml"));
+        }
+        Instrumentation.addRecorder(recorder);
+    }
+
+    @After
+    public void close() {
+        Instrumentation.removeRecorder(recorder);
+    }
+
+    @Test
+    public void testPhases() throws IOException, XMLStreamException, ParseException {
+        TempDB tempDB = new TempDB();
+        new LoadPipeline(tempDB, 2).load(files);
+        for (File file : files) {
+            XMLReader reader = new XMLReader(file);
+            assertTrue(phases.toString(), phases.contains("PARSE " + file.getName() + " "
+                    + reader.getRecords().size() + " " + file.length()));
+        }
+        int rows = tempDB.getHistories().size();
+        for (String phase : new String[]{"VALIDATE", "INSERT", "SORT", "INDEX"}) {
+            assertTrue(phases.toString(), phases.stream().anyMatch(p -> p.startsWith(phase + " - ")));
+        }
+        assertTrue(phases.toString(), phases.contains("INDEX - " + rows + " 0"));
+
+        List<TempDB.HistoryEntry> found = tempDB.find("AFLT", null, null, null);
+        tempDB.aggregate(new Aggregation(Aggregation.GroupBy.SECID).add("close", Aggregation.Function.LAST));
+        assertEquals(Arrays.asList("find " + found.size(), "aggregate " + tempDB.snapshot().getSecurities().keySet()
+                .stream().filter(secid -> !tempDB.findBySecid(secid).isEmpty()).count()), queries.subList(0, 2));
+
+        // открытие снимка замеряется как чтение двоичных столбцов
+        phases.clear();
+        File snapshot = folder.newFile("tempdb.bin");
+        tempDB.save(snapshot, files);
+        TempDB.open(snapshot);
+        assertEquals(Collections.singletonList("DECODE tempdb.bin " + rows + " " + snapshot.length()), phases);
+    }
+
+    @Test
+    public void testMicrometer() throws XMLStreamException, FileNotFoundException, ParseException {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerRecorder micrometer = new MicrometerRecorder(registry);
+        Instrumentation.addRecorder(micrometer);
+        try {
+            TempDB tempDB = new TempDB();
+            new TempDBMetrics(tempDB).bindTo(registry);
+            new LoadPipeline(tempDB, 2).load(files);
+            tempDB.find("AFLT", null, null, null);
+
+            long bytes = 0;
+            for (File file : files) bytes += file.length();
+            assertEquals(files.size(), registry.get("moex.ingest.phase").tag("phase", "parse").timer().count());
+            assertEquals(bytes, registry.get("moex.ingest.bytes").tag("phase", "parse").counter().count(), 0);
+            assertEquals(files.size(),
+                    registry.get("moex.ingest.file.rows.rate").tag("phase", "parse").summary().count());
+            assertEquals(1, registry.get("moex.query").tag("type", "find").timer().count());
+
+            assertEquals(tempDB.getHistories().size(), registry.get("moex.tempdb.rows").gauge().value(), 0);
+            assertEquals(tempDB.snapshot().getSecurities().size(),
+                    registry.get("moex.tempdb.securities").gauge().value(), 0);
+            assertEquals(tempDB.getHistories().size(), registry.get("moex.tempdb.index.rows").gauge().value(), 0);
+            assertTrue(registry.get("moex.tempdb.store.bytes").gauge().value() > 0);
+            assertTrue(registry.get("moex.tempdb.index.bytes").gauge().value() > 0);
+        } finally {
+            Instrumentation.removeRecorder(micrometer);
+        }
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws IOException, XMLStreamException, ParseException {
+        Path dump = folder.getRoot().toPath().resolve("load.jfr");
+        JfrRecorder jfr = new JfrRecorder();
+        Instrumentation.addRecorder(jfr);
+        try (Recording recording = new Recording()) {
+            recording.enable("sample.Phase");
+            recording.enable("sample.Query");
+            recording.start();
+            TempDB tempDB = new TempDB();
+            new LoadPipeline(tempDB, 2).load(files);
+            tempDB.find("AFLT", null, null, null);
+            recording.stop();
+            recording.dump(dump);
+        } finally {
+            Instrumentation.removeRecorder(jfr);
+        }
+        Set<String> parsed = new HashSet<>();
+        int queries = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+            if (event.getEventType().getName().equals("sample.Phase") && "PARSE".equals(event.getString("phase"))) {
+                parsed.add(new File(event.getString("file")).getName());
+                assertEquals(new File(event.getString("file")).length(), event.getLong("bytes"));
+            } else if (event.getEventType().getName().equals("sample.Query")) {
+                assertEquals("find", event.getString("type"));
+                queries++;
+            }
+        }
+        Set<String> expected = new HashSet<>();
+        for (File file : files) expected.add(file.getName());
+        // получатель по умолчанию тоже создаёт события, поэтому каждый файл может встретиться дважды
+        assertEquals(expected, parsed);
+        assertTrue(queries >= 1);
+    }
+}
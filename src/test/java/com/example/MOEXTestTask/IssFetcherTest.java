@@ -0,0 +1,145 @@
+package com.example.MOEXTestTask;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sample.IssFetcher;
+import sample.TempDB;
+import sample.XMLReader;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IssFetcherTest {
+    private static final int PAGE_SIZE = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File history;
+    List<File> securityFiles;
+    File pages;
+
+    @Before
+    public void init() throws IOException {
+        history = new File("src/test/data/history_1.xml");
+        securityFiles = Arrays.asList(
+                new File("src/test/data/securities_1.xml"),
+                new File("src/test/data/securities_2.xml")
+        );
+        pages = folder.newFolder("pages");
+        splitPages(history, pages);
+    }
+
+    // разбивает файл истории на страницы page_<start>.xml по PAGE_SIZE записей с блоком курсора, как в ответах ISS
+    private static void splitPages(File file, File directory) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        List<String> header = new ArrayList<>();
+        List<String> rows = new ArrayList<>();
+        for (String line : lines) {
+            if (line.startsWith("<row BOARDID")) {
+                rows.add(line);
+            } else if (rows.isEmpty()) {
+                header.add(line);
+            }
+        }
+        for (int start = 0; start < rows.size(); start += PAGE_SIZE) {
+            List<String> page = new ArrayList<>(header);
+            page.addAll(rows.subList(start, Math.min(start + PAGE_SIZE, rows.size())));
+            page.addAll(Arrays.asList("</rows>", "</data>", "<data id=\"history.cursor\">", "<metadata>", "<columns>",
+                    "<column name=\"INDEX\" type=\"int64\" />", "<column name=\"TOTAL\" type=\"int64\" />",
+                    "<column name=\"PAGESIZE\" type=\"int64\" />", "</columns>", "</metadata>", "<rows>",
+                    "<row INDEX=\"" + start + "\" TOTAL=\"" + rows.size() + "\" PAGESIZE=\"" + PAGE_SIZE + "\" />",
+                    "</rows>", "</data>", "</document>"));
+            Files.write(new File(directory, "page_" + start + ".xml").toPath(), page, StandardCharsets.UTF_8);
+        }
+    }
+
+    private TempDB securities() throws XMLStreamException, FileNotFoundException, ParseException {
+        TempDB tempDB = new TempDB();
+        for (File f : securityFiles) {
+            tempDB.add(new XMLReader(f));
+        }
+        return tempDB;
+    }
+
+    private void assertSameHistories(TempDB expected, TempDB actual) {
+        assertEquals(expected.getHistories().size(), actual.getHistories().size());
+        for (int i = 0; i < expected.getHistories().size(); i++) {
+            assertEquals(expected.getHistories().get(i).getId(), actual.getHistories().get(i).getId());
+            assertEquals(expected.getHistories().get(i).getAllAttributes(),
+                    actual.getHistories().get(i).getAllAttributes());
+        }
+    }
+
+    @Test
+    public void testDirectoryPagesEqualFile() throws Exception {
+        TempDB expected = securities();
+        expected.add(new XMLReader(history));
+        for (int prefetch : new int[]{1, 3}) {
+            TempDB tempDB = securities();
+            long rows = new IssFetcher(tempDB, IssFetcher.directory(pages, "page_%d.xml"), prefetch).fetch();
+            assertEquals(100, rows);
+            assertSameHistories(expected, tempDB);
+        }
+    }
+
+    @Test
+    public void testHttpPages() throws Exception {
+        List<String> requested = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/iss/history.xml", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            requested.add(query);
+            String start = query.substring(query.indexOf("start=") + "start=".length());
+            File page = new File(pages, "page_" + start + ".xml");
+            if (!page.exists()) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.sendResponseHeaders(200, page.length());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    Files.copy(page.toPath(), out);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/iss/history.xml?date=2020-04-15";
+            TempDB tempDB = securities();
+            new IssFetcher(tempDB, IssFetcher.http(url)).fetch();
+            TempDB expected = securities();
+            expected.add(new XMLReader(history));
+            assertSameHistories(expected, tempDB);
+            assertEquals(Arrays.asList("date=2020-04-15&start=0", "date=2020-04-15&start=30",
+                    "date=2020-04-15&start=60", "date=2020-04-15&start=90"), requested);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testMissingPageStopsFetch() throws Exception {
+        assertTrue(new File(pages, "page_60.xml").delete());
+        TempDB tempDB = securities();
+        try {
+            new IssFetcher(tempDB, IssFetcher.directory(pages, "page_%d.xml")).fetch();
+            fail();
+        } catch (FileNotFoundException e) {
+            // страницы до отсутствующей уже добавлены
+            TempDB expected = securities();
+            expected.add(new XMLReader(new File(pages, "page_0.xml")), new XMLReader(new File(pages, "page_30.xml")));
+            assertFalse(tempDB.getHistories().isEmpty());
+            assertSameHistories(expected, tempDB);
+        }
+    }
+}
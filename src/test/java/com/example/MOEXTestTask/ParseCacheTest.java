@@ -0,0 +1,130 @@
+package com.example.MOEXTestTask;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sample.LoadPipeline;
+import sample.ParseCache;
+import sample.TempDB;
+import sample.XMLReader;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+public class ParseCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    List<File> files;
+    TempDB expected;
+
+    @Before
+    public void init() throws XMLStreamException, FileNotFoundException, ParseException {
+        files = new ArrayList<>();
+        expected = new TempDB();
+        for (String name : new String[]{"securities_1", "securities_2", "history_1", "history_2"}) {
+            File file = new File("src/test/data/" + name + ".xml");
+            files.add(file);
+            expected.add(new XMLReader(file));
+        }
+    }
+
+    @Test
+    public void testCachedLoadEqualsParsed() throws IOException, XMLStreamException, ParseException {
+        ParseCache cache = new ParseCache(folder.newFolder("cache"), 1L << 30);
+        for (int pass = 0; pass < 2; pass++) {
+            TempDB db = load(cache, files);
+            assertHistories(expected, db);
+        }
+        assertEquals(files.size(), cache.getMisses());
+        assertEquals(files.size(), cache.getHits());
+
+        // ключ записи - содержимое файла: копия под другим именем читается из кэша
+        File copy = new File(folder.getRoot(), "copy_of_history_1.xml");
+        Files.copy(files.get(2).toPath(), copy.toPath());
+        load(cache, Arrays.asList(files.get(0), files.get(1), copy));
+        assertEquals(files.size(), cache.getMisses());
+        assertEquals(files.size() + 3, cache.getHits());
+    }
+
+    @Test
+    public void testModifiedFileReparsed() throws IOException, XMLStreamException, ParseException {
+        ParseCache cache = new ParseCache(folder.newFolder("cache"), 1L << 30);
+        File history = new File(folder.getRoot(), "history.xml");
+        Files.copy(files.get(2).toPath(), history.toPath());
+        List<File> sources = Arrays.asList(files.get(0), files.get(1), history);
+        load(cache, sources);
+
+        String xml = new String(Files.readAllBytes(history.toPath()), StandardCharsets.UTF_8);
+        Files.write(history.toPath(), xml.replaceFirst("CLOSE=\"[^\"]*\"", "CLOSE=\"1.5\"")
+                .getBytes(StandardCharsets.UTF_8));
+        TempDB db = load(cache, sources);
+        assertEquals(4, cache.getMisses());
+        TempDB reparsed = new TempDB();
+        for (File file : sources) {
+            reparsed.add(new XMLReader(file));
+        }
+        assertHistories(reparsed, db);
+    }
+
+    @Test
+    public void testEviction() throws IOException, XMLStreamException, ParseException {
+        File directory = folder.newFolder("cache");
+        ParseCache unbounded = new ParseCache(directory, Long.MAX_VALUE);
+        load(unbounded, files);
+        long total = unbounded.size();
+        File[] entries = directory.listFiles();
+        assertEquals(files.size(), entries.length);
+
+        // в кэш вдвое меньшего размера помещаются не все записи, но результат загрузки тот же
+        File small = folder.newFolder("small");
+        ParseCache cache = new ParseCache(small, total / 2);
+        assertHistories(expected, load(cache, files));
+        assertTrue(cache.size() <= total / 2);
+        assertTrue(small.listFiles().length < files.size());
+        assertHistories(expected, load(cache, files));
+        assertTrue(cache.size() <= total / 2);
+    }
+
+    @Test
+    public void testCorruptedEntryReparsed() throws IOException, XMLStreamException, ParseException {
+        File directory = folder.newFolder("cache");
+        ParseCache cache = new ParseCache(directory, 1L << 30);
+        load(cache, files);
+        for (File entry : directory.listFiles()) {
+            try (RandomAccessFile file = new RandomAccessFile(entry, "rw")) {
+                file.setLength(file.length() / 2);
+            }
+        }
+        assertHistories(expected, load(cache, files));
+        assertEquals(2 * files.size(), cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+
+    private static TempDB load(ParseCache cache, List<File> files)
+            throws FileNotFoundException, XMLStreamException, ParseException {
+        TempDB db = new TempDB();
+        LoadPipeline pipeline = new LoadPipeline(db, 2);
+        pipeline.setCache(cache);
+        pipeline.load(files);
+        return db;
+    }
+
+    private static void assertHistories(TempDB expected, TempDB actual) {
+        assertEquals(expected.getHistories().size(), actual.getHistories().size());
+        for (int i = 0; i < expected.getHistories().size(); i++) {
+            assertEquals(expected.getHistories().get(i).getId(), actual.getHistories().get(i).getId());
+            assertEquals(expected.getHistories().get(i).getAllAttributes(),
+                    actual.getHistories().get(i).getAllAttributes());
+        }
+        assertEquals(expected.snapshot().getSecurities().keySet(), actual.snapshot().getSecurities().keySet());
+    }
+}
@@ -0,0 +1,520 @@
+package com.example.MOEXTestTask;
+
+import java.io.*;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sample.HistoryBatch;
+import sample.LoadPipeline;
+import sample.Projection;
+import sample.TempDB;
+import sample.XMLReader;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+public class TempDBTest {
+    List<File> historyFiles;
+    List<File> securityFiles;
+    TempDB tempDB;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void init() throws XMLStreamException, FileNotFoundException, ParseException {
+        historyFiles = Arrays.asList(
+                new File("src/test/data/history_1.xml"),
+                new File("src/test/data/history_2.xml")
+        );
+        securityFiles = Arrays.asList(
+                new File("src/test/data/securities_1.xml"),
+                new File("src/test/data/securities_2.xml")
+        );
+        tempDB = new TempDB();
+        for (File f : securityFiles) {
+            tempDB.add(new XMLReader(f));
+        }
+        for (File f : historyFiles) {
+            tempDB.add(new XMLReader(f));
+        }
+    }
+
+    @Test
+    public void testHistoriesSortedBySecid() {
+        List<TempDB.HistoryEntry> histories = tempDB.getHistories();
+        assertFalse(histories.isEmpty());
+        for (int i = 1; i < histories.size(); i++) {
+            assertTrue(histories.get(i - 1).getSecid().compareTo(histories.get(i).getSecid()) <= 0);
+        }
+    }
+
+    @Test
+    public void testIncrementalAddKeepsOrder() throws XMLStreamException, FileNotFoundException, ParseException {
+        TempDB db = new TempDB();
+        for (File f : securityFiles) {
+            db.add(new XMLReader(f));
+        }
+        XMLReader[] readers = new XMLReader[historyFiles.size()];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new XMLReader(historyFiles.get(i));
+        }
+        db.add(readers);
+        List<TempDB.HistoryEntry> expected = db.getHistories();
+        List<TempDB.HistoryEntry> actual = tempDB.getHistories();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+        }
+        for (int i = 1; i < actual.size(); i++) {
+            Map<String, Object> previous = actual.get(i - 1).getAllAttributes();
+            Map<String, Object> current = actual.get(i).getAllAttributes();
+            if (!previous.get("secid").equals(current.get("secid"))) continue;
+            int c = ((LocalDate) previous.get("tradedate")).compareTo((LocalDate) current.get("tradedate"));
+            if (c == 0) c = ((String) previous.get("boardid")).compareTo((String) current.get("boardid"));
+            if (c == 0) c = Long.compare(actual.get(i - 1).getId(), actual.get(i).getId());
+            assertTrue(c < 0);
+        }
+    }
+
+    @Test
+    public void testEntryMatchesRecord() throws XMLStreamException, FileNotFoundException, ParseException {
+        XMLReader reader = new XMLReader(historyFiles.get(0));
+        TempDB db = new TempDB();
+        for (File f : securityFiles) {
+            db.add(new XMLReader(f));
+        }
+        db.add(reader);
+        for (TempDB.HistoryEntry he : db.getHistories()) {
+            XMLReader.Record record = reader.getRecords().get((int) he.getId());
+            assertEquals(record.getAllAttributes(), he.getAllAttributes());
+        }
+    }
+
+    @Test
+    public void testLoadEqualsAdd() throws XMLStreamException, FileNotFoundException, ParseException {
+        TempDB db = new TempDB();
+        for (File f : securityFiles) {
+            db.load(f);
+        }
+        for (File f : historyFiles) {
+            db.load(f);
+        }
+        assertEquals(tempDB.getPreparedList("secid", "name", "tradedate", "close"),
+                db.getPreparedList("secid", "name", "tradedate", "close"));
+    }
+
+    @Test
+    public void testPipelineEqualsSerial() throws XMLStreamException, FileNotFoundException, ParseException {
+        List<File> files = Arrays.asList(
+                historyFiles.get(0), securityFiles.get(0), historyFiles.get(1), securityFiles.get(1));
+        for (int threads : new int[]{1, 4}) {
+            TempDB db = new TempDB();
+            new LoadPipeline(db, threads).load(files);
+            assertEquals(tempDB.getHistories().size(), db.getHistories().size());
+            for (int i = 0; i < db.getHistories().size(); i++) {
+                TempDB.HistoryEntry expected = tempDB.getHistories().get(i);
+                TempDB.HistoryEntry actual = db.getHistories().get(i);
+                assertEquals(expected.getId(), actual.getId());
+                assertEquals(expected.getAllAttributes(), actual.getAllAttributes());
+            }
+        }
+    }
+
+    @Test
+    public void testPipelineBatchesSkipFailedFiles() {
+        List<File> files = Arrays.asList(historyFiles.get(0), new File("src/test/data/empty.xml"),
+                securityFiles.get(0), historyFiles.get(1), new File("src/test/data/missing.xml"), securityFiles.get(1));
+        TempDB db = new TempDB();
+        List<File> failed = new ArrayList<>();
+        List<File> read = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> published = new ArrayList<>();
+        new LoadPipeline(db, 2).load(files, new LoadPipeline.Listener() {
+            @Override
+            public void fileRead(File file, int rows) {
+                read.add(file);
+            }
+
+            @Override
+            public void fileFailed(File file, Exception e) {
+                failed.add(file);
+            }
+
+            @Override
+            public void published(TempDB.Snapshot snapshot) {
+                published.add(snapshot.getHistories().size());
+            }
+        });
+        assertEquals(Arrays.asList(files.get(1), files.get(4)), failed);
+        assertEquals(4, read.size());
+        assertFalse(published.isEmpty());
+        assertEquals(tempDB.getHistories().size(), (int) published.get(published.size() - 1));
+        for (int i = 0; i < db.getHistories().size(); i++) {
+            assertEquals(tempDB.getHistories().get(i).getId(), db.getHistories().get(i).getId());
+            assertEquals(tempDB.getHistories().get(i).getAllAttributes(), db.getHistories().get(i).getAllAttributes());
+        }
+    }
+
+    @Test
+    public void testFindMatchesScan() {
+        LocalDate from = LocalDate.of(2020, 4, 15);
+        LocalDate to = LocalDate.of(2020, 4, 16);
+        String[][] queries = {{"AFLT", null}, {null, "TQBR"}, {"AFKS", "TQBR"}, {"NONE", null}};
+        for (String[] q : queries) {
+            for (boolean byDate : new boolean[]{false, true}) {
+                List<Long> expected = new ArrayList<>();
+                for (TempDB.HistoryEntry he : tempDB.getHistories()) {
+                    Map<String, Object> a = he.getAllAttributes();
+                    if (q[0] != null && !q[0].equals(a.get("secid"))) continue;
+                    if (q[1] != null && !q[1].equals(a.get("boardid"))) continue;
+                    LocalDate date = (LocalDate) a.get("tradedate");
+                    if (byDate && (date.isBefore(from) || date.isAfter(to))) continue;
+                    expected.add(he.getId());
+                }
+                List<Long> actual = new ArrayList<>();
+                for (TempDB.HistoryEntry he : tempDB.find(q[0], q[1], byDate ? from : null, byDate ? to : null)) {
+                    actual.add(he.getId());
+                }
+                Collections.sort(expected);
+                Collections.sort(actual);
+                assertEquals(expected, actual);
+            }
+        }
+        List<TempDB.HistoryEntry> byDate = tempDB.findByDate(from, null);
+        for (int i = 1; i < byDate.size(); i++) {
+            LocalDate previous = (LocalDate) byDate.get(i - 1).getAllAttributes().get("tradedate");
+            assertFalse(previous.isAfter((LocalDate) byDate.get(i).getAllAttributes().get("tradedate")));
+        }
+    }
+
+    @Test
+    public void testSubListOfResult() {
+        for (List<TempDB.HistoryEntry> result : Arrays.asList(tempDB.getHistories(), tempDB.findBySecid("AFLT"))) {
+            List<Long> ids = result.stream().map(TempDB.HistoryEntry::getId).collect(Collectors.toList());
+            int from = result.size() / 3;
+            int to = result.size() - 1;
+            List<TempDB.HistoryEntry> page = result.subList(from, to);
+            assertEquals(ids.subList(from, to), page.stream().map(TempDB.HistoryEntry::getId)
+                    .collect(Collectors.toList()));
+            int middle = page.size() / 2;
+            assertEquals(ids.subList(from + middle, to), page.subList(middle, page.size()).stream()
+                    .map(TempDB.HistoryEntry::getId).collect(Collectors.toList()));
+            assertTrue(result.subList(to, to).isEmpty());
+            try {
+                result.subList(from, result.size() + 1);
+                fail();
+            } catch (IndexOutOfBoundsException e) {
+                // ожидаемое исключение
+            }
+        }
+    }
+
+    @Test
+    public void testProjectionMatchesEntries() {
+        String[] attributes = {"secid", "name", "tradedate", "close", "unknown"};
+        List<TempDB.HistoryEntry> histories = tempDB.getHistories();
+        List<Projection.Row> rows = tempDB.select(attributes).stream().collect(Collectors.toList());
+        assertEquals(histories.size(), rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            TempDB.HistoryEntry he = histories.get(i);
+            assertEquals(he.getId(), rows.get(i).getId());
+            assertEquals(he.getAttributes(attributes), rows.get(i).toMap());
+            assertEquals(he.get("name"), rows.get(i).get(1));
+            assertNull(rows.get(i).get("unknown"));
+        }
+
+        List<Long> ids = new ArrayList<>();
+        Projection.Cursor cursor = tempDB.select(attributes).cursor();
+        while (cursor.next()) ids.add(cursor.getId());
+        List<Long> parallel = tempDB.select(attributes).parallelStream()
+                .map(Projection.Row::getId).collect(Collectors.toList());
+        assertEquals(ids, parallel);
+    }
+
+    @Test
+    public void testProjectionPushdown() {
+        LocalDate from = LocalDate.of(2020, 4, 15);
+        List<Long> expected = new ArrayList<>();
+        for (TempDB.HistoryEntry he : tempDB.find("AFLT", "TQBR", from, null)) {
+            if (!"".equals(he.get("close"))) expected.add(he.getId());
+        }
+        List<Long> actual = tempDB.select("secid", "close")
+                .whereSecid("AFLT").whereBoard("TQBR").whereDate(from, null)
+                .filter("close", value -> !"".equals(value))
+                .stream().map(Projection.Row::getId).collect(Collectors.toList());
+        assertFalse(actual.isEmpty());
+        assertEquals(expected, actual);
+        assertFalse(tempDB.select("secid").whereSecid("NONE").cursor().next());
+    }
+
+    @Test
+    public void testInsertCounts() throws XMLStreamException, FileNotFoundException, ParseException {
+        TempDB expected = new TempDB();
+        TempDB db = new TempDB();
+        HistoryBatch securities = new HistoryBatch();
+        for (File f : securityFiles) {
+            expected.add(new XMLReader(f));
+            securities.add(new XMLReader(f));
+        }
+        expected.add(new XMLReader(historyFiles.get(0)));
+        db.insert(securities);
+
+        XMLReader history = new XMLReader(historyFiles.get(0));
+        TempDB.InsertResult result = db.insert(new HistoryBatch(100).add(history));
+        int accepted = expected.getHistories().size();
+        assertEquals(accepted, result.getAccepted());
+        assertEquals(100 - accepted, result.getOrphaned());
+        assertEquals(0, result.getHeld());
+        assertEquals(0, result.getDuplicates());
+        for (int i = 0; i < accepted; i++) {
+            assertEquals(expected.getHistories().get(i).getId(), db.getHistories().get(i).getId());
+            assertEquals(expected.getHistories().get(i).getAllAttributes(), db.getHistories().get(i).getAllAttributes());
+        }
+
+        result = db.insert(new HistoryBatch().add(history));
+        assertEquals(0, result.getAccepted());
+        assertEquals(accepted, result.getDuplicates());
+        assertEquals(accepted, db.getHistories().size());
+    }
+
+    @Test
+    public void testHeldOrphansReleased() throws XMLStreamException, FileNotFoundException, ParseException {
+        TempDB db = new TempDB();
+        db.setHoldOrphans(true);
+        TempDB.InsertResult result = db.insert(new HistoryBatch().add(new XMLReader(historyFiles.get(0))));
+        assertEquals(0, result.getAccepted());
+        assertEquals(100, result.getHeld());
+        assertEquals(100, db.getPendingCount());
+        assertTrue(db.getHistories().isEmpty());
+
+        result = db.insert(new HistoryBatch()
+                .add(new XMLReader(securityFiles.get(0))).add(new XMLReader(securityFiles.get(1))));
+        TempDB expected = new TempDB();
+        for (File f : securityFiles) {
+            expected.add(new XMLReader(f));
+        }
+        expected.add(new XMLReader(historyFiles.get(0)));
+        assertEquals(expected.getHistories().size(), db.getHistories().size());
+        assertEquals(100 - expected.getHistories().size(), db.getPendingCount());
+        assertEquals(expected.getHistories().size(), result.getReleased());
+        for (int i = 0; i < db.getHistories().size(); i++) {
+            assertEquals(expected.getHistories().get(i).getId(), db.getHistories().get(i).getId());
+            assertEquals(expected.getHistories().get(i).getAllAttributes(), db.getHistories().get(i).getAllAttributes());
+        }
+    }
+
+    @Test
+    public void testHeldShardOrphansGetNewIds() throws XMLStreamException, FileNotFoundException, ParseException {
+        File history3 = new File("src/test/data/history_3.xml");
+        TempDB db = new TempDB();
+        db.setHoldOrphans(true);
+        new LoadPipeline(db, 2).load(Arrays.asList(securityFiles.get(0), historyFiles.get(0)));
+        int accepted = db.getHistories().size();
+        new LoadPipeline(db, 2).load(Collections.singletonList(history3));
+        assertEquals(accepted, db.getHistories().size());
+        int held = db.getPendingCount();
+        new LoadPipeline(db, 2).load(Collections.singletonList(securityFiles.get(1)));
+        assertTrue(db.getPendingCount() < held);
+
+        // id строк фрагментов локальны, поэтому перенесённые записи получают новые id
+        TempDB expected = new TempDB();
+        for (File f : securityFiles) {
+            expected.add(new XMLReader(f));
+        }
+        expected.add(new XMLReader(historyFiles.get(0)));
+        expected.add(new XMLReader(history3));
+        List<TempDB.HistoryEntry> histories = db.getHistories();
+        assertEquals(expected.getHistories().size(), histories.size());
+        Set<Long> ids = histories.stream().map(TempDB.HistoryEntry::getId).collect(Collectors.toSet());
+        assertEquals(histories.size(), ids.size());
+        for (int i = 0; i < histories.size(); i++) {
+            assertEquals(expected.getHistories().get(i).getAllAttributes(), histories.get(i).getAllAttributes());
+        }
+    }
+
+    @Test
+    public void testDuplicatePolicy() throws IOException, XMLStreamException, ParseException {
+        Set<String> keys = new HashSet<>();
+        for (TempDB.HistoryEntry he : tempDB.getHistories()) {
+            keys.add(he.get("secid") + " " + he.get("boardid") + " " + he.get("tradedate"));
+        }
+
+        List<Long> skipIds = null;
+        for (TempDB.DuplicatePolicy policy : new TempDB.DuplicatePolicy[]{
+                TempDB.DuplicatePolicy.SKIP, TempDB.DuplicatePolicy.REPLACE, TempDB.DuplicatePolicy.MERGE}) {
+            TempDB db = new TempDB();
+            db.setDuplicatePolicy(policy);
+            for (File f : securityFiles) {
+                db.add(new XMLReader(f));
+            }
+            // повторы приходят через все пути добавления: построчно, при загрузке файла и фрагментами
+            db.add(new XMLReader(historyFiles.get(0)));
+            db.load(historyFiles.get(1));
+            new LoadPipeline(db, 2).load(historyFiles);
+            assertEquals(policy.toString(), keys.size(), db.getHistories().size());
+
+            Set<String> seen = new HashSet<>();
+            for (TempDB.HistoryEntry he : db.getHistories()) {
+                assertTrue(seen.add(he.get("secid") + " " + he.get("boardid") + " " + he.get("tradedate")));
+            }
+            int found = 0;
+            for (String secid : db.snapshot().getSecurities().keySet()) {
+                found += db.findBySecid(secid).size();
+            }
+            assertEquals(keys.size(), found);
+            assertEquals(keys.size(), db.findByDate(LocalDate.MIN, LocalDate.MAX).size());
+
+            // заменяющие записи получают id заменённых, поэтому id не зависят от правила
+            List<Long> ids = db.getHistories().stream().map(TempDB.HistoryEntry::getId).collect(Collectors.toList());
+            if (skipIds == null) skipIds = ids;
+            assertEquals(skipIds, ids);
+
+            File file = folder.newFile("tempdb-" + policy + ".bin");
+            db.save(file, historyFiles);
+            TempDB opened = TempDB.open(file);
+            assertEquals(keys.size(), opened.getHistories().size());
+            assertEquals(keys.size(), opened.findByDate(LocalDate.MIN, LocalDate.MAX).size());
+            opened.setDuplicatePolicy(policy);
+            opened.add(new XMLReader(historyFiles.get(1)));
+            assertEquals(keys.size(), opened.getHistories().size());
+        }
+    }
+
+    @Test
+    public void testMergeKeepsMissingValues() {
+        for (TempDB.DuplicatePolicy policy : new TempDB.DuplicatePolicy[]{
+                TempDB.DuplicatePolicy.REPLACE, TempDB.DuplicatePolicy.MERGE}) {
+            tempDB.setDuplicatePolicy(policy);
+            TempDB.HistoryEntry old = tempDB.findBySecid("AFLT").get(0);
+            LinkedHashMap<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("secid", old.get("secid"));
+            attributes.put("boardid", old.get("boardid"));
+            attributes.put("tradedate", old.get("tradedate"));
+            attributes.put("close", 123.5);
+            int size = tempDB.getHistories().size();
+            tempDB.add(tempDB.new HistoryEntry(old.getSecurity(), attributes, 1_000_000));
+            assertEquals(size, tempDB.getHistories().size());
+
+            List<TempDB.HistoryEntry> found = tempDB.find("AFLT", (String) old.get("boardid"),
+                    (LocalDate) old.get("tradedate"), (LocalDate) old.get("tradedate"));
+            assertEquals(1, found.size());
+            TempDB.HistoryEntry replaced = found.get(0);
+            assertEquals(old.getId(), replaced.getId());
+            assertEquals(123.5, replaced.get("close"));
+            if (policy == TempDB.DuplicatePolicy.MERGE) {
+                assertEquals(old.get("open"), replaced.get("open"));
+                assertEquals(old.get("shortname"), replaced.get("shortname"));
+            } else {
+                assertNotEquals(old.get("open"), replaced.get("open"));
+            }
+        }
+    }
+
+    @Test
+    public void testAllAttributesIsCopy() {
+        TempDB.HistoryEntry he = tempDB.getHistories().get(0);
+        Map<String, Object> attributes = he.getAllAttributes();
+        attributes.put("secid", "CHANGED");
+        assertEquals(he.getSecid(), tempDB.getHistories().get(0).getAllAttributes().get("secid"));
+    }
+
+    @Test
+    public void testSnapshotUnchangedByWriters() throws XMLStreamException, FileNotFoundException, ParseException {
+        TempDB db = new TempDB();
+        for (File f : securityFiles) {
+            db.add(new XMLReader(f));
+        }
+        db.add(new XMLReader(historyFiles.get(0)));
+        TempDB.Snapshot snapshot = db.snapshot();
+        List<Long> ids = new ArrayList<>();
+        for (TempDB.HistoryEntry he : snapshot.getHistories()) ids.add(he.getId());
+        int found = snapshot.find("AFLT", null, null, null).size();
+
+        db.add(new XMLReader(historyFiles.get(1)));
+        assertTrue(db.getVersion() > snapshot.getVersion());
+        assertEquals(tempDB.getHistories().size(), db.getHistories().size());
+        List<Long> after = new ArrayList<>();
+        for (TempDB.HistoryEntry he : snapshot.getHistories()) after.add(he.getId());
+        assertEquals(ids, after);
+        assertEquals(found, snapshot.find("AFLT", null, null, null).size());
+    }
+
+    @Test
+    public void testConcurrentWritersAndReaders() throws Exception {
+        TempDB db = new TempDB();
+        for (File f : securityFiles) {
+            db.add(new XMLReader(f));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (File f : historyFiles) {
+                writers.add(executor.submit(() -> {
+                    new LoadPipeline(db, 1).load(Collections.singletonList(f));
+                    return null;
+                }));
+            }
+            // читатель проверяет, что каждый снимок отсортирован и не меньше предыдущего
+            Future<?> reader = executor.submit(() -> {
+                int previous = 0;
+                while (previous < tempDB.getHistories().size()) {
+                    List<TempDB.HistoryEntry> histories = db.getHistories();
+                    assertTrue(histories.size() >= previous);
+                    for (int i = 1; i < histories.size(); i++) {
+                        assertTrue(histories.get(i - 1).getSecid().compareTo(histories.get(i).getSecid()) <= 0);
+                    }
+                    previous = histories.size();
+                }
+                return null;
+            });
+            for (Future<?> writer : writers) writer.get();
+            reader.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(tempDB.getHistories().size(), db.getHistories().size());
+        assertEquals(tempDB.getPreparedList("secid", "tradedate", "boardid", "close").size(),
+                db.getPreparedList("secid", "tradedate", "boardid", "close").size());
+        assertEquals(new HashSet<>(tempDB.getPreparedList("secid", "tradedate", "boardid", "close")),
+                new HashSet<>(db.getPreparedList("secid", "tradedate", "boardid", "close")));
+    }
+
+    @Test
+    public void testSaveAndOpen() throws IOException, XMLStreamException, ParseException {
+        File file = folder.newFile("tempdb.bin");
+        List<File> sources = new ArrayList<>(securityFiles);
+        sources.addAll(historyFiles);
+        tempDB.save(file, sources);
+        assertTrue(TempDB.isSnapshotOf(file, sources));
+        assertFalse(TempDB.isSnapshotOf(file, historyFiles));
+
+        TempDB db = TempDB.open(file);
+        assertEquals(tempDB.getVersion(), db.getVersion());
+        assertEquals(tempDB.getHistories().size(), db.getHistories().size());
+        for (int i = 0; i < db.getHistories().size(); i++) {
+            TempDB.HistoryEntry expected = tempDB.getHistories().get(i);
+            TempDB.HistoryEntry actual = db.getHistories().get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getAllAttributes(), actual.getAllAttributes());
+            assertEquals(expected.getSecurity().getInfo(), actual.getSecurity().getInfo());
+        }
+        LocalDate from = LocalDate.of(2020, 4, 15);
+        assertEquals(tempDB.find("AFLT", "TQBR", from, null).size(), db.find("AFLT", "TQBR", from, null).size());
+
+        // в открытую базу можно добавлять записи, id продолжают нумерацию
+        db.add(new XMLReader(historyFiles.get(0)));
+        tempDB.add(new XMLReader(historyFiles.get(0)));
+        assertEquals(tempDB.getPreparedList("secid", "tradedate", "boardid", "close"),
+                db.getPreparedList("secid", "tradedate", "boardid", "close"));
+        assertEquals(tempDB.getHistories().get(0).getId(), db.getHistories().get(0).getId());
+        assertEquals(tempDB.findByBoard("TQBR").size(), db.findByBoard("TQBR").size());
+    }
+}
@@ -2,6 +2,8 @@ package com.example.MOEXTestTask;
 
 import java.io.*;
 import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -25,12 +27,12 @@ public class XMLReaderTest {
     @Before
     public void init() {
         historyFiles = Arrays.asList(
-                new File("test\\data\\history_1.xml"),
-                new File("test\\data\\history_2.xml")
+                new File("src/test/data/history_1.xml"),
+                new File("src/test/data/history_2.xml")
         );
         securityFiles = Arrays.asList(
-                new File("test\\data\\securities_1.xml"),
-                new File("test\\data\\securities_2.xml")
+                new File("src/test/data/securities_1.xml"),
+                new File("src/test/data/securities_2.xml")
         );
     }
 
@@ -49,6 +51,95 @@ public class XMLReaderTest {
         }
     }
 
+    @Test
+    public void testStreamingRows() throws XMLStreamException, FileNotFoundException, ParseException {
+        for (File f : historyFiles) {
+            final int[] count = {0};
+            XMLReader reader = new XMLReader(f, (dataId, record) -> {
+                assertEquals(XMLReader.DATA_ID.HISTORY, dataId);
+                assertNotNull(record.getAttributeValue("secid"));
+                count[0]++;
+            });
+            assertEquals(100, count[0]);
+            assertEquals(0, reader.getRecords().size());
+        }
+    }
+
+    @Test
+    public void testDecodedTypes() throws XMLStreamException, FileNotFoundException, ParseException {
+        for (XMLReader reader : new XMLReader[]{new XMLReader(historyFiles.get(0)), XMLReader.mapped(historyFiles.get(0))}) {
+            XMLReader.Record record = reader.getRecords().getFirst();
+            assertEquals(LocalDate.of(2020, 4, 15), record.getAttributeValue("tradedate"));
+            assertEquals(135.5, record.getAttributeValue("open"));
+            assertEquals("TQBR", record.getAttributeValue("boardid"));
+        }
+        for (XMLReader reader : new XMLReader[]{new XMLReader(securityFiles.get(0)), XMLReader.mapped(securityFiles.get(0))}) {
+            XMLReader.Record record = reader.getRecords().getFirst();
+            assertEquals(154676, record.getAttributeValue("id"));
+            assertEquals("", record.getAttributeValue("regnumber"));
+        }
+    }
+
+    @Test
+    public void testMappedEqualsStream() throws XMLStreamException, FileNotFoundException, ParseException {
+        List<File> files = new ArrayList<>(historyFiles);
+        files.addAll(securityFiles);
+        files.add(new File("src/test/data/history_3.xml"));
+        files.add(new File("src/test/data/history_4.xml"));
+        for (File f : files) {
+            XMLReader expected = new XMLReader(f);
+            XMLReader actual = XMLReader.mapped(f);
+            assertFalse(expected.getRecords().isEmpty());
+            assertEquals(expected.getDataId(), actual.getDataId());
+            assertEquals(expected.getCursor() == null, actual.getCursor() == null);
+            if (expected.getCursor() != null) {
+                assertEquals(expected.getCursor().getIndex(), actual.getCursor().getIndex());
+                assertEquals(expected.getCursor().getTotal(), actual.getCursor().getTotal());
+                assertEquals(expected.getCursor().getPageSize(), actual.getCursor().getPageSize());
+            }
+            assertEquals(expected.getRecords().size(), actual.getRecords().size());
+            for (int i = 0; i < expected.getRecords().size(); i++) {
+                assertEquals(expected.getRecords().get(i).getAllAttributes(), actual.getRecords().get(i).getAllAttributes());
+            }
+        }
+    }
+
+    @Test
+    public void testSymbolsShared() throws XMLStreamException, FileNotFoundException, ParseException {
+        // одинаковые значения низкокардинальных столбцов - один и тот же экземпляр строки во всех файлах
+        // и при обоих способах чтения
+        List<XMLReader.Record> records = new ArrayList<>();
+        for (File f : historyFiles) {
+            List<XMLReader.Record> stream = new XMLReader(f).getRecords();
+            List<XMLReader.Record> mapped = XMLReader.mapped(f).getRecords();
+            assertFalse(stream.isEmpty());
+            assertSame(stream.get(0).getAttributeValue("secid"), mapped.get(0).getAttributeValue("secid"));
+            records.addAll(stream);
+            records.addAll(mapped);
+        }
+        for (XMLReader.Record first : records) {
+            for (XMLReader.Record record : records) {
+                for (String name : new String[]{"secid", "boardid", "shortname"}) {
+                    Object a = first.getAttributeValue(name);
+                    Object b = record.getAttributeValue(name);
+                    if (a.equals(b)) assertSame(a, b);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPageCursor() throws XMLStreamException, FileNotFoundException, ParseException {
+        for (XMLReader reader : new XMLReader[]{new XMLReader(historyFiles.get(1)), XMLReader.mapped(historyFiles.get(1))}) {
+            XMLReader.PageCursor cursor = reader.getCursor();
+            assertEquals(50, cursor.getIndex());
+            assertEquals(495, cursor.getTotal());
+            assertEquals(100, cursor.getPageSize());
+        }
+        assertNull(new XMLReader(securityFiles.get(0)).getCursor());
+        assertNull(XMLReader.mapped(securityFiles.get(0)).getCursor());
+    }
+
     @Test
     public void test () throws FileNotFoundException, XMLStreamException, ParseException {
     thrown.expect(FileNotFoundException.class);
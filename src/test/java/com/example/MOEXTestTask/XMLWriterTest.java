@@ -0,0 +1,109 @@
+package com.example.MOEXTestTask;
+
+import java.io.*;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sample.TempDB;
+import sample.XMLReader;
+import sample.XMLWriter;
+
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.*;
+
+public class XMLWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    TempDB tempDB;
+
+    @Before
+    public void init() throws XMLStreamException, FileNotFoundException, ParseException {
+        tempDB = new TempDB();
+        for (String name : new String[]{"securities_1", "securities_2", "history_1", "history_2"}) {
+            tempDB.add(new XMLReader(new File("src/test/data/" + name + ".xml")));
+        }
+    }
+
+    @Test
+    public void testHistoryRoundTrip() throws IOException, XMLStreamException, ParseException {
+        File file = folder.newFile("history.xml");
+        new XMLWriter(file.getPath()).writeHistory(tempDB.getHistories());
+        assertRecords(tempDB.getHistories(), new XMLReader(file));
+        assertRecords(tempDB.getHistories(), XMLReader.mapped(file));
+    }
+
+    @Test
+    public void testFilteredHistory() throws IOException, XMLStreamException, ParseException {
+        File file = folder.newFile("aflt.xml");
+        List<TempDB.HistoryEntry> entries = tempDB.find("AFLT", null, LocalDate.of(2020, 4, 15), null);
+        assertFalse(entries.isEmpty());
+        new XMLWriter(file.getPath()).writeHistory(entries);
+        assertRecords(entries, new XMLReader(file));
+    }
+
+    @Test
+    public void testSecuritiesEscaping() throws IOException, XMLStreamException, ParseException {
+        HashMap<String, Object> info = new LinkedHashMap<>();
+        info.put("secid", "TEST");
+        info.put("name", "ПАО \"Тест\" & <Ко>\tлиния\nвторая");
+        info.put("regnumber", "");
+        TempDB.SecurityPaper paper = tempDB.new SecurityPaper("TEST", info);
+        assertFalse(paper.getXMLRow().contains("&quot "));
+        assertTrue(paper.getXMLRow().contains("&quot;Тест&quot; &amp; &lt;Ко&gt;"));
+
+        File file = folder.newFile("securities.xml");
+        new XMLWriter(file.getPath()).writeSecurities(Collections.singletonList(paper));
+        for (XMLReader reader : new XMLReader[]{new XMLReader(file), XMLReader.mapped(file)}) {
+            assertEquals(XMLReader.DATA_ID.SECURITIES, reader.getDataId());
+            assertEquals(1, reader.getRecords().size());
+            assertEquals(info, reader.getRecords().get(0).getAllAttributes());
+        }
+    }
+
+    @Test
+    public void testNumbersAndDates() throws IOException, XMLStreamException, ParseException {
+        TempDB db = new TempDB();
+        HashMap<String, Object> info = new LinkedHashMap<>();
+        info.put("secid", "TEST");
+        TempDB.SecurityPaper paper = db.new SecurityPaper("TEST", info);
+        db.add(paper);
+        Random random = new Random(1);
+        double[] special = {0.0, -0.5, 0.05, 1e-7, 123456789.125, 1e17, 4.35, Double.MAX_VALUE, Double.MIN_VALUE};
+        LocalDate[] dates = {LocalDate.of(1, 1, 1), LocalDate.of(1970, 1, 1), LocalDate.of(2000, 2, 29),
+                LocalDate.of(1969, 12, 31), LocalDate.of(9999, 12, 31)};
+        List<TempDB.HistoryEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            LinkedHashMap<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("secid", "TEST");
+            LocalDate date = i < dates.length ? dates[i] : LocalDate.ofEpochDay(random.nextInt(3000000) - 700000);
+            attributes.put("tradedate", date);
+            double value = i < special.length ? special[i]
+                    : i % 3 == 0 ? Math.round(random.nextDouble() * 1e6) / 100.0 : random.nextDouble() * 1e6;
+            attributes.put("close", value);
+            attributes.put("numtrades", random.nextInt());
+            entries.add(db.new HistoryEntry(paper, attributes, i));
+        }
+        db.add(entries.toArray(new TempDB.HistoryEntry[0]));
+
+        File file = folder.newFile("numbers.xml");
+        new XMLWriter(file.getPath()).writeHistory(db.getHistories());
+        assertRecords(db.getHistories(), new XMLReader(file));
+        assertRecords(db.getHistories(), XMLReader.mapped(file));
+    }
+
+    private static void assertRecords(List<TempDB.HistoryEntry> expected, XMLReader reader) {
+        assertEquals(XMLReader.DATA_ID.HISTORY, reader.getDataId());
+        List<XMLReader.Record> records = reader.getRecords();
+        assertEquals(expected.size(), records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(expected.get(i).getAllAttributes(), records.get(i).getAllAttributes());
+        }
+    }
+}